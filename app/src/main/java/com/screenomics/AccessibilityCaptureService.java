@@ -12,7 +12,6 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
 import android.graphics.ColorSpace;
 import android.hardware.HardwareBuffer;
 import android.os.Build;
@@ -33,26 +32,21 @@ import androidx.preference.PreferenceManager;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
-import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 import java.util.SortedMap;
-import java.util.TimeZone;
 import java.util.TreeMap;
-import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 @RequiresApi(api = Build.VERSION_CODES.R)
 public class AccessibilityCaptureService extends AccessibilityService {
     private static final String TAG = "A11yCaptureService";
-    private static final long CAPTURE_INTERVAL_MS = 5000L;
+    /** Polling cadence while there is nothing to capture; see CaptureCadence for the rest. */
+    private static final long CAPTURE_INTERVAL_MS = CaptureCadence.BASE_INTERVAL_MS;
     private static final String PREF_USE_ACCESSIBILITY_CAPTURE = "useAccessibilityCapture";
     private static final String PREF_RECORDING_STATE = "recordingState";
     private static final String PREF_A11Y_LAST_IMAGE_TS = "a11y_last_image_ts";
@@ -62,16 +56,29 @@ public class AccessibilityCaptureService extends AccessibilityService {
     private static final long LOW_STORAGE_LOG_THROTTLE_MS = 60_000L;
 
     /** Most unlocked time a single tick may credit. Guards against a stalled or
-     *  descheduled loop booking a long gap as screen-on time. */
-    private static final long MAX_TICK_CREDIT_MS = 15_000L;
+     *  descheduled loop booking a long gap as screen-on time; the slack over
+     *  the slowest cadence absorbs scheduling jitter. */
+    private static final long MAX_TICK_CREDIT_MS = CaptureCadence.MAX_INTERVAL_MS + 5_000L;
     /** Flush the counters to disk about once a minute at the normal cadence. */
     private static final int STATS_FLUSH_EVERY_TICKS = 12;
+    /** One frame being filled, one being encoded, one held by the VLM hook. */
+    private static final int FRAME_POOL_SIZE = 3;
 
     // Status flags and the VLM hook live in A11yState so API-29-reachable code
     // can read them without tripping NewApi lint on this @RequiresApi(R) class.
 
     private final Handler handler = new Handler(Looper.getMainLooper());
+    // Housekeeping off the main thread; captures themselves go through capturePipeline
     private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+    // Built in onServiceConnected; backpressure changes apply from the next connect
+    private CapturePipeline<CaptureJob> capturePipeline;
+    private final FramePool framePool = new FramePool(FRAME_POOL_SIZE);
+    private final FrameDedup frameDedup = new FrameDedup();
+    private final CaptureCadence cadence = new CaptureCadence(new CaptureCadence.AdaptivePolicy());
+    // Created and used on the pipeline's acquire thread only
+    private HardwareFrameReader frameReader;
+    // Rebuilt on the acquire thread for a new screen size; dropped when its settings change
+    private volatile CaptureGeometry geometry;
 
     private SharedPreferences prefs;
     private volatile boolean captureInFlight = false;
@@ -88,6 +95,12 @@ public class AccessibilityCaptureService extends AccessibilityService {
             (sharedPreferences, key) -> {
                 if (PREF_USE_ACCESSIBILITY_CAPTURE.equals(key) || PREF_RECORDING_STATE.equals(key)) {
                     updateCaptureState();
+                } else if (CaptureCadence.PREF_POLICY.equals(key)
+                        || CaptureCadence.PREF_FIXED_INTERVAL_MS.equals(key)) {
+                    cadence.setPolicy(CaptureCadence.policyFromPrefs(this));
+                } else if (CaptureGeometry.PREF_TIER.equals(key)
+                        || CaptureGeometry.PREF_CROP_SYSTEM_BARS.equals(key)) {
+                    geometry = null;
                 }
             };
 
@@ -103,7 +116,9 @@ public class AccessibilityCaptureService extends AccessibilityService {
             if (!screenUsable) {
                 // Nothing to capture. Poll at the normal cadence rather than
                 // every second: five times the wakeups to do nothing, in
-                // exchange for noticing an unlock up to 5s later.
+                // exchange for noticing an unlock up to 5s later. The
+                // first frame after unlock starts the cadence afresh.
+                cadence.reset();
                 scheduleNextCapture(CAPTURE_INTERVAL_MS);
                 return;
             }
@@ -116,6 +131,12 @@ public class AccessibilityCaptureService extends AccessibilityService {
                 scheduleNextCapture(1000L);
                 return;
             }
+            if (!capturePipeline.admitsNext()) {
+                // Earlier frames are still being written; leave a gap rather
+                // than queue more (SKIP_NEXT backpressure).
+                scheduleNextCapture(cadence.currentIntervalMs());
+                return;
+            }
             captureInFlight = true;
             takeScreenshot(
                     Display.DEFAULT_DISPLAY,
@@ -123,60 +144,15 @@ public class AccessibilityCaptureService extends AccessibilityService {
                     new TakeScreenshotCallback() {
                         @Override
                         public void onSuccess(@NonNull ScreenshotResult screenshotResult) {
-                            Bitmap bitmap = null;
-                            HardwareBuffer hardwareBuffer = screenshotResult.getHardwareBuffer();
-                            try {
-                                ColorSpace colorSpace = screenshotResult.getColorSpace();
-                                Bitmap hardwareBitmap = Bitmap.wrapHardwareBuffer(hardwareBuffer, colorSpace);
-                                if (hardwareBitmap == null) {
-                                    Log.e(TAG, "takeScreenshot returned a null bitmap");
-                                    // Counted: an uncounted failure is one the
-                                    // stall detector and the receiver are blind to.
-                                    recordCaptureFailure("NULL_BITMAP");
-                                    finishCaptureCycle(failureRetryDelayMs());
-                                    return;
-                                }
-                                bitmap = hardwareBitmap.copy(Bitmap.Config.ARGB_8888, false);
-                                hardwareBitmap.recycle();
-                            } catch (Exception e) {
-                                Log.e(TAG, "Failed to unwrap screenshot buffer", e);
-                                recordCaptureFailure("BUFFER_UNWRAP:" + e.getClass().getSimpleName());
-                                finishCaptureCycle(failureRetryDelayMs());
-                                return;
-                            } finally {
-                                hardwareBuffer.close();
-                            }
-
-                            Bitmap finalBitmap = bitmap;
-                            String foregroundApp = getForegroundApp();
-                            Log.d(TAG, "Screenshot captured | foreground_app=" + foregroundApp);
-
-                            // VLM benchmark: submit a copy with context
-                            VlmBenchmark vlm = A11yState.vlmBenchmark;
-                            if (vlm != null && vlm.isRunning()) {
-                                Bitmap copy = finalBitmap.copy(Bitmap.Config.ARGB_8888, false);
-                                if (copy != null) vlm.submitFrame(copy, foregroundApp, 0, 0);
-                            }
-
-                            ioExecutor.execute(() -> {
-                                try {
-                                    if (isUniformFrame(finalBitmap)) {
-                                        CaptureStats.addBlankCapture();
-                                    }
-                                    boolean imageSaved = encryptImage(finalBitmap, "image", foregroundApp);
-                                    if (imageSaved) {
-                                        recordCaptureSuccess();
-                                    } else {
-                                        recordCaptureFailure("IMAGE_WRITE_OR_ENCRYPT_FAILED");
-                                    }
-                                } catch (Exception e) {
-                                    Log.e(TAG, "Failed to persist accessibility screenshot", e);
-                                    recordCaptureFailure("PERSISTENCE_EXCEPTION:" + e.getClass().getSimpleName());
-                                } finally {
-                                    finalBitmap.recycle();
-                                    finishCaptureCycle(CAPTURE_INTERVAL_MS);
-                                }
-                            });
+                            // Reading the buffer back is the expensive part; keep
+                            // it, and its allocations, off the main thread.
+                            CaptureJob job = new CaptureJob(
+                                    screenshotResult.getHardwareBuffer(),
+                                    screenshotResult.getColorSpace(),
+                                    getForegroundApp());
+                            // Not accepted (full, or shutting down): already
+                            // released, which also lets the loop move on.
+                            capturePipeline.submit(job);
                         }
 
                         @Override
@@ -190,12 +166,187 @@ public class AccessibilityCaptureService extends AccessibilityService {
         }
     };
 
+    /**
+     * One screenshot on its way through the pipeline. Filled in stage by
+     * stage; fields are handed between stage threads through the pipeline's
+     * queues, which publish them safely.
+     */
+    private final class CaptureJob implements CapturePipeline.Job {
+        final String foregroundApp;
+        final Date timestamp;
+        HardwareBuffer buffer;
+        final ColorSpace colorSpace;
+        CaptureGeometry geometry;
+        FramePool.Frame frame;
+        int frameWidth;
+        int frameHeight;
+        long intervalMs;
+        boolean cycleFinished;
+        boolean claimedReference;
+        boolean committed;
+        File encryptDir;
+        String baseName;
+        ImageEncoder.Encoder encoder;
+        Encryptor.Result result;
+
+        CaptureJob(HardwareBuffer buffer, ColorSpace colorSpace, String foregroundApp) {
+            this.buffer = buffer;
+            this.colorSpace = colorSpace;
+            this.foregroundApp = foregroundApp;
+            this.timestamp = new Date();
+        }
+
+        /** Let the capture loop move on, once per job. */
+        void finishCycle(long nextDelayMs) {
+            if (cycleFinished) return;
+            cycleFinished = true;
+            finishCaptureCycle(nextDelayMs);
+        }
+
+        @Override
+        public void release() {
+            if (buffer != null) {
+                buffer.close();
+                buffer = null;
+            }
+            if (frame != null) {
+                frame.release();
+                frame = null;
+            }
+            // Dropped or failed after dedup took it as the reference: later
+            // frames must not be skipped against a frame that was never
+            // written, and those already skipped must not claim they match it.
+            if (claimedReference && !committed) {
+                FrameDedup.queueRecord(getApplicationContext(),
+                        frameDedup.abandonReference(timestamp.getTime()));
+            }
+            // Written but dropped before commit (evicted, queue full, or the
+            // pipeline shut down): an .enc with no .meta is never uploadable
+            // and the index never heard of it, so don't leave it behind.
+            if (result != null && !committed) {
+                //noinspection ResultOfMethodCallIgnored
+                result.encFile.delete();
+                result = null;
+            }
+            // Dropped before classify decided the next delay
+            finishCycle(cadence.currentIntervalMs());
+        }
+
+        @Override
+        public void onStageFailed(String stage, Exception e) {
+            recordCaptureFailure("PERSISTENCE_EXCEPTION:" + e.getClass().getSimpleName());
+        }
+    }
+
+    private CapturePipeline<CaptureJob> buildPipeline() {
+        return CapturePipeline.<CaptureJob>builder(
+                        CapturePipeline.Backpressure.fromPrefs(this),
+                        CapturePipeline.DEFAULT_QUEUE_CAPACITY)
+                .stage("acquire", this::acquireStage)
+                .stage("classify", this::classifyStage)
+                .stage("write", job -> {
+                    boolean written = writeEnc(job, "image");
+                    if (!written) recordCaptureFailure("IMAGE_WRITE_OR_ENCRYPT_FAILED");
+                    return written;
+                })
+                .stage("commit", this::commitStage)
+                .start();
+    }
+
+    /**
+     * Read the screenshot once into a pooled frame, cropped and downscaled
+     * per {@link CaptureGeometry}. Every later consumer reads that frame in
+     * place; the VLM hook takes a reference instead of a copy.
+     */
+    private boolean acquireStage(CaptureJob job) {
+        try {
+            if (frameReader == null) {
+                frameReader = new HardwareFrameReader(framePool);
+            }
+            job.geometry = geometryFor(job.buffer.getWidth(), job.buffer.getHeight());
+            job.frame = frameReader.read(job.buffer, job.colorSpace, job.geometry);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to unwrap screenshot buffer", e);
+            recordCaptureFailure("BUFFER_UNWRAP:" + e.getClass().getSimpleName());
+            job.finishCycle(failureRetryDelayMs());
+            return false;
+        } finally {
+            job.buffer.close();
+            job.buffer = null;
+        }
+        if (job.frame == null) {
+            Log.e(TAG, "takeScreenshot returned a null bitmap");
+            // Counted: an uncounted failure is one the
+            // stall detector and the receiver are blind to.
+            recordCaptureFailure("NULL_BITMAP");
+            job.finishCycle(failureRetryDelayMs());
+            return false;
+        }
+        job.frameWidth = job.frame.width();
+        job.frameHeight = job.frame.height();
+        Log.d(TAG, "Screenshot captured | foreground_app=" + job.foregroundApp);
+
+        // VLM benchmark: share the frame with context; it releases when done
+        VlmBenchmark vlm = A11yState.vlmBenchmark;
+        if (vlm != null && vlm.isRunning()) {
+            vlm.submitFrame(job.frame.retain(), job.foregroundApp, 0, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Blank detection, cadence and dedup. Decides when the next screenshot
+     * is taken, so the loop does not wait for this frame's write.
+     */
+    private boolean classifyStage(CaptureJob job) {
+        if (isUniformFrame(job.frame)) {
+            CaptureStats.addBlankCapture();
+        }
+        FrameDedup.Fingerprint fingerprint = FrameDedup.fingerprint(job.frame.bitmap());
+        job.intervalMs = cadence.currentIntervalMs();
+        job.finishCycle(cadence.observe(fingerprint, job.foregroundApp));
+
+        long epochMs = job.timestamp.getTime();
+        if (frameDedup.offer(fingerprint, job.foregroundApp, epochMs, job.intervalMs,
+                FrameDedup.maxDistance(this))) {
+            CaptureStats.addDedupSkip();
+            markCaptureHealthy();
+            return false;
+        }
+        FrameDedup.queueRecord(getApplicationContext(), frameDedup.takeRun());
+        // The reference now, not once written: the next frame can be
+        // classified while this one is still in the write stage.
+        frameDedup.setReference(fingerprint, job.foregroundApp, epochMs);
+        job.claimedReference = true;
+        return true;
+    }
+
+    /** Free the frame, write the sidecar and count the capture. */
+    private boolean commitStage(CaptureJob job) {
+        job.frame.release();
+        job.frame = null;
+        if (writeMeta(job.encryptDir, job.baseName, job.result, job.encoder, "image",
+                job.timestamp, job.foregroundApp, job.intervalMs, job.geometry,
+                job.frameWidth, job.frameHeight)) {
+            job.committed = true;
+            CaptureStats.addCapture(job.foregroundApp);
+            markCaptureHealthy();
+        } else {
+            recordCaptureFailure("IMAGE_WRITE_OR_ENCRYPT_FAILED");
+        }
+        return true;
+    }
+
     @Override
     protected void onServiceConnected() {
         super.onServiceConnected();
         prefs = PreferenceManager.getDefaultSharedPreferences(this);
         prefs.registerOnSharedPreferenceChangeListener(prefChangeListener);
+        Encryptor.watchKeyChanges(getApplicationContext());
         A11yState.serviceConnected = true;
+        if (capturePipeline == null) {
+            capturePipeline = buildPipeline();
+        }
         // Before anything reopens an interval: reconcile one left open by a
         // previous instance that was killed without onDestroy.
         CaptureStats.onServiceStarted(getApplicationContext());
@@ -234,7 +385,28 @@ public class AccessibilityCaptureService extends AccessibilityService {
         if (prefs != null) {
             prefs.unregisterOnSharedPreferenceChangeListener(prefChangeListener);
         }
-        ioExecutor.shutdownNow();
+        // Queued captures hold HardwareBuffers and frames; shutting the
+        // pipeline down releases them. The reader and pool are torn down
+        // once the acquire thread that uses them has exited.
+        CapturePipeline<CaptureJob> pipeline = capturePipeline;
+        if (pipeline != null) pipeline.shutdown();
+        ioExecutor.execute(() -> {
+            try {
+                if (pipeline != null && !pipeline.awaitTermination(10_000L)) {
+                    Log.w(TAG, "Capture pipeline still running at teardown");
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (frameReader != null) {
+                frameReader.close();
+                frameReader = null;
+            }
+            framePool.clear();
+        });
+        ioExecutor.shutdown();
     }
 
     // isServiceEnabled / isCaptureRunning / buildAccessibilitySettingsIntent
@@ -245,6 +417,7 @@ public class AccessibilityCaptureService extends AccessibilityService {
         A11yState.captureActive = shouldCapture;
         if (shouldCapture) {
             CaptureStats.onArmed(getApplicationContext());
+            cadence.setPolicy(CaptureCadence.policyFromPrefs(this));
             scheduleNextCapture(500L);
             UploadScheduler.ensurePeriodicUpload(getApplicationContext());
         } else {
@@ -266,6 +439,15 @@ public class AccessibilityCaptureService extends AccessibilityService {
         // Drop the tick anchor so the gap while stopped is never credited.
         lastTickElapsed = -1L;
         lastTickScreenUsable = false;
+        // Close any run of deduplicated frames; the next frame is written.
+        try {
+            ioExecutor.execute(() -> {
+                frameDedup.clearReference();
+                FrameDedup.queueRecord(getApplicationContext(), frameDedup.takeRun());
+            });
+        } catch (RejectedExecutionException ignored) {
+            // already shut down; onDestroy ran first
+        }
     }
 
     private void scheduleNextCapture(long delayMs) {
@@ -362,71 +544,45 @@ public class AccessibilityCaptureService extends AccessibilityService {
      * counted and reported, never treated as an error -- but a day that is
      * entirely blank means capture is broken in a way no error code reveals.
      */
-    private static boolean isUniformFrame(Bitmap bitmap) {
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
+    private static boolean isUniformFrame(FramePool.Frame frame) {
+        int width = frame.width();
+        int height = frame.height();
         if (width < 8 || height < 8) return false;
-        int first = bitmap.getPixel(width / 8, height / 8);
+        int first = frame.getPixel(width / 8, height / 8);
         for (int i = 1; i < 8; i++) {
             for (int j = 1; j < 8; j++) {
-                if (bitmap.getPixel(width * i / 8, height * j / 8) != first) return false;
+                if (frame.getPixel(width * i / 8, height * j / 8) != first) return false;
             }
         }
         return true;
     }
 
-    private boolean encryptImage(Bitmap bitmap, String descriptor, String foregroundApp) {
+    /**
+     * Compress the frame straight into an encrypting sink: the write stage.
+     *
+     * No plaintext JPEG is staged on disk: the frame is written to flash once,
+     * as ciphertext. A failed compress or write leaves no .enc behind, so the
+     * uploader never sees a half-written file without a sidecar. The .meta
+     * is written by the commit stage.
+     */
+    private boolean writeEnc(CaptureJob job, String descriptor) {
         if (!hasEnoughStorageForCapture()) {
             Log.w(TAG, "Skipping capture due to low storage for descriptor: " + descriptor);
             return false;
         }
 
-        File extDir = getApplicationContext().getExternalFilesDir(null);
-        if (extDir == null) {
-            Log.e(TAG, "getExternalFilesDir returned null, skipping capture");
-            return false;
-        }
-
-        File tempFile = new File(extDir.getAbsolutePath(), "tmp_" + UUID.randomUUID() + ".jpg");
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(tempFile);
-            boolean compressed = bitmap.compress(Bitmap.CompressFormat.JPEG, 70, fos);
-            if (!compressed) {
-                Log.e(TAG, "Bitmap compress failed for descriptor: " + descriptor);
-                return false;
-            }
-            fos.close();
-            fos = null;
-            return encryptAndWriteMeta(tempFile, descriptor, "image/jpeg", "image", new Date(), foregroundApp);
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to write temp image", e);
-            if (tempFile.exists()) tempFile.delete();
-            return false;
-        } finally {
-            try {
-                if (fos != null) fos.close();
-            } catch (IOException ignored) {
-            }
-        }
-    }
-
-    private boolean encryptAndWriteMeta(
-            File tempFile,
-            String descriptor,
-            String mime,
-            String type,
-            Date timestamp,
-            String foregroundApp
-    ) {
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
         String hashFull = sharedPreferences.getString("hash", "00000000");
         String hash = hashFull.substring(0, Math.min(8, hashFull.length()));
         String pubKeyPem = sharedPreferences.getString("image_public_key", "");
+        if (pubKeyPem == null || pubKeyPem.trim().isEmpty()) {
+            Log.w(TAG, "No image_public_key, skipping " + descriptor);
+            return false;
+        }
 
         File extDir = getApplicationContext().getExternalFilesDir(null);
         if (extDir == null) {
-            Log.e(TAG, "getExternalFilesDir returned null, skipping " + descriptor);
+            Log.e(TAG, "getExternalFilesDir returned null, skipping capture");
             return false;
         }
         File encryptDir = new File(extDir, "encrypt");
@@ -434,41 +590,85 @@ public class AccessibilityCaptureService extends AccessibilityService {
             Log.e(TAG, "Failed to create encrypt directory, skipping " + descriptor);
             return false;
         }
+
         // Use the same timestamp for filename and metadata so they match
-        String baseName = hash + "_" + timestamp.getTime() + "_" + descriptor;
+        String baseName = hash + "_" + job.timestamp.getTime() + "_" + descriptor;
+        File encFile = new File(encryptDir, baseName + ".enc");
 
-        try {
-            if (pubKeyPem == null || pubKeyPem.trim().isEmpty()) {
-                Log.w(TAG, "No image_public_key, skipping " + descriptor);
+        ImageEncoder.Encoder encoder = ImageEncoder.fromPrefs(this);
+        Encryptor.Result result;
+        try (Encryptor.Sink sink = Encryptor.openEncSink(this, encFile, pubKeyPem)) {
+            boolean compressed = job.frame.encode(encoder, sink);
+            if (!compressed) {
+                Log.e(TAG, "Bitmap compress failed for descriptor: " + descriptor);
+                sink.abort();
                 return false;
             }
+            sink.close();
+            result = sink.result();
+        } catch (Exception e) {
+            Log.e(TAG, "Encryption failed for " + descriptor, e);
+            //noinspection ResultOfMethodCallIgnored
+            encFile.delete();
+            return false;
+        }
+        job.encryptDir = encryptDir;
+        job.baseName = baseName;
+        job.encoder = encoder;
+        job.result = result;
+        return true;
+    }
 
-            File encFile = new File(encryptDir, baseName + ".enc");
-            Encryptor.Result result = Encryptor.encryptFileToEnc(tempFile, encFile, pubKeyPem);
+    /** The geometry for screenshots of this size, rebuilt when the size or settings change. */
+    private CaptureGeometry geometryFor(int screenWidth, int screenHeight) {
+        CaptureGeometry g = geometry;
+        if (g == null || g.screenWidth != screenWidth || g.screenHeight != screenHeight) {
+            g = CaptureGeometry.fromPrefs(this, screenWidth, screenHeight);
+            geometry = g;
+        }
+        return g;
+    }
 
-            DateFormat isoFmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-            isoFmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+    private boolean writeMeta(
+            File encryptDir,
+            String baseName,
+            Encryptor.Result result,
+            ImageEncoder.Encoder encoder,
+            String type,
+            Date timestamp,
+            String foregroundApp,
+            long intervalMs,
+            CaptureGeometry frameGeometry,
+            int frameWidth,
+            int frameHeight
+    ) {
+        try {
             JSONObject metaObj = new JSONObject();
-            metaObj.put("aes_key_encrypted_b64", result.aesKeyEncB64);
-            metaObj.put("tag_len_bits", result.tagLenBits);
-            metaObj.put("mime", mime);
+            result.putKeyFields(metaObj);
+            metaObj.put("mime", encoder.mime());
+            metaObj.put("image_quality", encoder.quality());
             metaObj.put("type", type);
-            metaObj.put("captured_at", isoFmt.format(timestamp));
+            metaObj.put("captured_at", Timestamps.isoMillis(timestamp.getTime()));
             metaObj.put("epoch_ms", timestamp.getTime());
             if (foregroundApp != null && !foregroundApp.isEmpty()) {
                 metaObj.put("foreground_app", foregroundApp);
             }
+            metaObj.put("capture_interval_ms", intervalMs);
+            metaObj.put("cadence_policy", cadence.policyName());
+            frameGeometry.putMeta(metaObj, frameWidth, frameHeight);
 
             File metaFile = new File(encryptDir, baseName + ".meta");
             try (FileWriter fw = new FileWriter(metaFile)) {
                 fw.write(metaObj.toString());
             }
+            UploadIndex.written(result.encFile);
             return true;
         } catch (Exception e) {
-            Log.e(TAG, "Encryption failed for " + descriptor, e);
+            Log.e(TAG, "Failed to write sidecar for " + baseName, e);
+            // An .enc without its key fields is unrecoverable; don't queue it
+            //noinspection ResultOfMethodCallIgnored
+            result.encFile.delete();
             return false;
-        } finally {
-            if (tempFile.exists()) tempFile.delete();
         }
     }
 
@@ -525,8 +725,12 @@ public class AccessibilityCaptureService extends AccessibilityService {
         return "";
     }
 
-    private void recordCaptureSuccess() {
-        CaptureStats.addCapture();
+    /**
+     * Capture is working: a frame was written, or deduplicated against one
+     * that was. Either way the loop is alive, so a long static screen does
+     * not read as a stall.
+     */
+    private synchronized void markCaptureHealthy() {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         sp.edit()
                 .putLong(PREF_A11Y_LAST_IMAGE_TS, System.currentTimeMillis())
@@ -535,7 +739,9 @@ public class AccessibilityCaptureService extends AccessibilityService {
                 .apply();
     }
 
-    private void recordCaptureFailure(String reason) {
+    // Synchronized with markCaptureHealthy: pipeline stages call both from
+    // different threads, and the failure streak is a read-modify-write.
+    private synchronized void recordCaptureFailure(String reason) {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         int fails = sp.getInt(PREF_A11Y_CONSEC_FAIL, 0) + 1;
         sp.edit()
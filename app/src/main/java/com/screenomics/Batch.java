@@ -9,15 +9,20 @@ import androidx.preference.PreferenceManager;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.TimeZone;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLException;
 
 import okhttp3.MediaType;
@@ -27,6 +32,7 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
@@ -46,6 +52,36 @@ import org.json.JSONException;
  *   - tag_len_bits (128)
  *   - mime/type/captured_at
  *   - NO gcm_nonce_b64 (nonce is prefixed to .enc)
+ *
+ * Pre-encrypted .enc/.meta pairs are forwarded as written. With the opt-in
+ * session-key envelope their .meta is enc_version=2 and carries key_id in
+ * place of aes_key_encrypted_b64; the wrapped key arrives in a separate
+ * "sessionkey" pair (see SessionKeyEnvelope). Legacy plaintext encrypted
+ * here is always v1.
+ *
+ * Multi-file mode (opt-in, {@link #PREF_MULTI_FILE}) packs several .enc+.meta
+ * pairs into one POST to /batches/{id}/screenshots/bulk, up to
+ * {@link #PREF_MULTI_MAX_BYTES} of file bytes, so N screenshots pay for one
+ * signature, one set of headers and one round trip instead of N. Parts go
+ * in pairs -- "metadata" then "file" -- and the receiver answers with one
+ * result per file:
+ *
+ *   {"results": [{"filename": "a.enc", "status": 202},
+ *                {"filename": "b.enc", "status": 409, "error": "duplicate_screenshot"},
+ *                {"filename": "c.enc", "status": 422, "error": "..."}]}
+ *
+ * Only files the receiver acknowledged (202, or a duplicate it already has)
+ * are deleted; the rest stay for the next run. A receiver without the bulk
+ * endpoint (404/405/501) gets single uploads for the rest of the batch.
+ *
+ * Pre-encrypted uploads, single or bulk, run on the process-wide
+ * {@link UploadDispatcher}, concurrently within this batch and alongside
+ * other batches' uploads, up to its in-flight limit. Legacy plaintext is
+ * still encrypted and uploaded inline, one file at a time.
+ *
+ * An .enc of at least upload_resumable_threshold_bytes goes up on its own
+ * through {@link ResumableUpload}, in chunks whose progress survives a
+ * dropped connection or a killed process.
  */
 public class Batch {
 
@@ -56,27 +92,60 @@ public class Batch {
     private static final MediaType OCTET = MediaType.parse("application/octet-stream");
     private static final MediaType JSON_TYPE = MediaType.parse("application/json");
 
+    static final String PREF_MULTI_FILE = "upload_multi_file";
+    /** File bytes per bulk request; a single larger file still goes, alone. */
+    static final String PREF_MULTI_MAX_BYTES = "upload_multi_max_bytes";
+    static final int DEFAULT_MULTI_MAX_BYTES = 4 * 1024 * 1024;
+    static final int MAX_FILES_PER_REQUEST = 64;
+
+    /** A pre-encrypted .enc with its sidecar, ready to upload. */
+    static final class EncPair {
+        final File enc;
+        final File meta;
+        final String metaJson;
+
+        EncPair(File enc, File meta, String metaJson) {
+            this.enc = enc;
+            this.meta = meta;
+            this.metaJson = metaJson;
+        }
+
+        long bytes() {
+            return enc.length() + metaJson.length();
+        }
+    }
+
     private final Context context;
     private final List<File> files;
     private final OkHttpClient client;
+    private final UploadRateController rateController;
+    /** Set by whoever built the batch; null to decide per upload group. */
+    private final UploadDispatcher.Lane lane;
 
     // Primary ctor
     public Batch(Context context, List<File> files) {
-        this.context = context.getApplicationContext();
-        this.files   = files;
-        this.client  = HttpClientProvider.get(this.context);
+        this(context, files, null, null);
     }
 
     // Back-compat ctor used by existing call sites
     public Batch(Context context, List<File> files, OkHttpClient providedClient) {
+        this(context, files, providedClient, null);
+    }
+
+    /** A batch whose lane is already known, so nothing has to stat its files for it. */
+    Batch(Context context, List<File> files, OkHttpClient providedClient,
+          UploadDispatcher.Lane lane) {
         this.context = context.getApplicationContext();
         this.files   = files;
         this.client  = (providedClient != null) ? providedClient : HttpClientProvider.get(this.context);
+        this.rateController = UploadRateController.get(this.context);
+        this.lane = lane;
     }
 
     /** Main upload flow -- handles pre-encrypted .enc+.meta pairs and legacy plaintext */
     public String[] sendFiles() {
         Log.d(TAG, "Starting batch upload of " + (files == null ? 0 : files.size()) + " files");
+        long startedNs = System.nanoTime();
         if (files == null || files.isEmpty()) {
             Log.e(TAG, "No files to upload");
             return new String[]{"999", "NO FILES"};
@@ -103,6 +172,7 @@ public class Batch {
         // ---------- STEP 2: Upload each file ----------
         int success = 0, fail = 0, skip = 0;
         String uploadBase = baseUrl + "/api/v1/batches/" + batchId + "/screenshots";
+        List<EncPair> pairs = new ArrayList<>();
 
         for (File file : files) {
             if (file == null || !file.isFile()) { skip++; continue; }
@@ -123,6 +193,7 @@ public class Batch {
                     // Remove it to avoid permanent retry loops on every upload run.
                     boolean deleted = file.delete();
                     Log.w(TAG, "Deleted orphan .enc " + name + ": " + deleted);
+                    if (deleted) UploadIndex.deleted(file);
                     fail++;
                     continue;
                 }
@@ -137,18 +208,13 @@ public class Batch {
                     metaJson = sb.toString();
                 } catch (Exception e) {
                     Log.e(TAG, "Failed to read .meta sidecar for " + name, e);
+                    UploadIndex.uploadFailed(file, "unreadable_meta");
                     fail++;
                     continue;
                 }
 
-                // Upload .enc directly (already encrypted, no re-encryption)
-                if (uploadEncFile(file, metaJson, pptId, studyId, bearerToken, uploadBase)) {
-                    success++;
-                    file.delete();
-                    metaFile.delete();
-                } else {
-                    fail++;
-                }
+                // Uploaded as is (already encrypted) once the loop is done
+                pairs.add(new EncPair(file, metaFile, metaJson));
 
             } else {
                 // --- Legacy plaintext: encrypt then upload ---
@@ -168,6 +234,7 @@ public class Batch {
                 } catch (Exception e) {
                     fail++;
                     Log.e(TAG, "Encryption failed for " + name, e);
+                    UploadIndex.uploadFailed(file, "encrypt_failed");
                     continue;
                 }
 
@@ -179,13 +246,38 @@ public class Batch {
                     success++;
                     file.delete();
                     encFile.delete();
+                    UploadIndex.deleted(file);
                 } else {
                     fail++;
                     encFile.delete();
+                    UploadIndex.uploadFailed(file, "upload_failed");
                 }
             }
         }
 
+        if (!pairs.isEmpty()) {
+            boolean multiFile = prefs.getBoolean(PREF_MULTI_FILE, false);
+            int maxBytes = prefs.getInt(PREF_MULTI_MAX_BYTES, DEFAULT_MULTI_MAX_BYTES);
+            Endpoint endpoint = new Endpoint(baseUrl, batchId, pptId, studyId, bearerToken);
+            int acked = sendPairs(pairs, multiFile, maxBytes, ResumableUpload.threshold(context),
+                    endpoint);
+            success += acked;
+            fail += pairs.size() - acked;
+            for (EncPair pair : pairs) {
+                if (pair.enc.exists()) {
+                    UploadIndex.uploadFailed(pair.enc, "not_acknowledged");
+                } else {
+                    UploadIndex.deleted(pair.enc);
+                }
+            }
+        }
+
+        Metrics.counter("upload_files_ok").add(success);
+        Metrics.counter("upload_files_failed").add(fail);
+        Metrics.counter("upload_files_skipped").add(skip);
+        Metrics.histogram("upload_batch").record(
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNs));
+
         String summary = "OK=" + success + " FAIL=" + fail + " SKIP=" + skip;
         Log.i(TAG, "Batch upload summary: " + summary);
         return new String[]{(fail == 0 ? "202" : "207"), summary};
@@ -194,11 +286,14 @@ public class Batch {
     /** Upload a single .enc file with its metadata JSON. Returns true on success. */
     private boolean uploadEncFile(File encFile, String metaJson,
                                   String pptId, String studyId, String bearerToken, String uploadUrl) {
+        long bytes = encFile.length() + metaJson.length();
+        // One body for every attempt, hashed once
+        MultipartBody body = new MultipartBody.Builder().setType(MultipartBody.FORM)
+                .addFormDataPart("metadata", null, RequestBody.create(JSON_TYPE, metaJson))
+                .addFormDataPart("file", encFile.getName(), RequestBody.create(OCTET, encFile))
+                .build();
+        String digest = digestOrNull(body, encFile.getName());
         for (int attempt = 1; attempt <= MAX_UPLOAD_RETRIES; attempt++) {
-            MultipartBody.Builder body = new MultipartBody.Builder().setType(MultipartBody.FORM);
-            body.addFormDataPart("metadata", null, RequestBody.create(JSON_TYPE, metaJson));
-            body.addFormDataPart("file", encFile.getName(), RequestBody.create(OCTET, encFile));
-
             Request.Builder rb = new Request.Builder()
                     .url(uploadUrl)
                     .addHeader("Accept", "application/json")
@@ -210,11 +305,15 @@ public class Batch {
             if (bearerToken != null && !bearerToken.isEmpty()) {
                 rb.addHeader("Authorization", "Bearer " + bearerToken);
             }
-            rb.post(body.build());
+            if (digest != null) rb.header(BodyDigest.HEADER, digest);
+            rb.tag(UploadTelemetry.Attempt.class, new UploadTelemetry.Attempt(attempt));
+            rb.post(body);
 
+            long startNanos = requestStarted();
             try (Response resp = client.newCall(rb.build()).execute()) {
                 int code = resp.code();
                 String bodyStr = (resp.body() != null) ? resp.body().string() : "";
+                requestFinished(startNanos, bytes, code, resp.header("Retry-After"));
                 Log.d(TAG, "Upload response: " + code + " body=" + bodyStr);
 
                 if (code == 202 || (code == 409 && bodyStr.contains("duplicate_screenshot"))) {
@@ -230,6 +329,7 @@ public class Batch {
                     return false;
                 }
             } catch (Exception ex) {
+                requestFinished(startNanos, bytes, -1, null);
                 boolean retryable = isRetryableException(ex);
                 Log.e(TAG, "Upload exception for " + encFile.getName() + ": " + ex.getMessage(), ex);
 
@@ -246,13 +346,325 @@ public class Batch {
         return false;
     }
 
+    /** Where and as whom this batch uploads. */
+    private static final class Endpoint {
+        final String baseUrl;
+        final int batchId;
+        final String pptId;
+        final String studyId;
+        final String bearerToken;
+
+        Endpoint(String baseUrl, int batchId, String pptId, String studyId, String bearerToken) {
+            this.baseUrl = baseUrl;
+            this.batchId = batchId;
+            this.pptId = pptId;
+            this.studyId = studyId;
+            this.bearerToken = bearerToken;
+        }
+
+        String uploadBase() {
+            return baseUrl + "/api/v1/batches/" + batchId + "/screenshots";
+        }
+    }
+
+    /**
+     * Upload pre-encrypted pairs through the shared {@link UploadDispatcher},
+     * one request per pair or, in multi-file mode, per packed group, and
+     * delete the ones the receiver acknowledged. Files of at least
+     * {@code resumableFrom} bytes go up alone, in resumable chunks. Returns
+     * how many were acknowledged.
+     */
+    private int sendPairs(List<EncPair> pairs, boolean multiFile, int maxBytes,
+                          long resumableFrom, Endpoint endpoint) {
+        UploadDispatcher dispatcher = UploadDispatcher.get(context);
+        long now = System.currentTimeMillis();
+        List<EncPair> small = new ArrayList<>();
+        List<List<EncPair>> groups = new ArrayList<>();
+        for (EncPair pair : pairs) {
+            if (pair.enc.length() >= resumableFrom) {
+                groups.add(Collections.singletonList(pair));
+            } else {
+                small.add(pair);
+            }
+        }
+        int resumableGroups = groups.size();
+        groups.addAll(multiFile
+                ? pack(small, maxBytes, MAX_FILES_PER_REQUEST)
+                : pack(small, 0, 1));
+
+        String uploadBase = endpoint.uploadBase();
+        List<Future<Set<String>>> futures = new ArrayList<>();
+        for (int i = 0; i < groups.size(); i++) {
+            List<EncPair> group = groups.get(i);
+            boolean resumable = i < resumableGroups;
+            UploadDispatcher.Lane groupLane = lane != null ? lane : laneFor(group, now);
+            futures.add(dispatcher.submit(groupLane, () -> resumable
+                    ? uploadEncResumable(group.get(0), endpoint)
+                    : multiFile
+                    ? uploadEncGroup(group, endpoint.pptId, endpoint.studyId,
+                            endpoint.bearerToken, uploadBase + "/bulk")
+                    : uploadEncSingle(group.get(0), endpoint, uploadBase)));
+        }
+
+        int acked = 0;
+        List<EncPair> unsent = new ArrayList<>();
+        for (int i = 0; i < groups.size(); i++) {
+            Set<String> ok = await(futures.get(i));
+            if (ok == null) {
+                // No bulk or resumable endpoint on this receiver
+                unsent.addAll(groups.get(i));
+                continue;
+            }
+            acked += deleteAcknowledged(groups.get(i), ok);
+        }
+        if (!unsent.isEmpty()) {
+            Log.w(TAG, "Receiver lacks an upload endpoint; uploading " + unsent.size()
+                    + " files one at a time");
+            acked += sendPairs(unsent, false, maxBytes, Long.MAX_VALUE, endpoint);
+        }
+        return acked;
+    }
+
+    private Set<String> uploadEncSingle(EncPair pair, Endpoint endpoint, String uploadUrl) {
+        Set<String> ok = new HashSet<>();
+        if (uploadEncFile(pair.enc, pair.metaJson, endpoint.pptId, endpoint.studyId,
+                endpoint.bearerToken, uploadUrl)) {
+            ok.add(pair.enc.getName());
+        }
+        return ok;
+    }
+
+    /**
+     * Upload one large pair in resumable chunks. Returns its name if done,
+     * an empty set if it should be retried next run (progress is kept), or
+     * null if the receiver has no resumable endpoint.
+     */
+    private Set<String> uploadEncResumable(EncPair pair, Endpoint endpoint) {
+        ResumableUpload upload = new ResumableUpload(context, client, url -> {
+            Request.Builder rb = new Request.Builder()
+                    .url(url)
+                    .addHeader("Accept", "application/json")
+                    .addHeader("X-Participant-ID", endpoint.pptId)
+                    .addHeader("X-Study-ID", endpoint.studyId)
+                    .addHeader("X-Request-Nonce", UUID.randomUUID().toString())
+                    .addHeader("X-Request-Timestamp", iso8601ZuluNow())
+                    .addHeader("X-Request-Id", "and-tus-" + UUID.randomUUID());
+            if (endpoint.bearerToken != null && !endpoint.bearerToken.isEmpty()) {
+                rb.addHeader("Authorization", "Bearer " + endpoint.bearerToken);
+            }
+            return rb;
+        });
+        // Not reported to the rate controller: one call spans many requests,
+        // and its duration says nothing about a single round trip.
+        ResumableUpload.Result result = upload.send(pair.enc, pair.metaJson,
+                endpoint.baseUrl, endpoint.batchId);
+        Set<String> ok = new HashSet<>();
+        switch (result) {
+            case DONE:
+                ok.add(pair.enc.getName());
+                return ok;
+            case UNSUPPORTED:
+                return null;
+            default:
+                return ok;
+        }
+    }
+
+    /** A group is fresh if any of its files is; fresh captures share slots fairly with backlog. */
+    private static UploadDispatcher.Lane laneFor(List<EncPair> group, long now) {
+        for (EncPair pair : group) {
+            if (UploadDispatcher.laneFor(pair.enc.lastModified(), now) == UploadDispatcher.Lane.FRESH) {
+                return UploadDispatcher.Lane.FRESH;
+            }
+        }
+        return UploadDispatcher.Lane.BACKLOG;
+    }
+
+    /** The task's result; an empty set if it failed or the wait was interrupted. */
+    private static Set<String> await(Future<Set<String>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Upload task failed", e.getCause());
+        }
+        return new HashSet<>();
+    }
+
+    private static int deleteAcknowledged(List<EncPair> group, Set<String> ok) {
+        int acked = 0;
+        for (EncPair pair : group) {
+            if (ok.contains(pair.enc.getName())) {
+                acked++;
+                pair.enc.delete();
+                pair.meta.delete();
+            }
+        }
+        return acked;
+    }
+
+    /**
+     * Split pairs, in order, into groups of at most {@code maxFiles} whose file
+     * bytes fit in {@code maxBytes}. A pair over the budget on its own is a
+     * group by itself.
+     */
+    static List<List<EncPair>> pack(List<EncPair> pairs, long maxBytes, int maxFiles) {
+        List<List<EncPair>> groups = new ArrayList<>();
+        List<EncPair> group = new ArrayList<>();
+        long groupBytes = 0;
+        for (EncPair pair : pairs) {
+            long bytes = pair.bytes();
+            if (!group.isEmpty() && (groupBytes + bytes > maxBytes || group.size() >= maxFiles)) {
+                groups.add(group);
+                group = new ArrayList<>();
+                groupBytes = 0;
+            }
+            group.add(pair);
+            groupBytes += bytes;
+        }
+        if (!group.isEmpty()) groups.add(group);
+        return groups;
+    }
+
+    /**
+     * Upload a group of pairs in one multipart request. Returns the names of
+     * the .enc files the receiver acknowledged -- empty when the request
+     * failed -- or null if the receiver has no bulk endpoint.
+     */
+    private Set<String> uploadEncGroup(List<EncPair> group, String pptId, String studyId,
+                                       String bearerToken, String uploadUrl) {
+        String label = group.size() + " files from " + group.get(0).enc.getName();
+        long bytes = 0;
+        for (EncPair pair : group) bytes += pair.bytes();
+        MultipartBody.Builder parts = new MultipartBody.Builder().setType(MultipartBody.FORM);
+        for (EncPair pair : group) {
+            parts.addFormDataPart("metadata", null, RequestBody.create(JSON_TYPE, pair.metaJson));
+            parts.addFormDataPart("file", pair.enc.getName(), RequestBody.create(OCTET, pair.enc));
+        }
+        MultipartBody body = parts.build();
+        String digest = digestOrNull(body, label);
+        for (int attempt = 1; attempt <= MAX_UPLOAD_RETRIES; attempt++) {
+            Request.Builder rb = new Request.Builder()
+                    .url(uploadUrl)
+                    .addHeader("Accept", "application/json")
+                    .addHeader("X-Participant-ID", pptId)
+                    .addHeader("X-Study-ID", studyId)
+                    .addHeader("X-Request-Nonce", UUID.randomUUID().toString())
+                    .addHeader("X-Request-Timestamp", iso8601ZuluNow())
+                    .addHeader("X-Request-Id", "and-bulk-" + UUID.randomUUID());
+            if (bearerToken != null && !bearerToken.isEmpty()) {
+                rb.addHeader("Authorization", "Bearer " + bearerToken);
+            }
+            if (digest != null) rb.header(BodyDigest.HEADER, digest);
+            rb.tag(UploadTelemetry.Attempt.class, new UploadTelemetry.Attempt(attempt));
+            rb.post(body);
+
+            long startNanos = requestStarted();
+            try (Response resp = client.newCall(rb.build()).execute()) {
+                int code = resp.code();
+                String bodyStr = (resp.body() != null) ? resp.body().string() : "";
+                requestFinished(startNanos, bytes, code, resp.header("Retry-After"));
+                Log.d(TAG, "Bulk upload response: " + code + " body=" + bodyStr);
+
+                if (code == 404 || code == 405 || code == 501) {
+                    return null;
+                }
+                if (code == 200 || code == 202 || code == 207) {
+                    return acknowledged(bodyStr);
+                }
+                if (!isRetryableStatus(code) || attempt == MAX_UPLOAD_RETRIES) {
+                    return new HashSet<>();
+                }
+                if (!sleepBeforeRetry(attempt, label, "http_" + code)) {
+                    Thread.currentThread().interrupt();
+                    return new HashSet<>();
+                }
+            } catch (Exception ex) {
+                requestFinished(startNanos, bytes, -1, null);
+                boolean retryable = isRetryableException(ex);
+                Log.e(TAG, "Bulk upload exception for " + label + ": " + ex.getMessage(), ex);
+
+                if (!retryable || attempt == MAX_UPLOAD_RETRIES) {
+                    return new HashSet<>();
+                }
+                if (!sleepBeforeRetry(attempt, label, "exception")) {
+                    Thread.currentThread().interrupt();
+                    return new HashSet<>();
+                }
+            }
+        }
+        return new HashSet<>();
+    }
+
+    /**
+     * Names of the files a bulk response acknowledged: accepted, or a
+     * duplicate the receiver already holds. Anything unparseable acknowledges
+     * nothing, so nothing is deleted on a response we don't understand.
+     */
+    static Set<String> acknowledged(String responseBody) {
+        Set<String> names = new HashSet<>();
+        try {
+            JSONArray results = new JSONObject(responseBody.trim()).optJSONArray("results");
+            if (results == null) return names;
+            for (int i = 0; i < results.length(); i++) {
+                JSONObject r = results.optJSONObject(i);
+                if (r == null) continue;
+                String name = r.optString("filename", "");
+                int status = r.optInt("status", 0);
+                boolean duplicate = status == 409
+                        && "duplicate_screenshot".equals(r.optString("error", ""));
+                if (!name.isEmpty() && (status == 202 || status == 200 || duplicate)) {
+                    names.add(name);
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Unparseable bulk upload response: " + responseBody, e);
+        }
+        return names;
+    }
+
+    /**
+     * The body's Digest header, or null to leave it to the interceptor (which
+     * will then fail the request the same way if the file can't be read).
+     */
+    private static String digestOrNull(RequestBody body, String label) {
+        try {
+            return BodyDigest.header(body);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not hash " + label + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private long requestStarted() {
+        rateController.onRequestStarted(System.currentTimeMillis());
+        return System.nanoTime();
+    }
+
+    /** Report a finished request to the rate controller and apply its verdict. */
+    private void requestFinished(long startNanos, long bytes, int code, String retryAfter) {
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        rateController.onRequestFinished(System.currentTimeMillis(), latencyMs, bytes, code,
+                retryAfter);
+        UploadDispatcher.get(context).holdUntil(rateController.holdUntilMs());
+    }
+
+    /**
+     * Wait out the backoff before another attempt. On a dispatcher worker the
+     * in-flight slot is given up meanwhile, so a throttled file doesn't hold
+     * window that other files could use once the hold lifts.
+     */
     private boolean sleepBeforeRetry(int attempt, String fileName, String reason) {
-        long delayMs = RETRY_BASE_DELAY_MS * attempt;
+        // At least as long as a Retry-After the server sent asks
+        long delayMs = Math.max(RETRY_BASE_DELAY_MS * attempt,
+                rateController.holdUntilMs() - System.currentTimeMillis());
         int nextAttempt = attempt + 1;
         Log.w(TAG, "Retrying " + fileName + " in " + delayMs + "ms (attempt "
                 + nextAttempt + "/" + MAX_UPLOAD_RETRIES + ", reason=" + reason + ")");
         try {
-            Thread.sleep(delayMs);
+            UploadDispatcher.sleepOutsideSlot(delayMs);
             return true;
         } catch (InterruptedException ie) {
             Log.w(TAG, "Retry sleep interrupted for " + fileName);
@@ -422,9 +834,7 @@ public class Batch {
 
     /** ISO 8601 UTC timestamp like 2025-10-24T04:11:14Z */
     private static String iso8601ZuluNow() {
-        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
-        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return fmt.format(new Date());
+        return Timestamps.isoSeconds(System.currentTimeMillis());
     }
 
     public int size() {
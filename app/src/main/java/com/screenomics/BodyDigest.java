@@ -0,0 +1,49 @@
+package com.screenomics;
+
+import android.util.Base64;
+
+import java.io.IOException;
+
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.HashingSink;
+import okio.Okio;
+
+/**
+ * The SHA-256 Digest header for a request body, computed by streaming.
+ *
+ * HttpSignatureInterceptor used to write the whole body into an okio Buffer
+ * and hash that, so every upload was held in memory in full -- 5 MB of heap
+ * for a 5 MB diagnostics bundle -- and then written a second time by OkHttp
+ * to send it. Here the body is written through a hashing sink into a
+ * blackhole: segments are hashed and recycled as they fill, and peak memory
+ * no longer grows with the file.
+ *
+ * Batch computes the header once per upload and sets it on the request, and
+ * the interceptor keeps a Digest header it is given, so retries of the same
+ * body are not re-hashed. The header has to cover the multipart body as
+ * sent, boundary and metadata part included, so it is computed from the
+ * built body rather than from the .enc on its own.
+ */
+final class BodyDigest {
+
+    static final String HEADER = "Digest";
+
+    private BodyDigest() {}
+
+    /** SHA-256 of the body; of zero bytes if there is none. */
+    static byte[] sha256(RequestBody body) throws IOException {
+        HashingSink hashing = HashingSink.sha256(Okio.blackhole());
+        if (body != null) {
+            try (BufferedSink sink = Okio.buffer(hashing)) {
+                body.writeTo(sink);
+            }
+        }
+        return hashing.hash().toByteArray();
+    }
+
+    /** The Digest header value, e.g. "SHA-256=47DEQpj8...". */
+    static String header(RequestBody body) throws IOException {
+        return "SHA-256=" + Base64.encodeToString(sha256(body), Base64.NO_WRAP);
+    }
+}
@@ -0,0 +1,168 @@
+package com.screenomics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+import java.util.Objects;
+
+/**
+ * How long to wait before the next capture.
+ *
+ * A fixed 5s tick spends most of its captures on screens that have not moved
+ * and is too slow for fast scrolling or app switching. The adaptive policy
+ * follows the screen instead: each static frame stretches the interval by
+ * half, up to {@link #MAX_INTERVAL_MS}; a changed frame brings it back to
+ * {@link #BASE_INTERVAL_MS}; a second change in a row, or a foreground-app
+ * switch, drops it to {@link #FAST_INTERVAL_MS}.
+ *
+ * Studies that need a constant sampling rate set {@link #PREF_POLICY} to
+ * "fixed" and {@link #PREF_FIXED_INTERVAL_MS}. Either way the interval in
+ * force for a frame goes into its .meta (and into the "unchanged" record for
+ * deduplicated ticks), so analysis can weight frames by the time they stand
+ * for instead of treating a 2s frame and a 15s frame alike.
+ *
+ * "Changed" is judged against the previous frame with FrameDedup's hash,
+ * using its default threshold -- independent of whether dedup is on, and of
+ * which frame dedup is comparing against.
+ *
+ * No interval goes below {@link #MIN_INTERVAL_MS}: takeScreenshot() is
+ * rate-limited by the platform to roughly one call per second (see
+ * failureRetryDelayMs). None goes above {@link #MAX_INTERVAL_MS} either,
+ * fixed or not: the unlocked-time accounting caps what one tick may credit,
+ * and a longer tick would undercount a static screen.
+ *
+ * Thread-safe; each capture service owns one.
+ */
+final class CaptureCadence {
+
+    /** "adaptive" (default) or "fixed". */
+    static final String PREF_POLICY = "capture_cadence_policy";
+    static final String PREF_FIXED_INTERVAL_MS = "capture_fixed_interval_ms";
+
+    static final long MIN_INTERVAL_MS = 1500L;
+    static final long FAST_INTERVAL_MS = 2000L;
+    static final long BASE_INTERVAL_MS = 5000L;
+    static final long MAX_INTERVAL_MS = 15_000L;
+
+    /** Chooses the next interval from what the last frame showed. */
+    interface Policy {
+        String name();
+
+        /** Interval before the first frame, and after {@link #reset()}. */
+        long initialIntervalMs();
+
+        /**
+         * The interval before the next capture.
+         *
+         * @param changed    the frame differs from the previous one
+         * @param appChanged the foreground app differs from the previous frame's
+         */
+        long next(boolean changed, boolean appChanged);
+
+        void reset();
+    }
+
+    /** The same interval regardless of content. */
+    static final class FixedPolicy implements Policy {
+        private final long intervalMs;
+
+        FixedPolicy(long intervalMs) {
+            this.intervalMs = Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, intervalMs));
+        }
+
+        @Override public String name() { return "fixed"; }
+        @Override public long initialIntervalMs() { return intervalMs; }
+        @Override public long next(boolean changed, boolean appChanged) { return intervalMs; }
+        @Override public void reset() { }
+    }
+
+    /** Slows down on static screens, speeds up on change. */
+    static final class AdaptivePolicy implements Policy {
+        private long intervalMs = BASE_INTERVAL_MS;
+        private int consecutiveChanges = 0;
+
+        @Override public String name() { return "adaptive"; }
+        @Override public long initialIntervalMs() { return BASE_INTERVAL_MS; }
+
+        @Override
+        public long next(boolean changed, boolean appChanged) {
+            if (appChanged) {
+                consecutiveChanges++;
+                intervalMs = FAST_INTERVAL_MS;
+            } else if (changed) {
+                consecutiveChanges++;
+                intervalMs = consecutiveChanges >= 2 ? FAST_INTERVAL_MS : BASE_INTERVAL_MS;
+            } else {
+                consecutiveChanges = 0;
+                intervalMs = intervalMs < BASE_INTERVAL_MS
+                        ? BASE_INTERVAL_MS
+                        : Math.min(MAX_INTERVAL_MS, intervalMs * 3 / 2);
+            }
+            return intervalMs;
+        }
+
+        @Override
+        public void reset() {
+            intervalMs = BASE_INTERVAL_MS;
+            consecutiveChanges = 0;
+        }
+    }
+
+    private Policy policy;
+    private long currentMs;
+    private FrameDedup.Fingerprint previous;
+    private String previousApp;
+
+    CaptureCadence(Policy policy) {
+        setPolicy(policy);
+    }
+
+    /** The policy configured in preferences. */
+    static Policy policyFromPrefs(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if ("fixed".equals(prefs.getString(PREF_POLICY, "adaptive"))) {
+            return new FixedPolicy(prefs.getInt(PREF_FIXED_INTERVAL_MS, (int) BASE_INTERVAL_MS));
+        }
+        return new AdaptivePolicy();
+    }
+
+    /** Switch policy and start over from its initial interval. */
+    synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+        reset();
+    }
+
+    /** Forget the previous frame, e.g. after the screen was locked. */
+    synchronized void reset() {
+        policy.reset();
+        currentMs = policy.initialIntervalMs();
+        previous = null;
+        previousApp = null;
+    }
+
+    synchronized String policyName() {
+        return policy.name();
+    }
+
+    /** The interval in force: what preceded the frame about to be observed. */
+    synchronized long currentIntervalMs() {
+        return currentMs;
+    }
+
+    /** Feed a captured frame; returns the interval before the next capture. */
+    synchronized long observe(FrameDedup.Fingerprint frame, String foregroundApp) {
+        boolean changed = previous == null || differs(previous, frame);
+        boolean appChanged = previous != null && !Objects.equals(previousApp, foregroundApp);
+        previous = frame;
+        previousApp = foregroundApp;
+        currentMs = policy.next(changed, appChanged);
+        return currentMs;
+    }
+
+    private static boolean differs(FrameDedup.Fingerprint a, FrameDedup.Fingerprint b) {
+        return Math.abs(a.meanLuma - b.meanLuma) > FrameDedup.LUMA_TOLERANCE
+                || FrameDedup.distance(a.bits, b.bits) > FrameDedup.DEFAULT_MAX_DISTANCE;
+    }
+}
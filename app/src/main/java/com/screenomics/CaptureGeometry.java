@@ -0,0 +1,146 @@
+package com.screenomics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.graphics.Rect;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Where a capture frame comes from on the screen, and at what size.
+ *
+ * Two settings shape a frame before it is encoded:
+ *
+ *   tier  the frame's width in pixels, one of {@link #TIERS}; narrower
+ *         screens are never upscaled. 720 matches the old fixed target.
+ *   crop  optionally drop the status bar and, in portrait, the navigation
+ *         bar. They are mostly the same pixels frame after frame -- clock,
+ *         icons, gesture handle -- so cropping them saves bytes without
+ *         losing anything a participant was looking at.
+ *
+ * The crop rectangle is kept in screen pixels, so it means the same thing
+ * whichever service captured the frame. Each frame's .meta records the
+ * tier, the screen size, the crop and the frame size; the server can map
+ * any frame pixel back to a screen position from those alone.
+ *
+ * Bar heights come from the platform's status_bar_height and
+ * navigation_bar_height dimens rather than window insets: both capture
+ * services are non-visual contexts, where inset queries are not reliable.
+ * On gesture-navigation phones the navigation dimen is the handle strip.
+ *
+ * Immutable. The capture services build one when the screen size or the
+ * settings change.
+ */
+final class CaptureGeometry {
+
+    static final String PREF_TIER = "capture_resolution_tier";
+    static final String PREF_CROP_SYSTEM_BARS = "capture_crop_system_bars";
+    static final int[] TIERS = {480, 720, 1080};
+    static final int DEFAULT_TIER = 720;
+
+    final int tier;
+    final int screenWidth;
+    final int screenHeight;
+    /** The captured part of the screen, in screen pixels. */
+    final Rect crop;
+    /** The whole screen at the tier width, for capture surfaces sized before cropping. */
+    final int scaledWidth;
+    final int scaledHeight;
+    /** The cropped region at the tier width. */
+    final int frameWidth;
+    final int frameHeight;
+
+    private CaptureGeometry(int tier, int screenWidth, int screenHeight, Rect crop) {
+        this.tier = tier;
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        this.crop = crop;
+        int[] scaled = FramePool.scaledSize(screenWidth, screenHeight, tier);
+        this.scaledWidth = scaled[0];
+        this.scaledHeight = scaled[1];
+        int[] frame = FramePool.scaledSize(crop.width(), crop.height(), tier);
+        this.frameWidth = frame[0];
+        this.frameHeight = frame[1];
+    }
+
+    /**
+     * @param cropTop    rows to drop from the top, in screen pixels
+     * @param cropBottom rows to drop from the bottom, in screen pixels
+     */
+    static CaptureGeometry of(int screenWidth, int screenHeight, int tier,
+                              int cropTop, int cropBottom) {
+        int top = Math.max(0, cropTop);
+        int bottom = Math.max(0, cropBottom);
+        if (top + bottom >= screenHeight) {
+            top = 0;
+            bottom = 0;
+        }
+        return new CaptureGeometry(tier, screenWidth, screenHeight,
+                new Rect(0, top, screenWidth, screenHeight - bottom));
+    }
+
+    /** Geometry for a screen of this size under the configured tier and crop. */
+    static CaptureGeometry fromPrefs(Context context, int screenWidth, int screenHeight) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int top = 0;
+        int bottom = 0;
+        if (prefs.getBoolean(PREF_CROP_SYSTEM_BARS, false)) {
+            Resources res = context.getResources();
+            top = dimen(res, "status_bar_height");
+            // In landscape the navigation bar is usually at a side
+            if (screenHeight > screenWidth) bottom = dimen(res, "navigation_bar_height");
+        }
+        return of(screenWidth, screenHeight, tier(prefs), top, bottom);
+    }
+
+    /** The configured tier, snapped to the nearest one offered. */
+    static int tier(SharedPreferences prefs) {
+        int wanted = prefs.getInt(PREF_TIER, DEFAULT_TIER);
+        int best = DEFAULT_TIER;
+        for (int t : TIERS) {
+            if (Math.abs(t - wanted) < Math.abs(best - wanted)) best = t;
+        }
+        return best;
+    }
+
+    /** The crop mapped onto a capture surface of {@code w x h} showing the whole screen. */
+    Rect cropScaledTo(int w, int h) {
+        return new Rect(
+                (int) ((long) crop.left * w / screenWidth),
+                (int) ((long) crop.top * h / screenHeight),
+                (int) ((long) crop.right * w / screenWidth),
+                (int) ((long) crop.bottom * h / screenHeight));
+    }
+
+    boolean isCropped() {
+        return crop.width() != screenWidth || crop.height() != screenHeight;
+    }
+
+    /** Sidecar fields; the frame size is passed in as actually encoded. */
+    void putMeta(JSONObject meta, int encodedWidth, int encodedHeight) throws JSONException {
+        meta.put("resolution_tier", tier);
+        meta.put("screen_width", screenWidth);
+        meta.put("screen_height", screenHeight);
+        meta.put("crop_left", crop.left);
+        meta.put("crop_top", crop.top);
+        meta.put("crop_right", crop.right);
+        meta.put("crop_bottom", crop.bottom);
+        meta.put("frame_width", encodedWidth);
+        meta.put("frame_height", encodedHeight);
+    }
+
+    boolean sameAs(CaptureGeometry other) {
+        return other != null && tier == other.tier
+                && screenWidth == other.screenWidth && screenHeight == other.screenHeight
+                && crop.equals(other.crop);
+    }
+
+    private static int dimen(Resources res, String name) {
+        int id = res.getIdentifier(name, "dimen", "android");
+        return id > 0 ? res.getDimensionPixelSize(id) : 0;
+    }
+}
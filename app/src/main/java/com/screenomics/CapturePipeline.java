@@ -0,0 +1,305 @@
+package com.screenomics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Capture work split into stages, each on its own thread behind a bounded
+ * queue.
+ *
+ * The accessibility path used to hand every screenshot to one executor with
+ * an unbounded queue. When a flash write stalled, finished screenshots --
+ * each holding a full-size buffer -- lined up behind it with nothing to stop
+ * them. Here each stage has its own small queue, so at most
+ * (stages x (capacity + 1)) jobs exist at once, and what happens when a
+ * queue is full is an explicit {@link Backpressure} choice:
+ *
+ *   SKIP_NEXT    (default) don't take the next screenshot while any queue
+ *                is full; a job arriving at a full queue is dropped. Work
+ *                already done is kept, at the cost of a gap in the timeline.
+ *   DROP_OLDEST  make room by dropping the oldest queued job. The newest
+ *                screen wins.
+ *   BLOCK        the upstream stage waits for room, so a slow stage slows
+ *                everything before it. The caller's own submit never waits:
+ *                a full first queue drops, as SKIP_NEXT does.
+ *
+ * A job leaves the pipeline exactly once -- finished, stopped early by a
+ * stage, failed, dropped or shut down -- and {@link Job#release()} is called
+ * then, so whatever it holds (buffers, pooled frames) is always freed.
+ *
+ * Every stage times itself into a {@link Metrics} histogram
+ * ("capture_stage_<name>") and keeps a drop count. The most recently started
+ * pipeline's numbers go into the device-state snapshot, so a slow stage can
+ * be seen in the field rather than guessed at.
+ */
+final class CapturePipeline<J extends CapturePipeline.Job> {
+
+    private static final String TAG = "SCREENOMICS_CAPTURE";
+
+    /** "skip_next" (default), "drop_oldest" or "block". */
+    static final String PREF_BACKPRESSURE = "capture_backpressure";
+    static final int DEFAULT_QUEUE_CAPACITY = 1;
+
+    private static final long POLL_MS = 250L;
+
+    private static volatile CapturePipeline<?> current;
+
+    enum Backpressure {
+        SKIP_NEXT, DROP_OLDEST, BLOCK;
+
+        static Backpressure fromPrefs(Context context) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            String value = prefs.getString(PREF_BACKPRESSURE, "skip_next");
+            for (Backpressure b : values()) {
+                if (b.name().equalsIgnoreCase(value)) return b;
+            }
+            return SKIP_NEXT;
+        }
+    }
+
+    /** Work moving through the pipeline. */
+    interface Job {
+        /** Called once when the job leaves the pipeline, for whatever reason. */
+        void release();
+
+        /** A stage threw; the job is released next. */
+        default void onStageFailed(String stage, Exception e) { }
+    }
+
+    /** One stage's work. Returns false to end the job here (skipped or failed). */
+    interface StageFn<J> {
+        boolean process(J job) throws Exception;
+    }
+
+    private final class Stage implements Runnable {
+        final String name;
+        final StageFn<J> fn;
+        final ArrayBlockingQueue<J> queue;
+        final Metrics.Histogram latency;
+        final AtomicLong dropped = new AtomicLong();
+        Stage prev;
+        Stage next;
+        Thread thread;
+
+        Stage(String name, StageFn<J> fn, int capacity) {
+            this.name = name;
+            this.fn = fn;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.latency = Metrics.histogram("capture_stage_" + name);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                J job;
+                try {
+                    job = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (job == null) {
+                    // Exit only once nothing upstream can hand over another job
+                    if (stopped && (prev == null || !prev.thread.isAlive())) break;
+                    continue;
+                }
+                if (stopped) {
+                    releaseQuietly(job);
+                    continue;
+                }
+                boolean forward = false;
+                long t0 = System.nanoTime();
+                try {
+                    forward = fn.process(job);
+                } catch (Exception e) {
+                    Log.e(TAG, "Capture stage " + name + " failed", e);
+                    job.onStageFailed(name, e);
+                } finally {
+                    latency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+                }
+                if (forward && next != null) {
+                    enqueue(next, job, true);
+                } else {
+                    releaseQuietly(job);
+                }
+            }
+        }
+    }
+
+    private final Backpressure policy;
+    private final List<Stage> stages;
+    private volatile boolean stopped = false;
+
+    private CapturePipeline(Backpressure policy, List<Stage> stages) {
+        this.policy = policy;
+        this.stages = stages;
+    }
+
+    static <J extends Job> Builder<J> builder(Backpressure policy, int queueCapacity) {
+        return new Builder<>(policy, queueCapacity);
+    }
+
+    static final class Builder<J extends Job> {
+        private final Backpressure policy;
+        private final int capacity;
+        private final List<String> names = new ArrayList<>();
+        private final List<StageFn<J>> fns = new ArrayList<>();
+
+        private Builder(Backpressure policy, int capacity) {
+            this.policy = policy;
+            this.capacity = Math.max(1, capacity);
+        }
+
+        Builder<J> stage(String name, StageFn<J> fn) {
+            names.add(name);
+            fns.add(fn);
+            return this;
+        }
+
+        /** Start one thread per stage. */
+        CapturePipeline<J> start() {
+            List<CapturePipeline<J>.Stage> stages = new ArrayList<>();
+            CapturePipeline<J> pipeline = new CapturePipeline<>(policy, stages);
+            for (int i = 0; i < names.size(); i++) {
+                stages.add(pipeline.new Stage(names.get(i), fns.get(i), capacity));
+            }
+            for (int i = 0; i + 1 < stages.size(); i++) {
+                stages.get(i).next = stages.get(i + 1);
+                stages.get(i + 1).prev = stages.get(i);
+            }
+            for (CapturePipeline<J>.Stage s : stages) {
+                s.thread = new Thread(s, "capture-" + s.name);
+                s.thread.setDaemon(true);
+                s.thread.start();
+            }
+            current = pipeline;
+            return pipeline;
+        }
+    }
+
+    Backpressure policy() {
+        return policy;
+    }
+
+    /**
+     * Hand a job to the first stage. Never blocks. Returns false if the job
+     * was not accepted, in which case it has already been released.
+     */
+    boolean submit(J job) {
+        if (stopped) {
+            releaseQuietly(job);
+            return false;
+        }
+        return enqueue(stages.get(0), job, false);
+    }
+
+    /**
+     * Whether to produce another job now. False under SKIP_NEXT while any
+     * queue is full; the skip is counted against the first stage.
+     */
+    boolean admitsNext() {
+        if (stopped) return false;
+        if (policy != Backpressure.SKIP_NEXT) return true;
+        for (Stage s : stages) {
+            if (s.queue.remainingCapacity() == 0) {
+                stages.get(0).dropped.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Stop the stage threads. Queued jobs are released; a running stage finishes first. */
+    void shutdown() {
+        stopped = true;
+    }
+
+    /** Wait for the stage threads to exit after {@link #shutdown()}. */
+    boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Stage s : stages) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return false;
+            s.thread.join(left);
+            if (s.thread.isAlive()) return false;
+        }
+        return true;
+    }
+
+    long dropped(String stageName) {
+        for (Stage s : stages) {
+            if (s.name.equals(stageName)) return s.dropped.get();
+        }
+        return 0;
+    }
+
+    Metrics.Histogram latency(String stageName) {
+        for (Stage s : stages) {
+            if (s.name.equals(stageName)) return s.latency;
+        }
+        return null;
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject stageObjs = new JSONObject();
+        for (Stage s : stages) {
+            JSONObject obj = s.latency.summaryJson();
+            obj.put("dropped", s.dropped.get());
+            obj.put("queued", s.queue.size());
+            stageObjs.put(s.name, obj);
+        }
+        JSONObject obj = new JSONObject();
+        obj.put("backpressure", policy.name().toLowerCase(Locale.US));
+        obj.put("stages", stageObjs);
+        return obj;
+    }
+
+    /** Stats of the most recently started pipeline in this process, or null. */
+    static JSONObject snapshot() throws JSONException {
+        CapturePipeline<?> p = current;
+        return p != null ? p.toJson() : null;
+    }
+
+    private boolean enqueue(Stage stage, J job, boolean mayBlock) {
+        if (stage.queue.offer(job)) return true;
+        if (policy == Backpressure.DROP_OLDEST) {
+            J oldest = stage.queue.poll();
+            if (oldest != null) {
+                stage.dropped.incrementAndGet();
+                releaseQuietly(oldest);
+            }
+            if (stage.queue.offer(job)) return true;
+        } else if (policy == Backpressure.BLOCK && mayBlock) {
+            try {
+                while (!stopped) {
+                    if (stage.queue.offer(job, POLL_MS, TimeUnit.MILLISECONDS)) return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        stage.dropped.incrementAndGet();
+        releaseQuietly(job);
+        return false;
+    }
+
+    private static void releaseQuietly(Job job) {
+        try {
+            job.release();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Releasing a capture job failed", e);
+        }
+    }
+}
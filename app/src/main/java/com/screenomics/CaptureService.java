@@ -17,6 +17,7 @@ import android.content.pm.ServiceInfo;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
 import android.media.Image;
@@ -39,20 +40,14 @@ import androidx.core.app.ServiceCompat;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 import java.util.SortedMap;
-import java.util.TimeZone;
 import java.util.TreeMap;
-import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import android.graphics.Bitmap.Config;
 
@@ -71,11 +66,22 @@ public class CaptureService extends Service {
     private ImageReader mImageReader;
     private KeyguardManager mKeyguardManager;
     private VirtualDisplay mVirtualDisplay;
-    // Target width for captured screenshots. Height is derived from actual screen
-    // aspect ratio to avoid distortion on modern 20:9 / 19.5:9 displays.
-    private static final int TARGET_WIDTH = 720;
-    private int displayWidth = TARGET_WIDTH;
+    // Capture surface size: the whole screen at the resolution tier, height
+    // from the actual aspect ratio to avoid distortion on 20:9 / 19.5:9
+    // displays. The system-bar crop is applied when copying out each frame.
+    private volatile CaptureGeometry geometry = CaptureGeometry.of(
+            CaptureGeometry.DEFAULT_TIER, 1280, CaptureGeometry.DEFAULT_TIER, 0, 0);
+    private int displayWidth = CaptureGeometry.DEFAULT_TIER;
     private int displayHeight = 1280; // recalculated in onStartCommand
+    // Frames for processCapturedImage, reused across captures. One in the
+    // encoder, one possibly still held by the VLM hook.
+    private final FramePool framePool = new FramePool(2);
+    private final FrameDedup frameDedup = new FrameDedup();
+    private final CaptureCadence cadence = new CaptureCadence(new CaptureCadence.AdaptivePolicy());
+    // The delay captureInterval last waited, i.e. the interval in force for
+    // the frame it requested. Written on the main thread, read on the reader's.
+    private volatile long mFrameIntervalMs = CaptureCadence.BASE_INTERVAL_MS;
+    private long mNextDelayMs = CaptureCadence.BASE_INTERVAL_MS;
     private Runnable captureInterval;
     private Runnable insertStartImage;
     private Runnable insertPauseImage;
@@ -119,93 +125,106 @@ public class CaptureService extends Service {
     }
 
     /**
-     * Encrypt a temp file to .enc + .meta sidecar. Deletes tempFile when done.
-     * Skips if no server public key is available (pre-enrollment).
+     * Write the .meta sidecar for an already-written .enc. If the sidecar cannot
+     * be written the .enc is deleted: without its key fields it is unrecoverable.
      */
-    private void encryptAndWriteMeta(File tempFile, String descriptor, String mime, String type, Date timestamp, String foregroundApp) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        String hashFull = prefs.getString("hash", "00000000");
-        String hash = hashFull.substring(0, Math.min(8, hashFull.length()));
-        String pubKeyPem = prefs.getString("image_public_key", "");
-
-        File extDir = getApplicationContext().getExternalFilesDir(null);
-        if (extDir == null) {
-            Log.e("SCREENOMICS_CAPTURE", "getExternalFilesDir returned null, skipping " + descriptor);
-            return;
-        }
-        File encryptDir = new File(extDir, "encrypt");
-        if (!encryptDir.exists() && !encryptDir.mkdirs()) {
-            Log.e("SCREENOMICS_CAPTURE", "Failed to create encrypt directory, skipping " + descriptor);
-            return;
-        }
-        String baseName = hash + "_" + System.currentTimeMillis() + "_" + descriptor;
-
+    private boolean writeMeta(File encryptDir, String baseName, Encryptor.Result result,
+                              ImageEncoder.Encoder encoder, String type, Date timestamp,
+                              String foregroundApp, long intervalMs,
+                              CaptureGeometry frameGeometry, int frameWidth, int frameHeight) {
         try {
-            if (pubKeyPem == null || pubKeyPem.trim().isEmpty()) {
-                Log.w("SCREENOMICS_CAPTURE", "[WARNING] No image_public_key, skipping " + descriptor);
-                return;
-            }
-
-            File encFile = new File(encryptDir, baseName + ".enc");
-            Encryptor.Result result = Encryptor.encryptFileToEnc(tempFile, encFile, pubKeyPem);
-            Log.i("SCREENOMICS_CAPTURE", "Encrypted " + descriptor + " -> " + encFile.getName());
-
-            DateFormat isoFmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-            isoFmt.setTimeZone(TimeZone.getTimeZone("UTC"));
             JSONObject metaObj = new JSONObject();
-            metaObj.put("aes_key_encrypted_b64", result.aesKeyEncB64);
-            metaObj.put("tag_len_bits", result.tagLenBits);
-            metaObj.put("mime", mime);
+            result.putKeyFields(metaObj);
+            metaObj.put("mime", encoder.mime());
+            metaObj.put("image_quality", encoder.quality());
             metaObj.put("type", type);
-            metaObj.put("captured_at", isoFmt.format(timestamp));
+            metaObj.put("captured_at", Timestamps.isoMillis(timestamp.getTime()));
             metaObj.put("epoch_ms", timestamp.getTime());
             if (foregroundApp != null && !foregroundApp.isEmpty()) {
                 metaObj.put("foreground_app", foregroundApp);
             }
+            if (intervalMs > 0) {
+                metaObj.put("capture_interval_ms", intervalMs);
+                metaObj.put("cadence_policy", cadence.policyName());
+            }
+            if (frameGeometry != null) {
+                frameGeometry.putMeta(metaObj, frameWidth, frameHeight);
+            }
 
             File metaFile = new File(encryptDir, baseName + ".meta");
             try (FileWriter fw = new FileWriter(metaFile)) {
                 fw.write(metaObj.toString());
             }
             Log.d("SCREENOMICS_CAPTURE", "Wrote sidecar " + metaFile.getName());
-
+            UploadIndex.written(result.encFile);
+            return true;
         } catch (Exception e) {
-            Log.e("SCREENOMICS_CAPTURE", "Encryption failed for " + descriptor + ": " + e.getMessage(), e);
-        } finally {
-            if (tempFile.exists()) tempFile.delete();
+            Log.e("SCREENOMICS_CAPTURE", "Failed to write sidecar for " + baseName + ": " + e.getMessage(), e);
+            result.encFile.delete();
+            return false;
         }
     }
 
-    /** Encrypt a captured bitmap to .enc + .meta sidecar. */
-    private void encryptImage(Bitmap bitmap, String descriptor, String foregroundApp) {
+    /**
+     * Encrypt a captured bitmap to .enc + .meta sidecar, named and stamped
+     * with {@code timestamp}. The caller keeps ownership of the bitmap.
+     * {@code intervalMs} is the capture interval that preceded the frame and
+     * {@code frameGeometry} where it came from; 0 and null for marker images.
+     * Returns whether both files were written.
+     *
+     * The JPEG is compressed straight into Encryptor's streaming sink, so the
+     * frame reaches flash once, as ciphertext -- no plaintext tmp_*.jpg.
+     * Skips if no server public key is available (pre-enrollment).
+     */
+    private boolean encryptImage(Bitmap bitmap, String descriptor, String foregroundApp,
+                                 Date timestamp, long intervalMs, CaptureGeometry frameGeometry) {
         if (!hasEnoughStorageForCapture()) {
             Log.w("SCREENOMICS_CAPTURE", "Skipping image write for " + descriptor + " due to low storage");
-            bitmap.recycle();
-            return;
+            return false;
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        String hashFull = prefs.getString("hash", "00000000");
+        String hash = hashFull.substring(0, Math.min(8, hashFull.length()));
+        String pubKeyPem = prefs.getString("image_public_key", "");
+        if (pubKeyPem == null || pubKeyPem.trim().isEmpty()) {
+            Log.w("SCREENOMICS_CAPTURE", "[WARNING] No image_public_key, skipping " + descriptor);
+            return false;
         }
 
         File extDir = getApplicationContext().getExternalFilesDir(null);
         if (extDir == null) {
             Log.e("SCREENOMICS_CAPTURE", "getExternalFilesDir returned null, skipping capture");
-            bitmap.recycle();
-            return;
+            return false;
+        }
+        File encryptDir = new File(extDir, "encrypt");
+        if (!encryptDir.exists() && !encryptDir.mkdirs()) {
+            Log.e("SCREENOMICS_CAPTURE", "Failed to create encrypt directory, skipping " + descriptor);
+            return false;
         }
 
-        File tempFile = new File(extDir.getAbsolutePath(), "tmp_" + UUID.randomUUID() + ".jpg");
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(tempFile);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 70, fos);
-            fos.close();
-            fos = null;
-            encryptAndWriteMeta(tempFile, descriptor, "image/jpeg", "image", new Date(), foregroundApp);
+        String baseName = hash + "_" + timestamp.getTime() + "_" + descriptor;
+        File encFile = new File(encryptDir, baseName + ".enc");
+
+        ImageEncoder.Encoder encoder = ImageEncoder.fromPrefs(this);
+        Encryptor.Result result;
+        try (Encryptor.Sink sink = Encryptor.openEncSink(this, encFile, pubKeyPem)) {
+            if (!encoder.encode(bitmap, sink)) {
+                Log.e("SCREENOMICS_CAPTURE", "Bitmap compress failed for " + descriptor);
+                sink.abort();
+                return false;
+            }
+            sink.close();
+            result = sink.result();
         } catch (Exception e) {
-            Log.e("SCREENOMICS_CAPTURE", "Failed to write temp image: " + e.getMessage(), e);
-            if (tempFile.exists()) tempFile.delete();
-        } finally {
-            try { if (fos != null) fos.close(); } catch (IOException ignored) {}
-            bitmap.recycle();
+            Log.e("SCREENOMICS_CAPTURE", "Encryption failed for " + descriptor + ": " + e.getMessage(), e);
+            encFile.delete();
+            return false;
         }
+        Log.i("SCREENOMICS_CAPTURE", "Encrypted " + descriptor + " -> " + encFile.getName());
+
+        return writeMeta(encryptDir, baseName, result, encoder, "image", timestamp,
+                foregroundApp, intervalMs, frameGeometry, bitmap.getWidth(), bitmap.getHeight());
     }
 
     /**
@@ -215,6 +234,7 @@ public class CaptureService extends Service {
     private void processCapturedImage(Image image) {
         if (mKeyguardManager.isKeyguardLocked()) {
             Log.d("SCREENOMICS_CAPTURE", "Screen locked, skipping capture");
+            cadence.reset();
             return;
         }
         if (!hasEnoughStorageForCapture()) {
@@ -223,26 +243,45 @@ public class CaptureService extends Service {
         }
         Image.Plane[] planes = image.getPlanes();
         ByteBuffer buffer = planes[0].getBuffer();
-        int pixelStride = planes[0].getPixelStride();
         int rowStride = planes[0].getRowStride();
-        int rowPadding = rowStride - pixelStride * displayWidth;
 
         String foregroundApp = getForegroundApp();
         Log.d("SCREENOMICS_CAPTURE", "Screenshot captured | foreground_app=" + foregroundApp);
-        Bitmap bitmap = Bitmap.createBitmap(
-                displayWidth + rowPadding / pixelStride,
-                displayHeight, Bitmap.Config.ARGB_8888);
-        bitmap.copyPixelsFromBuffer(buffer);
-
-        // VLM benchmark: submit a copy before bitmap is recycled by encryptImage
-        if (mVlmBenchmark != null && mVlmBenchmark.isRunning()) {
-            Bitmap copy = bitmap.copy(Bitmap.Config.ARGB_8888, false);
-            if (copy != null) {
-                mVlmBenchmark.submitFrame(copy);
+        // Into a pooled frame at the image's real width: the reader's row
+        // padding, and the system bars if cropped, are dropped here rather
+        // than encoded.
+        CaptureGeometry frameGeometry = geometry;
+        Rect crop = frameGeometry.cropScaledTo(image.getWidth(), image.getHeight());
+        FramePool.Frame frame = framePool.acquire(crop.width(), crop.height());
+        try {
+            frame.copyFrom(buffer, rowStride, crop.left, crop.top);
+
+            // VLM benchmark: share the frame; it releases its reference when done
+            VlmBenchmark vlm = mVlmBenchmark;
+            if (vlm != null && vlm.isRunning()) {
+                vlm.submitFrame(frame.retain(), "", 0, 0);
             }
-        }
 
-        encryptImage(bitmap, "image", foregroundApp);
+            Date timestamp = new Date();
+            long intervalMs = mFrameIntervalMs;
+            FrameDedup.Fingerprint fingerprint = FrameDedup.fingerprint(frame.bitmap());
+            cadence.observe(fingerprint, foregroundApp);
+            if (frameDedup.offer(fingerprint, foregroundApp, timestamp.getTime(), intervalMs,
+                    FrameDedup.maxDistance(this))) {
+                CaptureStats.addDedupSkip();
+                return;
+            }
+            FrameDedup.queueRecord(getApplicationContext(), frameDedup.takeRun());
+
+            if (encryptImage(frame.bitmap(), "image", foregroundApp, timestamp, intervalMs,
+                    frameGeometry)) {
+                frameDedup.setReference(fingerprint, foregroundApp, timestamp.getTime());
+            } else {
+                frameDedup.clearReference();
+            }
+        } finally {
+            frame.release();
+        }
     }
 
     /** Returns the package name of the current foreground app, or empty string on failure. */
@@ -331,6 +370,7 @@ public class CaptureService extends Service {
 
         mBackgroundThread = new HandlerThread("ImageReaderThread");
         mBackgroundThread.start();
+        Encryptor.watchKeyChanges(getApplicationContext());
 
         mProjectionManager = (MediaProjectionManager) getSystemService(Context.MEDIA_PROJECTION_SERVICE);
         mKeyguardManager = (KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
@@ -358,9 +398,13 @@ public class CaptureService extends Service {
                     mHandler.postDelayed(captureInterval, 10_000);
                     return;
                 }
+                mFrameIntervalMs = mNextDelayMs;
                 mCaptureNextFrame = true;
-                mHandler.postDelayed(captureInterval, 5000);
-                Log.d("SCREENOMICS_CAPTURE", "Scheduled next capture in 5 seconds");
+                // Frames are processed on the reader thread after this runs,
+                // so the cadence reacts to the previous frame, one tick late.
+                mNextDelayMs = cadence.currentIntervalMs();
+                mHandler.postDelayed(captureInterval, mNextDelayMs);
+                Log.d("SCREENOMICS_CAPTURE", "Scheduled next capture in " + mNextDelayMs + " ms");
             }
         };
 
@@ -369,7 +413,10 @@ public class CaptureService extends Service {
             public void run() {
                 try (InputStream is = getResources().openRawResource(R.raw.resumerecord)) {
                     Bitmap bitmap = BitmapFactory.decodeStream(is);
-                    if (bitmap != null) encryptImage(bitmap, "resume", null);
+                    if (bitmap != null) {
+                        encryptImage(bitmap, "resume", null, new Date(), 0, null);
+                        bitmap.recycle();
+                    }
                 } catch (IOException e) {
                     Log.e(TAG, "Failed to read resume record image", e);
                 }
@@ -379,9 +426,15 @@ public class CaptureService extends Service {
         insertPauseImage = new Runnable() {
             @Override
             public void run() {
+                // Close any run of deduplicated frames before the pause marker
+                frameDedup.clearReference();
+                FrameDedup.queueRecord(getApplicationContext(), frameDedup.takeRun());
                 try (InputStream is = getResources().openRawResource(R.raw.pauserecord)) {
                     Bitmap bitmap = BitmapFactory.decodeStream(is);
-                    if (bitmap != null) encryptImage(bitmap, "pause", null);
+                    if (bitmap != null) {
+                        encryptImage(bitmap, "pause", null, new Date(), 0, null);
+                        bitmap.recycle();
+                    }
                 } catch (IOException e) {
                     Log.e(TAG, "Failed to read pause record image", e);
                 }
@@ -404,10 +457,17 @@ public class CaptureService extends Service {
         int screenW = metrics.widthPixels;
         int screenH = metrics.heightPixels;
         if (screenW > 0 && screenH > 0) {
-            displayWidth = TARGET_WIDTH;
-            displayHeight = (int) ((long) TARGET_WIDTH * screenH / screenW);
+            // Tier and crop are read here only; a change applies from the next start
+            CaptureGeometry g = CaptureGeometry.fromPrefs(this, screenW, screenH);
+            if (!g.sameAs(geometry)) {
+                // Pooled frames are the old size and will never be asked for again
+                framePool.clear();
+            }
+            geometry = g;
+            displayWidth = g.scaledWidth;
+            displayHeight = g.scaledHeight;
             Log.i(TAG, "Capture dimensions: " + displayWidth + "x" + displayHeight
-                    + " (screen " + screenW + "x" + screenH + ")");
+                    + " (screen " + screenW + "x" + screenH + ", crop " + g.crop.toShortString() + ")");
         }
 
         HandlerThread thread = mBackgroundThread;
@@ -493,10 +553,12 @@ public class CaptureService extends Service {
         try {
             capture = true;
             acquireCaptureWakeLock();
+            cadence.setPolicy(CaptureCadence.policyFromPrefs(this));
+            mNextDelayMs = 2000;
 
             mBackgroundHandler.post(insertStartImage);
 
-            mHandler.postDelayed(captureInterval, 2000);
+            mHandler.postDelayed(captureInterval, mNextDelayMs);
 
             UploadScheduler.ensurePeriodicUpload(getApplicationContext());
         } catch (Exception e) {
@@ -565,6 +627,7 @@ public class CaptureService extends Service {
     public void onDestroy() {
         super.onDestroy();
         stopCapturing();
+        framePool.clear();
 
         Log.e(TAG, "I'm destroyed!");
     }
@@ -6,8 +6,6 @@ import android.os.SystemClock;
 
 import androidx.preference.PreferenceManager;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 /**
  * How long capture was actually armed and running, and how much it produced.
  *
@@ -17,17 +15,19 @@ import java.util.concurrent.atomic.AtomicLong;
  * by output instead would score a night's sleep, or a participant who barely
  * touches their phone, as downtime.
  *
- * Four counters, and the reason each is separate:
+ * Five counters, and the reason each is separate:
  *
  *   armed     the app was ready to capture
  *   unlocked  the screen was on and usable, so capture was expected
  *   captures  a frame was actually written
  *   blank     the frame was a single flat colour
+ *   dedup     a frame matched the last written one and was skipped (FrameDedup)
  *
  * The gap between any two of them is a different failure. armed vs unlocked is
  * ordinary phone use and means nothing is wrong; unlocked vs captures is capture
  * silently failing while the app believes it is healthy, which nothing else can
- * see.
+ * see. With deduplication on, captures plus dedup is what unlocked time should
+ * be compared against.
  *
  * All counters are cumulative and monotonic. Readers (the heartbeat) keep their
  * own watermark and send the difference, so a reader never writes to a counter
@@ -51,13 +51,32 @@ public final class CaptureStats {
     static final String PREF_UNLOCKED_TOTAL_MS = "cap_unlocked_total_ms";
     static final String PREF_CAPTURES_TOTAL = "cap_captures_total";
     static final String PREF_BLANK_TOTAL = "cap_blank_total";
+    static final String PREF_DEDUP_SKIPPED_TOTAL = "cap_dedup_skipped_total";
     static final String PREF_SERVICE_STARTS = "cap_service_starts";
 
-    // Accumulated between flushes. Held in memory so the capture loop does not
+    // Published into the process-wide registry (see Metrics); what has not
+    // reached preferences yet is each counter's count since the process
+    // started, less what flush() has already moved. The capture loop does not
     // write SharedPreferences every five seconds.
-    private static final AtomicLong pendingUnlockedMs = new AtomicLong();
-    private static final AtomicLong pendingCaptures = new AtomicLong();
-    private static final AtomicLong pendingBlanks = new AtomicLong();
+    static final String METRIC_UNLOCKED_MS = "capture_unlocked_ms";
+    static final String METRIC_CAPTURES = "capture_frames";
+    static final String METRIC_BLANKS = "capture_blank";
+    static final String METRIC_DEDUP_SKIPS = "capture_dedup_skipped";
+    static final String METRIC_CAPTURES_BY_APP = "capture_frames_by_app";
+    static final String METRIC_CAPTURES_BY_HOUR = "capture_frames_by_hour";
+
+    private static final Metrics.Counter unlockedMs = Metrics.counter(METRIC_UNLOCKED_MS);
+    private static final Metrics.Counter captures = Metrics.counter(METRIC_CAPTURES);
+    private static final Metrics.Counter blanks = Metrics.counter(METRIC_BLANKS);
+    private static final Metrics.Counter dedupSkips = Metrics.counter(METRIC_DEDUP_SKIPS);
+    private static final Metrics.Labeled capturesByApp = Metrics.labeled(METRIC_CAPTURES_BY_APP);
+    private static final Metrics.Hourly capturesByHour = Metrics.hourly(METRIC_CAPTURES_BY_HOUR);
+
+    // Guarded by CaptureStats.class
+    private static long flushedUnlockedMs;
+    private static long flushedCaptures;
+    private static long flushedBlanks;
+    private static long flushedDedupSkips;
 
     private CaptureStats() {}
 
@@ -68,13 +87,20 @@ public final class CaptureStats {
         public final long captures;
         public final long blanks;
         public final int serviceStarts;
+        public final long dedupSkipped;
 
         Totals(long armedMs, long unlockedMs, long captures, long blanks, int serviceStarts) {
+            this(armedMs, unlockedMs, captures, blanks, serviceStarts, 0);
+        }
+
+        Totals(long armedMs, long unlockedMs, long captures, long blanks, int serviceStarts,
+               long dedupSkipped) {
             this.armedMs = armedMs;
             this.unlockedMs = unlockedMs;
             this.captures = captures;
             this.blanks = blanks;
             this.serviceStarts = serviceStarts;
+            this.dedupSkipped = dedupSkipped;
         }
     }
 
@@ -159,17 +185,29 @@ public final class CaptureStats {
 
     /** Screen was on and unlocked for this long, so capture was expected. */
     public static void addUnlockedMs(long ms) {
-        if (ms > 0) pendingUnlockedMs.addAndGet(ms);
+        unlockedMs.add(ms);
     }
 
     /** A frame was written to the upload queue. */
     public static void addCapture() {
-        pendingCaptures.incrementAndGet();
+        addCapture(null);
+    }
+
+    /** A frame was written to the upload queue while {@code foregroundApp} was in front. */
+    public static void addCapture(String foregroundApp) {
+        captures.inc();
+        capturesByApp.inc(foregroundApp);
+        capturesByHour.inc(System.currentTimeMillis());
     }
 
     /** A frame was a single flat colour. */
     public static void addBlankCapture() {
-        pendingBlanks.incrementAndGet();
+        blanks.inc();
+    }
+
+    /** A frame was skipped as unchanged from the last one written. */
+    public static void addDedupSkip() {
+        dedupSkips.inc();
     }
 
     /**
@@ -180,19 +218,38 @@ public final class CaptureStats {
      * interval is open.
      */
     public static void flush(Context context) {
-        long unlocked = pendingUnlockedMs.getAndSet(0);
-        long captures = pendingCaptures.getAndSet(0);
-        long blanks = pendingBlanks.getAndSet(0);
+        long unlocked;
+        long captured;
+        long blank;
+        long skipped;
+        synchronized (CaptureStats.class) {
+            long u = unlockedMs.sinceStart();
+            long c = captures.sinceStart();
+            long b = blanks.sinceStart();
+            long d = dedupSkips.sinceStart();
+            unlocked = pending(u, flushedUnlockedMs);
+            captured = pending(c, flushedCaptures);
+            blank = pending(b, flushedBlanks);
+            skipped = pending(d, flushedDedupSkips);
+            flushedUnlockedMs = u;
+            flushedCaptures = c;
+            flushedBlanks = b;
+            flushedDedupSkips = d;
+        }
 
         SharedPreferences p = prefs(context);
         SharedPreferences.Editor e = p.edit();
         if (unlocked > 0) e.putLong(PREF_UNLOCKED_TOTAL_MS, p.getLong(PREF_UNLOCKED_TOTAL_MS, 0) + unlocked);
-        if (captures > 0) e.putLong(PREF_CAPTURES_TOTAL, p.getLong(PREF_CAPTURES_TOTAL, 0) + captures);
-        if (blanks > 0) e.putLong(PREF_BLANK_TOTAL, p.getLong(PREF_BLANK_TOTAL, 0) + blanks);
+        if (captured > 0) e.putLong(PREF_CAPTURES_TOTAL, p.getLong(PREF_CAPTURES_TOTAL, 0) + captured);
+        if (blank > 0) e.putLong(PREF_BLANK_TOTAL, p.getLong(PREF_BLANK_TOTAL, 0) + blank);
+        if (skipped > 0) {
+            e.putLong(PREF_DEDUP_SKIPPED_TOTAL, p.getLong(PREF_DEDUP_SKIPPED_TOTAL, 0) + skipped);
+        }
         if (p.getLong(PREF_ARMED_SINCE, -1) >= 0) {
             e.putLong(PREF_ARMED_CHECKPOINT, SystemClock.elapsedRealtime());
         }
         e.apply();
+        Metrics.save(context);
     }
 
     /**
@@ -211,18 +268,35 @@ public final class CaptureStats {
         if (since >= 0 && now > since && !marksArePreReboot(p, now) && A11yState.isCaptureRunning()) {
             armed += now - since;
         }
+        long pendingUnlocked;
+        long pendingCaptures;
+        long pendingBlanks;
+        long pendingDedupSkips;
+        synchronized (CaptureStats.class) {
+            pendingUnlocked = pending(unlockedMs.sinceStart(), flushedUnlockedMs);
+            pendingCaptures = pending(captures.sinceStart(), flushedCaptures);
+            pendingBlanks = pending(blanks.sinceStart(), flushedBlanks);
+            pendingDedupSkips = pending(dedupSkips.sinceStart(), flushedDedupSkips);
+        }
         return new Totals(
                 armed,
-                p.getLong(PREF_UNLOCKED_TOTAL_MS, 0) + pendingUnlockedMs.get(),
-                p.getLong(PREF_CAPTURES_TOTAL, 0) + pendingCaptures.get(),
-                p.getLong(PREF_BLANK_TOTAL, 0) + pendingBlanks.get(),
-                p.getInt(PREF_SERVICE_STARTS, 0));
+                p.getLong(PREF_UNLOCKED_TOTAL_MS, 0) + pendingUnlocked,
+                p.getLong(PREF_CAPTURES_TOTAL, 0) + pendingCaptures,
+                p.getLong(PREF_BLANK_TOTAL, 0) + pendingBlanks,
+                p.getInt(PREF_SERVICE_STARTS, 0),
+                p.getLong(PREF_DEDUP_SKIPPED_TOTAL, 0) + pendingDedupSkips);
+    }
+
+    /** Not yet flushed; a registry reset (tests only) reads as nothing pending. */
+    private static long pending(long sinceStart, long flushed) {
+        return Math.max(0, sinceStart - flushed);
     }
 
     /** Test seam: drop the in-memory accumulators. */
-    static void resetPendingForTest() {
-        pendingUnlockedMs.set(0);
-        pendingCaptures.set(0);
-        pendingBlanks.set(0);
+    static synchronized void resetPendingForTest() {
+        flushedUnlockedMs = unlockedMs.sinceStart();
+        flushedCaptures = captures.sinceStart();
+        flushedBlanks = blanks.sinceStart();
+        flushedDedupSkips = dedupSkips.sinceStart();
     }
 }
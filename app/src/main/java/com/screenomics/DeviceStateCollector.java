@@ -2,6 +2,7 @@ package com.screenomics;
 
 import android.app.ActivityManager;
 import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -22,14 +23,34 @@ import android.util.Log;
 import androidx.core.content.ContextCompat;
 import androidx.preference.PreferenceManager;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Collects a snapshot of device and app state for diagnostics.
  * Each section is wrapped in its own try-catch so one failure
  * does not prevent the rest from populating.
+ *
+ * The snapshot is taken by the heartbeat, the devicestate flush, the
+ * AutoUploadWorker fallback and every diagnostics upload, often several
+ * times a minute, and most sections don't change that fast. So each
+ * section is cached for its own time-to-live:
+ *
+ *   device                     once per process: build, ABIs, app version
+ *   battery, storage, memory,
+ *   permissions                {@link #SLOW_TTL_MS}
+ *   network                    {@link #NETWORK_TTL_MS}
+ *   service_state, runtime     never cached: counters behind heartbeat
+ *                              watermarks, uptime, screen state
+ *
+ * Battery reads the last ACTION_BATTERY_CHANGED from a receiver registered
+ * once on the application context, instead of asking for the sticky intent
+ * again on every snapshot. Sections are shared between snapshots until they
+ * expire, so callers must treat a snapshot as read-only.
  */
 public class DeviceStateCollector {
 
@@ -94,23 +115,112 @@ public class DeviceStateCollector {
         } catch (Exception ignored) {}
     }
 
+    static final long SLOW_TTL_MS = 60_000L;
+    static final long NETWORK_TTL_MS = 30_000L;
+    private static final long NEVER = 0L;
+    private static final long FOREVER = Long.MAX_VALUE;
+
+    private interface Collector {
+        JSONObject collect(Context context) throws Exception;
+    }
+
+    /** One section of the snapshot and its cached value. */
+    private static final class Section {
+        final String name;
+        final long ttlMs;
+        final Collector collector;
+        private JSONObject value;
+        private long collectedAt;
+
+        Section(String name, long ttlMs, Collector collector) {
+            this.name = name;
+            this.ttlMs = ttlMs;
+            this.collector = collector;
+        }
+
+        synchronized JSONObject get(Context context, long now) throws Exception {
+            // A clock behind the stamp (a test resetting it) counts as expired
+            boolean fresh = value != null && ttlMs != NEVER && now >= collectedAt
+                    && now - collectedAt < ttlMs;
+            if (!fresh) {
+                value = collector.collect(context);
+                collectedAt = now;
+            }
+            return value;
+        }
+
+        synchronized void invalidate() {
+            value = null;
+        }
+    }
+
+    private static final Section[] SECTIONS = {
+            new Section("battery", SLOW_TTL_MS, DeviceStateCollector::collectBattery),
+            new Section("storage", SLOW_TTL_MS, DeviceStateCollector::collectStorage),
+            new Section("memory", SLOW_TTL_MS, DeviceStateCollector::collectMemory),
+            new Section("network", NETWORK_TTL_MS, DeviceStateCollector::collectNetwork),
+            new Section("permissions", SLOW_TTL_MS, DeviceStateCollector::collectPermissions),
+            new Section("service_state", NEVER, DeviceStateCollector::collectServiceState),
+            new Section("device", FOREVER, DeviceStateCollector::collectDevice),
+            new Section("runtime", NEVER, DeviceStateCollector::collectRuntime),
+    };
+
+    private static volatile Intent lastBatteryIntent;
+    private static boolean batteryListening;
+
+    private static final BroadcastReceiver BATTERY_LISTENER = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            lastBatteryIntent = intent;
+        }
+    };
+
     public static JSONObject collectSnapshot(Context context) {
+        Context app = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        long now = SystemClock.elapsedRealtime();
         JSONObject root = new JSONObject();
-        try { root.put("battery", collectBattery(context)); } catch (Exception e) { Log.w(TAG, "battery", e); }
-        try { root.put("storage", collectStorage(context)); } catch (Exception e) { Log.w(TAG, "storage", e); }
-        try { root.put("memory", collectMemory(context)); } catch (Exception e) { Log.w(TAG, "memory", e); }
-        try { root.put("network", collectNetwork(context)); } catch (Exception e) { Log.w(TAG, "network", e); }
-        try { root.put("permissions", collectPermissions(context)); } catch (Exception e) { Log.w(TAG, "permissions", e); }
-        try { root.put("service_state", collectServiceState(context)); } catch (Exception e) { Log.w(TAG, "service_state", e); }
-        try { root.put("device", collectDevice(context)); } catch (Exception e) { Log.w(TAG, "device", e); }
-        try { root.put("runtime", collectRuntime(context)); } catch (Exception e) { Log.w(TAG, "runtime", e); }
+        for (Section section : SECTIONS) {
+            try {
+                root.put(section.name, section.get(app, now));
+            } catch (Exception e) {
+                Log.w(TAG, section.name, e);
+            }
+        }
         return root;
     }
 
+    /** Each test gets a new application, so forget the receiver along with the sections. */
+    static void resetCacheForTest() {
+        for (Section section : SECTIONS) section.invalidate();
+        synchronized (DeviceStateCollector.class) {
+            batteryListening = false;
+            lastBatteryIntent = null;
+        }
+    }
+
+    /**
+     * The latest ACTION_BATTERY_CHANGED. The first call registers a receiver
+     * for the life of the process; registering returns the sticky intent, and
+     * every broadcast after that replaces it.
+     */
+    private static Intent batteryIntent(Context context) {
+        Intent latest = lastBatteryIntent;
+        if (latest != null) return latest;
+        synchronized (DeviceStateCollector.class) {
+            if (!batteryListening) {
+                Intent sticky = ContextCompat.registerReceiver(context, BATTERY_LISTENER,
+                        new IntentFilter(Intent.ACTION_BATTERY_CHANGED),
+                        ContextCompat.RECEIVER_NOT_EXPORTED);
+                batteryListening = true;
+                if (sticky != null && lastBatteryIntent == null) lastBatteryIntent = sticky;
+            }
+        }
+        return lastBatteryIntent;
+    }
+
     private static JSONObject collectBattery(Context context) throws Exception {
         JSONObject obj = new JSONObject();
-        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
-        Intent batteryStatus = context.registerReceiver(null, filter);
+        Intent batteryStatus = batteryIntent(context);
         if (batteryStatus != null) {
             int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
             int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
@@ -174,21 +284,12 @@ public class DeviceStateCollector {
             obj.put("storage_available_bytes", statFs.getAvailableBytes());
 
             File encryptDir = new File(extDir, "encrypt");
-            int pendingCount = 0;
-            long pendingBytes = 0;
-            if (encryptDir.exists()) {
-                File[] files = encryptDir.listFiles();
-                if (files != null) {
-                    for (File f : files) {
-                        if (f.isFile() && f.getName().endsWith(".enc")) {
-                            pendingCount++;
-                            pendingBytes += f.length();
-                        }
-                    }
-                }
-            }
-            obj.put("pending_upload_count", pendingCount);
-            obj.put("pending_upload_bytes", pendingBytes);
+            UploadIndex index = UploadIndex.get(context, encryptDir);
+            obj.put("pending_upload_count", index.count());
+            obj.put("pending_upload_bytes", index.bytes());
+            List<String> names = new ArrayList<>();
+            for (UploadIndex.Entry e : index.entries()) names.add(e.name);
+            obj.put("pending_upload_by_class", UploadQueue.depths(names));
         }
         return obj;
     }
@@ -288,6 +389,14 @@ public class DeviceStateCollector {
         obj.put("a11y_last_error", prefs.getString("a11y_last_error", ""));
         obj.put("a11y_consecutive_failures", prefs.getInt("a11y_consecutive_failures", 0));
         obj.put("last_upload_ms", prefs.getLong("last_non_screenshot_upload_ms", 0));
+        obj.put("frame_pool_hits", FramePool.totalHits());
+        obj.put("frame_pool_misses", FramePool.totalMisses());
+        JSONObject pipeline = CapturePipeline.snapshot();
+        if (pipeline != null) obj.put("capture_pipeline", pipeline);
+        obj.put("upload_controller", UploadRateController.saved(context));
+        obj.put("request_signing", RequestSigner.get().snapshot());
+        obj.put("upload_telemetry", UploadTelemetry.get(context).toJson());
+        obj.put("metrics", Metrics.snapshot(context));
         return obj;
     }
 
@@ -302,6 +411,7 @@ public class DeviceStateCollector {
         obj.put("os_version", Build.VERSION.RELEASE);
         obj.put("api_level", Build.VERSION.SDK_INT);
         obj.put("security_patch", Build.VERSION.SECURITY_PATCH);
+        obj.put("supported_abis", new JSONArray(Build.SUPPORTED_ABIS));
         try {
             PackageInfo pi = context.getPackageManager()
                     .getPackageInfo(context.getPackageName(), 0);
@@ -1,21 +1,37 @@
 package com.screenomics;
 
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.util.Base64;
+import android.util.Log;
 
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.MGF1ParameterSpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
-import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Encryptor for MindPulse.
@@ -24,11 +40,23 @@ import javax.crypto.spec.GCMParameterSpec;
  *  - encryptFileToEnc(plaintextFile, encOutFile, serverImagePublicKeyPem)
  *      * AES-GCM, 12-byte nonce prefixed to the .enc
  *      * RSA-OAEP(SHA-256) wraps the AES key -> base64 returned for metadata
+ *  - openEncSink(encOutFile, serverImagePublicKeyPem)
+ *      * same framing, but the caller writes plaintext straight into it
+ *        (e.g. Bitmap.compress), so no plaintext ever touches the disk
+ *  - the Context overloads of both honour the opt-in session-key envelope
+ *    (see SessionKeyEnvelope); write the sidecar with Result.putKeyFields
+ *
+ * Every screenshot, GPS blob and log file goes through here, so the parsed
+ * server key and the Cipher objects are cached: the key process-wide, matched
+ * on the exact PEM and dropped when image_public_key changes; the ciphers per
+ * thread, since a Cipher is stateful and not thread-safe.
  */
 public final class Encryptor {
 
     private Encryptor() {}
 
+    private static final String TAG = "SCREENOMICS_CAPTURE";
+
     // ---- GCM constants ----
     public static final int GCM_TAG_BITS  = 128;
     public static final int GCM_NONCE_LEN = 12;   // 96-bit nonce
@@ -37,15 +65,63 @@ public final class Encryptor {
     private static final String CIPH_AEAD = "AES/GCM/NoPadding";
     private static final String CIPH_RSA  = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
     private static final SecureRandom RNG = new SecureRandom();
+    private static final OAEPParameterSpec OAEP_SHA256 = new OAEPParameterSpec(
+            "SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT);
+    static final String PREF_IMAGE_PUBLIC_KEY = "image_public_key";
+
+    /** The parsed server key for one exact PEM string. */
+    private static final class CachedKey {
+        final String pem;
+        final String fingerprint;
+        final PublicKey key;
+
+        CachedKey(String pem, String fingerprint, PublicKey key) {
+            this.pem = pem;
+            this.fingerprint = fingerprint;
+            this.key = key;
+        }
+    }
+
+    // One server key is live at a time, so one entry is the whole cache. A
+    // different PEM simply replaces it.
+    private static volatile CachedKey cachedKey;
+
+    // Idle ciphers, one per thread. An open Sink holds its GCM cipher until
+    // close, so a second sink on the same thread gets a fresh one rather than
+    // sharing state.
+    private static final ThreadLocal<Cipher> IDLE_GCM = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> IDLE_RSA = new ThreadLocal<>();
+
+    // SharedPreferences holds listeners weakly; this reference keeps it alive.
+    private static SharedPreferences.OnSharedPreferenceChangeListener keyChangeListener;
 
     // Result container for modern API
     public static final class Result {
         public final File encFile;          // file content = [nonce || ciphertext||tag]
-        public final String aesKeyEncB64;   // RSA-OAEP(SHA-256)(AES key), base64
+        public final String aesKeyEncB64;   // RSA-OAEP(SHA-256)(AES key), base64; null for v2
         public final String nonceB64;       // base64(12-byte nonce) — for reference
         public final int tagLenBits = GCM_TAG_BITS;
+        public final int encVersion;        // 1 = per-file wrapped key, 2 = session key
+        public final String keyId;          // v2 only: names the session key record
+
+        public Result(File f, String k, String n) { this(f, k, n, 1, null); }
 
-        public Result(File f, String k, String n) { encFile = f; aesKeyEncB64 = k; nonceB64 = n; }
+        Result(File f, String k, String n, int encVersion, String keyId) {
+            encFile = f; aesKeyEncB64 = k; nonceB64 = n;
+            this.encVersion = encVersion;
+            this.keyId = keyId;
+        }
+
+        /** Put the key fields of this file's .meta: wrapped key (v1) or key id (v2). */
+        public void putKeyFields(JSONObject meta) throws JSONException {
+            if (encVersion >= SessionKeyEnvelope.ENC_VERSION) {
+                meta.put("enc_version", encVersion);
+                meta.put("key_id", keyId);
+            } else {
+                meta.put("aes_key_encrypted_b64", aesKeyEncB64);
+            }
+            meta.put("tag_len_bits", tagLenBits);
+        }
     }
 
     /**
@@ -53,6 +129,44 @@ public final class Encryptor {
      * Output framing: [ 12-byte nonce ] [ ciphertext ... tag ]
      */
     public static Result encryptFileToEnc(File in, File outEnc, String serverImagePublicKeyPem) throws Exception {
+        return drain(in, openEncSink(outEnc, serverImagePublicKeyPem));
+    }
+
+    /** {@link #encryptFileToEnc}, in session-key envelope mode if that is enabled. */
+    public static Result encryptFileToEnc(Context context, File in, File outEnc,
+                                          String serverImagePublicKeyPem) throws Exception {
+        return drain(in, openEncSink(context, outEnc, serverImagePublicKeyPem));
+    }
+
+    private static Result drain(File in, Sink sink) throws Exception {
+        try (FileInputStream fis = new FileInputStream(in)) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = fis.read(buf)) != -1) {
+                sink.write(buf, 0, n);
+            }
+        } catch (Exception e) {
+            // A read failure must not leave a well-formed .enc of a truncated file
+            sink.abort();
+            try { sink.close(); } catch (IOException ignored) {}
+            throw e;
+        }
+        sink.close();
+        return sink.result();
+    }
+
+    /**
+     * Open a streaming .enc writer. Everything written to the returned stream is
+     * encrypted on the way to {@code outEnc}; the nonce is already on disk when
+     * this returns. Same framing as {@link #encryptFileToEnc}.
+     *
+     * The capture services compress frames straight into this, so a frame is
+     * written to flash once, as ciphertext, instead of once as a plaintext JPEG
+     * and again as the .enc. {@link Sink#result()} is only valid after a clean
+     * close: GCM writes its tag on close, and an .enc without one is undecryptable.
+     * A sink closed after a failed write deletes its partial output.
+     */
+    public static Sink openEncSink(File outEnc, String serverImagePublicKeyPem) throws Exception {
         // 1) per-file AES key
         SecretKey aesKey = genAesKey(AES_BITS);
 
@@ -60,37 +174,158 @@ public final class Encryptor {
         byte[] nonce = new byte[GCM_NONCE_LEN];
         RNG.nextBytes(nonce);
 
-        // 3) GCM init
-        Cipher gcm = Cipher.getInstance(CIPH_AEAD);
+        // 3) RSA-OAEP(SHA-256) wrap AES key up front, so a bad PEM fails before
+        //    anything is written
+        String aesKeyEncB64 = wrapAesKey(aesKey, serverImagePublicKeyPem);
+        String nonceB64     = Base64.encodeToString(nonce, Base64.NO_WRAP);
+
+        return openSink(outEnc, aesKey, nonce, new Result(outEnc, aesKeyEncB64, nonceB64));
+    }
+
+    /**
+     * {@link #openEncSink(File, String)}, except that when the
+     * "session_key_envelope" preference is on the file is encrypted under the
+     * current session key (enc_version 2). If the session cannot be started
+     * (e.g. its key record cannot be written) this falls back to a per-file
+     * key, so enabling the envelope never costs a capture.
+     */
+    public static Sink openEncSink(Context context, File outEnc, String serverImagePublicKeyPem)
+            throws Exception {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (prefs.getBoolean(SessionKeyEnvelope.PREF_ENABLED, false)) {
+            SessionKeyEnvelope.Lease lease = null;
+            try {
+                String hashFull = prefs.getString("hash", "00000000");
+                String hash = hashFull.substring(0, Math.min(8, hashFull.length()));
+                lease = SessionKeyEnvelope.shared()
+                        .lease(outEnc.getParentFile(), hash, serverImagePublicKeyPem);
+            } catch (Exception e) {
+                Log.w(TAG, "Session key unavailable, using a per-file key: " + e.getMessage());
+            }
+            if (lease != null) return openLeasedSink(outEnc, lease);
+        }
+        return openEncSink(outEnc, serverImagePublicKeyPem);
+    }
+
+    /** A sink under a session key; the Result carries the key id, not a wrapped key. */
+    static Sink openLeasedSink(File outEnc, SessionKeyEnvelope.Lease lease) throws Exception {
+        String nonceB64 = Base64.encodeToString(lease.nonce, Base64.NO_WRAP);
+        return openSink(outEnc, lease.key, lease.nonce, new Result(outEnc, null, nonceB64,
+                SessionKeyEnvelope.ENC_VERSION, lease.keyId));
+    }
+
+    private static Sink openSink(File outEnc, SecretKey aesKey, byte[] nonce, Result result)
+            throws Exception {
+        // GCM init on this thread's idle cipher
+        Cipher gcm = checkOutGcm();
         gcm.init(Cipher.ENCRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_BITS, nonce));
 
-        // 4) stream encrypt: write nonce then ciphertext+tag
-        try (FileOutputStream fos = new FileOutputStream(outEnc)) {
+        // write nonce, then hand back the ciphertext stream
+        OutputStream fos = null;
+        try {
+            fos = new BufferedOutputStream(new FileOutputStream(outEnc), 16 * 1024);
             fos.write(nonce);
-            try (CipherOutputStream cos = new CipherOutputStream(fos, gcm);
-                 FileInputStream fis = new FileInputStream(in)) {
-                byte[] buf = new byte[8192];
-                int n;
-                while ((n = fis.read(buf)) != -1) {
-                    cos.write(buf, 0, n);
-                }
-                // CipherOutputStream.close() calls doFinal() internally
+        } catch (IOException e) {
+            if (fos != null) {
+                try { fos.close(); } catch (IOException ignored) {}
             }
+            //noinspection ResultOfMethodCallIgnored
+            outEnc.delete();
+            throw e;
         }
+        return new Sink(new CipherOutputStream(fos, gcm), gcm, outEnc, result);
+    }
 
-        // 5) RSA-OAEP(SHA-256) wrap AES key
-        PublicKey serverKey = loadRsaPublicKeyFromPem(serverImagePublicKeyPem);
-        Cipher rsa = Cipher.getInstance(CIPH_RSA);
-        rsa.init(Cipher.ENCRYPT_MODE, serverKey,
-                new javax.crypto.spec.OAEPParameterSpec(
-                        "SHA-256", "MGF1", MGF1ParameterSpec.SHA256,
-                        javax.crypto.spec.PSource.PSpecified.DEFAULT
-                )
-        );
-        String aesKeyEncB64 = Base64.encodeToString(rsa.doFinal(aesKey.getEncoded()), Base64.NO_WRAP);
-        String nonceB64     = Base64.encodeToString(nonce, Base64.NO_WRAP);
+    /**
+     * Plaintext in, [nonce || ciphertext || tag] out. Not thread-safe; one
+     * writer per file.
+     */
+    public static final class Sink extends OutputStream {
+        private final CipherOutputStream out;
+        private final Cipher gcm;
+        private final File encFile;
+        private final Result result;
+        private boolean failed = false;
+        private boolean closed = false;
+        private long plaintextBytes = 0;
+        private final long openedNs = System.nanoTime();
+
+        private Sink(CipherOutputStream out, Cipher gcm, File encFile, Result result) {
+            this.out = out;
+            this.gcm = gcm;
+            this.encFile = encFile;
+            this.result = result;
+        }
 
-        return new Result(outEnc, aesKeyEncB64, nonceB64);
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+                plaintextBytes++;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+                plaintextBytes += len;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        /** Mark the output as unusable; close() will then delete it. */
+        public void abort() {
+            failed = true;
+        }
+
+        /** Plaintext bytes accepted so far. */
+        public long plaintextBytes() {
+            return plaintextBytes;
+        }
+
+        /** Key/nonce for the .meta sidecar. Throws unless the sink closed cleanly. */
+        public Result result() {
+            if (!closed || failed) {
+                throw new IllegalStateException("Sink not closed cleanly; .enc is incomplete");
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                // CipherOutputStream.close() calls doFinal() internally
+                out.close();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                if (failed) {
+                    //noinspection ResultOfMethodCallIgnored
+                    encFile.delete();
+                    Metrics.counter("encrypt_failed").inc();
+                } else {
+                    // doFinal completed, so the cipher is back in a clean state
+                    checkInGcm(gcm);
+                    Metrics.counter("encrypt_bytes").add(plaintextBytes);
+                    Metrics.histogram("encrypt").record(
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openedNs));
+                }
+            }
+        }
     }
 
     /**
@@ -107,22 +342,104 @@ public final class Encryptor {
                 "Legacy encryptFile is not implemented; port to encryptFileToEnc before use");
     }
 
+    // ---- key-material cache ----
+
+    /**
+     * Drop the cached server key whenever image_public_key is rewritten
+     * (re-enrollment). The cache already refuses to serve a key for a
+     * different PEM; this also releases the stale one promptly. Idempotent.
+     */
+    public static synchronized void watchKeyChanges(Context context) {
+        if (keyChangeListener != null) return;
+        keyChangeListener = (prefs, key) -> {
+            if (PREF_IMAGE_PUBLIC_KEY.equals(key)) invalidateKeyCache();
+        };
+        PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext())
+                .registerOnSharedPreferenceChangeListener(keyChangeListener);
+    }
+
+    public static void invalidateKeyCache() {
+        cachedKey = null;
+    }
+
+    /** SHA-256 over the key's DER encoding, hex. Stable across PEM line-wrapping. */
+    public static String keyFingerprint(String pem) throws Exception {
+        return serverKey(pem).fingerprint;
+    }
+
+    /**
+     * Test seam: forget the cached key, this thread's ciphers, the listener and
+     * the envelope session.
+     */
+    static synchronized void resetCachesForTest() {
+        keyChangeListener = null;
+        SessionKeyEnvelope.resetSharedForTest();
+        cachedKey = null;
+        IDLE_GCM.remove();
+        IDLE_RSA.remove();
+    }
+
+    /** Test seam: whether a parsed key is currently cached. */
+    static boolean hasCachedKeyForTest() {
+        return cachedKey != null;
+    }
+
+    private static CachedKey serverKey(String pem) throws Exception {
+        CachedKey cached = cachedKey;
+        if (cached != null && cached.pem.equals(pem)) return cached;
+
+        byte[] der = pemToDer(pem);
+        PublicKey key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(der));
+        CachedKey fresh = new CachedKey(pem, toHex(MessageDigest.getInstance("SHA-256").digest(der)), key);
+        cachedKey = fresh;
+        return fresh;
+    }
+
+    private static Cipher checkOutGcm() throws GeneralSecurityException {
+        Cipher c = IDLE_GCM.get();
+        if (c == null) return Cipher.getInstance(CIPH_AEAD);
+        IDLE_GCM.set(null);
+        return c;
+    }
+
+    private static void checkInGcm(Cipher c) {
+        if (IDLE_GCM.get() == null) IDLE_GCM.set(c);
+    }
+
     // ---- helpers ----
 
-    private static SecretKey genAesKey(int bits) throws Exception {
-        KeyGenerator kg = KeyGenerator.getInstance("AES");
-        kg.init(bits, RNG);
-        return kg.generateKey();
+    static String wrapAesKey(SecretKey aesKey, String serverImagePublicKeyPem) throws Exception {
+        PublicKey serverKey = serverKey(serverImagePublicKeyPem).key;
+        Cipher rsa = IDLE_RSA.get();
+        if (rsa == null) {
+            rsa = Cipher.getInstance(CIPH_RSA);
+            IDLE_RSA.set(rsa);
+        }
+        // init resets any state left by a previous call, including a failed one
+        rsa.init(Cipher.ENCRYPT_MODE, serverKey, OAEP_SHA256);
+        return Base64.encodeToString(rsa.doFinal(aesKey.getEncoded()), Base64.NO_WRAP);
+    }
+
+    static SecretKey genAesKey(int bits) {
+        // Raw key bytes from the shared SecureRandom: what KeyGenerator("AES")
+        // does, without a provider lookup per file.
+        byte[] raw = new byte[bits / 8];
+        RNG.nextBytes(raw);
+        return new SecretKeySpec(raw, "AES");
     }
 
-    /** Load RSA public key from PEM ("-----BEGIN PUBLIC KEY-----"). */
-    private static PublicKey loadRsaPublicKeyFromPem(String pem) throws Exception {
+    /** DER bytes of a PEM public key ("-----BEGIN PUBLIC KEY-----"). */
+    private static byte[] pemToDer(String pem) {
         String clean = pem.replace("-----BEGIN PUBLIC KEY-----", "")
                 .replace("-----END PUBLIC KEY-----", "")
                 .replaceAll("\\s", "");
-        byte[] der = Base64.decode(clean, Base64.DEFAULT);
-        X509EncodedKeySpec spec = new X509EncodedKeySpec(der);
-        return KeyFactory.getInstance("RSA").generatePublic(spec);
+        return Base64.decode(clean, Base64.DEFAULT);
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(String.format(java.util.Locale.US, "%02x", b));
+        return sb.toString();
     }
 
 }
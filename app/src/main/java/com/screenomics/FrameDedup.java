@@ -0,0 +1,248 @@
+package com.screenomics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Drops frames that look the same as the last one written.
+ *
+ * A participant reading one page for three minutes used to produce 36
+ * identical JPEGs, each encrypted, sidecar'd and uploaded. Each frame now
+ * gets a difference hash (dHash): mean luma over a 17x16 grid of cells, one
+ * bit per horizontal neighbour pair saying whether brightness rises, 256
+ * bits in all. A frame within {@link #PREF_MAX_DISTANCE} bits of the last
+ * written frame, with the same foreground app, is skipped. dHash only sees
+ * gradients, so two flat screens of different colours hash alike; the
+ * frame's mean luma must also match, within {@link #LUMA_TOLERANCE}.
+ *
+ * Skipped frames are not lost from the timeline. Each run of them is
+ * queued as one small encrypted JSON record (type "unchanged") when the run
+ * ends, saying which written frame they matched and when each skipped tick
+ * happened, with the capture interval in force at each tick (see
+ * CaptureCadence). A run ends with the next written frame or when capture stops.
+ * A run never spans more than {@link #MAX_RUN_MS}; after that a frame is
+ * written regardless, so analysis always has a recent anchor image.
+ *
+ * Cells are means over a sparse sample of pixels, in the same spirit as
+ * isUniformFrame: this runs on every capture, and a cell mean over a few
+ * hundred pixels is stable enough for a frame from a screen that has not
+ * changed.
+ *
+ * Thread-safe; each capture service owns one.
+ */
+final class FrameDedup {
+
+    /** Largest Hamming distance (of 256 bits) still treated as unchanged; -1 disables. */
+    static final String PREF_MAX_DISTANCE = "frame_dedup_max_distance";
+    static final int DEFAULT_MAX_DISTANCE = 4;
+    static final long MAX_RUN_MS = 5 * 60_000L;
+    static final String RECORD_DESCRIPTOR = "unchanged";
+
+    static final int LUMA_TOLERANCE = 8;
+
+    private static final int ROWS = 16;
+    private static final int COLS = ROWS + 1;
+    private static final int SAMPLES_PER_CELL_SIDE = 8;
+
+    /** A frame's dHash bits and mean luma (0-255). */
+    static final class Fingerprint {
+        final long[] bits;
+        final int meanLuma;
+
+        Fingerprint(long[] bits, int meanLuma) {
+            this.bits = bits;
+            this.meanLuma = meanLuma;
+        }
+
+        String toHex() {
+            StringBuilder sb = new StringBuilder(bits.length * 16);
+            for (long word : bits) sb.append(String.format(Locale.US, "%016x", word));
+            return sb.toString();
+        }
+    }
+
+    /** Skipped ticks that all matched one written frame. */
+    static final class Run {
+        final long referenceEpochMs;
+        final String foregroundApp;
+        final String referenceHash;
+        final int maxDistance;
+        final List<Long> skippedEpochMs = new ArrayList<>();
+        final List<Long> skippedIntervalMs = new ArrayList<>();
+        int largestDistance = 0;
+        /** The reference frame was never written; the ticks happened all the same. */
+        boolean referenceMissing;
+
+        Run(long referenceEpochMs, String foregroundApp, String referenceHash, int maxDistance) {
+            this.referenceEpochMs = referenceEpochMs;
+            this.foregroundApp = foregroundApp;
+            this.referenceHash = referenceHash;
+            this.maxDistance = maxDistance;
+        }
+
+        JSONObject toJson() throws Exception {
+            JSONArray skipped = new JSONArray();
+            for (long ts : skippedEpochMs) skipped.put(ts);
+            JSONArray intervals = new JSONArray();
+            for (long ms : skippedIntervalMs) intervals.put(ms);
+
+            JSONObject obj = new JSONObject();
+            obj.put("unchanged_since", Timestamps.isoMillis(referenceEpochMs));
+            obj.put("reference_epoch_ms", referenceEpochMs);
+            obj.put("until_epoch_ms", skippedEpochMs.get(skippedEpochMs.size() - 1));
+            obj.put("skipped_count", skippedEpochMs.size());
+            obj.put("skipped_epoch_ms", skipped);
+            obj.put("skipped_interval_ms", intervals);
+            obj.put("foreground_app", foregroundApp != null ? foregroundApp : "");
+            obj.put("phash", referenceHash);
+            obj.put("largest_distance", largestDistance);
+            obj.put("max_distance", maxDistance);
+            if (referenceMissing) obj.put("reference_missing", true);
+            return obj;
+        }
+    }
+
+    private Fingerprint reference;
+    private String referenceApp;
+    private long referenceEpochMs;
+    private Run run;
+
+    /** The configured threshold. */
+    static int maxDistance(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getInt(PREF_MAX_DISTANCE, DEFAULT_MAX_DISTANCE);
+    }
+
+    /**
+     * Whether to skip this frame. A skipped frame is added to the open run;
+     * a frame that is not skipped should be written, then passed to
+     * {@link #setReference} (or {@link #clearReference} if the write failed;
+     * {@link #abandonReference} if it was set before the write, and the
+     * write then failed).
+     * {@code intervalMs} is the capture interval that preceded this frame.
+     */
+    synchronized boolean offer(Fingerprint frame, String foregroundApp, long epochMs,
+                               long intervalMs, int maxDistance) {
+        if (maxDistance < 0 || reference == null) return false;
+        if (!Objects.equals(foregroundApp, referenceApp)) return false;
+        if (epochMs - referenceEpochMs >= MAX_RUN_MS) return false;
+        if (Math.abs(frame.meanLuma - reference.meanLuma) > LUMA_TOLERANCE) return false;
+        int distance = distance(frame.bits, reference.bits);
+        if (distance > maxDistance) return false;
+
+        if (run == null) {
+            run = new Run(referenceEpochMs, referenceApp, reference.toHex(), maxDistance);
+        }
+        run.skippedEpochMs.add(epochMs);
+        run.skippedIntervalMs.add(intervalMs);
+        run.largestDistance = Math.max(run.largestDistance, distance);
+        return true;
+    }
+
+    /** Close and return the open run, or null if nothing was skipped. */
+    synchronized Run takeRun() {
+        Run ended = run;
+        run = null;
+        return ended;
+    }
+
+    synchronized void setReference(Fingerprint frame, String foregroundApp, long epochMs) {
+        reference = frame;
+        referenceApp = foregroundApp;
+        referenceEpochMs = epochMs;
+    }
+
+    synchronized void clearReference() {
+        reference = null;
+    }
+
+    /**
+     * The frame set as the reference at {@code epochMs} was not written
+     * after all. Forget it, unless a newer frame has replaced it, and close
+     * the run skipped against it, marked reference_missing so the record
+     * doesn't point at an image that isn't there. Returns that run, or null.
+     */
+    synchronized Run abandonReference(long epochMs) {
+        if (reference != null && referenceEpochMs == epochMs) reference = null;
+        if (run == null || run.referenceEpochMs != epochMs) return null;
+        Run ended = run;
+        run = null;
+        ended.referenceMissing = true;
+        return ended;
+    }
+
+    /** Queue a closed run as an encrypted "unchanged" record. Null is a no-op. */
+    static boolean queueRecord(Context context, Run run) {
+        if (run == null) return true;
+        try {
+            return Logger.queueTextForUpload(context, run.toJson().toString(),
+                    RECORD_DESCRIPTOR, "application/json");
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // ---- hashing ----
+
+    /** 256-bit dHash of the frame plus its mean luma. */
+    static Fingerprint fingerprint(Bitmap bitmap) {
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        long[] sums = new long[ROWS * COLS];
+        int[] counts = new int[ROWS * COLS];
+        int[] row = new int[w];
+
+        int rowStep = Math.max(1, h / (ROWS * SAMPLES_PER_CELL_SIDE));
+        int colStep = Math.max(1, w / (COLS * SAMPLES_PER_CELL_SIDE));
+        for (int y = rowStep / 2; y < h; y += rowStep) {
+            bitmap.getPixels(row, 0, w, 0, y, w, 1);
+            int cellRow = Math.min(ROWS - 1, (int) ((long) y * ROWS / h));
+            for (int x = colStep / 2; x < w; x += colStep) {
+                int cell = cellRow * COLS + Math.min(COLS - 1, (int) ((long) x * COLS / w));
+                int p = row[x];
+                sums[cell] += (((p >> 16) & 0xff) * 299 + ((p >> 8) & 0xff) * 587 + (p & 0xff) * 114);
+                counts[cell]++;
+            }
+        }
+
+        long total = 0;
+        long samples = 0;
+        for (int i = 0; i < sums.length; i++) {
+            total += sums[i];
+            samples += counts[i];
+        }
+        int meanLuma = samples == 0 ? 0 : (int) (total / samples / 1000);
+
+        long[] bits = new long[ROWS * (COLS - 1) / 64];
+        int bit = 0;
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS - 1; c++, bit++) {
+                long left = mean(sums, counts, r * COLS + c);
+                long right = mean(sums, counts, r * COLS + c + 1);
+                if (right > left) bits[bit >> 6] |= 1L << (bit & 63);
+            }
+        }
+        return new Fingerprint(bits, meanLuma);
+    }
+
+    static int distance(long[] a, long[] b) {
+        int d = 0;
+        for (int i = 0; i < a.length; i++) d += Long.bitCount(a[i] ^ b[i]);
+        return d;
+    }
+
+    private static long mean(long[] sums, int[] counts, int cell) {
+        return counts[cell] == 0 ? 0 : sums[cell] / counts[cell];
+    }
+}
@@ -0,0 +1,215 @@
+package com.screenomics;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable ARGB_8888 frames for the capture paths.
+ *
+ * A 720x1600 frame is 4.6 MB. Allocating one per capture, plus a copy per
+ * consumer, made every tick a large-object allocation and a GC pause. Here
+ * frames are pooled by size and shared: whoever fills a frame holds the
+ * first reference, each extra consumer (the encoder, the VLM hook) takes its
+ * own with {@link Frame#retain()}, and the frame returns to the pool when
+ * the last one is released. A different frame size empties the pool, since
+ * nothing pooled at the old size will be asked for again.
+ *
+ * Consumers get read-only access: dimensions, pixels and encode. The
+ * backing Bitmap is reachable for APIs that only take a Bitmap (OCR), but it
+ * belongs to the pool -- never draw into, reconfigure or recycle it.
+ *
+ * Hits and misses are counted per pool and process-wide; the process totals
+ * go into the device-state snapshot so reuse can be checked in the field.
+ * Steady-state capture should be all hits; misses keep climbing only if
+ * consumers hold frames longer than a capture interval.
+ */
+final class FramePool {
+
+    private static final Paint SCALE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private static final AtomicLong processHits = new AtomicLong();
+    private static final AtomicLong processMisses = new AtomicLong();
+
+    private final int maxPooled;
+    private final ArrayDeque<Frame> free = new ArrayDeque<>();
+    private int width = -1;
+    private int height = -1;
+    private ByteBuffer rowScratch;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /** @param maxPooled frames kept for reuse; extra frames are freed on release */
+    FramePool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /** A frame of exactly this size, pooled if possible. The caller holds one reference. */
+    synchronized Frame acquire(int w, int h) {
+        if (w != width || h != height) {
+            clear();
+            width = w;
+            height = h;
+        }
+        Frame f = free.pollFirst();
+        if (f != null) {
+            hits++;
+            processHits.incrementAndGet();
+            f.refs = 1;
+            return f;
+        }
+        misses++;
+        processMisses.incrementAndGet();
+        return new Frame(this, Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888));
+    }
+
+    /** Free every pooled frame. Frames still held are freed on their last release. */
+    synchronized void clear() {
+        for (Frame f : free) f.bitmap.recycle();
+        free.clear();
+        rowScratch = null;
+        width = -1;
+        height = -1;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized int pooledCount() {
+        return free.size();
+    }
+
+    /** Hits across every pool in this process. */
+    static long totalHits() {
+        return processHits.get();
+    }
+
+    /** Misses (fresh allocations) across every pool in this process. */
+    static long totalMisses() {
+        return processMisses.get();
+    }
+
+    private synchronized void onReleased(Frame f) {
+        if (f.width() != width || f.height() != height || free.size() >= maxPooled) {
+            f.bitmap.recycle();
+        } else {
+            free.addLast(f);
+        }
+    }
+
+    private synchronized ByteBuffer rowScratch(int bytes) {
+        if (rowScratch == null || rowScratch.capacity() < bytes) {
+            rowScratch = ByteBuffer.allocateDirect(bytes);
+        }
+        rowScratch.clear();
+        return rowScratch;
+    }
+
+    /** One pooled, reference-counted frame. */
+    static final class Frame {
+        private final FramePool pool;
+        private final Bitmap bitmap;
+        private int refs = 1;   // guarded by pool
+
+        private Frame(FramePool pool, Bitmap bitmap) {
+            this.pool = pool;
+            this.bitmap = bitmap;
+        }
+
+        int width() {
+            return bitmap.getWidth();
+        }
+
+        int height() {
+            return bitmap.getHeight();
+        }
+
+        int getPixel(int x, int y) {
+            return bitmap.getPixel(x, y);
+        }
+
+        boolean encode(ImageEncoder.Encoder encoder, OutputStream out) {
+            return encoder.encode(bitmap, out);
+        }
+
+        /** The backing bitmap, read-only by contract. Valid until this reference is released. */
+        Bitmap bitmap() {
+            return bitmap;
+        }
+
+        /** Take another reference for a consumer; it must call {@link #release()}. */
+        Frame retain() {
+            synchronized (pool) {
+                if (refs <= 0) throw new IllegalStateException("Frame already released");
+                refs++;
+            }
+            return this;
+        }
+
+        void release() {
+            synchronized (pool) {
+                if (refs <= 0) throw new IllegalStateException("Frame released twice");
+                if (--refs > 0) return;
+                pool.onReleased(this);
+            }
+        }
+
+        // ---- filling; only the holder of a freshly acquired frame calls these ----
+
+        /** Copy RGBA_8888 rows (e.g. an ImageReader plane) into the frame. */
+        void copyFrom(ByteBuffer src, int rowStride) {
+            copyFrom(src, rowStride, 0, 0);
+        }
+
+        /**
+         * Copy the frame-sized region at ({@code left}, {@code top}) of an
+         * RGBA_8888 plane into the frame, e.g. to crop off system bars.
+         */
+        void copyFrom(ByteBuffer src, int rowStride, int left, int top) {
+            int rowBytes = width() * 4;
+            src.rewind();
+            if (rowStride == rowBytes && left == 0 && top == 0) {
+                bitmap.copyPixelsFromBuffer(src);
+                return;
+            }
+            // Padded or cropped rows: pack them into the pool's scratch buffer first
+            ByteBuffer packed = pool.rowScratch(rowBytes * height());
+            for (int y = 0; y < height(); y++) {
+                int start = (top + y) * rowStride + left * 4;
+                src.limit(start + rowBytes);
+                src.position(start);
+                packed.put(src);
+            }
+            packed.flip();
+            bitmap.copyPixelsFromBuffer(packed);
+        }
+
+        /** Scale a software bitmap into the frame. */
+        void drawFrom(Bitmap src) {
+            drawFrom(src, null);
+        }
+
+        /** Scale the {@code region} of a software bitmap (null: all of it) into the frame. */
+        void drawFrom(Bitmap src, Rect region) {
+            new Canvas(bitmap).drawBitmap(src, region, new Rect(0, 0, width(), height()), SCALE_PAINT);
+        }
+    }
+
+    /** {@code w x h} scaled to at most {@code targetWidth} wide, aspect preserved. */
+    static int[] scaledSize(int w, int h, int targetWidth) {
+        if (w <= targetWidth) return new int[]{w, h};
+        return new int[]{targetWidth, Math.max(1, (int) ((long) targetWidth * h / w))};
+    }
+}
@@ -0,0 +1,144 @@
+package com.screenomics;
+
+import android.graphics.Bitmap;
+import android.graphics.ColorSpace;
+import android.graphics.HardwareRenderer;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.RecordingCanvas;
+import android.graphics.Rect;
+import android.graphics.RenderNode;
+import android.hardware.HardwareBuffer;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * Reads a screenshot HardwareBuffer into a pooled {@link FramePool.Frame},
+ * cropping and downscaling on the way in (see {@link CaptureGeometry}).
+ *
+ * The old path was wrapHardwareBuffer -> copy(ARGB_8888): a full-resolution
+ * GPU readback into a freshly allocated bitmap, every capture. Here the GPU
+ * draws the buffer, already scaled to the target width, into an ImageReader
+ * surface, and the CPU reads that once into a reused frame. The renderer and
+ * reader are kept across captures and rebuilt only when the size changes.
+ *
+ * If the GPU path fails once (driver quirks, no surface), the reader falls
+ * back for good to copy-then-scale. That allocates a full-size temporary
+ * per capture, as before, but still lands in a pooled frame.
+ *
+ * Not thread-safe: use from one thread (the capture I/O executor).
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+final class HardwareFrameReader implements AutoCloseable {
+
+    private static final String TAG = "SCREENOMICS_CAPTURE";
+    private static final Paint SCALE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private final FramePool pool;
+
+    private ImageReader reader;
+    private HardwareRenderer renderer;
+    private RenderNode node;
+    private boolean gpuFailed = false;
+
+    HardwareFrameReader(FramePool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * The buffer's contents as a pooled frame, or null if it cannot be wrapped.
+     * The caller owns one reference to the frame, and still owns the buffer.
+     * {@code geometry} must describe a screen of the buffer's size.
+     */
+    FramePool.Frame read(HardwareBuffer buffer, ColorSpace colorSpace, CaptureGeometry geometry) {
+        Bitmap hardwareBitmap = Bitmap.wrapHardwareBuffer(buffer, colorSpace);
+        if (hardwareBitmap == null) return null;
+        try {
+            FramePool.Frame frame = pool.acquire(geometry.frameWidth, geometry.frameHeight);
+            try {
+                if (!gpuRead(hardwareBitmap, geometry.crop, frame)) {
+                    softwareRead(hardwareBitmap, geometry.crop, frame);
+                }
+                return frame;
+            } catch (RuntimeException e) {
+                frame.release();
+                throw e;
+            }
+        } finally {
+            hardwareBitmap.recycle();
+        }
+    }
+
+    private boolean gpuRead(Bitmap hardwareBitmap, Rect region, FramePool.Frame frame) {
+        if (gpuFailed) return false;
+        int w = frame.width();
+        int h = frame.height();
+        try {
+            ensureRenderer(w, h);
+            RecordingCanvas canvas = node.beginRecording(w, h);
+            try {
+                canvas.drawBitmap(hardwareBitmap, region, new Rect(0, 0, w, h), SCALE_PAINT);
+            } finally {
+                node.endRecording();
+            }
+            renderer.createRenderRequest().setWaitForPresent(true).syncAndDraw();
+            try (Image image = reader.acquireLatestImage()) {
+                if (image == null) throw new IllegalStateException("No image after draw");
+                Image.Plane plane = image.getPlanes()[0];
+                frame.copyFrom(plane.getBuffer(), plane.getRowStride());
+            }
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "GPU frame readback unavailable, copying in software from now on", e);
+            gpuFailed = true;
+            releaseRenderer();
+            return false;
+        }
+    }
+
+    private static void softwareRead(Bitmap hardwareBitmap, Rect region, FramePool.Frame frame) {
+        Bitmap copy = hardwareBitmap.copy(Bitmap.Config.ARGB_8888, false);
+        if (copy == null) throw new IllegalStateException("Hardware bitmap copy failed");
+        try {
+            frame.drawFrom(copy, region);
+        } finally {
+            copy.recycle();
+        }
+    }
+
+    private void ensureRenderer(int w, int h) {
+        if (reader != null && reader.getWidth() == w && reader.getHeight() == h) return;
+        releaseRenderer();
+        reader = ImageReader.newInstance(w, h, PixelFormat.RGBA_8888, 2,
+                HardwareBuffer.USAGE_GPU_COLOR_OUTPUT | HardwareBuffer.USAGE_CPU_READ_OFTEN);
+        node = new RenderNode("capture-frame");
+        node.setPosition(0, 0, w, h);
+        renderer = new HardwareRenderer();
+        renderer.setSurface(reader.getSurface());
+        renderer.setContentRoot(node);
+    }
+
+    private void releaseRenderer() {
+        if (renderer != null) {
+            renderer.destroy();
+            renderer = null;
+        }
+        if (node != null) {
+            node.discardDisplayList();
+            node = null;
+        }
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        releaseRenderer();
+    }
+}
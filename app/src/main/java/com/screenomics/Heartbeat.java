@@ -8,11 +8,7 @@ import androidx.preference.PreferenceManager;
 
 import org.json.JSONObject;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.util.Iterator;
 import java.util.UUID;
 
 import okhttp3.MediaType;
@@ -42,6 +38,7 @@ public final class Heartbeat {
 
     private static final String TAG = "Heartbeat";
     private static final MediaType JSON_TYPE = MediaType.parse("application/json");
+    private static final MediaType CBOR_TYPE = MediaType.parse(HeartbeatCodec.MIME);
 
     private static final String PREF_LAST_SENT_MS = "hb_last_sent_ms";
     // Watermarks: the counter values already reported. Deltas are computed
@@ -52,6 +49,10 @@ public final class Heartbeat {
     private static final String PREF_SENT_CAPTURES = "hb_sent_captures_total";
     private static final String PREF_SENT_BLANKS = "hb_sent_blank_total";
     private static final String PREF_SENT_STARTS = "hb_sent_service_starts";
+    private static final String PREF_SENT_DEDUP = "hb_sent_dedup_skipped_total";
+    // UploadTelemetry state as of the last acknowledged heartbeat
+    private static final String PREF_SENT_UPLOAD_TELEMETRY = "hb_sent_upload_telemetry";
+    private static final String PREF_SENT_METRICS = "hb_sent_metrics";
 
     private Heartbeat() {}
 
@@ -89,36 +90,68 @@ public final class Heartbeat {
         CaptureStats.Totals totals = CaptureStats.read(app);
         JSONObject snapshot = DeviceStateCollector.collectSnapshot(app);
         JSONObject payload = buildPayload(app, prefs, snapshot, totals, now);
+        JSONObject serviceState = snapshot.optJSONObject("service_state");
 
         String baseUrl = prefs.getString("base_url", Constants.BASE_URL);
         String url = baseUrl + "/api/v1/device-status/" + pptId;
         String bearerToken = SecureStore.getSecret(app, "enrollment_token", "");
+        OkHttpClient client = HttpClientProvider.get(app);
 
-        Request.Builder rb = new Request.Builder()
-                .url(url)
-                .addHeader("Accept", "application/json")
-                .addHeader("X-Participant-ID", pptId)
-                .addHeader("X-Study-ID", studyId)
-                .addHeader("X-Request-Nonce", UUID.randomUUID().toString())
-                .addHeader("X-Request-Timestamp", iso8601ZuluNow())
-                .addHeader("X-Request-Id", "and-hb-" + UUID.randomUUID())
-                .post(RequestBody.create(JSON_TYPE, payload.toString()));
-        if (!bearerToken.isEmpty()) {
-            rb.addHeader("Authorization", "Bearer " + bearerToken);
-        }
+        // At most twice: a compact frame the receiver turns down (415, or 409
+        // for a delta on a base it lost) is followed at once by JSON or a keyframe
+        for (int attempt = 0; attempt < 2; attempt++) {
+            HeartbeatCodec.Frame frame = HeartbeatCodec.useCompact(prefs)
+                    ? HeartbeatCodec.encode(prefs, payload) : null;
+            RequestBody body = frame != null
+                    ? RequestBody.create(CBOR_TYPE, frame.bytes)
+                    : RequestBody.create(JSON_TYPE, payload.toString());
 
-        OkHttpClient client = HttpClientProvider.get(app);
-        try (Response response = client.newCall(rb.build()).execute()) {
-            int code = response.code();
-            if (code < 200 || code >= 300) {
-                Log.w(TAG, "heartbeat rejected: " + code);
+            Request.Builder rb = new Request.Builder()
+                    .url(url)
+                    .addHeader("Accept", "application/json")
+                    .addHeader("X-Participant-ID", pptId)
+                    .addHeader("X-Study-ID", studyId)
+                    .addHeader("X-Request-Nonce", UUID.randomUUID().toString())
+                    .addHeader("X-Request-Timestamp", iso8601ZuluNow())
+                    .addHeader("X-Request-Id", "and-hb-" + UUID.randomUUID())
+                    .post(body);
+            if (!bearerToken.isEmpty()) {
+                rb.addHeader("Authorization", "Bearer " + bearerToken);
+            }
+            if (prefs.getBoolean(HeartbeatCodec.PREF_ENABLED, false)) {
+                rb.addHeader(HeartbeatCodec.HDR_ACCEPT, HeartbeatCodec.MIME);
+            }
+
+            try (Response response = client.newCall(rb.build()).execute()) {
+                int code = response.code();
+                if (frame != null && code == 415) {
+                    Log.w(TAG, "compact heartbeat refused, back to JSON");
+                    HeartbeatCodec.onUnsupported(prefs);
+                    continue;
+                }
+                if (frame != null && !frame.keyframe && code == 409) {
+                    Log.w(TAG, "receiver lost the heartbeat base, sending a keyframe");
+                    HeartbeatCodec.forgetBase(prefs);
+                    continue;
+                }
+                if (code < 200 || code >= 300) {
+                    Log.w(TAG, "heartbeat rejected: " + code);
+                    return;
+                }
+                // Advance the watermarks only once the server has the numbers.
+                // Advancing on send would silently drop the interval whenever the
+                // POST fails, which is exactly when the device is in trouble and
+                // the interval matters most.
+                // Save the cumulative state first: restored below the new
+                // watermarks after a kill, it would read as cleared data and
+                // the whole of it would be reported again.
+                Metrics.save(app);
+                UploadTelemetry.get(app).save(app);
+                commitWatermarks(prefs, totals, serviceState, now);
+                if (frame != null) HeartbeatCodec.acknowledge(prefs, payload, frame);
+                HeartbeatCodec.onAccepted(prefs, response.header(HeartbeatCodec.HDR_ACCEPT));
                 return;
             }
-            // Advance the watermarks only once the server has the numbers.
-            // Advancing on send would silently drop the interval whenever the
-            // POST fails, which is exactly when the device is in trouble and
-            // the interval matters most.
-            commitWatermarks(prefs, totals, now);
         }
     }
 
@@ -136,7 +169,7 @@ public final class Heartbeat {
                 && permissions.optBoolean("perm_accessibility_enabled", false);
 
         JSONObject out = new JSONObject();
-        out.put("reported_at", iso8601Zulu(new Date(now)));
+        out.put("reported_at", Timestamps.isoMillis(now));
         out.put("capture_mode", serviceState != null
                 ? serviceState.optString("capture_mode", "accessibility") : "accessibility");
         out.put("capture_active", A11yState.isCaptureRunning());
@@ -150,7 +183,7 @@ public final class Heartbeat {
             out.put("a11y_last_error", serviceState.optString("a11y_last_error", ""));
             long lastImageTs = serviceState.optLong("a11y_last_image_ts", 0);
             if (lastImageTs > 0) {
-                out.put("last_capture_at", iso8601Zulu(new Date(lastImageTs)));
+                out.put("last_capture_at", Timestamps.isoMillis(lastImageTs));
             }
         }
 
@@ -167,6 +200,8 @@ public final class Heartbeat {
                 delta(totals.blanks, prefs.getLong(PREF_SENT_BLANKS, 0)));
         out.put("service_restarts_since_last_report",
                 delta(totals.serviceStarts, prefs.getInt(PREF_SENT_STARTS, 0)));
+        out.put("dedup_skipped_since_last_report",
+                delta(totals.dedupSkipped, prefs.getLong(PREF_SENT_DEDUP, 0)));
 
         if (battery != null) {
             out.put("battery_level", battery.optInt("battery_level", -1));
@@ -176,6 +211,13 @@ public final class Heartbeat {
         }
         if (storage != null) {
             out.put("pending_uploads", storage.optInt("pending_upload_count", 0));
+            JSONObject byClass = storage.optJSONObject("pending_upload_by_class");
+            if (byClass != null) {
+                // Queue depth per upload priority class (see UploadQueue)
+                for (UploadQueue.Priority p : UploadQueue.Priority.values()) {
+                    out.put("pending_uploads_" + p.key(), byClass.optInt(p.key(), 0));
+                }
+            }
             out.put("storage_available_bytes", storage.optLong("storage_available_bytes", -1));
         }
         if (network != null) {
@@ -189,17 +231,68 @@ public final class Heartbeat {
         if (device != null) {
             out.put("app_version", device.optString("app_version_name", ""));
         }
+        JSONObject upload = serviceState != null
+                ? serviceState.optJSONObject("upload_controller") : null;
+        if (upload != null && upload.length() > 0) {
+            // Effective upload rate on this device, as the rate controller last saw it
+            out.put("upload_window", upload.optDouble("window", 0));
+            out.put("upload_goodput_bytes_per_s", upload.optLong("goodput_bytes_per_s", 0));
+            out.put("upload_srtt_ms", upload.optLong("srtt_ms", 0));
+            out.put("upload_congestion_events", upload.optLong("congestion_events", 0));
+            out.put("upload_throttle_events", upload.optLong("throttle_events", 0));
+        }
+        JSONObject telemetry = serviceState != null
+                ? serviceState.optJSONObject("upload_telemetry") : null;
+        if (telemetry != null) {
+            // Per-phase request timings and status counts since the last acknowledged heartbeat
+            String sent = prefs.getString(PREF_SENT_UPLOAD_TELEMETRY, "");
+            JSONObject interval = UploadTelemetry.interval(telemetry,
+                    sent.isEmpty() ? null : new JSONObject(sent));
+            for (Iterator<String> keys = interval.keys(); keys.hasNext(); ) {
+                String key = keys.next();
+                out.put(key, interval.get(key));
+            }
+        }
+        JSONObject metrics = serviceState != null ? serviceState.optJSONObject("metrics") : null;
+        if (metrics != null) {
+            // Capture, encryption, upload, location and glasses metrics since
+            // the last acknowledged heartbeat (see Metrics)
+            String sent = prefs.getString(PREF_SENT_METRICS, "");
+            out.put("metrics_since_last_report",
+                    Metrics.interval(metrics, sent.isEmpty() ? null : new JSONObject(sent)));
+        }
         return out;
     }
 
     static void commitWatermarks(SharedPreferences prefs, CaptureStats.Totals totals, long now) {
-        prefs.edit()
+        commitWatermarks(prefs, totals, null, now);
+    }
+
+    /**
+     * Record what the server now has. {@code serviceState} is the snapshot's
+     * service_state the payload was built from; its cumulative upload
+     * telemetry and metrics become the watermarks for the next interval.
+     */
+    static void commitWatermarks(SharedPreferences prefs, CaptureStats.Totals totals,
+                                 JSONObject serviceState, long now) {
+        SharedPreferences.Editor editor = prefs.edit();
+        JSONObject uploadTelemetry = serviceState != null
+                ? serviceState.optJSONObject("upload_telemetry") : null;
+        if (uploadTelemetry != null) {
+            editor.putString(PREF_SENT_UPLOAD_TELEMETRY, uploadTelemetry.toString());
+        }
+        JSONObject metrics = serviceState != null ? serviceState.optJSONObject("metrics") : null;
+        if (metrics != null) {
+            editor.putString(PREF_SENT_METRICS, metrics.toString());
+        }
+        editor
                 .putLong(PREF_LAST_SENT_MS, now)
                 .putLong(PREF_SENT_ARMED_MS, totals.armedMs)
                 .putLong(PREF_SENT_UNLOCKED_MS, totals.unlockedMs)
                 .putLong(PREF_SENT_CAPTURES, totals.captures)
                 .putLong(PREF_SENT_BLANKS, totals.blanks)
                 .putInt(PREF_SENT_STARTS, totals.serviceStarts)
+                .putLong(PREF_SENT_DEDUP, totals.dedupSkipped)
                 .apply();
     }
 
@@ -212,12 +305,6 @@ public final class Heartbeat {
     }
 
     private static String iso8601ZuluNow() {
-        return iso8601Zulu(new Date());
-    }
-
-    private static String iso8601Zulu(Date date) {
-        DateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return fmt.format(date);
+        return Timestamps.isoMillis(System.currentTimeMillis());
     }
 }
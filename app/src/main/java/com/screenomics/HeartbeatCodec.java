@@ -0,0 +1,349 @@
+package com.screenomics;
+
+import android.content.SharedPreferences;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * The compact heartbeat encoding: CBOR (RFC 8949) frames that carry only
+ * the fields that changed since the last heartbeat the receiver
+ * acknowledged.
+ *
+ * The JSON heartbeat is over 1 KB and goes out every 15 minutes on every
+ * device; most of it -- device model, app version, permission flags,
+ * network type -- is the same as last time. A delta frame lists the fields
+ * whose value differs from the acknowledged payload, plus the names of any
+ * that disappeared, and CBOR drops JSON's quoting and decimal numbers.
+ * Nested objects (metrics_since_last_report) are compared, and sent, whole.
+ *
+ * Frame, a CBOR map:
+ *
+ *   v        1
+ *   seq      this frame's number; the acknowledged one's plus one
+ *   key      true on a keyframe: fields is the whole payload
+ *   base     on a delta, the seq it applies to
+ *   fields   map of changed (or, on a keyframe, all) fields
+ *   removed  on a delta, array of field names no longer present
+ *
+ * A keyframe goes out first, then every {@link #DEFAULT_KEYFRAME_EVERY}
+ * frames, so a receiver that lost its state is back within a couple of
+ * hours even without asking. It can ask sooner: 409 to a delta means "I
+ * don't have that base", and the next frame is a keyframe.
+ *
+ * Negotiated, and opt-in on top of that ({@link #PREF_ENABLED}): an
+ * opted-in client sends JSON with {@link #HDR_ACCEPT} naming {@link #MIME}
+ * until a 2xx response carries the same header back, and drops back to JSON
+ * on a 415. The acknowledged payload is stored only on 2xx, like the counter
+ * watermarks, so a frame the receiver never saw is never used as a base.
+ *
+ * The encoder writes only what JSON heartbeats contain: maps with string
+ * keys, arrays, strings, integers, doubles, booleans and null.
+ * {@link Receiver} is the reference decoder the receiving service is held
+ * to; the tests decode every frame through it.
+ */
+final class HeartbeatCodec {
+
+    static final String MIME = "application/vnd.mindpulse.heartbeat+cbor";
+    /** Header by which each side says it takes {@link #MIME}. */
+    static final String HDR_ACCEPT = "X-Heartbeat-Accept";
+
+    static final String PREF_ENABLED = "heartbeat_compact";
+    static final String PREF_ACCEPTED = "hb_compact_accepted";
+    static final String PREF_KEYFRAME_EVERY = "hb_keyframe_every";
+    static final int DEFAULT_KEYFRAME_EVERY = 8;
+    private static final String PREF_SENT_PAYLOAD = "hb_sent_payload";
+    private static final String PREF_SENT_SEQ = "hb_sent_seq";
+    private static final String PREF_SINCE_KEYFRAME = "hb_frames_since_keyframe";
+
+    static final int VERSION = 1;
+
+    private HeartbeatCodec() {}
+
+    /** An encoded frame and what to store once it is acknowledged. */
+    static final class Frame {
+        final byte[] bytes;
+        final long seq;
+        final boolean keyframe;
+        final int changedFields;
+
+        Frame(byte[] bytes, long seq, boolean keyframe, int changedFields) {
+            this.bytes = bytes;
+            this.seq = seq;
+            this.keyframe = keyframe;
+            this.changedFields = changedFields;
+        }
+    }
+
+    /** Whether to send the next heartbeat compact: opted in and the receiver said yes. */
+    static boolean useCompact(SharedPreferences prefs) {
+        return prefs.getBoolean(PREF_ENABLED, false) && prefs.getBoolean(PREF_ACCEPTED, false);
+    }
+
+    /** A 2xx response: note whether the receiver advertised the compact form. */
+    static void onAccepted(SharedPreferences prefs, String acceptHeader) {
+        boolean accepted = acceptHeader != null && acceptHeader.contains(MIME);
+        if (accepted != prefs.getBoolean(PREF_ACCEPTED, false)) {
+            prefs.edit().putBoolean(PREF_ACCEPTED, accepted).apply();
+        }
+    }
+
+    /** 415: the receiver doesn't take the compact form after all. */
+    static void onUnsupported(SharedPreferences prefs) {
+        prefs.edit().putBoolean(PREF_ACCEPTED, false).apply();
+        forgetBase(prefs);
+    }
+
+    /** 409, or anything else that means the receiver lost its state: key next. */
+    static void forgetBase(SharedPreferences prefs) {
+        prefs.edit().remove(PREF_SENT_PAYLOAD).remove(PREF_SINCE_KEYFRAME).apply();
+    }
+
+    /** The frame for {@code payload}: a delta against the acknowledged payload, or a keyframe. */
+    static Frame encode(SharedPreferences prefs, JSONObject payload) throws JSONException {
+        long acked = prefs.getLong(PREF_SENT_SEQ, 0);
+        String sent = prefs.getString(PREF_SENT_PAYLOAD, "");
+        int every = Math.max(1, prefs.getInt(PREF_KEYFRAME_EVERY, DEFAULT_KEYFRAME_EVERY));
+        boolean keyframe = sent.isEmpty() || prefs.getInt(PREF_SINCE_KEYFRAME, 0) + 1 >= every;
+        return encode(payload, keyframe ? null : new JSONObject(sent), acked + 1);
+    }
+
+    /** A keyframe when {@code base} is null, else a delta against it. */
+    static Frame encode(JSONObject payload, JSONObject base, long seq) throws JSONException {
+        JSONObject frame = new JSONObject();
+        frame.put("v", VERSION);
+        frame.put("seq", seq);
+        int changed;
+        if (base == null) {
+            frame.put("key", true);
+            frame.put("fields", payload);
+            changed = payload.length();
+        } else {
+            JSONObject fields = new JSONObject();
+            for (Iterator<String> it = payload.keys(); it.hasNext(); ) {
+                String name = it.next();
+                Object value = payload.get(name);
+                if (!base.has(name) || !sameValue(value, base.get(name))) fields.put(name, value);
+            }
+            JSONArray removed = new JSONArray();
+            for (Iterator<String> it = base.keys(); it.hasNext(); ) {
+                String name = it.next();
+                if (!payload.has(name)) removed.put(name);
+            }
+            frame.put("base", seq - 1);
+            frame.put("fields", fields);
+            if (removed.length() > 0) frame.put("removed", removed);
+            changed = fields.length();
+        }
+        return new Frame(toCbor(frame), seq, base == null, changed);
+    }
+
+    /** The receiver has {@code frame}: it is the base of the next delta. */
+    static void acknowledge(SharedPreferences prefs, JSONObject payload, Frame frame) {
+        prefs.edit()
+                .putString(PREF_SENT_PAYLOAD, payload.toString())
+                .putLong(PREF_SENT_SEQ, frame.seq)
+                .putInt(PREF_SINCE_KEYFRAME,
+                        frame.keyframe ? 0 : prefs.getInt(PREF_SINCE_KEYFRAME, 0) + 1)
+                .apply();
+    }
+
+    private static boolean sameValue(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            // The stored base was parsed back from a string, so 64.0 may now be 64
+            if (isIntegral(a) && isIntegral(b)) {
+                return ((Number) a).longValue() == ((Number) b).longValue();
+            }
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+        }
+        if (a instanceof JSONObject || a instanceof JSONArray) {
+            return b != null && a.getClass() == b.getClass() && a.toString().equals(b.toString());
+        }
+        return a.equals(b);
+    }
+
+    private static boolean isIntegral(Object n) {
+        return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+    }
+
+    // ---- CBOR ----
+
+    static byte[] toCbor(Object value) throws JSONException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        write(out, value);
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, Object v) throws JSONException {
+        if (v == null || v == JSONObject.NULL) {
+            out.write(0xf6);
+        } else if (v instanceof Boolean) {
+            out.write((Boolean) v ? 0xf5 : 0xf4);
+        } else if (isIntegral(v)) {
+            long n = ((Number) v).longValue();
+            if (n >= 0) head(out, 0, n);
+            else head(out, 1, -1 - n);
+        } else if (v instanceof Number) {
+            double d = ((Number) v).doubleValue();
+            if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e15) {
+                // 64.0 is as much a double as 64.5, but costs 1 byte as an integer
+                write(out, (long) d);
+                return;
+            }
+            float f = (float) d;
+            if (f == d) {
+                out.write(0xfa);
+                writeBE(out, Float.floatToIntBits(f), 4);
+            } else {
+                out.write(0xfb);
+                writeBE(out, Double.doubleToLongBits(d), 8);
+            }
+        } else if (v instanceof String) {
+            byte[] utf8 = ((String) v).getBytes(StandardCharsets.UTF_8);
+            head(out, 3, utf8.length);
+            out.write(utf8, 0, utf8.length);
+        } else if (v instanceof JSONArray) {
+            JSONArray a = (JSONArray) v;
+            head(out, 4, a.length());
+            for (int i = 0; i < a.length(); i++) write(out, a.get(i));
+        } else if (v instanceof JSONObject) {
+            JSONObject o = (JSONObject) v;
+            head(out, 5, o.length());
+            for (Iterator<String> it = o.keys(); it.hasNext(); ) {
+                String k = it.next();
+                write(out, k);
+                write(out, o.get(k));
+            }
+        } else {
+            write(out, v.toString());
+        }
+    }
+
+    private static void head(ByteArrayOutputStream out, int major, long n) {
+        int m = major << 5;
+        if (n < 24) {
+            out.write(m | (int) n);
+        } else if (n < 0x100) {
+            out.write(m | 24);
+            out.write((int) n);
+        } else if (n < 0x10000) {
+            out.write(m | 25);
+            writeBE(out, n, 2);
+        } else if (n < 0x100000000L) {
+            out.write(m | 26);
+            writeBE(out, n, 4);
+        } else {
+            out.write(m | 27);
+            writeBE(out, n, 8);
+        }
+    }
+
+    private static void writeBE(ByteArrayOutputStream out, long v, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--) out.write((int) (v >>> (8 * i)) & 0xff);
+    }
+
+    /** Decode what {@link #toCbor} writes back to org.json values. */
+    static Object fromCbor(byte[] bytes) throws JSONException {
+        int[] pos = {0};
+        Object v = read(bytes, pos);
+        if (pos[0] != bytes.length) throw new JSONException("Trailing bytes after CBOR item");
+        return v;
+    }
+
+    private static Object read(byte[] b, int[] pos) throws JSONException {
+        if (pos[0] >= b.length) throw new JSONException("Truncated CBOR");
+        int initial = b[pos[0]++] & 0xff;
+        int major = initial >>> 5;
+        int info = initial & 0x1f;
+        if (major == 7) {
+            switch (info) {
+                case 20: return false;
+                case 21: return true;
+                case 22: return JSONObject.NULL;
+                case 26: return (double) Float.intBitsToFloat((int) readBE(b, pos, 4));
+                case 27: return Double.longBitsToDouble(readBE(b, pos, 8));
+                default: throw new JSONException("Unsupported CBOR simple value " + info);
+            }
+        }
+        long n;
+        if (info < 24) n = info;
+        else if (info == 24) n = readBE(b, pos, 1);
+        else if (info == 25) n = readBE(b, pos, 2);
+        else if (info == 26) n = readBE(b, pos, 4);
+        else if (info == 27) n = readBE(b, pos, 8);
+        else throw new JSONException("Indefinite-length CBOR is not used");
+        switch (major) {
+            case 0: return n;
+            case 1: return -1 - n;
+            case 3: {
+                if (n > b.length - pos[0]) throw new JSONException("Truncated CBOR string");
+                String s = new String(b, pos[0], (int) n, StandardCharsets.UTF_8);
+                pos[0] += (int) n;
+                return s;
+            }
+            case 4: {
+                JSONArray a = new JSONArray();
+                for (long i = 0; i < n; i++) a.put(read(b, pos));
+                return a;
+            }
+            case 5: {
+                JSONObject o = new JSONObject();
+                for (long i = 0; i < n; i++) {
+                    Object k = read(b, pos);
+                    if (!(k instanceof String)) throw new JSONException("CBOR map key is not a string");
+                    o.put((String) k, read(b, pos));
+                }
+                return o;
+            }
+            default: throw new JSONException("Unsupported CBOR major type " + major);
+        }
+    }
+
+    private static long readBE(byte[] b, int[] pos, int bytes) throws JSONException {
+        if (bytes > b.length - pos[0]) throw new JSONException("Truncated CBOR");
+        long v = 0;
+        for (int i = 0; i < bytes; i++) v = (v << 8) | (b[pos[0]++] & 0xff);
+        return v;
+    }
+
+    /**
+     * The receiving end, for one device: applies frames in order and gives
+     * back the full payload each one stands for, exactly what the JSON
+     * heartbeat would have carried.
+     */
+    static final class Receiver {
+        private JSONObject state;
+        private long seq = -1;
+
+        /** The full payload, or null for a delta on a base this receiver doesn't have (answer 409). */
+        JSONObject apply(byte[] frameBytes) throws JSONException {
+            Object decoded = fromCbor(frameBytes);
+            if (!(decoded instanceof JSONObject)) throw new JSONException("Frame is not a map");
+            JSONObject frame = (JSONObject) decoded;
+            if (frame.optInt("v", 0) != VERSION) throw new JSONException("Unknown frame version");
+            JSONObject fields = frame.getJSONObject("fields");
+            if (frame.optBoolean("key", false)) {
+                state = new JSONObject(fields.toString());
+            } else {
+                if (state == null || frame.optLong("base", -1) != seq) return null;
+                JSONObject next = new JSONObject(state.toString());
+                JSONArray removed = frame.optJSONArray("removed");
+                if (removed != null) {
+                    for (int i = 0; i < removed.length(); i++) next.remove(removed.getString(i));
+                }
+                for (Iterator<String> it = fields.keys(); it.hasNext(); ) {
+                    String k = it.next();
+                    next.put(k, fields.get(k));
+                }
+                state = next;
+            }
+            seq = frame.getLong("seq");
+            return new JSONObject(state.toString());
+        }
+    }
+}
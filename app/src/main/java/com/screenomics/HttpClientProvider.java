@@ -25,6 +25,7 @@ public final class HttpClientProvider {
                             .addInterceptor(new HttpSignatureInterceptor(ctx))
                             // Prefer IPv4 first to reduce IPv6-path connect stalls observed in field logs.
                             .dns(new Ipv4FirstDns())
+                            .eventListenerFactory(UploadTelemetry.get(ctx).factory())
                             .readTimeout(Constants.REQ_TIMEOUT_SECS, TimeUnit.SECONDS)
                             .connectTimeout(Constants.CONNECT_TIMEOUT_SECS, TimeUnit.SECONDS)
                             .writeTimeout(Constants.REQ_TIMEOUT_SECS, TimeUnit.SECONDS)
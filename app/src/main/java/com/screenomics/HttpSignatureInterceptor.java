@@ -9,29 +9,15 @@ import androidx.preference.PreferenceManager;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.KeyStore;
-import java.security.MessageDigest;
-import java.security.PrivateKey;
-import java.security.Signature;
-import java.security.spec.MGF1ParameterSpec;
-import java.security.spec.PSSParameterSpec;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Locale;
-import java.util.TimeZone;
 import java.util.UUID;
 
 import okhttp3.Interceptor;
 import okhttp3.Request;
 import okhttp3.Response;
-import okio.Buffer;
 
 public class HttpSignatureInterceptor implements Interceptor {
     private static final String TAG = "SCREENOMICS_SIGN";
-    private static final String ANDROID_KEYSTORE = "AndroidKeyStore";
-    private static final String KEY_ALIAS = "mindpulse_client_key"; // must match RegisterActivity
 
     private static final String HDR_DATE = "Date";
     private static final String HDR_DIGEST = "Digest";
@@ -60,8 +46,12 @@ public class HttpSignatureInterceptor implements Interceptor {
         // ----- Prepare headers (reuse if already present) -----
         String dateHeader = headerOrDefault(original, HDR_DATE, httpDateNow());
 
-        String computedDigest = "SHA-256=" + base64(digestBody(original));
-        String digestHeader = headerOrDefault(original, HDR_DIGEST, computedDigest);
+        // A caller that already hashed the body (Batch, once per upload) sets Digest;
+        // otherwise stream the body through SHA-256 without buffering it.
+        String digestHeader = original.header(HDR_DIGEST);
+        if (digestHeader == null || digestHeader.isEmpty()) {
+            digestHeader = BodyDigest.header(original.body());
+        }
 
         // Anti-replay headers (required by server)
         String nonce = headerOrDefault(original, HDR_NONCE, UUID.randomUUID().toString());
@@ -83,15 +73,10 @@ public class HttpSignatureInterceptor implements Interceptor {
                         "x-request-nonce: " + nonce + "\n" +
                         "x-request-timestamp: " + tsIso;
 
-        // ----- Sign (PSS preferred, PKCS#1 v1.5 fallback) -----
-        String signatureB64;
+        // ----- Sign (key and algorithm memoized per process; see RequestSigner) -----
+        RequestSigner.Signed signed;
         try {
-            PrivateKey key = loadPrivateKey();
-            byte[] sigBytes = trySignPssThenPkcs1(key, canonical.getBytes(StandardCharsets.UTF_8));
-            if (sigBytes == null) {
-                throw new IOException("Both RSA-PSS and PKCS#1 signing attempts failed");
-            }
-            signatureB64 = base64(sigBytes);
+            signed = RequestSigner.get().sign(canonical.getBytes(StandardCharsets.UTF_8));
         } catch (Exception e) {
             throw new IOException("Failed to sign request", e);
         }
@@ -99,15 +84,17 @@ public class HttpSignatureInterceptor implements Interceptor {
         // ----- HTTP Signature header -----
         String signatureHeader =
                 "keyId=\"" + pptId + "\"," +
-                        "algorithm=\"rsa-sha256\"," +
+                        "algorithm=\"" + signed.algorithm.headerName + "\"," +
                         "headers=\"(request-target) date digest x-request-nonce x-request-timestamp\"," +
-                        "signature=\"" + signatureB64 + "\"";
-
-        // Helpful debug logs (compare with server)
-        Log.d(TAG, "CANONICAL:\n" + canonical);
-        Log.d(TAG, "HEADERS: Date=" + dateHeader + " Digest=" + digestHeader +
-                " " + HDR_NONCE + "=" + nonce + " " + HDR_TS + "=" + tsIso);
-        Log.d(TAG, "SIGNATURE: " + signatureHeader);
+                        "signature=\"" + base64(signed.signature) + "\"";
+
+        // Helpful debug logs (compare with server); debug builds only, they run per request
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "CANONICAL:\n" + canonical);
+            Log.d(TAG, "HEADERS: Date=" + dateHeader + " Digest=" + digestHeader +
+                    " " + HDR_NONCE + "=" + nonce + " " + HDR_TS + "=" + tsIso);
+            Log.d(TAG, "SIGNATURE: " + signatureHeader);
+        }
 
         // ----- Build signed request (preserve any existing values) -----
         Request.Builder nb = original.newBuilder()
@@ -118,71 +105,7 @@ public class HttpSignatureInterceptor implements Interceptor {
                 .header(HDR_TS, tsIso)
                 .header(HDR_REQ_ID, reqId);
 
-        Request signed = nb.build();
-        return chain.proceed(signed);
-    }
-
-    /** Try RSA-PSS (two provider names), then PKCS#1 v1.5. Returns null if all fail. */
-    private static byte[] trySignPssThenPkcs1(PrivateKey key, byte[] data) {
-        // 1) Preferred PSS: "SHA256withRSA/PSS"
-        byte[] sig = signWithPss(key, data, "SHA256withRSA/PSS");
-        if (sig != null) {
-            Log.d(TAG, "Using SHA256withRSA/PSS");
-            return sig;
-        }
-        // 2) Some devices only expose PSS as "RSASSA-PSS"
-        sig = signWithPss(key, data, "RSASSA-PSS");
-        if (sig != null) {
-            Log.d(TAG, "Using RSASSA-PSS (legacy name)");
-            return sig;
-        }
-        // 3) Fallback to PKCS#1 v1.5
-        sig = signWithAlg(key, data, "SHA256withRSA");
-        if (sig != null) {
-            Log.w(TAG, "Falling back to SHA256withRSA (PKCS#1 v1.5)");
-            return sig;
-        }
-        Log.e(TAG, "All signing algorithms failed (PSS and PKCS#1)");
-        return null;
-    }
-
-    /** Attempt PSS with the given algorithm name and SHA-256 parameters. */
-    private static byte[] signWithPss(PrivateKey key, byte[] data, String alg) {
-        try {
-            Signature s = Signature.getInstance(alg);
-            // SHA-256 digest, MGF1(SHA-256), 32-byte salt (matches server), trailerField=1
-            PSSParameterSpec p = new PSSParameterSpec(
-                    "SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, 1);
-            s.setParameter(p);
-            s.initSign(key);
-            s.update(data);
-            return s.sign();
-        } catch (InvalidKeyException e) {
-            Log.w(TAG, "PSS initSign failed (key not allowed for PSS?) alg=" + alg + " : " + e.getMessage());
-            return null;
-        } catch (InvalidAlgorithmParameterException e) {
-            Log.w(TAG, "PSS params unsupported, alg=" + alg + " : " + e.getMessage());
-            return null;
-        } catch (Exception e) {
-            Log.w(TAG, "PSS signing failed, alg=" + alg + " : " + e.getMessage());
-            return null;
-        }
-    }
-
-    /** Attempt generic RSA signature with the given algorithm name (e.g., SHA256withRSA). */
-    private static byte[] signWithAlg(PrivateKey key, byte[] data, String alg) {
-        try {
-            Signature s = Signature.getInstance(alg);
-            s.initSign(key);
-            s.update(data);
-            return s.sign();
-        } catch (InvalidKeyException e) {
-            Log.w(TAG, "PKCS#1 initSign failed (key not allowed for PKCS1?) : " + e.getMessage());
-            return null;
-        } catch (Exception e) {
-            Log.w(TAG, "PKCS#1 signing failed: " + e.getMessage());
-            return null;
-        }
+        return chain.proceed(nb.build());
     }
 
     private static String headerOrDefault(Request req, String name, String fallback) {
@@ -190,44 +113,16 @@ public class HttpSignatureInterceptor implements Interceptor {
         return (v == null || v.isEmpty()) ? fallback : v;
     }
 
-    /** Compute SHA-256 of the request body by streaming through MessageDigest. */
-    private static byte[] digestBody(Request req) throws IOException {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            if (req.body() == null) return md.digest();
-            Buffer buf = new Buffer();
-            req.body().writeTo(buf);
-            byte[] chunk = new byte[8192];
-            while (!buf.exhausted()) {
-                int read = buf.read(chunk);
-                if (read > 0) md.update(chunk, 0, read);
-            }
-            return md.digest();
-        } catch (java.security.NoSuchAlgorithmException e) {
-            throw new IOException("SHA-256 unavailable", e);
-        }
-    }
-
     private static String base64(byte[] b) {
         return Base64.encodeToString(b, Base64.NO_WRAP);
     }
 
     private static String httpDateNow() {
-        SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-        fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-        return fmt.format(new Date());
+        return Timestamps.httpDate(System.currentTimeMillis());
     }
 
     /** RFC 3339 / ISO-8601 UTC like 2025-10-24T04:11:14Z */
     private static String iso8601ZuluNow() {
-        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
-        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return fmt.format(new Date());
-    }
-
-    private static PrivateKey loadPrivateKey() throws Exception {
-        KeyStore ks = KeyStore.getInstance(ANDROID_KEYSTORE);
-        ks.load(null);
-        return (PrivateKey) ks.getKey(KEY_ALIAS, null);
+        return Timestamps.isoSeconds(System.currentTimeMillis());
     }
 }
@@ -0,0 +1,119 @@
+package com.screenomics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * The codec and quality capture frames are compressed with.
+ *
+ * Both capture paths used to hard-code JPEG at quality 70. Screenshots are
+ * mostly flat UI and text, which lossy WebP usually stores in noticeably
+ * fewer bytes at the same legibility, and every byte saved is a byte not
+ * encrypted, stored or uploaded over a participant's data plan.
+ *
+ * A study picks a codec ({@link #PREF_CODEC}) and a rung on that codec's
+ * quality ladder ({@link #PREF_LEVEL}). The ladders are per codec because
+ * equal quality numbers do not mean equal output across codecs; rung 1
+ * ("standard") of the JPEG ladder is the old default. The codec goes into
+ * each frame's .meta as its {@code mime}, the quality as
+ * {@code image_quality}. ImageEncoderTest checks that every rung decodes and
+ * that output grows up each ladder.
+ *
+ * HEIF is not offered: the platform has no HEIF Bitmap compressor, and the
+ * encoders that exist write to a file, which would stage a plaintext image
+ * on disk ahead of the encrypting sink. New codecs plug in as another
+ * {@link Encoder}.
+ */
+final class ImageEncoder {
+
+    /** "jpeg" (default) or "webp". */
+    static final String PREF_CODEC = "image_codec";
+    /** Index into the codec's quality ladder; see {@link Codec#ladder}. */
+    static final String PREF_LEVEL = "image_quality_level";
+    static final int DEFAULT_LEVEL = 1;
+
+    /** Compresses a frame into a stream. */
+    interface Encoder {
+        String mime();
+
+        int quality();
+
+        boolean encode(Bitmap bitmap, OutputStream out);
+    }
+
+    enum Codec {
+        JPEG("jpeg", "image/jpeg", new int[]{50, 70, 85}),
+        WEBP_LOSSY("webp", "image/webp", new int[]{40, 60, 80});
+
+        final String prefValue;
+        final String mime;
+        /** Qualities from smallest output to finest; index 1 is the default. */
+        final int[] ladder;
+
+        Codec(String prefValue, String mime, int[] ladder) {
+            this.prefValue = prefValue;
+            this.mime = mime;
+            this.ladder = ladder;
+        }
+
+        static Codec fromPref(String value) {
+            for (Codec c : values()) {
+                if (c.prefValue.equals(value)) return c;
+            }
+            return JPEG;
+        }
+
+        @SuppressWarnings("deprecation")
+        Bitmap.CompressFormat format() {
+            if (this == JPEG) return Bitmap.CompressFormat.JPEG;
+            // WEBP_LOSSY is API 30; before that WEBP below 100 is lossy
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    ? Bitmap.CompressFormat.WEBP_LOSSY
+                    : Bitmap.CompressFormat.WEBP;
+        }
+
+        int quality(int level) {
+            return ladder[Math.max(0, Math.min(ladder.length - 1, level))];
+        }
+    }
+
+    /** {@link Bitmap#compress} with a fixed format and quality. */
+    static final class BitmapEncoder implements Encoder {
+        private final Codec codec;
+        private final int quality;
+
+        BitmapEncoder(Codec codec, int quality) {
+            this.codec = codec;
+            this.quality = quality;
+        }
+
+        @Override public String mime() { return codec.mime; }
+        @Override public int quality() { return quality; }
+
+        @Override
+        public boolean encode(Bitmap bitmap, OutputStream out) {
+            return bitmap.compress(codec.format(), quality, out);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s q%d", codec.prefValue, quality);
+        }
+    }
+
+    private ImageEncoder() {}
+
+    /** The encoder configured in preferences. Cheap; read once per frame. */
+    static Encoder fromPrefs(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Codec codec = Codec.fromPref(prefs.getString(PREF_CODEC, Codec.JPEG.prefValue));
+        return new BitmapEncoder(codec, codec.quality(prefs.getInt(PREF_LEVEL, DEFAULT_LEVEL)));
+    }
+}
@@ -40,13 +40,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
 import java.util.TimeZone;
-import java.util.Date;
 
 public class LocationService extends Service {
 
@@ -81,6 +77,7 @@ public class LocationService extends Service {
         super.onCreate();
         createLocationRequest(Priority.PRIORITY_HIGH_ACCURACY);
         fusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
+        Encryptor.watchKeyChanges(getApplicationContext());
     }
 
     private void createLocationRequest(int priority) {
@@ -132,13 +129,10 @@ public class LocationService extends Service {
 
             try {
                 long nowMs = System.currentTimeMillis();
-                DateFormat isoFmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-                isoFmt.setTimeZone(TimeZone.getTimeZone("UTC"));
-
                 JSONObject json = new JSONObject();
                 json.put("latitude",  currentLocation.getLatitude());
                 json.put("longitude", currentLocation.getLongitude());
-                json.put("timestamp", isoFmt.format(new Date(nowMs)));
+                json.put("timestamp", Timestamps.isoMillis(nowMs));
                 json.put("epoch_ms", nowMs);
 
                 // Full Location sensor data
@@ -159,6 +153,9 @@ public class LocationService extends Service {
                     json.put("foreground_app", foregroundApp);
                 }
 
+                Metrics.counter("location_fixes").inc();
+                Metrics.histogram("location_fix_age").record(nowMs - currentLocation.getTime());
+
                 synchronized (bufferLock) {
                     gpsBuffer.add(json);
                     appendToBufferFile(json);
@@ -172,7 +169,11 @@ public class LocationService extends Service {
         }
     };
 
-    /** Flush buffered sensor data as 4 separate encrypted files: gps, appusage, devicestate, logdata. */
+    /**
+     * Flush buffered sensor data: gps, appusage, devicestate and logdata, as
+     * one compressed {@link StreamBundle} when that is enabled, otherwise (or
+     * if the bundle cannot be queued) as 4 separate encrypted files.
+     */
     private void flushCombinedBuffer() {
         List<JSONObject> gpsSnapshot;
         List<JSONObject> appUsageSnapshot;
@@ -185,49 +186,33 @@ public class LocationService extends Service {
         }
 
         Context ctx = getApplicationContext();
-        int queued = 0;
 
         // 1. GPS
+        String gps = null;
         if (!gpsSnapshot.isEmpty()) {
-            try {
-                JSONArray gpsArray = new JSONArray();
-                for (JSONObject obj : gpsSnapshot) gpsArray.put(obj);
-                if (Logger.queueTextForUpload(ctx, gpsArray.toString(), "gps", "application/json")) {
-                    queued++;
-                    clearBufferFile();
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to flush GPS data", e);
-            }
+            JSONArray gpsArray = new JSONArray();
+            for (JSONObject obj : gpsSnapshot) gpsArray.put(obj);
+            gps = gpsArray.toString();
         }
 
         // 2. App usage
+        String appUsage = null;
         if (!appUsageSnapshot.isEmpty()) {
-            try {
-                JSONArray appArray = new JSONArray();
-                for (JSONObject obj : appUsageSnapshot) appArray.put(obj);
-                if (Logger.queueTextForUpload(ctx, appArray.toString(), "appusage", "application/json")) {
-                    queued++;
-                    clearAppUsageBufferFile();
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to flush appusage data", e);
-            }
+            JSONArray appArray = new JSONArray();
+            for (JSONObject obj : appUsageSnapshot) appArray.put(obj);
+            appUsage = appArray.toString();
         }
 
         // 3. Device state
+        String deviceState = null;
         try {
-            JSONObject deviceState = DeviceStateCollector.collectSnapshot(ctx);
-            if (Logger.queueTextForUpload(ctx, deviceState.toString(), "devicestate", "application/json")) {
-                queued++;
-                // Keep the AutoUploadWorker heartbeat from duplicating this flush
-                DeviceStateCollector.markHeartbeatSent(ctx);
-            }
+            deviceState = DeviceStateCollector.collectSnapshot(ctx).toString();
         } catch (Exception e) {
-            Log.w(TAG, "Failed to flush device state", e);
+            Log.w(TAG, "Failed to collect device state", e);
         }
 
         // 4. Logdata (app logs + logcat)
+        String logData = null;
         try {
             String logs = Logger.getAll(ctx);
             String logcat = Logger.captureOwnProcessLogcat();
@@ -235,13 +220,50 @@ public class LocationService extends Service {
                 JSONObject logPayload = new JSONObject();
                 logPayload.put("app_logs", logs != null ? logs : "");
                 logPayload.put("logcat", logcat != null ? logcat : "");
-                if (Logger.queueTextForUpload(ctx, logPayload.toString(), "logdata", "application/json")) {
-                    Logger.reset(ctx);
-                    queued++;
-                }
+                logData = logPayload.toString();
             }
         } catch (Exception e) {
-            Log.e(TAG, "Failed to flush logdata", e);
+            Log.e(TAG, "Failed to collect logdata", e);
+        }
+
+        int queued = 0;
+        if (StreamBundle.enabled(ctx)) {
+            StreamBundle bundle = new StreamBundle();
+            if (gps != null) bundle.add("gps", "application/json", gps);
+            if (appUsage != null) bundle.add("appusage", "application/json", appUsage);
+            if (deviceState != null) bundle.add("devicestate", "application/json", deviceState);
+            if (logData != null) bundle.add("logdata", "application/json", logData);
+            if (!bundle.isEmpty() && bundle.queue(ctx)) {
+                if (gps != null) clearBufferFile();
+                if (appUsage != null) clearAppUsageBufferFile();
+                if (deviceState != null) DeviceStateCollector.markHeartbeatSent(ctx);
+                if (logData != null) Logger.reset(ctx);
+                Log.d(TAG, "Flushed sensor data: " + gpsSnapshot.size() + " GPS, "
+                        + appUsageSnapshot.size() + " appusage, "
+                        + bundle.streams().size() + " streams bundled");
+                return;
+            }
+        }
+
+        if (gps != null && Logger.queueTextForUpload(ctx, gps, "gps", "application/json")) {
+            queued++;
+            clearBufferFile();
+        }
+        if (appUsage != null
+                && Logger.queueTextForUpload(ctx, appUsage, "appusage", "application/json")) {
+            queued++;
+            clearAppUsageBufferFile();
+        }
+        if (deviceState != null
+                && Logger.queueTextForUpload(ctx, deviceState, "devicestate", "application/json")) {
+            queued++;
+            // Keep the AutoUploadWorker heartbeat from duplicating this flush
+            DeviceStateCollector.markHeartbeatSent(ctx);
+        }
+        if (logData != null
+                && Logger.queueTextForUpload(ctx, logData, "logdata", "application/json")) {
+            Logger.reset(ctx);
+            queued++;
         }
 
         Log.d(TAG, "Flushed sensor data: " + gpsSnapshot.size() + " GPS, "
@@ -347,9 +369,6 @@ public class LocationService extends Service {
             UsageEvents events = usm.queryEvents(from, now);
             if (events == null) return;
 
-            DateFormat isoFmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-            isoFmt.setTimeZone(TimeZone.getTimeZone("UTC"));
-
             UsageEvents.Event event = new UsageEvents.Event();
             while (events.hasNextEvent()) {
                 events.getNextEvent(event);
@@ -369,8 +388,9 @@ public class LocationService extends Service {
                 JSONObject obj = new JSONObject();
                 obj.put("event", eventName);
                 obj.put("package", pkg);
-                obj.put("timestamp", isoFmt.format(new Date(eventTime)));
+                obj.put("timestamp", Timestamps.isoMillis(eventTime));
                 obj.put("epoch_ms", eventTime);
+                Metrics.counter("usage_events").inc();
 
                 synchronized (bufferLock) {
                     appUsageBuffer.add(obj);
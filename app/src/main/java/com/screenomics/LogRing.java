@@ -0,0 +1,271 @@
+package com.screenomics;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The in-app log behind {@link Logger}: a fixed-size ring of fixed-size
+ * slots in a memory-mapped file.
+ *
+ * Logger used to keep its last 20 lines as one SharedPreferences string, so
+ * every Logger.i/e -- one per upload batch result, among others -- took a
+ * global lock, copied the string twice to count its newlines, and queued a
+ * rewrite of the whole preferences XML. Here an append takes a sequence
+ * number from one atomic counter and writes its slot in place; writers don't
+ * wait for each other short of one lapping another (below), and the file
+ * never grows past {@link #SLOTS} x {@link #SLOT_BYTES} plus a header. The page cache writes it back, so a
+ * process death loses nothing that was appended; a power cut may lose the
+ * last few lines.
+ *
+ * Slot layout, little room spent on framing:
+ *
+ *   i64 sequence    -(seq+2) while being written, seq once complete,
+ *                   -1 if empty
+ *   i64 epoch ms
+ *   u8  level       'i' or 'e'
+ *   u16 length      of the UTF-8 message, cut to fit the slot
+ *   message
+ *
+ * Slot seq % SLOTS holds record seq. Readers take the records between
+ * {@code next - SLOTS} and {@code next} and skip any slot whose sequence is
+ * not the one expected there, which covers both slots still being written
+ * and slots already overwritten by a newer record. The in-memory copy of
+ * each slot's sequence is the seqlock: a writer claims it and publishes it
+ * around the message, and a reader checks it before and after, so a reader
+ * never returns a half-written line. The claim and the reader's second check
+ * are read-modify-writes, which order the plain buffer accesses around them
+ * (VarHandle fences would need API 33). A writer lapped by SLOTS others
+ * mid-write -- 128 appends during one memcpy -- makes the lapping writer
+ * wait briefly, and drop its line if the first doesn't finish.
+ *
+ * {@link #clear} moves a floor below which records are not returned, so it
+ * is also O(1). If the file cannot be mapped, the ring lives on the heap for
+ * the life of the process.
+ */
+final class LogRing {
+
+    private static final String TAG = "SCREENOMICS_LOGGER";
+    static final String FILE_NAME = "app_log.ring";
+
+    static final int SLOTS = 128;
+    static final int SLOT_BYTES = 512;
+    private static final int SLOT_HEADER = 8 + 8 + 1 + 2;
+    static final int MAX_MESSAGE_BYTES = SLOT_BYTES - SLOT_HEADER;
+
+    private static final int MAGIC = 0x4d504c52; // "MPLR"
+    private static final int VERSION = 1;
+    // magic, version, slots, slot size, floor
+    private static final int FILE_HEADER = 4 + 4 + 4 + 4 + 8;
+    private static final int FLOOR_OFFSET = 16;
+    /** Stamp of a slot that holds no record; below it, a slot being written. */
+    private static final long EMPTY = -1L;
+    /** How long to wait for a writer lapped mid-write before dropping the line. */
+    private static final int MAX_SPINS = 1000;
+
+    /** One line of the log. */
+    static final class Record {
+        final long seq;
+        final long timeMs;
+        final char level;
+        final String message;
+
+        Record(long seq, long timeMs, char level, String message) {
+            this.seq = seq;
+            this.timeMs = timeMs;
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    private static volatile LogRing shared;
+
+    private final ByteBuffer buffer;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong floor = new AtomicLong();
+    private final AtomicLongArray stamps = new AtomicLongArray(SLOTS);
+
+    static LogRing get(Context context) {
+        LogRing r = shared;
+        if (r == null) {
+            synchronized (LogRing.class) {
+                if (shared == null) {
+                    shared = open(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+                }
+                r = shared;
+            }
+        }
+        return r;
+    }
+
+    /** Map {@code file}, creating or re-initialising it if it isn't a ring of this shape. */
+    static LogRing open(File file) {
+        int size = FILE_HEADER + SLOTS * SLOT_BYTES;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean fresh = raf.length() != size;
+            if (fresh) raf.setLength(size);
+            // The mapping stays valid after the channel is closed
+            ByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new LogRing(map, fresh);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Log ring unavailable, keeping logs in memory: " + e.getMessage());
+            return new LogRing(ByteBuffer.allocate(size), true);
+        }
+    }
+
+    LogRing(ByteBuffer buffer, boolean fresh) {
+        this.buffer = buffer;
+        if (fresh || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getInt(8) != SLOTS || buffer.getInt(12) != SLOT_BYTES) {
+            for (int i = 0; i < SLOTS; i++) buffer.putLong(slotOffset(i), EMPTY);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, SLOTS);
+            buffer.putInt(12, SLOT_BYTES);
+            buffer.putLong(FLOOR_OFFSET, 0L);
+            for (int i = 0; i < SLOTS; i++) stamps.set(i, EMPTY);
+            return;
+        }
+        long max = -1;
+        for (int i = 0; i < SLOTS; i++) {
+            long stamp = buffer.getLong(slotOffset(i));
+            // A slot caught mid-write by a process death is not a record
+            if (stamp < 0 || stamp % SLOTS != i) stamp = EMPTY;
+            stamps.set(i, stamp);
+            max = Math.max(max, stamp);
+        }
+        next.set(max + 1);
+        floor.set(Math.min(buffer.getLong(FLOOR_OFFSET), max + 1));
+    }
+
+    private static int slotOffset(int slot) {
+        return FILE_HEADER + slot * SLOT_BYTES;
+    }
+
+    /** Append a line. O(1) and, short of a lapped writer, lock-free; safe from any thread. */
+    long append(char level, String message) {
+        return append(level, message, System.currentTimeMillis());
+    }
+
+    /** Returns the record's sequence number. */
+    long append(char level, String message, long timeMs) {
+        byte[] bytes = utf8Prefix(message != null ? message : "", MAX_MESSAGE_BYTES);
+        long seq = next.getAndIncrement();
+        int slot = (int) (seq % SLOTS);
+        int base = slotOffset(slot);
+        long writing = -(seq + 2);
+
+        // Claim the slot with a read-modify-write, so the stores below can't
+        // be seen before the claim. A newer record's slot is left alone, and
+        // a slot an older writer is still filling is waited for rather than
+        // written over alongside it.
+        for (int spins = 0; ; spins++) {
+            long cur = stamps.get(slot);
+            if (cur >= 0 && cur > seq) return seq;
+            if (cur < EMPTY) {
+                if (-(cur + 2) > seq || spins >= MAX_SPINS) return seq;
+                Thread.yield();
+                continue;
+            }
+            if (stamps.compareAndSet(slot, cur, writing)) break;
+        }
+        buffer.putLong(base, writing);
+        buffer.putLong(base + 8, timeMs);
+        buffer.put(base + 16, (byte) level);
+        buffer.putShort(base + 17, (short) bytes.length);
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(base + SLOT_HEADER);
+        dst.put(bytes);
+        buffer.putLong(base, seq);
+        // Publishes the slot: a volatile store, ordered after the message
+        stamps.set(slot, seq);
+        return seq;
+    }
+
+    /** Records still in the ring, oldest first. */
+    List<Record> records() {
+        long end = next.get();
+        long start = Math.max(floor.get(), end - SLOTS);
+        List<Record> out = new ArrayList<>((int) Math.max(0, end - start));
+        for (long seq = Math.max(0, start); seq < end; seq++) {
+            Record r = read(seq);
+            if (r != null) out.add(r);
+        }
+        return out;
+    }
+
+    private Record read(long seq) {
+        int slot = (int) (seq % SLOTS);
+        if (stamps.get(slot) != seq) return null;
+        int base = slotOffset(slot);
+        long timeMs = buffer.getLong(base + 8);
+        char level = (char) buffer.get(base + 16);
+        int length = buffer.getShort(base + 17) & 0xffff;
+        if (length > MAX_MESSAGE_BYTES) return null;
+        byte[] bytes = new byte[length];
+        ByteBuffer src = buffer.duplicate();
+        src.position(base + SLOT_HEADER);
+        src.get(bytes);
+        // A read-modify-write, unlike a plain volatile read, keeps the reads
+        // above from drifting past the check
+        if (!stamps.compareAndSet(slot, seq, seq)) return null;
+        return new Record(seq, timeMs, level, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    /** The newest record at {@code level}, or null. */
+    Record latest(char level) {
+        long end = next.get();
+        long start = Math.max(Math.max(0, floor.get()), end - SLOTS);
+        for (long seq = end - 1; seq >= start; seq--) {
+            Record r = read(seq);
+            if (r != null && r.level == level) return r;
+        }
+        return null;
+    }
+
+    /** Sequence number the next append will take. */
+    long next() {
+        return next.get();
+    }
+
+    /** Drop every record appended so far. */
+    void clear() {
+        clearBefore(next.get());
+    }
+
+    /**
+     * Drop the records before {@code seq}, e.g. those just uploaded, keeping
+     * anything appended since they were read.
+     */
+    void clearBefore(long seq) {
+        long prev;
+        while (seq > (prev = floor.get()) && !floor.compareAndSet(prev, seq)) { }
+        buffer.putLong(FLOOR_OFFSET, floor.get());
+    }
+
+    /** The longest prefix of {@code s} that encodes to at most {@code max} UTF-8 bytes. */
+    static byte[] utf8Prefix(String s, int max) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= max) return bytes;
+        int end = max;
+        // Don't split a multi-byte character: back up to a lead byte
+        while (end > 0 && (bytes[end] & 0xc0) == 0x80) end--;
+        byte[] out = new byte[end];
+        System.arraycopy(bytes, 0, out, 0, end);
+        return out;
+    }
+
+    static synchronized void resetForTest() {
+        shared = null;
+    }
+}
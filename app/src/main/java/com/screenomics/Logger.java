@@ -15,85 +15,93 @@ import java.io.InputStreamReader;
 import java.io.BufferedReader;
 
 import org.json.JSONArray;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
 import java.util.UUID;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Logger {
 
     private static final String TAG = "SCREENOMICS_LOGGER";
-    private static final DateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss:");
-    private static final Object LOG_LOCK = new Object();
-
-    static {
-        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-    }
+    private static final String LEGACY_PREF_LOGS = "logs";
+    private static volatile boolean legacyMigrated;
+    /** A line of the prefs-backed log: level, "yyyyMMdd_HHmmss:", message. */
+    private static final Pattern LEGACY_LINE = Pattern.compile("([ie])(\\d{8}_\\d{6}:)(.*)");
 
     public static void i(Context context, String msg) {
-        synchronized (LOG_LOCK) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            SharedPreferences.Editor editor = prefs.edit();
-            String existing = prefs.getString("logs", "");
-            if (existing.length() - existing.replaceAll("\n", "").length() > 18) {
-                int index = existing.indexOf("\n");
-                existing = existing.substring(index + 1);
-            }
-            editor.putString("logs", existing + "\ni" + sdf.format(new Date()) + msg);
-            editor.apply();
-        }
+        ring(context).append('i', msg);
     }
 
     public static void e(Context context, String msg) {
-        synchronized (LOG_LOCK) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            SharedPreferences.Editor editor = prefs.edit();
-            String existing = prefs.getString("logs", "");
-            if (existing.length() - existing.replaceAll("\n", "").length() > 18) {
-                int index = existing.indexOf("\n");
-                existing = existing.substring(index + 1);
-            }
-            editor.putString("logs", existing + "\ne" + sdf.format(new Date()) + msg);
-            editor.apply();
-        }
+        ring(context).append('e', msg);
     }
 
     public static void reset(Context context) {
-        synchronized (LOG_LOCK) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            SharedPreferences.Editor editor = prefs.edit();
-            editor.putString("logs", "");
-            editor.apply();
-        }
+        ring(context).clear();
     }
 
     public static String getLatestError(Context context) {
-        synchronized (LOG_LOCK) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            String logs = prefs.getString("logs", "");
-            if (logs == null || logs.isEmpty()) return "";
-
-            String[] lines = logs.split("\n");
-            for (int i = lines.length - 1; i >= 0; i--) {
-                String line = lines[i];
-                if (line != null && line.startsWith("e")) {
-                    return line;
+        LogRing.Record r = ring(context).latest('e');
+        return r != null ? line(r) : "";
+    }
+
+    /** Every line still in the log, oldest first, each preceded by a newline. */
+    public static String getAll(Context context) {
+        return format(ring(context).records());
+    }
+
+    private static String format(List<LogRing.Record> records) {
+        StringBuilder sb = new StringBuilder();
+        for (LogRing.Record r : records) sb.append('\n').append(line(r));
+        return sb.toString();
+    }
+
+    /** "i20260101_120000:message", the format the prefs-backed log used. */
+    private static String line(LogRing.Record r) {
+        return r.level + Timestamps.logLine(r.timeMs) + r.message;
+    }
+
+    private static LogRing ring(Context context) {
+        LogRing ring = LogRing.get(context);
+        if (!legacyMigrated) migrateLegacy(context, ring);
+        return ring;
+    }
+
+    /**
+     * The log used to live in one preferences string. Move its lines into the
+     * ring with their own times, before anything else is appended, then drop it.
+     */
+    private static synchronized void migrateLegacy(Context context, LogRing ring) {
+        if (legacyMigrated) return;
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String legacy = prefs.getString(LEGACY_PREF_LOGS, "");
+        if (legacy != null && !legacy.isEmpty()) {
+            char level = 0;
+            long timeMs = 0;
+            StringBuilder msg = null;
+            for (String line : legacy.split("\n")) {
+                Matcher m = LEGACY_LINE.matcher(line);
+                long parsed = m.matches() ? Timestamps.parseLogLine(m.group(2)) : -1;
+                if (parsed >= 0) {
+                    if (msg != null) ring.append(level, msg.toString(), timeMs);
+                    level = m.group(1).charAt(0);
+                    timeMs = parsed;
+                    msg = new StringBuilder(m.group(3));
+                } else if (msg != null) {
+                    // A message that had a newline in it
+                    msg.append('\n').append(line);
                 }
             }
-            return "";
+            if (msg != null) ring.append(level, msg.toString(), timeMs);
         }
+        if (prefs.contains(LEGACY_PREF_LOGS)) prefs.edit().remove(LEGACY_PREF_LOGS).apply();
+        legacyMigrated = true;
     }
 
-    public static String getAll(Context context) {
-        synchronized (LOG_LOCK) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            return prefs.getString("logs", "");
-        }
+    static synchronized void resetForTest() {
+        legacyMigrated = false;
     }
 
     /**
@@ -102,31 +110,31 @@ public class Logger {
      * Returns true when a diagnostics snapshot was queued.
      */
     public static boolean queueDiagnosticsForUpload(Context context) {
-        synchronized (LOG_LOCK) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            String logs = prefs.getString("logs", "");
-            if (logs == null) logs = "";
-
-            String logcat = captureOwnProcessLogcat();
-            if (logcat == null) logcat = "";
-
-            try {
-                JSONObject payload = new JSONObject();
-                payload.put("generated_at", utcIsoMillis().format(new Date()));
-                payload.put("pid", android.os.Process.myPid());
-                payload.put("app_logs", logs);
-                payload.put("logcat", logcat);
-                payload.put("device_state", DeviceStateCollector.collectSnapshot(context));
-
-                boolean queued = queueTextForUpload(context, payload.toString(), "diagnostics", "application/json");
-                if (queued) {
-                    prefs.edit().putString("logs", "").apply();
-                }
-                return queued;
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to build diagnostics JSON payload", e);
-                return false;
+        LogRing ring = ring(context);
+        List<LogRing.Record> records = ring.records();
+        // Lines appended while this is built stay for the next snapshot
+        long mark = records.isEmpty() ? 0 : records.get(records.size() - 1).seq + 1;
+        String logs = format(records);
+
+        String logcat = captureOwnProcessLogcat();
+        if (logcat == null) logcat = "";
+
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put("generated_at", Timestamps.isoMillis(System.currentTimeMillis()));
+            payload.put("pid", android.os.Process.myPid());
+            payload.put("app_logs", logs);
+            payload.put("logcat", logcat);
+            payload.put("device_state", DeviceStateCollector.collectSnapshot(context));
+
+            boolean queued = queueTextForUpload(context, payload.toString(), "diagnostics", "application/json");
+            if (queued) {
+                ring.clearBefore(mark);
             }
+            return queued;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to build diagnostics JSON payload", e);
+            return false;
         }
     }
 
@@ -192,20 +200,20 @@ public class Logger {
             }
 
             File encFile = new File(encryptDir, baseName + ".enc");
-            Encryptor.Result result = Encryptor.encryptFileToEnc(tempLogFile, encFile, pubKeyPem);
+            Encryptor.Result result = Encryptor.encryptFileToEnc(context, tempLogFile, encFile, pubKeyPem);
 
             JSONObject metaObj = new JSONObject();
-            metaObj.put("aes_key_encrypted_b64", result.aesKeyEncB64);
-            metaObj.put("tag_len_bits", result.tagLenBits);
+            result.putKeyFields(metaObj);
             metaObj.put("mime", mime);
             metaObj.put("type", descriptor);
-            metaObj.put("captured_at", utcIsoMillis().format(new Date()));
+            metaObj.put("captured_at", Timestamps.isoMillis(System.currentTimeMillis()));
             metaObj.put("epoch_ms", System.currentTimeMillis());
 
             File metaFile = new File(encryptDir, baseName + ".meta");
             try (FileWriter fw = new FileWriter(metaFile, false)) {
                 fw.write(metaObj.toString());
             }
+            UploadIndex.written(encFile);
 
             Log.i(TAG, "Queued encrypted " + descriptor + " snapshot: " + encFile.getName());
             return true;
@@ -274,14 +282,13 @@ public class Logger {
             }
 
             File encFile = new File(encryptDir, baseName + ".enc");
-            Encryptor.Result result = Encryptor.encryptFileToEnc(tempFile, encFile, pubKeyPem);
+            Encryptor.Result result = Encryptor.encryptFileToEnc(context, tempFile, encFile, pubKeyPem);
 
             JSONObject metaObj = new JSONObject();
-            metaObj.put("aes_key_encrypted_b64", result.aesKeyEncB64);
-            metaObj.put("tag_len_bits", result.tagLenBits);
+            result.putKeyFields(metaObj);
             metaObj.put("mime", "image/jpeg");
             metaObj.put("type", "image");
-            metaObj.put("captured_at", utcIsoMillis().format(new Date()));
+            metaObj.put("captured_at", Timestamps.isoMillis(System.currentTimeMillis()));
             metaObj.put("epoch_ms", System.currentTimeMillis());
             if (source != null && !source.isEmpty()) {
                 metaObj.put("source", source);
@@ -294,6 +301,7 @@ public class Logger {
             try (FileWriter fw = new FileWriter(metaFile, false)) {
                 fw.write(metaObj.toString());
             }
+            UploadIndex.written(encFile);
 
             Log.i(TAG, "Queued encrypted " + descriptor + " image: " + encFile.getName());
             return true;
@@ -418,10 +426,4 @@ public class Logger {
         }
         return array;
     }
-
-    private static DateFormat utcIsoMillis() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return sdf;
-    }
 }
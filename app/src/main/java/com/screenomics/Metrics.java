@@ -0,0 +1,529 @@
+package com.screenomics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * In-process counters and latency histograms that capture, encryption,
+ * upload, location and glasses code publish into, and that the heartbeat
+ * reports as deltas.
+ *
+ * Everything is a {@link LongAdder}: an increment lands in a per-thread
+ * cell, so the capture stages, upload workers and the location thread never
+ * contend on one cache line the way they would on a shared AtomicLong. The
+ * price is a read that sums the cells, which only the snapshot pays.
+ *
+ * Four shapes, all cumulative and monotonic:
+ *
+ *   counter    one number
+ *   labeled    one number per label (e.g. per foreground app), at most
+ *              {@link #MAX_LABELS} labels; the rest count under "other"
+ *   hourly     one number per local hour of day, 0-23
+ *   histogram  milliseconds in log-linear buckets, plus count, sum and max
+ *
+ * Readers use the same watermark model as {@link Heartbeat#commitWatermarks}:
+ * keep the last snapshot the server acknowledged and send the difference
+ * ({@link #interval}). A value that went backwards means cleared data, so the
+ * current value is the whole interval. To keep values monotonic across
+ * process restarts, {@link #save} writes the snapshot to preferences and the
+ * first snapshot or save in a new process restores it as a base under the
+ * live adders. What accumulated after the last save in a process that was
+ * then killed is lost; CaptureStats still persists the compliance counters
+ * on its own.
+ *
+ * Metric names are snake_case and end up as heartbeat keys; histograms are
+ * always milliseconds, so they carry no unit suffix.
+ */
+final class Metrics {
+
+    private static final String TAG = "SCREENOMICS_METRICS";
+    static final String PREF_STATE = "metrics_state";
+    static final int MAX_LABELS = 50;
+    static final String OTHER_LABEL = "other";
+
+    private Metrics() {}
+
+    /** A single cumulative count. */
+    static final class Counter {
+        private final LongAdder live = new LongAdder();
+        private volatile long restored;
+
+        void inc() {
+            live.increment();
+        }
+
+        void add(long n) {
+            if (n > 0) live.add(n);
+        }
+
+        /** Since this process started; CaptureStats flushes from this. */
+        long sinceStart() {
+            return live.sum();
+        }
+
+        long value() {
+            return restored + live.sum();
+        }
+    }
+
+    /** A count per label, with a bound on how many labels are kept. */
+    static final class Labeled {
+        private final ConcurrentHashMap<String, LongAdder> live = new ConcurrentHashMap<>();
+        private volatile Map<String, Long> restored = new ConcurrentHashMap<>();
+
+        void inc(String label) {
+            add(label, 1);
+        }
+
+        void add(String label, long n) {
+            if (n <= 0) return;
+            String key = label == null || label.isEmpty() ? OTHER_LABEL : label;
+            LongAdder a = live.get(key);
+            if (a == null) {
+                // Labels seen in both count twice here; the bound only needs to hold
+                if (!restored.containsKey(key) && live.size() + restored.size() >= MAX_LABELS) {
+                    key = OTHER_LABEL;
+                }
+                a = live.computeIfAbsent(key, k -> new LongAdder());
+            }
+            a.add(n);
+        }
+
+        long value(String label) {
+            LongAdder a = live.get(label);
+            Long base = restored.get(label);
+            return (a != null ? a.sum() : 0) + (base != null ? base : 0);
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject obj = new JSONObject();
+            for (Map.Entry<String, Long> e : restored.entrySet()) obj.put(e.getKey(), (long) e.getValue());
+            for (Map.Entry<String, LongAdder> e : live.entrySet()) {
+                obj.put(e.getKey(), obj.optLong(e.getKey(), 0) + e.getValue().sum());
+            }
+            return obj;
+        }
+    }
+
+    /** A count per local hour of day. */
+    static final class Hourly {
+        private final LongAdder[] live = new LongAdder[24];
+        private volatile long[] restored = new long[24];
+
+        Hourly() {
+            for (int i = 0; i < live.length; i++) live[i] = new LongAdder();
+        }
+
+        void inc(long epochMs) {
+            live[hourOfDay(epochMs)].increment();
+        }
+
+        long value(int hour) {
+            return restored[hour] + live[hour].sum();
+        }
+
+        JSONArray toJson() {
+            JSONArray a = new JSONArray();
+            for (int h = 0; h < live.length; h++) a.put(value(h));
+            return a;
+        }
+
+        static int hourOfDay(long epochMs) {
+            long local = epochMs + TimeZone.getDefault().getOffset(epochMs);
+            return (int) Math.floorMod(local / 3_600_000L, 24L);
+        }
+    }
+
+    /**
+     * Log-linear histogram of milliseconds, in the style of HdrHistogram:
+     * values below 4 get their own bucket; above, each power of two is split
+     * into four, so any percentile is within 25% of the true value from 1 ms
+     * to 17 minutes, in 80 buckets.
+     */
+    static final class Histogram {
+        static final int SUB_BUCKET_BITS = 2;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        static final int MAX_EXPONENT = 20; // 2^20 ms, about 17 minutes
+        static final int BUCKETS = SUB_BUCKETS * (MAX_EXPONENT - 1) + SUB_BUCKETS;
+
+        private final LongAdder[] live = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        private volatile long[] restored = new long[BUCKETS];
+        private volatile long restoredSum;
+
+        Histogram() {
+            for (int i = 0; i < live.length; i++) live[i] = new LongAdder();
+        }
+
+        void record(long ms) {
+            if (ms < 0) ms = 0;
+            live[index(ms)].increment();
+            sum.add(ms);
+            max.accumulate(ms);
+        }
+
+        static int index(long ms) {
+            if (ms < SUB_BUCKETS) return (int) Math.max(0, ms);
+            int exp = 63 - Long.numberOfLeadingZeros(ms);
+            if (exp > MAX_EXPONENT) return BUCKETS - 1;
+            int sub = (int) (ms >> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS * (exp - 1) + sub;
+        }
+
+        /** Largest value that lands in bucket {@code i}. */
+        static long upperBound(int i) {
+            if (i < SUB_BUCKETS) return i;
+            int exp = i / SUB_BUCKETS + 1;
+            int sub = i % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BUCKET_BITS)) - 1;
+        }
+
+        long[] counts() {
+            long[] out = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) out[i] = restored[i] + live[i].sum();
+            return out;
+        }
+
+        long count() {
+            long n = 0;
+            for (long c : counts()) n += c;
+            return n;
+        }
+
+        long maxMs() {
+            return max.get();
+        }
+
+        long percentileMs(double fraction) {
+            return percentileMs(counts(), max.get(), fraction);
+        }
+
+        /** Count, p50, p95 and max, for device state that shows a timing at a glance. */
+        JSONObject summaryJson() throws JSONException {
+            long[] counts = counts();
+            long n = 0;
+            for (long c : counts) n += c;
+            long maxMs = max.get();
+            JSONObject obj = new JSONObject();
+            obj.put("count", n);
+            obj.put("p50_ms", percentileMs(counts, maxMs, 0.50));
+            obj.put("p95_ms", percentileMs(counts, maxMs, 0.95));
+            obj.put("max_ms", maxMs);
+            return obj;
+        }
+
+        /** Buckets with trailing zeros dropped; most timings use a narrow band. */
+        JSONObject toJson() throws JSONException {
+            long[] counts = counts();
+            long n = 0;
+            for (long c : counts) n += c;
+            int len = counts.length;
+            while (len > 0 && counts[len - 1] == 0) len--;
+            JSONArray buckets = new JSONArray();
+            for (int i = 0; i < len; i++) buckets.put(counts[i]);
+            JSONObject obj = new JSONObject();
+            obj.put("count", n);
+            obj.put("sum_ms", restoredSum + sum.sum());
+            obj.put("max_ms", max.get());
+            obj.put("buckets", buckets);
+            return obj;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given fraction of samples,
+         * capped at max; 0 for no samples.
+         */
+        static long percentileMs(long[] counts, long maxMs, double fraction) {
+            long n = 0;
+            for (long c : counts) n += c;
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upperBound(i), maxMs);
+            }
+            return maxMs;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Labeled> LABELED = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Hourly> HOURLY = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+
+    /** What the first snapshot or save in this process found in preferences. */
+    private static volatile JSONObject restoredState;
+
+    static Counter counter(String name) {
+        return lookup(COUNTERS, name, Counter::new);
+    }
+
+    static Labeled labeled(String name) {
+        return lookup(LABELED, name, Labeled::new);
+    }
+
+    static Hourly hourly(String name) {
+        return lookup(HOURLY, name, Hourly::new);
+    }
+
+    static Histogram histogram(String name) {
+        return lookup(HISTOGRAMS, name, Histogram::new);
+    }
+
+    private static <M> M lookup(ConcurrentHashMap<String, M> map, String name, Supplier<M> make) {
+        M m = map.get(name);
+        if (m != null) return m;
+        m = map.computeIfAbsent(name, k -> {
+            M created = make.get();
+            if (restoredState != null) applyBase(created, k);
+            return created;
+        });
+        // Created while restore() ran: it may have iterated past this one.
+        // Applying a base twice gives the same result.
+        if (restoredState != null) applyBase(m, name);
+        return m;
+    }
+
+    /** Cumulative values of every metric, including what was restored. */
+    static JSONObject snapshot(Context context) throws JSONException {
+        restore(context);
+        return snapshot();
+    }
+
+    static JSONObject snapshot() throws JSONException {
+        JSONObject counters = new JSONObject();
+        for (Map.Entry<String, Counter> e : COUNTERS.entrySet()) {
+            counters.put(e.getKey(), e.getValue().value());
+        }
+        JSONObject labeled = new JSONObject();
+        for (Map.Entry<String, Labeled> e : LABELED.entrySet()) {
+            labeled.put(e.getKey(), e.getValue().toJson());
+        }
+        JSONObject hourly = new JSONObject();
+        for (Map.Entry<String, Hourly> e : HOURLY.entrySet()) {
+            hourly.put(e.getKey(), e.getValue().toJson());
+        }
+        JSONObject histograms = new JSONObject();
+        for (Map.Entry<String, Histogram> e : HISTOGRAMS.entrySet()) {
+            histograms.put(e.getKey(), e.getValue().toJson());
+        }
+        JSONObject obj = new JSONObject();
+        obj.put("counters", counters);
+        obj.put("labeled", labeled);
+        obj.put("hourly", hourly);
+        obj.put("histograms", histograms);
+        return obj;
+    }
+
+    /** Persist the snapshot so the next process continues from it. */
+    static void save(Context context) {
+        try {
+            JSONObject state = snapshot(context);
+            PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext())
+                    .edit().putString(PREF_STATE, state.toString()).apply();
+        } catch (JSONException e) {
+            Log.w(TAG, "Could not save metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Load the saved snapshot as the base of every metric, once per process.
+     * Metrics created later pick their base up when they are first used.
+     */
+    static void restore(Context context) {
+        if (restoredState != null) return;
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
+                context.getApplicationContext());
+        JSONObject state;
+        try {
+            String saved = prefs.getString(PREF_STATE, "");
+            state = saved.isEmpty() ? new JSONObject() : new JSONObject(saved);
+        } catch (JSONException e) {
+            Log.w(TAG, "Discarding unreadable metrics state: " + e.getMessage());
+            state = new JSONObject();
+        }
+        synchronized (Metrics.class) {
+            if (restoredState != null) return;
+            restoredState = state;
+            for (Map.Entry<String, Counter> e : COUNTERS.entrySet()) applyBase(e.getValue(), e.getKey());
+            for (Map.Entry<String, Labeled> e : LABELED.entrySet()) applyBase(e.getValue(), e.getKey());
+            for (Map.Entry<String, Hourly> e : HOURLY.entrySet()) applyBase(e.getValue(), e.getKey());
+            for (Map.Entry<String, Histogram> e : HISTOGRAMS.entrySet()) applyBase(e.getValue(), e.getKey());
+        }
+    }
+
+    private static void applyBase(Object metric, String name) {
+        JSONObject state = restoredState;
+        if (metric instanceof Counter) {
+            JSONObject counters = state.optJSONObject("counters");
+            ((Counter) metric).restored = counters != null ? counters.optLong(name, 0) : 0;
+        } else if (metric instanceof Labeled) {
+            JSONObject labeled = state.optJSONObject("labeled");
+            JSONObject labels = labeled != null ? labeled.optJSONObject(name) : null;
+            Map<String, Long> base = new ConcurrentHashMap<>();
+            if (labels != null) {
+                for (Iterator<String> it = labels.keys(); it.hasNext(); ) {
+                    String label = it.next();
+                    base.put(label, labels.optLong(label, 0));
+                }
+            }
+            ((Labeled) metric).restored = base;
+        } else if (metric instanceof Hourly) {
+            JSONObject hourly = state.optJSONObject("hourly");
+            JSONArray hours = hourly != null ? hourly.optJSONArray(name) : null;
+            long[] base = new long[24];
+            if (hours != null && hours.length() == base.length) {
+                for (int h = 0; h < base.length; h++) base[h] = hours.optLong(h, 0);
+            }
+            ((Hourly) metric).restored = base;
+        } else if (metric instanceof Histogram) {
+            Histogram hist = (Histogram) metric;
+            JSONObject histograms = state.optJSONObject("histograms");
+            JSONObject saved = histograms != null ? histograms.optJSONObject(name) : null;
+            JSONArray buckets = saved != null ? saved.optJSONArray("buckets") : null;
+            long[] base = new long[Histogram.BUCKETS];
+            // Not something this bucket layout wrote: start over
+            if (buckets == null || buckets.length() > base.length) return;
+            for (int i = 0; i < buckets.length(); i++) base[i] = buckets.optLong(i, 0);
+            hist.restored = base;
+            hist.restoredSum = saved.optLong("sum_ms", 0);
+            hist.max.accumulate(saved.optLong("max_ms", 0));
+        }
+    }
+
+    /**
+     * What happened between two snapshots, as heartbeat fields: each counter
+     * as {@code <name>}, each labeled counter as an object of its non-zero
+     * labels, each hourly counter as a 24-entry array, and each histogram as
+     * {@code <name>_count}, {@code <name>_p50_ms}, {@code <name>_p95_ms}.
+     * With no reported snapshot, the whole current state is the interval.
+     * The max of an interval isn't recoverable from two snapshots, so
+     * percentiles are capped at the lifetime max instead.
+     */
+    static JSONObject interval(JSONObject current, JSONObject reported) throws JSONException {
+        if (reported == null) reported = new JSONObject();
+        JSONObject out = new JSONObject();
+
+        JSONObject counters = section(current, "counters");
+        JSONObject sentCounters = section(reported, "counters");
+        for (Iterator<String> it = counters.keys(); it.hasNext(); ) {
+            String name = it.next();
+            out.put(name, delta(counters.optLong(name, 0), sentCounters.optLong(name, 0)));
+        }
+
+        JSONObject labeled = section(current, "labeled");
+        JSONObject sentLabeled = section(reported, "labeled");
+        for (Iterator<String> it = labeled.keys(); it.hasNext(); ) {
+            String name = it.next();
+            JSONObject labels = labeled.optJSONObject(name);
+            JSONObject sent = sentLabeled.optJSONObject(name);
+            JSONObject d = new JSONObject();
+            for (Iterator<String> li = labels.keys(); li.hasNext(); ) {
+                String label = li.next();
+                long v = delta(labels.optLong(label, 0), sent != null ? sent.optLong(label, 0) : 0);
+                if (v > 0) d.put(label, v);
+            }
+            out.put(name, d);
+        }
+
+        JSONObject hourly = section(current, "hourly");
+        JSONObject sentHourly = section(reported, "hourly");
+        for (Iterator<String> it = hourly.keys(); it.hasNext(); ) {
+            String name = it.next();
+            JSONArray hours = hourly.optJSONArray(name);
+            JSONArray sent = sentHourly.optJSONArray(name);
+            JSONArray d = new JSONArray();
+            for (int h = 0; h < hours.length(); h++) {
+                d.put(delta(hours.optLong(h, 0), sent != null ? sent.optLong(h, 0) : 0));
+            }
+            out.put(name, d);
+        }
+
+        JSONObject histograms = section(current, "histograms");
+        JSONObject sentHistograms = section(reported, "histograms");
+        for (Iterator<String> it = histograms.keys(); it.hasNext(); ) {
+            String name = it.next();
+            JSONObject h = histograms.optJSONObject(name);
+            JSONObject sent = sentHistograms.optJSONObject(name);
+            long[] counts = intervalCounts(h.optJSONArray("buckets"),
+                    sent != null ? sent.optJSONArray("buckets") : null);
+            long count = 0;
+            for (long c : counts) count += c;
+            long max = h.optLong("max_ms", 0);
+            out.put(name + "_count", count);
+            out.put(name + "_p50_ms", Histogram.percentileMs(counts, max, 0.50));
+            out.put(name + "_p95_ms", Histogram.percentileMs(counts, max, 0.95));
+        }
+        return out;
+    }
+
+    /**
+     * Bucket counts added since {@code reported}. A bucket that went
+     * backwards means cleared data (or a different bucket layout), so the
+     * current counts are the whole interval.
+     */
+    private static long[] intervalCounts(JSONArray current, JSONArray reported) {
+        long[] out = new long[Histogram.BUCKETS];
+        if (current == null) return out;
+        for (int i = 0; i < Math.min(current.length(), out.length); i++) out[i] = current.optLong(i, 0);
+        if (reported == null || reported.length() > out.length) return out;
+        for (int i = 0; i < reported.length(); i++) {
+            if (reported.optLong(i, 0) > out[i]) return out;
+        }
+        for (int i = 0; i < reported.length(); i++) out[i] -= reported.optLong(i, 0);
+        return out;
+    }
+
+    private static JSONObject section(JSONObject snapshot, String key) {
+        JSONObject s = snapshot.optJSONObject(key);
+        return s != null ? s : new JSONObject();
+    }
+
+    private static long delta(long current, long reported) {
+        return current >= reported ? current - reported : current;
+    }
+
+    /**
+     * Test seam: zero every metric and forget the restored base. Metrics stay
+     * registered, so references held in static fields keep working.
+     */
+    static synchronized void resetForTest() {
+        for (Counter c : COUNTERS.values()) {
+            c.live.reset();
+            c.restored = 0;
+        }
+        for (Labeled l : LABELED.values()) {
+            l.live.clear();
+            l.restored = new ConcurrentHashMap<>();
+        }
+        for (Hourly h : HOURLY.values()) {
+            for (LongAdder a : h.live) a.reset();
+            h.restored = new long[24];
+        }
+        for (Histogram h : HISTOGRAMS.values()) {
+            for (LongAdder a : h.live) a.reset();
+            h.sum.reset();
+            h.max.reset();
+            h.restored = new long[Histogram.BUCKETS];
+            h.restoredSum = 0;
+        }
+        restoredState = null;
+    }
+}
@@ -33,6 +33,7 @@ import java.security.KeyStore;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
 import java.text.SimpleDateFormat;
 import java.util.Locale;
 
@@ -336,36 +337,59 @@ public class RegisterActivity extends AppCompatActivity {
         }).start();
     }
 
-    /** Ensure the RSA key supports both PSS and PKCS#1 paddings */
+    /**
+     * Ensure the signing key exists: RSA supporting both PSS and PKCS#1
+     * paddings, or EC P-256 when signing_key_type is "ec". The type only
+     * applies when a key is created; an existing key is always reused.
+     */
     private String getOrCreateClientPublicKeyPem() throws Exception {
         KeyStore ks = KeyStore.getInstance(ANDROID_KEYSTORE);
         ks.load(null);
 
         // Reuse existing key to preserve HTTP signature chain across re-enrollments
         if (ks.containsAlias(KEYSTORE_ALIAS)) {
-            Log.i(TAG, "[OK] Reusing existing RSA key from AndroidKeyStore");
+            Log.i(TAG, "[OK] Reusing existing signing key from AndroidKeyStore");
             PublicKey existingKey = ks.getCertificate(KEYSTORE_ALIAS).getPublicKey();
             return exportPublicKeyPem(existingKey);
         }
 
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance(
-                KeyProperties.KEY_ALGORITHM_RSA, ANDROID_KEYSTORE);
-
-        KeyGenParameterSpec spec = new KeyGenParameterSpec.Builder(
-                KEYSTORE_ALIAS,
-                KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY)
-                .setKeySize(2048)
-                .setDigests(KeyProperties.DIGEST_SHA256, KeyProperties.DIGEST_SHA512)
-                .setSignaturePaddings(
-                        KeyProperties.SIGNATURE_PADDING_RSA_PSS,
-                        KeyProperties.SIGNATURE_PADDING_RSA_PKCS1
-                )
-                .setUserAuthenticationRequired(false)
-                .build();
-
-        kpg.initialize(spec);
-        KeyPair kp = kpg.generateKeyPair();
-        Log.i(TAG, "[OK] Generated new RSA key in AndroidKeyStore with PSS + PKCS#1 support");
+        String keyType = PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(RequestSigner.PREF_KEY_TYPE, "rsa");
+        KeyPair kp;
+        if ("ec".equals(keyType)) {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance(
+                    KeyProperties.KEY_ALGORITHM_EC, ANDROID_KEYSTORE);
+            kpg.initialize(new KeyGenParameterSpec.Builder(
+                    KEYSTORE_ALIAS,
+                    KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY)
+                    .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
+                    .setDigests(KeyProperties.DIGEST_SHA256)
+                    .setUserAuthenticationRequired(false)
+                    .build());
+            kp = kpg.generateKeyPair();
+            Log.i(TAG, "[OK] Generated new EC P-256 key in AndroidKeyStore");
+        } else {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance(
+                    KeyProperties.KEY_ALGORITHM_RSA, ANDROID_KEYSTORE);
+
+            KeyGenParameterSpec spec = new KeyGenParameterSpec.Builder(
+                    KEYSTORE_ALIAS,
+                    KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY)
+                    .setKeySize(2048)
+                    .setDigests(KeyProperties.DIGEST_SHA256, KeyProperties.DIGEST_SHA512)
+                    .setSignaturePaddings(
+                            KeyProperties.SIGNATURE_PADDING_RSA_PSS,
+                            KeyProperties.SIGNATURE_PADDING_RSA_PKCS1
+                    )
+                    .setUserAuthenticationRequired(false)
+                    .build();
+
+            kpg.initialize(spec);
+            kp = kpg.generateKeyPair();
+            Log.i(TAG, "[OK] Generated new RSA key in AndroidKeyStore with PSS + PKCS#1 support");
+        }
+        // The signer may have memoized a previous key
+        RequestSigner.get().reset();
         return exportPublicKeyPem(kp.getPublic());
     }
 
@@ -0,0 +1,174 @@
+package com.screenomics;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.security.InvalidKeyException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.ECKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+
+/**
+ * Signs canonical request strings for HttpSignatureInterceptor, with the key
+ * and the working algorithm resolved once per process.
+ *
+ * The interceptor used to load the key from AndroidKeyStore for every
+ * request and then walk SHA256withRSA/PSS, RSASSA-PSS and SHA256withRSA in
+ * turn until one worked, so a device without PSS paid two failed
+ * Signature.initSign calls -- each a keystore round trip -- on every
+ * upload. Here the first successful signature fixes the key handle and the
+ * algorithm, and later requests go straight to it. If that ever fails (the
+ * key was regenerated at re-enrollment), the memo is dropped and the next
+ * attempt resolves from scratch.
+ *
+ * An EC P-256 key, enrolled when {@link #PREF_KEY_TYPE} is "ec", is signed
+ * with SHA256withECDSA and labelled "ecdsa-sha256" in the Signature header;
+ * keystore hardware signs with it much faster than with RSA-2048. RSA keys
+ * keep the "rsa-sha256" label they always had, whichever padding is used.
+ *
+ * Signing latency goes into a histogram reported with the device state.
+ */
+final class RequestSigner {
+
+    private static final String TAG = "SCREENOMICS_SIGN";
+    private static final String ANDROID_KEYSTORE = "AndroidKeyStore";
+    static final String KEY_ALIAS = "mindpulse_client_key"; // must match RegisterActivity
+
+    /** Key type to create at enrollment: "rsa" (default) or "ec". */
+    static final String PREF_KEY_TYPE = "signing_key_type";
+
+    enum Algorithm {
+        RSA_PSS("SHA256withRSA/PSS", "rsa-sha256", true),
+        RSA_PSS_LEGACY_NAME("RSASSA-PSS", "rsa-sha256", true),
+        RSA_PKCS1("SHA256withRSA", "rsa-sha256", false),
+        ECDSA_P256("SHA256withECDSA", "ecdsa-sha256", false);
+
+        final String jcaName;
+        final String headerName;
+        final boolean pss;
+
+        Algorithm(String jcaName, String headerName, boolean pss) {
+            this.jcaName = jcaName;
+            this.headerName = headerName;
+            this.pss = pss;
+        }
+    }
+
+    /** A signature and the algorithm that produced it. */
+    static final class Signed {
+        final byte[] signature;
+        final Algorithm algorithm;
+
+        Signed(byte[] signature, Algorithm algorithm) {
+            this.signature = signature;
+            this.algorithm = algorithm;
+        }
+    }
+
+    private static final RequestSigner INSTANCE = new RequestSigner();
+
+    private final Metrics.Histogram latency = Metrics.histogram("request_sign");
+    // Guarded by this
+    private PrivateKey key;
+    private Algorithm algorithm;
+    private int resolutions;
+
+    static RequestSigner get() {
+        return INSTANCE;
+    }
+
+    /** Sign {@code data}; throws if no algorithm works with the enrolled key. */
+    Signed sign(byte[] data) throws Exception {
+        long t0 = System.nanoTime();
+        try {
+            PrivateKey k;
+            Algorithm alg;
+            synchronized (this) {
+                k = key;
+                alg = algorithm;
+            }
+            if (k != null && alg != null) {
+                try {
+                    return new Signed(signWith(k, alg, data), alg);
+                } catch (Exception e) {
+                    Log.w(TAG, "Memoized " + alg.jcaName + " failed, resolving again: "
+                            + e.getMessage());
+                    reset();
+                }
+            }
+            return resolveAndSign(data);
+        } finally {
+            latency.record((System.nanoTime() - t0) / 1_000_000);
+        }
+    }
+
+    private Signed resolveAndSign(byte[] data) throws Exception {
+        PrivateKey k = loadPrivateKey();
+        if (k == null) throw new InvalidKeyException("No key under " + KEY_ALIAS);
+        Algorithm[] candidates = k instanceof ECKey || "EC".equals(k.getAlgorithm())
+                ? new Algorithm[]{Algorithm.ECDSA_P256}
+                : new Algorithm[]{Algorithm.RSA_PSS, Algorithm.RSA_PSS_LEGACY_NAME, Algorithm.RSA_PKCS1};
+        for (Algorithm alg : candidates) {
+            try {
+                byte[] sig = signWith(k, alg, data);
+                synchronized (this) {
+                    key = k;
+                    algorithm = alg;
+                    resolutions++;
+                }
+                Log.i(TAG, "Signing with " + alg.jcaName);
+                return new Signed(sig, alg);
+            } catch (Exception e) {
+                Log.w(TAG, alg.jcaName + " unavailable: " + e.getMessage());
+            }
+        }
+        throw new InvalidKeyException("No signing algorithm works with " + k.getAlgorithm() + " key");
+    }
+
+    private static byte[] signWith(PrivateKey key, Algorithm alg, byte[] data) throws Exception {
+        Signature s = Signature.getInstance(alg.jcaName);
+        if (alg.pss) {
+            // SHA-256 digest, MGF1(SHA-256), 32-byte salt (matches server), trailerField=1
+            s.setParameter(new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, 1));
+        }
+        s.initSign(key);
+        s.update(data);
+        return s.sign();
+    }
+
+    private static PrivateKey loadPrivateKey() throws Exception {
+        KeyStore ks = KeyStore.getInstance(ANDROID_KEYSTORE);
+        ks.load(null);
+        return (PrivateKey) ks.getKey(KEY_ALIAS, null);
+    }
+
+    /** Forget the key and algorithm, e.g. after the key is regenerated. */
+    synchronized void reset() {
+        key = null;
+        algorithm = null;
+    }
+
+    /** How many times the algorithm has been resolved; once per process in steady state. */
+    synchronized int resolutions() {
+        return resolutions;
+    }
+
+    Metrics.Histogram latency() {
+        return latency;
+    }
+
+    JSONObject snapshot() throws JSONException {
+        JSONObject obj = new JSONObject();
+        synchronized (this) {
+            obj.put("algorithm", algorithm != null ? algorithm.jcaName : "");
+            obj.put("resolutions", resolutions);
+        }
+        obj.put("latency_ms", latency.summaryJson());
+        return obj;
+    }
+}
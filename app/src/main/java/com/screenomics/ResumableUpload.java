@@ -0,0 +1,274 @@
+package com.screenomics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Chunked, resumable upload of one large .enc, tus 1.0 style.
+ *
+ * A plain upload sends the whole file in one request; a connection that
+ * drops at 90% starts again from byte zero, up to three times, and then
+ * the next run starts from zero again. For a multi-megabyte diagnostics
+ * bundle on a flaky link that can mean never finishing. Here the file goes
+ * up in {@link #CHUNK_BYTES} pieces:
+ *
+ *   POST  /api/v1/uploads      create; Upload-Length, Upload-Metadata
+ *                              (batch id, file name, the .meta JSON);
+ *                              201 with a Location
+ *   HEAD  {location}           ask the server how much it has (Upload-Offset)
+ *   PATCH {location}           send the next chunk at Upload-Offset;
+ *                              204 with the new offset
+ *
+ * The location and the last confirmed offset are saved to preferences
+ * after every chunk, keyed by file name, so after a failure -- or the
+ * process being killed -- the next attempt asks the server for its offset
+ * and carries on from there. The server's offset always wins over the
+ * saved one; the saved one is only a hint.
+ *
+ * Progress for a file that has changed size since is discarded. A server
+ * that doesn't offer the endpoint (404/405/501 on create) makes
+ * {@link #send} return {@link Result#UNSUPPORTED}, and the caller falls
+ * back to a plain upload.
+ */
+final class ResumableUpload {
+
+    private static final String TAG = "SCREENOMICS_UPLOAD";
+    private static final String TUS_VERSION = "1.0.0";
+    private static final MediaType OFFSET_OCTET = MediaType.parse("application/offset+octet-stream");
+    private static final String PREF_PROGRESS_PREFIX = "resumable_upload_";
+
+    /** Files at least this large go up in chunks. */
+    static final String PREF_THRESHOLD_BYTES = "upload_resumable_threshold_bytes";
+    static final long DEFAULT_THRESHOLD_BYTES = 4L * 1024 * 1024;
+    static final int CHUNK_BYTES = 1024 * 1024;
+
+    enum Result { DONE, FAILED, UNSUPPORTED }
+
+    /** Adds the request headers every receiver call carries (ids, auth, nonce). */
+    interface HeaderSource {
+        Request.Builder newRequest(String url);
+    }
+
+    private final Context context;
+    private final OkHttpClient client;
+    private final HeaderSource headers;
+    private final int chunkBytes;
+
+    ResumableUpload(Context context, OkHttpClient client, HeaderSource headers) {
+        this(context, client, headers, CHUNK_BYTES);
+    }
+
+    ResumableUpload(Context context, OkHttpClient client, HeaderSource headers, int chunkBytes) {
+        this.context = context.getApplicationContext();
+        this.client = client;
+        this.headers = headers;
+        this.chunkBytes = Math.max(1, chunkBytes);
+    }
+
+    static long threshold(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(PREF_THRESHOLD_BYTES, DEFAULT_THRESHOLD_BYTES);
+    }
+
+    /**
+     * Send {@code enc}, resuming saved progress if there is any. Returns
+     * after the last chunk is confirmed, the first failed request, or a
+     * server without the endpoint.
+     */
+    Result send(File enc, String metaJson, String baseUrl, int batchId) {
+        long length = enc.length();
+        String location = savedLocation(enc, length);
+        try {
+            long offset;
+            if (location != null) {
+                offset = serverOffset(location);
+                if (offset < 0) {
+                    // Expired or unknown to the server: start over
+                    clearProgress(enc);
+                    location = null;
+                }
+            } else {
+                offset = -1;
+            }
+            if (location == null) {
+                location = create(enc, metaJson, baseUrl, batchId, length);
+                if (location == null) return Result.UNSUPPORTED;
+                offset = 0;
+                saveProgress(enc, location, 0, length);
+            }
+
+            try (RandomAccessFile in = new RandomAccessFile(enc, "r")) {
+                byte[] chunk = new byte[(int) Math.min(chunkBytes, Math.max(1, length))];
+                while (offset < length) {
+                    int n = (int) Math.min(chunk.length, length - offset);
+                    in.seek(offset);
+                    in.readFully(chunk, 0, n);
+                    long next = patch(location, offset, chunk, n);
+                    if (next <= offset) {
+                        Log.w(TAG, "Resumable upload of " + enc.getName() + " stopped at "
+                                + offset + "/" + length);
+                        return Result.FAILED;
+                    }
+                    offset = next;
+                    saveProgress(enc, location, offset, length);
+                }
+            }
+            clearProgress(enc);
+            return Result.DONE;
+        } catch (IOException e) {
+            Log.e(TAG, "Resumable upload of " + enc.getName() + " failed", e);
+            return Result.FAILED;
+        }
+    }
+
+    /** POST the creation request. Returns the upload URL, or null if unsupported. */
+    private String create(File enc, String metaJson, String baseUrl, int batchId, long length)
+            throws IOException {
+        String createUrl = baseUrl + "/api/v1/uploads";
+        Request request = headers.newRequest(createUrl)
+                .addHeader("Tus-Resumable", TUS_VERSION)
+                .addHeader("Upload-Length", String.valueOf(length))
+                .addHeader("Upload-Metadata", "batch_id " + b64(String.valueOf(batchId))
+                        + ",filename " + b64(enc.getName())
+                        + ",metadata " + b64(metaJson))
+                .post(RequestBody.create(null, new byte[0]))
+                .build();
+        try (Response resp = client.newCall(request).execute()) {
+            int code = resp.code();
+            if (code == 404 || code == 405 || code == 501) return null;
+            String location = resp.header("Location");
+            if (code != 201 || location == null) {
+                throw new IOException("create returned " + code);
+            }
+            HttpUrl resolved = resp.request().url().resolve(location);
+            return resolved != null ? resolved.toString() : location;
+        }
+    }
+
+    /** The server's offset for an upload, or -1 if it no longer knows it. */
+    private long serverOffset(String location) throws IOException {
+        Request request = headers.newRequest(location)
+                .addHeader("Tus-Resumable", TUS_VERSION)
+                .head()
+                .build();
+        try (Response resp = client.newCall(request).execute()) {
+            if (resp.code() == 404 || resp.code() == 410) return -1;
+            if (!resp.isSuccessful()) throw new IOException("offset check returned " + resp.code());
+            return parseOffset(resp.header("Upload-Offset"));
+        }
+    }
+
+    /** PATCH one chunk. Returns the server's new offset, or -1 on a rejected chunk. */
+    private long patch(String location, long offset, byte[] chunk, int n) throws IOException {
+        Request request = headers.newRequest(location)
+                .addHeader("Tus-Resumable", TUS_VERSION)
+                .addHeader("Upload-Offset", String.valueOf(offset))
+                .patch(RequestBody.create(OFFSET_OCTET, chunk, 0, n))
+                .build();
+        try (Response resp = client.newCall(request).execute()) {
+            if (resp.code() != 204 && resp.code() != 200) return -1;
+            return parseOffset(resp.header("Upload-Offset"));
+        }
+    }
+
+    private static long parseOffset(String header) throws IOException {
+        try {
+            return Long.parseLong(header == null ? "" : header.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("bad Upload-Offset: " + header);
+        }
+    }
+
+    private static String b64(String s) {
+        return Base64.encodeToString(s.getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP);
+    }
+
+    // ---------- Saved progress ----------
+
+    private SharedPreferences prefs() {
+        return PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    /** The saved upload URL for this file, if its length still matches. */
+    private String savedLocation(File enc, long length) {
+        String json = prefs().getString(PREF_PROGRESS_PREFIX + enc.getName(), "");
+        if (json.isEmpty()) return null;
+        try {
+            JSONObject obj = new JSONObject(json);
+            if (obj.optLong("length", -1) != length) {
+                clearProgress(enc);
+                return null;
+            }
+            String location = obj.optString("location", "");
+            return location.isEmpty() ? null : location;
+        } catch (JSONException e) {
+            clearProgress(enc);
+            return null;
+        }
+    }
+
+    /** The saved confirmed offset for this file, or 0. For diagnostics and tests. */
+    long savedOffset(File enc) {
+        String json = prefs().getString(PREF_PROGRESS_PREFIX + enc.getName(), "");
+        if (json.isEmpty()) return 0;
+        try {
+            return new JSONObject(json).optLong("offset", 0);
+        } catch (JSONException e) {
+            return 0;
+        }
+    }
+
+    private void saveProgress(File enc, String location, long offset, long length) {
+        try {
+            JSONObject obj = new JSONObject();
+            obj.put("location", location);
+            obj.put("offset", offset);
+            obj.put("length", length);
+            // commit, not apply: this is what survives the process being killed
+            prefs().edit().putString(PREF_PROGRESS_PREFIX + enc.getName(), obj.toString()).commit();
+        } catch (JSONException e) {
+            Log.w(TAG, "Could not save upload progress for " + enc.getName(), e);
+        }
+    }
+
+    void clearProgress(File enc) {
+        prefs().edit().remove(PREF_PROGRESS_PREFIX + enc.getName()).apply();
+    }
+
+    /** Drop saved progress for files that no longer exist in {@code dir}. */
+    static int pruneProgress(Context context, File dir) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        int pruned = 0;
+        for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+            String key = e.getKey();
+            if (!key.startsWith(PREF_PROGRESS_PREFIX)) continue;
+            if (!new File(dir, key.substring(PREF_PROGRESS_PREFIX.length())).exists()) {
+                editor.remove(key);
+                pruned++;
+            }
+        }
+        if (pruned > 0) editor.apply();
+        return pruned;
+    }
+}
@@ -33,9 +33,6 @@ import androidx.fragment.app.Fragment;
 import androidx.preference.PreferenceManager;
 
 import java.io.File;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -475,51 +472,26 @@ public class ScreenLifeFragment extends Fragment {
             return stats;
         }
 
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(outputDir.toPath())) {
-            for (Path path : stream) {
-                if (!Files.isRegularFile(path)) continue;
-                stats.bytesTotal += Files.size(path);
-                String name = path.getFileName().toString().toLowerCase(Locale.US);
-                if (name.contains("_video.mp4") || name.endsWith(".mp4")) {
-                    stats.numVideos++;
-                } else if (name.endsWith(".enc")
-                        && !name.endsWith("_metadata.enc")
-                        && !name.endsWith("_applog.enc")
-                        && !name.endsWith("_logcat.enc")
-                        && !name.endsWith("_diagnostics.enc")
-                        && !name.endsWith("_gps.enc")
-                        && !name.endsWith("_appusage.enc")
-                        && !name.endsWith("_logdata.enc")
-                        && !name.endsWith("_devicestate.enc")) {
-                    stats.numImages++;
-                }
-                // .meta files and non-image .enc files are excluded from counts
-            }
-            return stats;
-        } catch (Exception e) {
-            // Fallback for filesystem implementations that don't support DirectoryStream reliably.
-            File[] allFiles = outputDir.listFiles();
-            if (allFiles == null) return stats;
-            for (File file : allFiles) {
-                if (!file.isFile()) continue;
-                stats.bytesTotal += file.length();
-                String name = file.getName().toLowerCase(Locale.US);
-                if (name.contains("_video.mp4") || name.endsWith(".mp4")) {
-                    stats.numVideos++;
-                } else if (name.endsWith(".enc")
-                        && !name.endsWith("_metadata.enc")
-                        && !name.endsWith("_applog.enc")
-                        && !name.endsWith("_logcat.enc")
-                        && !name.endsWith("_diagnostics.enc")
-                        && !name.endsWith("_gps.enc")
-                        && !name.endsWith("_appusage.enc")
-                        && !name.endsWith("_logdata.enc")
-                        && !name.endsWith("_devicestate.enc")) {
-                    stats.numImages++;
-                }
+        // From the upload index: no directory listing on every refresh
+        for (UploadIndex.Entry entry : UploadIndex.get(requireContext(), outputDir).entries()) {
+            stats.bytesTotal += entry.bytes;
+            String name = entry.name.toLowerCase(Locale.US);
+            if (name.contains("_video.mp4") || name.endsWith(".mp4")) {
+                stats.numVideos++;
+            } else if (name.endsWith(".enc")
+                    && !name.endsWith("_metadata.enc")
+                    && !name.endsWith("_applog.enc")
+                    && !name.endsWith("_logcat.enc")
+                    && !name.endsWith("_diagnostics.enc")
+                    && !name.endsWith("_gps.enc")
+                    && !name.endsWith("_appusage.enc")
+                    && !name.endsWith("_logdata.enc")
+                    && !name.endsWith("_devicestate.enc")) {
+                stats.numImages++;
             }
-            return stats;
+            // Non-image .enc files are excluded from counts; .meta bytes are in entry.bytes
         }
+        return stats;
     }
 
     private static class FileStats {
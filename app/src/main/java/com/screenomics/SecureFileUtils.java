@@ -1,10 +1,6 @@
 package com.screenomics;
 
 import java.security.SecureRandom;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
 
 public class SecureFileUtils {
     private static final SecureRandom secureRandom = new SecureRandom();
@@ -24,9 +20,7 @@ public class SecureFileUtils {
         String serverType = mapToServerType(type);
 
         // Generate UTC timestamp in ISO8601 format
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
-        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-        String timestamp = sdf.format(new Date());
+        String timestamp = Timestamps.isoSeconds(System.currentTimeMillis());
 
         // Replace colons and timezone format for filename compatibility
         // Convert "2025-09-29T12:08:12-0500" to "2025-09-29T120812-0500"
@@ -0,0 +1,208 @@
+package com.screenomics;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Date;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Session-key envelope (.meta "enc_version": 2), opt-in via the
+ * "session_key_envelope" preference.
+ *
+ * The v1 format wraps a fresh AES key with RSA-OAEP for every file and puts
+ * the wrapped key in every .meta. For a 2 KB GPS blob that RSA operation is
+ * most of the CPU and the base64 key most of the sidecar. Here one data key
+ * is wrapped once per session and each file names it by key_id instead.
+ *
+ * A session ends after {@link #maxFiles} files, after {@link #maxAgeMs} of
+ * elapsed time, or when the server key changes, whichever comes first. The
+ * data key lives only in memory, so a process restart also starts a session.
+ *
+ * When a session starts, its wrapped key is queued as an upload item of its
+ * own, "<hash>_<epoch>_sessionkey.enc/.meta", so it travels through the same
+ * retry and retention rules as the files it unlocks:
+ *   - .meta: enc_version=2, type="session_key", key_id, aes_key_encrypted_b64
+ *     (the data key, wrapped exactly as v1 wraps a per-file key), tag_len_bits,
+ *     server_key_fingerprint
+ *   - .enc: the usual [nonce || ciphertext || tag] framing over the UTF-8
+ *     key_id, so the receiver can confirm the unwrapped key before using it
+ * Files encrypted in the session carry enc_version=2 and key_id, and no
+ * aes_key_encrypted_b64. A .meta without enc_version is v1.
+ *
+ * Nonces are [4-byte random per-session prefix][8-byte big-endian counter].
+ * The counter makes them unique under one key by construction, rather than
+ * by the birthday bound random 96-bit nonces give; the key record takes
+ * counter 0.
+ */
+final class SessionKeyEnvelope {
+
+    private static final String TAG = "SCREENOMICS_CAPTURE";
+
+    static final int ENC_VERSION = 2;
+    static final String PREF_ENABLED = "session_key_envelope";
+    static final String KEY_RECORD_DESCRIPTOR = "sessionkey";
+    static final String KEY_RECORD_TYPE = "session_key";
+
+    static final long DEFAULT_MAX_AGE_MS = 60 * 60 * 1000L;
+    static final int DEFAULT_MAX_FILES = 500;
+
+    private static final int NONCE_PREFIX_LEN = 4;
+    private static final int KEY_ID_LEN = 16;
+    private static final SecureRandom RNG = new SecureRandom();
+
+    private static SessionKeyEnvelope shared;
+
+    /** Key and nonce for exactly one file. */
+    static final class Lease {
+        final String keyId;
+        final SecretKey key;
+        final byte[] nonce;
+
+        Lease(String keyId, SecretKey key, byte[] nonce) {
+            this.keyId = keyId;
+            this.key = key;
+            this.nonce = nonce;
+        }
+    }
+
+    private static final class Session {
+        final String keyId;
+        final SecretKey key;
+        final String serverFingerprint;
+        final byte[] noncePrefix;
+        final long startedElapsedMs;
+        long nextCounter;
+
+        Session(String keyId, SecretKey key, String serverFingerprint,
+                byte[] noncePrefix, long startedElapsedMs) {
+            this.keyId = keyId;
+            this.key = key;
+            this.serverFingerprint = serverFingerprint;
+            this.noncePrefix = noncePrefix;
+            this.startedElapsedMs = startedElapsedMs;
+        }
+    }
+
+    private final long maxAgeMs;
+    private final int maxFiles;
+    private Session current;
+    private int sessionsStarted = 0;
+
+    SessionKeyEnvelope(long maxAgeMs, int maxFiles) {
+        this.maxAgeMs = maxAgeMs;
+        this.maxFiles = maxFiles;
+    }
+
+    static synchronized SessionKeyEnvelope shared() {
+        if (shared == null) {
+            shared = new SessionKeyEnvelope(DEFAULT_MAX_AGE_MS, DEFAULT_MAX_FILES);
+        }
+        return shared;
+    }
+
+    /** Test seam: drop the process-wide session. */
+    static synchronized void resetSharedForTest() {
+        shared = null;
+    }
+
+    /**
+     * Key and nonce for the next file, starting a session first if the
+     * current one is spent. Starting a session writes its key record into
+     * {@code encryptDir}; if that fails, this throws and no session starts.
+     */
+    synchronized Lease lease(File encryptDir, String hashPrefix, String serverImagePublicKeyPem)
+            throws Exception {
+        String fingerprint = Encryptor.keyFingerprint(serverImagePublicKeyPem);
+        long now = SystemClock.elapsedRealtime();
+        Session s = current;
+        if (s == null
+                || !s.serverFingerprint.equals(fingerprint)
+                // the key record used counter 0
+                || s.nextCounter > maxFiles
+                || now - s.startedElapsedMs >= maxAgeMs) {
+            s = startSession(encryptDir, hashPrefix, serverImagePublicKeyPem, fingerprint, now);
+            current = s;
+            sessionsStarted++;
+        }
+        return new Lease(s.keyId, s.key, nonce(s.noncePrefix, s.nextCounter++));
+    }
+
+    synchronized int sessionsStarted() {
+        return sessionsStarted;
+    }
+
+    private static Session startSession(File encryptDir, String hashPrefix, String pem,
+                                        String fingerprint, long nowElapsed) throws Exception {
+        SecretKey key = Encryptor.genAesKey(Encryptor.AES_BITS);
+        String wrapped = Encryptor.wrapAesKey(key, pem);
+
+        byte[] idBytes = new byte[KEY_ID_LEN];
+        RNG.nextBytes(idBytes);
+        String keyId = Encryptor.toHex(idBytes);
+        byte[] prefix = new byte[NONCE_PREFIX_LEN];
+        RNG.nextBytes(prefix);
+        Session s = new Session(keyId, key, fingerprint, prefix, nowElapsed);
+
+        // Two sessions can start in the same millisecond (a key change right
+        // after a count rotation); never overwrite an earlier record.
+        Date now = new Date();
+        long stamp = now.getTime();
+        String baseName;
+        File encFile;
+        File metaFile;
+        do {
+            baseName = hashPrefix + "_" + stamp++ + "_" + KEY_RECORD_DESCRIPTOR;
+            encFile = new File(encryptDir, baseName + ".enc");
+            metaFile = new File(encryptDir, baseName + ".meta");
+        } while (encFile.exists() || metaFile.exists());
+
+        Lease recordLease = new Lease(keyId, key, nonce(prefix, s.nextCounter++));
+        try (Encryptor.Sink sink = Encryptor.openLeasedSink(encFile, recordLease)) {
+            sink.write(keyId.getBytes(StandardCharsets.UTF_8));
+            sink.close();
+            sink.result();
+        }
+
+        try {
+            JSONObject metaObj = new JSONObject();
+            metaObj.put("enc_version", ENC_VERSION);
+            metaObj.put("key_id", keyId);
+            metaObj.put("aes_key_encrypted_b64", wrapped);
+            metaObj.put("tag_len_bits", Encryptor.GCM_TAG_BITS);
+            metaObj.put("server_key_fingerprint", fingerprint);
+            metaObj.put("mime", "application/octet-stream");
+            metaObj.put("type", KEY_RECORD_TYPE);
+            metaObj.put("captured_at", Timestamps.isoMillis(now.getTime()));
+            metaObj.put("epoch_ms", now.getTime());
+            try (FileWriter fw = new FileWriter(metaFile)) {
+                fw.write(metaObj.toString());
+            }
+        } catch (Exception e) {
+            // Without its record no file in this session could ever be opened
+            //noinspection ResultOfMethodCallIgnored
+            encFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            metaFile.delete();
+            throw e;
+        }
+        UploadIndex.written(encFile);
+        Log.i(TAG, "Started session key " + keyId + " (" + encFile.getName() + ")");
+        return s;
+    }
+
+    private static byte[] nonce(byte[] prefix, long counter) {
+        byte[] nonce = new byte[Encryptor.GCM_NONCE_LEN];
+        System.arraycopy(prefix, 0, nonce, 0, NONCE_PREFIX_LEN);
+        ByteBuffer.wrap(nonce, NONCE_PREFIX_LEN, Long.BYTES).putLong(counter);
+        return nonce;
+    }
+}
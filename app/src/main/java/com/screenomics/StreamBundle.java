@@ -0,0 +1,342 @@
+package com.screenomics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * The small JSON streams of one sensor flush -- gps, appusage, devicestate,
+ * logdata -- compressed together into one encrypted upload item, opt-in via
+ * the "bundle_small_streams" preference.
+ *
+ * Every 10 minutes LocationService used to queue each stream as its own
+ * .enc/.meta pair: four key wraps (or session leases), four sidecars, four
+ * index entries and four upload requests for perhaps 20 KB of JSON that is
+ * mostly the same keys repeated. A bundle is one "<hash>_<epoch>_bundle.enc"
+ * whose plaintext is
+ *
+ *   "MPB1"                        magic
+ *   u32 big-endian                manifest length
+ *   manifest                      UTF-8 JSON, uncompressed
+ *   zlib stream                   every stream's bytes, back to back
+ *
+ * The manifest lists the streams in order with their type, mime and
+ * uncompressed offset and length, so the receiver can split them back into
+ * exactly the files it gets today. The zlib stream (RFC 1950) is deflated
+ * with a preset dictionary of the keys and values these streams repeat,
+ * named by the manifest's "dictionary" and checked by its Adler-32 in the
+ * zlib header; a stream always needs the dictionary it was written with, so
+ * a changed dictionary must get a new id. Compressing the streams together
+ * also lets later streams borrow from earlier ones.
+ *
+ * The .meta is the usual sidecar with type "bundle", mime {@link #MIME},
+ * bundle_version and the list of stream types. {@link #read} is the
+ * reference decoder.
+ */
+final class StreamBundle {
+
+    private static final String TAG = "SCREENOMICS_LOGGER";
+
+    static final String PREF_ENABLED = "bundle_small_streams";
+    static final String DESCRIPTOR = "bundle";
+    static final String MIME = "application/vnd.mindpulse.bundle";
+    static final int VERSION = 1;
+    static final String CODEC = "zlib";
+    static final String DICTIONARY_ID = "v1";
+
+    private static final byte[] MAGIC = {'M', 'P', 'B', '1'};
+    private static final int MAX_MANIFEST_BYTES = 64 * 1024;
+
+    /**
+     * Fragments of the bundled streams, least frequent first: deflate codes
+     * nearer matches more cheaply, so the gps fix, repeated dozens of times,
+     * goes last. Android's JSONObject keeps insertion order and escapes '/'
+     * as "\/", and the fragments are spelled the way it writes them.
+     */
+    static final byte[] DICTIONARY = (
+            "{\"battery\":{\"battery_level\":\"battery_charging\":false,\"battery_plugged_type\":"
+            + "\"battery_temp_c\":\"battery_voltage_mv\":\"battery_health\":\"battery_current_ua\":"
+            + "\"battery_energy_nwh\":\"battery_current_avg_ua\":\"power_save_mode\":false,"
+            + "\"battery_optimization_exempt\":true},\"storage\":{\"storage_total_bytes\":"
+            + "\"storage_available_bytes\":\"pending_upload_count\":\"pending_upload_bytes\":"
+            + "\"pending_upload_by_class\":{\"keys\":0,\"telemetry\":\"diagnostics\":\"screenshots\":"
+            + "}},\"memory\":{\"mem_total_bytes\":\"mem_available_bytes\":\"mem_low_memory\":false,"
+            + "\"app_heap_used_bytes\":\"app_heap_max_bytes\":},\"network\":{\"network_connected\":true,"
+            + "\"network_type\":\"wifi\",\"network_metered\":false},\"permissions\":{"
+            + "\"perm_fine_location\":true,\"perm_coarse_location\":true,"
+            + "\"perm_background_location\":true,\"perm_camera\":false,\"perm_notifications\":true,"
+            + "\"perm_usage_stats\":true,\"perm_accessibility_enabled\":true},\"service_state\":{"
+            + "\"recording_state\":true,\"capture_mode\":\"accessibility\",\"a11y_capture_active\":true,"
+            + "\"a11y_last_image_ts\":\"a11y_last_error\":\"\",\"a11y_consecutive_failures\":0,"
+            + "\"last_upload_ms\":\"frame_pool_hits\":\"frame_pool_misses\":\"capture_pipeline\":"
+            + "{\"count\":\"p50_ms\":\"p95_ms\":\"max_ms\":\"buckets\":{\"le_1\":\"upload_controller\":"
+            + "{\"window\":\"goodput_bytes_per_s\":\"srtt_ms\":\"request_signing\":{\"algorithm\":"
+            + "\"SHA256withRSA\\/PSS\",\"resolutions\":1,\"latency_ms\":\"upload_telemetry\":"
+            + "{\"requests\":\"failed\":\"retried\":\"bytes_sent\":\"bytes_received\":\"send_ms\":"
+            + "\"status\":{\"1xx\":0,\"2xx\":\"3xx\":0,\"4xx\":\"5xx\":\"phases\":{\"dns\":\"connect\":"
+            + "\"tls\":\"send\":\"ttfb\":\"total\":\"p99_ms\":\"counts\":[0,0,0,},\"device\":{"
+            + "\"manufacturer\":\"samsung\",\"model\":\"SM-\",\"brand\":\"board\":\"hardware\":"
+            + "\"fingerprint\":\"os_version\":\"api_level\":\"security_patch\":\"app_version_name\":"
+            + "\"app_version_code\":},\"runtime\":{\"device_uptime_ms\":\"screen_interactive\":true,"
+            + "\"doze_idle\":false}}"
+            + "{\"app_logs\":\"\",\"logcat\":\"--------- beginning of main\\n"
+            + " I SCREENOMICS_UPLOAD: \\n D SCREENOMICS_CAPTURE: \\n W SCREENOMICS_LOGGER: "
+            + "Upload response: 202 body=\"}"
+            + "[{\"event\":\"BACKGROUND\",\"package\":\"com.android.launcher\",\"timestamp\":\"20"
+            + "\",\"epoch_ms\":17},{\"event\":\"FOREGROUND\",\"package\":\"com.google.android."
+            + "\",\"timestamp\":\"20\",\"epoch_ms\":17}]"
+            + "[{\"latitude\":4,\"longitude\":-,\"timestamp\":\"20T:.Z\",\"epoch_ms\":17,"
+            + "\"accuracy_m\":,\"altitude_m\":,\"speed_mps\":0,\"bearing_deg\":0,\"provider\":\"fused\","
+            + "\"location_epoch_ms\":17,\"timezone\":\"America\\/\",\"battery_pct\":,"
+            + "\"screen_on\":false,\"foreground_app\":\"com.},{\"latitude\":4,\"longitude\":-"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    /** One stream in a bundle. */
+    static final class Stream {
+        final String type;
+        final String mime;
+        final byte[] data;
+
+        Stream(String type, String mime, byte[] data) {
+            this.type = type;
+            this.mime = mime;
+            this.data = data;
+        }
+    }
+
+    private final List<Stream> streams = new ArrayList<>();
+
+    static boolean enabled(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(PREF_ENABLED, false);
+    }
+
+    StreamBundle add(String type, String mime, String content) {
+        streams.add(new Stream(type, mime, content.getBytes(StandardCharsets.UTF_8)));
+        return this;
+    }
+
+    boolean isEmpty() {
+        return streams.isEmpty();
+    }
+
+    List<Stream> streams() {
+        return Collections.unmodifiableList(streams);
+    }
+
+    static long dictionaryAdler32() {
+        Adler32 adler = new Adler32();
+        adler.update(DICTIONARY, 0, DICTIONARY.length);
+        return adler.getValue();
+    }
+
+    JSONObject manifest() throws JSONException {
+        JSONArray list = new JSONArray();
+        long offset = 0;
+        for (Stream s : streams) {
+            JSONObject entry = new JSONObject();
+            entry.put("type", s.type);
+            entry.put("mime", s.mime);
+            entry.put("offset", offset);
+            entry.put("length", s.data.length);
+            list.put(entry);
+            offset += s.data.length;
+        }
+        JSONObject manifest = new JSONObject();
+        manifest.put("version", VERSION);
+        manifest.put("codec", CODEC);
+        manifest.put("dictionary", DICTIONARY_ID);
+        manifest.put("dictionary_adler32", dictionaryAdler32());
+        manifest.put("streams", list);
+        return manifest;
+    }
+
+    /** Write the bundle plaintext: magic, manifest, then the compressed streams. */
+    void writeTo(OutputStream out) throws IOException, JSONException {
+        byte[] manifest = manifest().toString().getBytes(StandardCharsets.UTF_8);
+        DataOutputStream header = new DataOutputStream(out);
+        header.write(MAGIC);
+        header.writeInt(manifest.length);
+        header.write(manifest);
+        header.flush();
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            DeflaterOutputStream z = new DeflaterOutputStream(out, deflater, 8192);
+            for (Stream s : streams) z.write(s.data);
+            z.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** The bundle plaintext as bytes. */
+    byte[] toBytes() throws IOException, JSONException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return out.toByteArray();
+    }
+
+    /** Decode a bundle plaintext back into its streams; what the receiver does. */
+    static List<Stream> read(InputStream in) throws IOException, JSONException {
+        DataInputStream din = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        din.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a stream bundle");
+        int manifestLength = din.readInt();
+        if (manifestLength < 0 || manifestLength > MAX_MANIFEST_BYTES) {
+            throw new IOException("Bad manifest length " + manifestLength);
+        }
+        byte[] manifestBytes = new byte[manifestLength];
+        din.readFully(manifestBytes);
+        JSONObject manifest = new JSONObject(new String(manifestBytes, StandardCharsets.UTF_8));
+        if (!DICTIONARY_ID.equals(manifest.optString("dictionary"))) {
+            throw new IOException("Unknown dictionary " + manifest.optString("dictionary"));
+        }
+
+        JSONArray list = manifest.getJSONArray("streams");
+        long total = 0;
+        for (int i = 0; i < list.length(); i++) total += list.getJSONObject(i).getLong("length");
+        byte[] plain = inflate(din, total);
+
+        List<Stream> out = new ArrayList<>();
+        for (int i = 0; i < list.length(); i++) {
+            JSONObject entry = list.getJSONObject(i);
+            int offset = (int) entry.getLong("offset");
+            int length = (int) entry.getLong("length");
+            out.add(new Stream(entry.getString("type"), entry.optString("mime"),
+                    Arrays.copyOfRange(plain, offset, offset + length)));
+        }
+        return out;
+    }
+
+    private static byte[] inflate(InputStream in, long expected) throws IOException {
+        if (expected > Integer.MAX_VALUE) throw new IOException("Bundle too large");
+        byte[] out = new byte[(int) expected];
+        Inflater inflater = new Inflater();
+        try {
+            byte[] buf = new byte[8192];
+            int produced = 0;
+            while (!inflater.finished()) {
+                if (inflater.needsDictionary()) {
+                    inflater.setDictionary(DICTIONARY);
+                    continue;
+                }
+                if (inflater.needsInput()) {
+                    int n = in.read(buf);
+                    if (n < 0) throw new IOException("Truncated bundle");
+                    inflater.setInput(buf, 0, n);
+                    continue;
+                }
+                int n = inflater.inflate(out, produced, out.length - produced);
+                if (n == 0 && produced == out.length && !inflater.finished()
+                        && !inflater.needsInput() && !inflater.needsDictionary()) {
+                    throw new IOException("Bundle longer than its manifest");
+                }
+                produced += n;
+            }
+            if (produced != out.length) throw new IOException("Bundle shorter than its manifest");
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt bundle", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Encrypt the bundle into one .enc/.meta pair in the upload queue.
+     * Returns false, having queued nothing, if any step fails.
+     */
+    boolean queue(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String pubKeyPem = prefs.getString(Encryptor.PREF_IMAGE_PUBLIC_KEY, "");
+        if (pubKeyPem == null || pubKeyPem.trim().isEmpty()) {
+            Log.w(TAG, "No image_public_key available, skipping bundle upload");
+            return false;
+        }
+        File extDir = context.getApplicationContext().getExternalFilesDir(null);
+        if (extDir == null) {
+            Log.e(TAG, "getExternalFilesDir returned null, cannot queue bundle");
+            return false;
+        }
+        File encryptDir = new File(extDir, "encrypt");
+        if (!encryptDir.exists() && !encryptDir.mkdirs()) {
+            Log.e(TAG, "Failed to create encrypt directory for bundle");
+            return false;
+        }
+
+        String hashFull = prefs.getString("hash", "00000000");
+        String hash = hashFull.substring(0, Math.min(8, hashFull.length()));
+        long now = System.currentTimeMillis();
+        String baseName = hash + "_" + now + "_" + DESCRIPTOR;
+        File encFile = new File(encryptDir, baseName + ".enc");
+        File metaFile = new File(encryptDir, baseName + ".meta");
+
+        try {
+            // Straight into the cipher: no plaintext temp file
+            Encryptor.Sink sink = Encryptor.openEncSink(context, encFile, pubKeyPem);
+            try {
+                writeTo(sink);
+            } catch (Exception e) {
+                sink.abort();
+                try { sink.close(); } catch (IOException ignored) {}
+                throw e;
+            }
+            sink.close();
+            Encryptor.Result result = sink.result();
+
+            JSONArray types = new JSONArray();
+            for (Stream s : streams) types.put(s.type);
+            JSONObject metaObj = new JSONObject();
+            result.putKeyFields(metaObj);
+            metaObj.put("mime", MIME);
+            metaObj.put("type", DESCRIPTOR);
+            metaObj.put("bundle_version", VERSION);
+            metaObj.put("streams", types);
+            metaObj.put("captured_at", Timestamps.isoMillis(now));
+            metaObj.put("epoch_ms", now);
+            try (FileWriter fw = new FileWriter(metaFile, false)) {
+                fw.write(metaObj.toString());
+            }
+            UploadIndex.written(encFile);
+
+            Log.i(TAG, "Queued bundle of " + streams.size() + " streams: " + encFile.getName()
+                    + " (" + encFile.length() + " bytes)");
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to queue bundle", e);
+            //noinspection ResultOfMethodCallIgnored
+            encFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            metaFile.delete();
+            return false;
+        }
+    }
+}
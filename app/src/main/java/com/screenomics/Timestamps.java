@@ -0,0 +1,80 @@
+package com.screenomics;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Every timestamp string the app writes, from one place.
+ *
+ * Each caller used to build a SimpleDateFormat per call -- per frame's
+ * .meta, per GPS fix, per usage event, per signed request -- because the
+ * class isn't thread-safe, and construction (pattern compile, Calendar,
+ * TimeZone lookup, DecimalFormat) costs far more than the format itself.
+ * java.time formatters are immutable, so these are built once and shared;
+ * minSdk 29 has java.time natively.
+ */
+final class Timestamps {
+
+    private Timestamps() {}
+
+    /** Date header / HTTP signature form: "Sat, 18 Oct 2026 12:00:00 GMT". */
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+                    .withZone(ZoneOffset.UTC);
+
+    /** Prefix of an in-app log line: "20261018_120000:". */
+    private static final DateTimeFormatter LOG_LINE =
+            DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss:", Locale.US)
+                    .withZone(ZoneOffset.UTC);
+
+    private static final DateTimeFormatter ISO_MILLIS =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US)
+                    .withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter ISO_SECONDS =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US)
+                    .withZone(ZoneOffset.UTC);
+
+    /** "2026-10-18T12:00:00.123Z" */
+    static String isoMillis(long epochMs) {
+        return ISO_MILLIS.format(Instant.ofEpochMilli(epochMs));
+    }
+
+    /** "2026-10-18T12:00:00Z" */
+    static String isoSeconds(long epochMs) {
+        return ISO_SECONDS.format(Instant.ofEpochMilli(epochMs));
+    }
+
+    static String httpDate(long epochMs) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(epochMs));
+    }
+
+    static String logLine(long epochMs) {
+        return LOG_LINE.format(Instant.ofEpochMilli(epochMs));
+    }
+
+    /** Epoch ms of a {@link #logLine} prefix, or -1 if it isn't one. */
+    static long parseLogLine(String value) {
+        try {
+            return Instant.from(LOG_LINE.parse(value)).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Epoch ms of an HTTP-date (RFC 1123, e.g. a Retry-After value), or -1
+     * if it isn't one.
+     */
+    static long parseHttpDate(String value) {
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.screenomics;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One process-wide limit on upload requests in flight.
+ *
+ * Batch used to upload its files one after another; the only concurrency
+ * was UploadService running up to three batches at once. On a slow cellular
+ * link each request is mostly waiting on the round trip, so a handful of
+ * them in parallel moves far more data. Every upload request -- from any
+ * batch -- now runs here, within a window {@link UploadRateController} sets
+ * from measured latency and server signals, never above
+ * {@link #PREF_MAX_IN_FLIGHT}. The controller can also hold new requests
+ * back for the time a 429's Retry-After asks.
+ * They share the HttpClientProvider client, so against an HTTP/2 receiver
+ * they are streams on one connection rather than new connections.
+ *
+ * Work is queued in two lanes. When both have work waiting, a freed slot
+ * goes to the lane that was not served last, so a backlog of thousands of
+ * old files cannot keep the last few minutes' captures from going out, and
+ * fresh captures cannot starve the backlog either.
+ *
+ * A task waiting to retry -- a backoff, or a 429's Retry-After -- gives its
+ * slot up for the wait through {@link #sleepOutsideSlot}, so one throttled
+ * file does not hold a slot the window has room for, and takes a slot again
+ * before it sends.
+ *
+ * Workers are started on demand up to the limit and exit after a minute
+ * idle.
+ */
+final class UploadDispatcher {
+
+    private static final String TAG = "SCREENOMICS_UPLOAD";
+
+    static final String PREF_MAX_IN_FLIGHT = "upload_max_in_flight";
+    static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    static final int MAX_IN_FLIGHT_CAP = 16;
+    /** Files written within this long count as fresh captures. */
+    static final long FRESH_AGE_MS = 30 * 60_000L;
+    private static final long IDLE_EXIT_MS = 60_000L;
+
+    enum Lane { FRESH, BACKLOG }
+
+    private static volatile UploadDispatcher INSTANCE;
+    /** The dispatcher whose worker the current thread is, if any. */
+    private static final ThreadLocal<UploadDispatcher> WORKER_OF = new ThreadLocal<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final ArrayDeque<FutureTask<?>> fresh = new ArrayDeque<>();
+    private final ArrayDeque<FutureTask<?>> backlog = new ArrayDeque<>();
+    private final AtomicLong completedFresh = new AtomicLong();
+    private final AtomicLong completedBacklog = new AtomicLong();
+    // Guarded by lock
+    private int maxInFlight;
+    private int workers;
+    private int idleWorkers;
+    /** Tasks between retries, not holding a slot; of those, done waiting and after one. */
+    private int parked;
+    private int resuming;
+    private Lane lastServed = Lane.BACKLOG;
+    private long holdUntilMs;
+
+    UploadDispatcher(int maxInFlight) {
+        this.maxInFlight = clamp(maxInFlight);
+    }
+
+    /** The shared dispatcher, with its limit refreshed from the rate controller. */
+    static UploadDispatcher get(Context context) {
+        int limit = UploadRateController.get(context).window();
+        UploadDispatcher d = INSTANCE;
+        if (d == null) {
+            synchronized (UploadDispatcher.class) {
+                if (INSTANCE == null) INSTANCE = new UploadDispatcher(limit);
+                d = INSTANCE;
+            }
+        }
+        d.setMaxInFlight(limit);
+        return d;
+    }
+
+    static Lane laneFor(long lastModifiedMs, long nowMs) {
+        return nowMs - lastModifiedMs <= FRESH_AGE_MS ? Lane.FRESH : Lane.BACKLOG;
+    }
+
+    void setMaxInFlight(int limit) {
+        lock.lock();
+        try {
+            maxInFlight = clamp(limit);
+            // Extra workers notice on their next wakeup and exit
+            workAvailable.signalAll();
+            startWorkersLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Start no new work before this wall-clock time. */
+    void holdUntil(long untilMs) {
+        lock.lock();
+        try {
+            holdUntilMs = Math.max(holdUntilMs, untilMs);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int maxInFlight() {
+        lock.lock();
+        try {
+            return maxInFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    <T> Future<T> submit(Lane lane, Callable<T> work) {
+        AtomicLong completed = lane == Lane.FRESH ? completedFresh : completedBacklog;
+        FutureTask<T> task = new FutureTask<>(() -> {
+            try {
+                return work.call();
+            } finally {
+                completed.incrementAndGet();
+            }
+        });
+        lock.lock();
+        try {
+            (lane == Lane.FRESH ? fresh : backlog).add(task);
+            // Idle workers and tasks back from a retry wait share the
+            // condition; signal() could wake one that can't use this
+            workAvailable.signalAll();
+            startWorkersLocked();
+        } finally {
+            lock.unlock();
+        }
+        return task;
+    }
+
+    long completed(Lane lane) {
+        return (lane == Lane.FRESH ? completedFresh : completedBacklog).get();
+    }
+
+    int queued() {
+        lock.lock();
+        try {
+            return fresh.size() + backlog.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait {@code delayMs} without holding an in-flight slot, then wait for a
+     * free one. For a running task between retries; called from any other
+     * thread it just sleeps.
+     */
+    static void sleepOutsideSlot(long delayMs) throws InterruptedException {
+        UploadDispatcher d = WORKER_OF.get();
+        if (d == null) {
+            Thread.sleep(delayMs);
+        } else {
+            d.park(delayMs);
+        }
+    }
+
+    private void park(long delayMs) throws InterruptedException {
+        lock.lock();
+        try {
+            parked++;
+            // The slot is free: queued work or a task back from its own
+            // wait may take it; wake both kinds of waiter
+            workAvailable.signalAll();
+            startWorkersLocked();
+        } finally {
+            lock.unlock();
+        }
+        boolean waking = false;
+        try {
+            Thread.sleep(delayMs);
+            lock.lock();
+            try {
+                resuming++;
+                waking = true;
+                while (runningLocked() >= maxInFlight) workAvailable.await();
+            } finally {
+                if (waking) resuming--;
+                parked--;
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            if (!waking) {
+                lock.lock();
+                try {
+                    parked--;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            throw e;
+        }
+    }
+
+    /** Tasks holding a slot. Caller holds the lock. */
+    private int runningLocked() {
+        return workers - idleWorkers - parked;
+    }
+
+    private void startWorkersLocked() {
+        int waiting = fresh.size() + backlog.size();
+        while (workers - parked < maxInFlight && waiting > idleWorkers) {
+            workers++;
+            idleWorkers++;
+            Thread t = new Thread(this::workLoop, "upload-" + workers);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /** Next task, alternating lanes when both have work. Caller holds the lock. */
+    private FutureTask<?> takeLocked() {
+        Lane preferred = lastServed == Lane.FRESH ? Lane.BACKLOG : Lane.FRESH;
+        ArrayDeque<FutureTask<?>> first = preferred == Lane.FRESH ? fresh : backlog;
+        ArrayDeque<FutureTask<?>> second = preferred == Lane.FRESH ? backlog : fresh;
+        if (!first.isEmpty()) {
+            lastServed = preferred;
+            return first.poll();
+        }
+        if (!second.isEmpty()) {
+            lastServed = preferred == Lane.FRESH ? Lane.BACKLOG : Lane.FRESH;
+            return second.poll();
+        }
+        return null;
+    }
+
+    private void workLoop() {
+        WORKER_OF.set(this);
+        while (true) {
+            FutureTask<?> task;
+            lock.lock();
+            try {
+                long idleUntil = System.currentTimeMillis() + IDLE_EXIT_MS;
+                while (true) {
+                    if (workers - parked > maxInFlight) {
+                        workers--;
+                        idleWorkers--;
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    long held = holdUntilMs - now;
+                    // Tasks back from a retry wait get free slots first
+                    boolean full = runningLocked() + resuming >= maxInFlight;
+                    task = held > 0 || full ? null : takeLocked();
+                    if (task != null) break;
+                    long left = held > 0 ? held : idleUntil - now;
+                    if (held > 0) idleUntil = now + held + IDLE_EXIT_MS;
+                    if (left <= 0) {
+                        workers--;
+                        idleWorkers--;
+                        return;
+                    }
+                    try {
+                        workAvailable.await(left, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        workers--;
+                        idleWorkers--;
+                        return;
+                    }
+                }
+                idleWorkers--;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // FutureTask captures exceptions; this is only a safety net
+                Log.e(TAG, "Upload task failed", e);
+            }
+
+            lock.lock();
+            try {
+                idleWorkers++;
+                // A slot is free, perhaps for a task back from a retry wait
+                workAvailable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static int clamp(int limit) {
+        return Math.max(1, Math.min(MAX_IN_FLIGHT_CAP, limit));
+    }
+}
@@ -0,0 +1,406 @@
+package com.screenomics;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * What is waiting in the encrypt directory, kept in an append-only journal
+ * so nothing has to list the directory to find out.
+ *
+ * UploadService, UploadScheduler, the status screen and the device-state
+ * snapshot each used to call listFiles() on the encrypt directory, several
+ * of them every minute, and some split or regex-matched every name. With a
+ * 100k-file backlog that is several full scans a minute of a directory
+ * FUSE makes slow to list. Now the capture writers record each file as they
+ * finish it, Batch records each upload's outcome, and everyone else reads
+ * this in-memory view.
+ *
+ * One entry per upload unit: an .enc (whose .meta sidecar travels with it)
+ * or a legacy plaintext file that Batch encrypts on the way out. Each entry
+ * has its size, sidecar included, when it was written, and -- once an
+ * upload has failed -- how many attempts failed and the last error.
+ *
+ * The journal lives in internal storage, one line per change:
+ *
+ *   +  name  bytes  written_ms  has_meta     a file was written
+ *   -  name                                 uploaded or deleted
+ *   !  name  attempts  error                an upload attempt failed
+ *
+ * Lines are flushed as they are written but not synced; a lost tail only
+ * means a file the next reconciliation finds again. Reconciliation -- the
+ * one directory scan -- runs when the index is first opened in a process,
+ * and on request (UploadService's "rescan" extra, for files put there by
+ * adb). It also rewrites the journal with only the live entries, as does
+ * any point where dead lines outnumber live ones, and notes any .meta whose
+ * .enc is gone ({@link #strayMeta}), which no entry covers.
+ */
+final class UploadIndex {
+
+    private static final String TAG = "SCREENOMICS_UPLOAD";
+    private static final String JOURNAL = "upload_index.journal";
+    private static final String HEADER = "upload-index v1";
+    private static final int MIN_COMPACT_LINES = 1000;
+
+    enum State { PENDING, FAILED }
+
+    /** One upload unit. A copy; changing it changes nothing in the index. */
+    static final class Entry {
+        final String name;
+        final long bytes;
+        final long writtenMs;
+        final boolean hasMeta;
+        final State state;
+        final int attempts;
+        final String lastError;
+
+        Entry(String name, long bytes, long writtenMs, boolean hasMeta,
+              State state, int attempts, String lastError) {
+            this.name = name;
+            this.bytes = bytes;
+            this.writtenMs = writtenMs;
+            this.hasMeta = hasMeta;
+            this.state = state;
+            this.attempts = attempts;
+            this.lastError = lastError;
+        }
+
+        Entry failed(String error) {
+            return new Entry(name, bytes, writtenMs, hasMeta, State.FAILED, attempts + 1, error);
+        }
+    }
+
+    private static UploadIndex INSTANCE;
+
+    private final File dir;
+    private final File journal;
+    // Guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final HashSet<String> strayMeta = new HashSet<>();
+    private long totalBytes;
+    private int journalLines;
+    private Writer out;
+
+    private UploadIndex(File dir, File journal) {
+        this.dir = dir;
+        this.journal = journal;
+    }
+
+    /**
+     * The index for {@code encryptDir}, loaded and reconciled with the
+     * directory the first time it is asked for in this process.
+     */
+    static synchronized UploadIndex get(Context context, File encryptDir) {
+        File dir = encryptDir.getAbsoluteFile();
+        if (INSTANCE == null || !INSTANCE.dir.equals(dir)) {
+            UploadIndex index = new UploadIndex(dir,
+                    new File(context.getApplicationContext().getFilesDir(), JOURNAL));
+            index.load();
+            index.reconcile();
+            INSTANCE = index;
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Record a file a writer just finished (its .meta written too). If no
+     * index is open in this process there is nothing to update: opening one
+     * scans the directory and finds the file.
+     */
+    static void written(File file) {
+        UploadIndex index = openFor(file);
+        if (index != null) index.added(file);
+    }
+
+    /** Record that {@code file} was uploaded or deleted. */
+    static void deleted(File file) {
+        UploadIndex index = openFor(file);
+        if (index != null) index.removed(file.getName());
+    }
+
+    /** Record a failed upload attempt for {@code file}. */
+    static void uploadFailed(File file, String error) {
+        UploadIndex index = openFor(file);
+        if (index != null) index.failed(file.getName(), error);
+    }
+
+    /** The open index covering {@code file}'s directory, or null. */
+    private static UploadIndex openFor(File file) {
+        UploadIndex index;
+        synchronized (UploadIndex.class) {
+            index = INSTANCE;
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        return index != null && index.dir.equals(parent) ? index : null;
+    }
+
+    /** Forget the open index, as a new process would. */
+    static synchronized void resetForTest() {
+        if (INSTANCE != null) {
+            synchronized (INSTANCE) {
+                INSTANCE.closeOut();
+            }
+        }
+        INSTANCE = null;
+    }
+
+    /** Unit names exclude .meta sidecars, which travel with their .enc. */
+    static boolean isUnit(String name) {
+        return !name.endsWith(".meta");
+    }
+
+    private static File sidecar(File enc) {
+        String name = enc.getName();
+        if (!name.endsWith(".enc")) return null;
+        return new File(enc.getParentFile(), name.substring(0, name.length() - 4) + ".meta");
+    }
+
+    // ---------- Writers ----------
+
+    /** A capture writer finished {@code file} (and its .meta, if it has one). */
+    synchronized void added(File file) {
+        String name = file.getName();
+        if (!isUnit(name) || entries.containsKey(name)) return;
+        File meta = sidecar(file);
+        long metaBytes = meta != null ? meta.length() : 0;
+        Entry e = new Entry(name, file.length() + metaBytes, file.lastModified(),
+                metaBytes > 0, State.PENDING, 0, "");
+        put(e);
+        append("+\t" + name + "\t" + e.bytes + "\t" + e.writtenMs + "\t" + (e.hasMeta ? 1 : 0));
+    }
+
+    /** Uploaded, or deleted for good. */
+    synchronized void removed(String name) {
+        if (remove(name) == null) return;
+        append("-\t" + name);
+        maybeCompact();
+    }
+
+    /** An upload attempt for {@code name} failed; it stays pending. */
+    synchronized void failed(String name, String error) {
+        Entry e = entries.get(name);
+        if (e == null) return;
+        String clean = error == null ? "" : error.replace('\t', ' ').replace('\n', ' ');
+        Entry next = e.failed(clean);
+        entries.put(name, next);
+        append("!\t" + name + "\t" + next.attempts + "\t" + clean);
+    }
+
+    // ---------- Readers ----------
+
+    synchronized int count() {
+        return entries.size();
+    }
+
+    synchronized long bytes() {
+        return totalBytes;
+    }
+
+    /** Recorded size of {@code name}, sidecar included; 0 if unknown. */
+    synchronized long bytesOf(String name) {
+        Entry e = entries.get(name);
+        return e != null ? e.bytes : 0;
+    }
+
+    /** When {@code name} was written; 0 if unknown. */
+    synchronized long writtenMsOf(String name) {
+        Entry e = entries.get(name);
+        return e != null ? e.writtenMs : 0;
+    }
+
+    /** Sidecars the last reconciliation found without their .enc. */
+    synchronized List<String> strayMeta() {
+        return new ArrayList<>(strayMeta);
+    }
+
+    /** A stray sidecar was deleted. */
+    synchronized void strayMetaRemoved(String name) {
+        strayMeta.remove(name);
+    }
+
+    /** Every entry, oldest first. */
+    synchronized List<Entry> entries() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        list.sort((a, b) -> Long.compare(a.writtenMs, b.writtenMs));
+        return list;
+    }
+
+    /** Files written before {@code beforeMs}, oldest first. */
+    List<File> pending(long beforeMs) {
+        List<File> files = new ArrayList<>();
+        for (Entry e : entries()) {
+            if (e.writtenMs < beforeMs) files.add(new File(dir, e.name));
+        }
+        return files;
+    }
+
+    // ---------- Journal ----------
+
+    private void put(Entry e) {
+        Entry old = entries.put(e.name, e);
+        if (old != null) totalBytes -= old.bytes;
+        totalBytes += e.bytes;
+    }
+
+    private Entry remove(String name) {
+        Entry old = entries.remove(name);
+        if (old != null) totalBytes -= old.bytes;
+        return old;
+    }
+
+    private synchronized void load() {
+        if (!journal.isFile()) return;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journal), StandardCharsets.UTF_8))) {
+            String header = in.readLine();
+            if (!(HEADER + "\t" + dir.getPath()).equals(header)) return;   // another directory
+            String line;
+            while ((line = in.readLine()) != null) {
+                journalLines++;
+                String[] f = line.split("\t", -1);
+                try {
+                    if (f[0].equals("+") && f.length >= 5) {
+                        put(new Entry(f[1], Long.parseLong(f[2]), Long.parseLong(f[3]),
+                                f[4].equals("1"), State.PENDING, 0, ""));
+                    } else if (f[0].equals("-") && f.length >= 2) {
+                        remove(f[1]);
+                    } else if (f[0].equals("!") && f.length >= 4) {
+                        Entry e = entries.get(f[1]);
+                        if (e != null) {
+                            entries.put(f[1], new Entry(e.name, e.bytes, e.writtenMs, e.hasMeta,
+                                    State.FAILED, Integer.parseInt(f[2]), f[3]));
+                        }
+                    }
+                } catch (NumberFormatException ignored) {
+                    // A torn last line; reconciliation covers it
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read upload index; rebuilding from the directory", e);
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    /**
+     * Bring the index in line with the directory: add what is there but
+     * missing, drop what is listed but gone. The only full scan. Returns the
+     * number of entries changed.
+     */
+    synchronized int reconcile() {
+        File[] files = dir.listFiles();
+        int changed = 0;
+        HashSet<String> present = new HashSet<>();
+        List<String> sidecars = new ArrayList<>();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (!isUnit(name)) {
+                    sidecars.add(name);
+                    continue;
+                }
+                if (!f.isFile()) continue;
+                present.add(name);
+                File meta = sidecar(f);
+                long metaBytes = meta != null && meta.isFile() ? meta.length() : 0;
+                Entry known = entries.get(name);
+                boolean hasMeta = metaBytes > 0;
+                if (known == null || known.hasMeta != hasMeta) {
+                    put(new Entry(name, f.length() + metaBytes, f.lastModified(), hasMeta,
+                            known != null ? known.state : State.PENDING,
+                            known != null ? known.attempts : 0,
+                            known != null ? known.lastError : ""));
+                    changed++;
+                }
+            }
+        }
+        for (String name : new ArrayList<>(entries.keySet())) {
+            if (!present.contains(name)) {
+                remove(name);
+                changed++;
+            }
+        }
+        strayMeta.clear();
+        for (String meta : sidecars) {
+            if (!present.contains(meta.substring(0, meta.length() - 5) + ".enc")) strayMeta.add(meta);
+        }
+        compact();
+        if (changed > 0) Log.i(TAG, "Upload index reconciled: " + changed + " changes, "
+                + entries.size() + " pending");
+        return changed;
+    }
+
+    private void maybeCompact() {
+        if (journalLines > MIN_COMPACT_LINES && journalLines > 2 * entries.size()) compact();
+    }
+
+    /** Rewrite the journal with only the live entries. */
+    private void compact() {
+        closeOut();
+        File tmp = new File(journal.getPath() + ".tmp");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            w.write(HEADER + "\t" + dir.getPath() + "\n");
+            for (Entry e : entries.values()) {
+                w.write("+\t" + e.name + "\t" + e.bytes + "\t" + e.writtenMs + "\t"
+                        + (e.hasMeta ? 1 : 0) + "\n");
+                if (e.attempts > 0) {
+                    w.write("!\t" + e.name + "\t" + e.attempts + "\t" + e.lastError + "\n");
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not compact upload index", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(journal)) {
+            Log.w(TAG, "Could not replace upload index journal");
+            tmp.delete();
+            return;
+        }
+        journalLines = entries.size();
+    }
+
+    private void append(String line) {
+        try {
+            if (out == null) {
+                boolean fresh = !journal.isFile() || journal.length() == 0;
+                out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(journal, true), StandardCharsets.UTF_8));
+                if (fresh) out.write(HEADER + "\t" + dir.getPath() + "\n");
+            }
+            out.write(line);
+            out.write('\n');
+            out.flush();
+            journalLines++;
+        } catch (IOException e) {
+            // The in-memory view is still right; the next reconciliation repairs the journal
+            Log.w(TAG, "Could not append to upload index", e);
+            closeOut();
+        }
+    }
+
+    private void closeOut() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // Nothing more to do
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,177 @@
+package com.screenomics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The order one upload run sends its files in: by priority class, with
+ * weighted fair queuing between classes.
+ *
+ * UploadService used to sort every pending file oldest-first and slice
+ * batches off the front, so during a backlog drain a 2 KB devicestate or
+ * gps record written a minute ago waited behind every screenshot from the
+ * past week. Files are now sorted into classes by the descriptor in their
+ * name, oldest-first within each class:
+ *
+ *   KEYS         sessionkey records; strict priority, since no file
+ *                sealed under a session can be opened without its record
+ *   TELEMETRY    devicestate, logdata, gps, appusage, and their bundles
+ *   DIAGNOSTICS  diagnostics, logcat, applog, dedup records, metadata
+ *   SCREENSHOTS  everything else
+ *
+ * Below KEYS the classes share the run by deficit round robin over bytes:
+ * each round, every class with files waiting earns {@link #QUANTUM_BYTES}
+ * times its weight, and sends files while its credit covers them. Small
+ * telemetry records therefore go out almost at once, but screenshots earn
+ * credit every round too, so however much telemetry arrives the backlog
+ * keeps draining -- at no less than 1/7 of the bytes with the default
+ * weights.
+ */
+final class UploadQueue {
+
+    enum Priority {
+        KEYS(0),
+        TELEMETRY(4),
+        DIAGNOSTICS(2),
+        SCREENSHOTS(1);
+
+        /** Share per round; 0 means strict priority ahead of the weighted classes. */
+        final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+
+        String key() {
+            return name().toLowerCase(Locale.US);
+        }
+    }
+
+    static final long QUANTUM_BYTES = 64 * 1024;
+
+    private static final class Item {
+        final File file;
+        final long bytes;
+
+        Item(File file, long bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+
+    private final EnumMap<Priority, ArrayDeque<Item>> queues = new EnumMap<>(Priority.class);
+    private final EnumMap<Priority, Long> deficit = new EnumMap<>(Priority.class);
+    private Priority current;
+    private int size;
+
+    UploadQueue() {
+        for (Priority p : Priority.values()) {
+            queues.put(p, new ArrayDeque<>());
+            deficit.put(p, 0L);
+        }
+    }
+
+    /**
+     * The class of a file, from the descriptor between its last underscore
+     * and its extension ("abcd1234_1700000000000_gps.enc" is TELEMETRY).
+     */
+    static Priority classify(String name) {
+        int dot = name.indexOf('.');
+        String stem = dot >= 0 ? name.substring(0, dot) : name;
+        String descriptor = stem.substring(stem.lastIndexOf('_') + 1).toLowerCase(Locale.US);
+        switch (descriptor) {
+            case SessionKeyEnvelope.KEY_RECORD_DESCRIPTOR:
+                return Priority.KEYS;
+            case "devicestate":
+            case "logdata":
+            case "gps":
+            case "appusage":
+            case StreamBundle.DESCRIPTOR:
+                return Priority.TELEMETRY;
+            case "diagnostics":
+            case "logcat":
+            case "applog":
+            case "metadata":
+            case FrameDedup.RECORD_DESCRIPTOR:
+                return Priority.DIAGNOSTICS;
+            default:
+                return Priority.SCREENSHOTS;
+        }
+    }
+
+    /** Queue a file; add them oldest first. */
+    void add(File file, long bytes) {
+        queues.get(classify(file.getName())).add(new Item(file, Math.max(1, bytes)));
+        size++;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int depth(Priority p) {
+        return queues.get(p).size();
+    }
+
+    /** The next file to send, or null when empty. */
+    File poll() {
+        if (size == 0) return null;
+        ArrayDeque<Item> keys = queues.get(Priority.KEYS);
+        if (!keys.isEmpty()) {
+            size--;
+            return keys.poll().file;
+        }
+        while (true) {
+            if (current != null) {
+                ArrayDeque<Item> q = queues.get(current);
+                Item head = q.peek();
+                if (head != null && deficit.get(current) >= head.bytes) {
+                    q.poll();
+                    size--;
+                    // No banking credit while a class has nothing to send
+                    deficit.put(current, q.isEmpty() ? 0L : deficit.get(current) - head.bytes);
+                    return head.file;
+                }
+                if (head == null) deficit.put(current, 0L);
+            }
+            // Turn over: the next class with files earns its quantum
+            current = nextNonEmpty(current != null ? current : Priority.KEYS);
+            deficit.put(current, deficit.get(current) + QUANTUM_BYTES * current.weight);
+        }
+    }
+
+    /** The next weighted class after {@code after} that has files, wrapping around. */
+    private Priority nextNonEmpty(Priority after) {
+        Priority[] all = Priority.values();
+        for (int step = 1; step <= all.length; step++) {
+            Priority p = all[(after.ordinal() + step) % all.length];
+            if (p.weight > 0 && !queues.get(p).isEmpty()) return p;
+        }
+        throw new IllegalStateException("no weighted class has files");
+    }
+
+    /** Files waiting per class, for the device-state snapshot. */
+    static JSONObject depths(Iterable<String> names) throws JSONException {
+        Map<Priority, Integer> counts = new EnumMap<>(Priority.class);
+        for (Priority p : Priority.values()) counts.put(p, 0);
+        for (String name : names) {
+            Priority p = classify(name);
+            counts.put(p, counts.get(p) + 1);
+        }
+        JSONObject obj = new JSONObject();
+        for (Map.Entry<Priority, Integer> e : counts.entrySet()) {
+            obj.put(e.getKey().key(), (int) e.getValue());
+        }
+        return obj;
+    }
+}
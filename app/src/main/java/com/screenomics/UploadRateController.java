@@ -0,0 +1,263 @@
+package com.screenomics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/**
+ * How hard uploads push, adjusted from what each request reports back.
+ *
+ * UploadService used to ramp the number of concurrent batches by one on
+ * every success and back off by one on every failure. That ramp never
+ * measured anything: a link that had just slowed to a crawl looked the same
+ * as a fast one until requests started failing outright, and a 429 with
+ * Retry-After was only another failure. This is an AIMD controller over the
+ * {@link UploadDispatcher} window, the number of requests in flight:
+ *
+ *   every acknowledged request   window += 1 / window, about +1 per
+ *                                window's worth of acks
+ *   latency > 3x the base RTT,   window *= 0.7; requests are queueing
+ *   less the body's transfer     somewhere on the path
+ *   time at the goodput
+ *   408, 5xx, I/O failure        window *= 0.5
+ *   429 or 503 with Retry-After  window *= 0.5, and no new request starts
+ *                                until the server's time is up
+ *
+ * Decreases happen at most once per smoothed RTT, so one burst of failures
+ * from a single window counts as one congestion event. The base RTT is the
+ * lowest latency seen in the last ten minutes, so it follows a participant
+ * moving from Wi-Fi to cellular.
+ *
+ * Goodput (acknowledged bytes per second while anything is in flight)
+ * sizes the next run's batches: about {@link #TARGET_BATCH_SECONDS} of
+ * upload each.
+ *
+ * One instance per process. Its state is saved to preferences at the end of
+ * each upload run, so the next run starts from where this one left off. The saved
+ * state also goes into the device-state snapshot and the heartbeat.
+ */
+final class UploadRateController {
+
+    private static final String PREF_STATE = "upload_rate_state";
+
+    static final double INITIAL_WINDOW = 2.0;
+    static final double LATENCY_BACKOFF = 0.7;
+    static final double LOSS_BACKOFF = 0.5;
+    static final double LATENCY_INFLATION = 3.0;
+    static final long MIN_RTT_WINDOW_MS = 10 * 60_000L;
+    static final long MAX_RETRY_AFTER_MS = 10 * 60_000L;
+    static final int TARGET_BATCH_SECONDS = 30;
+    static final int MIN_BATCH_SIZE = 2;
+    static final int MAX_BATCH_SIZE = 50;
+    private static final long MIN_SAMPLE_MS = 2_000L;
+
+    private static volatile UploadRateController INSTANCE;
+
+    // All guarded by this
+    private double window = INITIAL_WINDOW;
+    private int ceiling;
+    private double srttMs;
+    private long minRttMs;
+    private long minRttSetAtMs;
+    private long lastDecreaseMs;
+    private long holdUntilMs;
+    private double goodputBps;
+    private double avgRequestBytes;
+    private long congestionEvents;
+    private long throttleEvents;
+    // Goodput sampling
+    private int inFlight;
+    private long sampleStartMs = -1;
+    private long sampleBytes;
+
+    UploadRateController(int ceiling) {
+        this.ceiling = Math.max(1, ceiling);
+    }
+
+    static UploadRateController get(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        int ceiling = prefs.getInt(UploadDispatcher.PREF_MAX_IN_FLIGHT,
+                UploadDispatcher.DEFAULT_MAX_IN_FLIGHT);
+        UploadRateController c = INSTANCE;
+        if (c == null) {
+            synchronized (UploadRateController.class) {
+                if (INSTANCE == null) {
+                    UploadRateController fresh = new UploadRateController(ceiling);
+                    fresh.restore(prefs.getString(PREF_STATE, ""));
+                    INSTANCE = fresh;
+                }
+                c = INSTANCE;
+            }
+        }
+        c.setCeiling(ceiling);
+        return c;
+    }
+
+    synchronized void setCeiling(int ceiling) {
+        this.ceiling = Math.max(1, Math.min(UploadDispatcher.MAX_IN_FLIGHT_CAP, ceiling));
+        window = Math.min(window, this.ceiling);
+    }
+
+    /** Requests to allow in flight now. */
+    synchronized int window() {
+        return Math.max(1, (int) Math.floor(window));
+    }
+
+    /** Wall-clock time before which no new request should start; 0 if none. */
+    synchronized long holdUntilMs() {
+        return holdUntilMs;
+    }
+
+    synchronized void onRequestStarted(long nowMs) {
+        if (inFlight++ == 0 && sampleStartMs < 0) {
+            sampleStartMs = nowMs;
+            sampleBytes = 0;
+        }
+    }
+
+    /**
+     * One request finished.
+     *
+     * @param code       HTTP status, or -1 if the request failed without one
+     * @param retryAfter the Retry-After header, or null
+     */
+    synchronized void onRequestFinished(long nowMs, long latencyMs, long bytes, int code,
+                                        String retryAfter) {
+        inFlight = Math.max(0, inFlight - 1);
+
+        boolean acked = (code >= 200 && code < 300) || code == 409;
+        if (acked) {
+            onAck(nowMs, latencyMs, bytes);
+        } else if (code == 429 || code == 503) {
+            long waitMs = retryAfterMs(retryAfter, nowMs);
+            if (waitMs > 0) {
+                holdUntilMs = Math.max(holdUntilMs, nowMs + Math.min(waitMs, MAX_RETRY_AFTER_MS));
+            }
+            throttleEvents++;
+            decrease(nowMs, LOSS_BACKOFF);
+        } else if (code < 0 || code == 408 || code >= 500) {
+            decrease(nowMs, LOSS_BACKOFF);
+        }
+        // Other 4xx say nothing about the path
+
+        if (sampleStartMs >= 0) {
+            long elapsed = nowMs - sampleStartMs;
+            if (elapsed >= MIN_SAMPLE_MS || (inFlight == 0 && elapsed > 0 && sampleBytes > 0)) {
+                double sample = sampleBytes * 1000.0 / Math.max(1, elapsed);
+                goodputBps = goodputBps == 0 ? sample : 0.7 * goodputBps + 0.3 * sample;
+                sampleStartMs = inFlight > 0 ? nowMs : -1;
+                sampleBytes = 0;
+            } else if (inFlight == 0) {
+                sampleStartMs = -1;
+            }
+        }
+    }
+
+    private void onAck(long nowMs, long latencyMs, long bytes) {
+        sampleBytes += bytes;
+        avgRequestBytes = avgRequestBytes == 0 ? bytes : 0.9 * avgRequestBytes + 0.1 * bytes;
+        srttMs = srttMs == 0 ? latencyMs : 0.875 * srttMs + 0.125 * latencyMs;
+        if (minRttMs == 0 || latencyMs < minRttMs || nowMs - minRttSetAtMs > MIN_RTT_WINDOW_MS) {
+            minRttMs = Math.max(1, latencyMs);
+            minRttSetAtMs = nowMs;
+        }
+        // A large body takes longer on a healthy link too: only time beyond
+        // its transfer, at this request's share of the goodput, is queueing
+        long transferMs = goodputBps > 0 ? (long) (bytes * 1000.0 * (inFlight + 1) / goodputBps) : 0;
+        if (latencyMs - transferMs > LATENCY_INFLATION * minRttMs) {
+            decrease(nowMs, LATENCY_BACKOFF);
+        } else {
+            window = Math.min(ceiling, window + 1.0 / window);
+        }
+    }
+
+    /** Multiplicative decrease, at most once per smoothed RTT. */
+    private void decrease(long nowMs, double factor) {
+        long guardMs = (long) Math.max(srttMs, 1_000);
+        if (lastDecreaseMs != 0 && nowMs - lastDecreaseMs < guardMs) return;
+        lastDecreaseMs = nowMs;
+        window = Math.max(1.0, window * factor);
+        congestionEvents++;
+    }
+
+    /**
+     * Files per batch for the next run: about {@link #TARGET_BATCH_SECONDS}
+     * of upload at the measured goodput. {@code configured} until there is a
+     * measurement.
+     */
+    synchronized int suggestBatchSize(int configured, long avgFileBytes) {
+        if (goodputBps <= 0 || avgFileBytes <= 0) return configured;
+        long files = (long) (goodputBps * TARGET_BATCH_SECONDS / avgFileBytes);
+        return (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, files));
+    }
+
+    /**
+     * Milliseconds a Retry-After header asks for, or 0. Both forms are
+     * accepted: delta-seconds and an HTTP-date.
+     */
+    static long retryAfterMs(String header, long nowMs) {
+        if (header == null || header.trim().isEmpty()) return 0;
+        String value = header.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000L);
+        } catch (NumberFormatException ignored) {
+            // Not delta-seconds; try a date
+        }
+        long at = Timestamps.parseHttpDate(value);
+        return at >= 0 ? Math.max(0, at - nowMs) : 0;
+    }
+
+    synchronized JSONObject toJson() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("window", Math.round(window * 100) / 100.0);
+        obj.put("ceiling", ceiling);
+        obj.put("goodput_bytes_per_s", Math.round(goodputBps));
+        obj.put("srtt_ms", Math.round(srttMs));
+        obj.put("min_rtt_ms", minRttMs);
+        obj.put("avg_request_bytes", Math.round(avgRequestBytes));
+        obj.put("congestion_events", congestionEvents);
+        obj.put("throttle_events", throttleEvents);
+        obj.put("hold_until_ms", holdUntilMs);
+        return obj;
+    }
+
+    /** Persist the state, so the next run and the heartbeat see it. */
+    void save(Context context) {
+        try {
+            String json = toJson().toString();
+            PreferenceManager.getDefaultSharedPreferences(context).edit()
+                    .putString(PREF_STATE, json).apply();
+        } catch (JSONException ignored) {
+            // Nothing useful to save
+        }
+    }
+
+    /** The last saved state, for reporting from a process that may not have uploaded. */
+    static JSONObject saved(Context context) throws JSONException {
+        String json = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(PREF_STATE, "");
+        return json.isEmpty() ? new JSONObject() : new JSONObject(json);
+    }
+
+    private synchronized void restore(String json) {
+        if (json == null || json.isEmpty()) return;
+        try {
+            JSONObject obj = new JSONObject(json);
+            window = Math.max(1.0, Math.min(ceiling, obj.optDouble("window", INITIAL_WINDOW)));
+            goodputBps = obj.optDouble("goodput_bytes_per_s", 0);
+            srttMs = obj.optDouble("srtt_ms", 0);
+            avgRequestBytes = obj.optDouble("avg_request_bytes", 0);
+            congestionEvents = obj.optLong("congestion_events", 0);
+            throttleEvents = obj.optLong("throttle_events", 0);
+            // Base RTT is re-learned: the network may have changed since
+            holdUntilMs = obj.optLong("hold_until_ms", 0);
+        } catch (JSONException ignored) {
+            // Start from defaults
+        }
+    }
+}
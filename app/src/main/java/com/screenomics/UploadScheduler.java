@@ -33,8 +33,8 @@ public class UploadScheduler {
             return;
         }
         File f_encrypt = new File(extDir.getAbsolutePath() + File.separator + "encrypt");
-        File[] files = f_encrypt.listFiles();
-        int fileCount = (files != null) ? files.length : 0;
+        // From the upload index, not a directory listing every cycle
+        int fileCount = UploadIndex.get(context, f_encrypt).count();
         long usableBytes = extDir.getUsableSpace();
         android.util.Log.i(TAG, "Found " + fileCount + " files to upload in " + f_encrypt.getAbsolutePath());
         android.util.Log.i("SCREENOMICS_HEALTH",
@@ -15,13 +15,11 @@ import android.util.Log;
 import androidx.preference.PreferenceManager;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.Iterator;
@@ -55,15 +53,17 @@ public class UploadService extends Service {
 
     private int numBatchesSending = 0;
     private int numBatchesToSend = 1;
-    private final List<Batch> batches = new ArrayList<>();
+    private UploadDispatcher.Lane lastBatchLane = UploadDispatcher.Lane.BACKLOG;
+    // Each keeps the order UploadQueue handed the files over in
+    private final ArrayDeque<Batch> classBatches = new ArrayDeque<>();
+    private final ArrayDeque<Batch> freshBatches = new ArrayDeque<>();
+    private final ArrayDeque<Batch> backlogBatches = new ArrayDeque<>();
 
     private OkHttpClient client;
     private ExecutorService executor;
     private LocalDateTime startDateTime;
     private volatile boolean backlogDrainMode = false;
 
-    private FileFilter onlyFilesBeforeStart;
-
     @Override public void onCreate() {
         super.onCreate();
         client = HttpClientProvider.get(this);
@@ -71,8 +71,8 @@ public class UploadService extends Service {
     }
 
     private synchronized void sendNextBatch() {
-        Log.d("SCREENOMICS_UPLOAD", "sendNextBatch called - Batches remaining: " + batches.size());
-        if (batches.isEmpty()) {
+        Log.d("SCREENOMICS_UPLOAD", "sendNextBatch called - Batches remaining: " + batchesQueued());
+        if (batchesQueued() == 0) {
             Log.d("SCREENOMICS_UPLOAD", "No more batches to send");
             return;
         }
@@ -85,7 +85,7 @@ public class UploadService extends Service {
             sendFailure("NOWIFI", "No WiFi connection");
             return;
         }
-        Batch batch = batches.remove(0);
+        Batch batch = nextBatch();
         numBatchesSending++;
         Log.i("SCREENOMICS_UPLOAD", "Sending batch " + numBatchesSending + "/" + numBatchesToSend + " with " + batch.size() + " files");
         Log.d("SCREENOMICS_UPLOAD", "Files to upload: " + numToUpload + ", Uploaded: " + numUploaded);
@@ -127,7 +127,7 @@ public class UploadService extends Service {
 
         setNotification("Uploading..", "Progress: " + numUploaded + "/" + numTotal);
 
-        if (!backlogDrainMode && numBatchesToSend < maxConcurrentBatches()) numBatchesToSend++;
+        numBatchesToSend = batchesToRun();
         for (int i = 0; i < numBatchesToSend; i++) sendNextBatch();
 
         if (numToUpload <= 0) {
@@ -141,7 +141,7 @@ public class UploadService extends Service {
 
     private synchronized void sendBatchFailure(Batch failedBatch, String code, String responseBody) {
         numBatchesSending--;
-        if (numBatchesToSend > 1) numBatchesToSend--;
+        numBatchesToSend = batchesToRun();
         numFailed += failedBatch.size();
         numToUpload -= failedBatch.size();
 
@@ -173,7 +173,7 @@ public class UploadService extends Service {
 
     private synchronized void sendBatchPartial(Batch batch, int successCount, int failCount, String responseBody) {
         numBatchesSending--;
-        if (numBatchesToSend > 1) numBatchesToSend--;
+        numBatchesToSend = batchesToRun();
         numUploaded += successCount;
         numFailed += failCount;
         numToUpload -= batch.size();
@@ -224,12 +224,15 @@ public class UploadService extends Service {
 
         boolean succeeded = (status == Status.SUCCESS);
         UploadScheduler.scheduleNextUploadCycle(getApplicationContext(), succeeded);
+        saveUploadState();
 
         uploading = false;
         backlogDrainMode = false;
         numBatchesToSend = 0;
         numBatchesSending = 0;
-        batches.clear();
+        classBatches.clear();
+        freshBatches.clear();
+        backlogBatches.clear();
         Log.d("SCREENOMICS_UPLOAD", "Service reset - Final stats: Uploaded " + numUploaded + "/" + numTotal);
     }
 
@@ -265,7 +268,9 @@ public class UploadService extends Service {
         }
 
         // Ensure no stale state leaks across upload runs.
-        batches.clear();
+        classBatches.clear();
+        freshBatches.clear();
+        backlogBatches.clear();
         numBatchesSending = 0;
         numBatchesToSend = 1;
 
@@ -273,20 +278,28 @@ public class UploadService extends Service {
         Log.d("SCREENOMICS_UPLOAD", "Continue without WiFi: " + continueWithoutWifi);
 
         File mainDir = new File(dirPath);
+        // What is pending comes from the index; the directory is only scanned
+        // the first time it is opened in this process, or when asked to.
+        UploadIndex index = UploadIndex.get(this, mainDir);
+        if (intent.getBooleanExtra("rescan", false)) {
+            index.reconcile();
+        }
 
         // Purge .enc/.meta files left by a previous participant registration
-        int purged = purgeStaleParticipantFiles(mainDir);
+        int purged = purgeStaleParticipantFiles(index, mainDir);
         if (purged > 0) {
             Log.i("SCREENOMICS_UPLOAD", "Purged " + purged + " stale participant files");
             Logger.i(getApplicationContext(), "Purged " + purged + " stale participant files from previous enrollment");
         }
 
-        int orphansPurged = purgeOrphanedEncFiles(mainDir);
+        int orphansPurged = purgeOrphanedEncFiles(index, mainDir);
         if (orphansPurged > 0) {
             Log.i("SCREENOMICS_UPLOAD", "Purged " + orphansPurged + " orphaned .enc files (>7d, no .meta)");
         }
+        // Saved resumable-upload progress for files deleted since
+        ResumableUpload.pruneProgress(this, mainDir);
 
-        int pendingBeforeRun = countFiles(mainDir);
+        int pendingBeforeRun = index.count();
         backlogDrainMode = pendingBeforeRun >= BACKLOG_DRAIN_THRESHOLD;
 
         if (backlogDrainMode) {
@@ -296,14 +309,13 @@ public class UploadService extends Service {
 
         startDateTime = LocalDateTime.now();
         final long startMillis = System.currentTimeMillis();
-        onlyFilesBeforeStart = file -> file.isFile() && file.lastModified() < startMillis;
 
         // --- Collect files from the encrypt directory ---
         Set<File> allFiles = new LinkedHashSet<>();
 
-        File[] files = mainDir.listFiles(onlyFilesBeforeStart);
-        if (files != null) allFiles.addAll(Arrays.asList(files));
-        Log.d("SCREENOMICS_UPLOAD", "Found " + (files != null ? files.length : 0) + " files in encrypt dir");
+        List<File> files = index.pending(startMillis);
+        allFiles.addAll(files);
+        Log.d("SCREENOMICS_UPLOAD", "Found " + files.size() + " pending files in upload index");
 
         if (allFiles.isEmpty()) {
             stopForeground(true);
@@ -311,10 +323,8 @@ public class UploadService extends Service {
             return START_NOT_STICKY;
         }
 
-        // Prepare working list
+        // Prepare working list (the index hands it over oldest-first)
         LinkedList<File> fileList = new LinkedList<>(allFiles);
-        // Oldest-first ordering helps drain long-lived backlog deterministically.
-        fileList.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
 
         // Clean up old-format files in-place (non JSON; only those that match encrypt naming)
         int removedCount = cleanupOldFormatFiles(fileList);
@@ -329,6 +339,8 @@ public class UploadService extends Service {
         if (batchSize <= 0) {
             batchSize = Constants.BATCH_SIZE_DEFAULT;
         }
+        batchSize = UploadRateController.get(this).suggestBatchSize(batchSize,
+                averageEncBytes(index, fileList));
         if (maxToSend < 0) {
             maxToSend = Constants.MAX_TO_SEND_DEFAULT;
         }
@@ -338,16 +350,27 @@ public class UploadService extends Service {
             maxToSend = 0;
         }
 
+        // Telemetry and diagnostics ahead of bulk screenshots, without starving them
+        UploadQueue queue = new UploadQueue();
+        for (File file : fileList) queue.add(file, index.bytesOf(file.getName()));
+        Log.d("SCREENOMICS_UPLOAD", "Queued by class - keys: " + queue.depth(UploadQueue.Priority.KEYS)
+                + ", telemetry: " + queue.depth(UploadQueue.Priority.TELEMETRY)
+                + ", diagnostics: " + queue.depth(UploadQueue.Priority.DIAGNOSTICS)
+                + ", screenshots: " + queue.depth(UploadQueue.Priority.SCREENSHOTS));
+
         numToUpload = 0;
+        long freshAfterMs = startMillis - UploadDispatcher.FRESH_AGE_MS;
 
         Log.d("SCREENOMICS_UPLOAD", "Creating batches - Batch size: " + batchSize + ", Max to send: " + maxToSend);
-        while (!fileList.isEmpty() && (maxToSend == 0 || numToUpload < maxToSend)) {
+        while (!queue.isEmpty() && (maxToSend == 0 || numToUpload < maxToSend)) {
             List<File> nextBatch = new LinkedList<>();
+            boolean fresh = false;
+            boolean ranked = false;
             for (int i = 0; i < batchSize; i++) {
-                if (fileList.peek() == null) break;
+                if (queue.isEmpty()) break;
                 if (maxToSend != 0 && numToUpload == maxToSend) break;
 
-                File file = fileList.remove();
+                File file = queue.poll();
 
                 // Skip .meta sidecars (they are processed alongside their .enc partner by Batch)
                 String nameLower = file.getName().toLowerCase();
@@ -359,11 +382,17 @@ public class UploadService extends Service {
                 Log.d("SCREENOMICS_UPLOAD", "Adding to batch: " + file.getName());
                 numToUpload++;
                 nextBatch.add(file);
+                // Fresh if any of its files is; from the index, not a stat per file
+                fresh |= index.writtenMsOf(file.getName()) >= freshAfterMs;
+                ranked |= UploadQueue.classify(file.getName()) != UploadQueue.Priority.SCREENSHOTS;
             }
             if (!nextBatch.isEmpty()) {
-                Batch batch = new Batch(this, nextBatch, client);
-                batches.add(batch);
-                Log.d("SCREENOMICS_UPLOAD", "Created batch " + batches.size() + " with " + nextBatch.size() + " files");
+                UploadDispatcher.Lane lane = fresh
+                        ? UploadDispatcher.Lane.FRESH : UploadDispatcher.Lane.BACKLOG;
+                Batch batch = new Batch(this, nextBatch, client, lane);
+                (ranked ? classBatches : fresh ? freshBatches : backlogBatches).add(batch);
+                Log.d("SCREENOMICS_UPLOAD", "Created batch " + batchesQueued() + " (" + lane
+                        + ") with " + nextBatch.size() + " files");
             }
         }
 
@@ -373,11 +402,13 @@ public class UploadService extends Service {
         numBatchesToSend = 1;
 
         Log.i("SCREENOMICS_UPLOAD", "Upload initialized:");
-        Log.i("SCREENOMICS_UPLOAD", "  - Total batches: " + batches.size());
+        Log.i("SCREENOMICS_UPLOAD", "  - Total batches: " + batchesQueued()
+                + " (keys/telemetry/diagnostics: " + classBatches.size()
+                + ", fresh: " + freshBatches.size() + ", backlog: " + backlogBatches.size() + ")");
         Log.i("SCREENOMICS_UPLOAD", "  - Total files to upload: " + numToUpload);
-        Log.i("SCREENOMICS_UPLOAD", "  - Files remaining unqueued: " + fileList.size());
+        Log.i("SCREENOMICS_UPLOAD", "  - Files remaining unqueued: " + queue.size());
 
-        if (batches.isEmpty()) {
+        if (batchesQueued() == 0) {
             Log.i("SCREENOMICS_UPLOAD", "No uploadable batches found; finishing without upload");
             status = Status.SUCCESS;
             errorCode = "";
@@ -407,6 +438,18 @@ public class UploadService extends Service {
             Log.w("SCREENOMICS_UPLOAD", "Interrupted while awaiting executor termination");
             Thread.currentThread().interrupt();
         }
+        // Stopped mid-run: keep what this run learned
+        saveUploadState();
+    }
+
+    /**
+     * Persist the rate controller, transfer telemetry and metrics. Once per
+     * run, not per batch: each save rewrites the whole preferences file.
+     */
+    private void saveUploadState() {
+        UploadRateController.get(this).save(this);
+        UploadTelemetry.get(this).save(this);
+        Metrics.save(this);
     }
 
     public class LocalBinder extends Binder { UploadService getService() { return UploadService.this; } }
@@ -494,6 +537,55 @@ public class UploadService extends Service {
         }
     }
 
+    private int batchesQueued() {
+        return classBatches.size() + freshBatches.size() + backlogBatches.size();
+    }
+
+    /**
+     * Batches are built in UploadQueue's order: by class, deficit round robin
+     * between classes, oldest-first within each. Any batch holding a session
+     * key, telemetry or diagnostics goes in that order, ahead of the rest;
+     * reordering them could send a screenshot before the key it is sealed
+     * under, or put telemetry back behind the backlog. Batches of only
+     * screenshots alternate between fresh and backlog, so a long backlog
+     * does not hold recent captures back until it has drained. Caller holds
+     * the lock and has checked a batch is queued.
+     */
+    private Batch nextBatch() {
+        if (!classBatches.isEmpty()) return classBatches.poll();
+        boolean wantFresh = lastBatchLane != UploadDispatcher.Lane.FRESH;
+        ArrayDeque<Batch> lane = wantFresh ? freshBatches : backlogBatches;
+        if (lane.isEmpty()) lane = wantFresh ? backlogBatches : freshBatches;
+        lastBatchLane = lane == freshBatches
+                ? UploadDispatcher.Lane.FRESH : UploadDispatcher.Lane.BACKLOG;
+        return lane.poll();
+    }
+
+    /**
+     * Batches to keep running. Each batch puts all its files on the
+     * dispatcher at once, so a couple of batches keep the rate controller's
+     * window full; more would only queue. One while draining a backlog.
+     */
+    private int batchesToRun() {
+        if (backlogDrainMode) return 1;
+        int wanted = (int) Math.ceil(UploadRateController.get(this).window() / 2.0);
+        return Math.max(1, Math.min(maxConcurrentBatches(), wanted));
+    }
+
+    /** Mean recorded size of the pending .enc files, sidecars included. */
+    private static long averageEncBytes(UploadIndex index, List<File> files) {
+        long total = 0;
+        int count = 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(".enc")) {
+                total += index.bytesOf(name);
+                count++;
+            }
+        }
+        return count > 0 ? total / count : 0;
+    }
+
     private int maxConcurrentBatches() {
         return Math.max(1, Math.min(Constants.MAX_BATCHES_TO_SEND, MAX_CONCURRENT_BATCHES_SOFT_CAP));
     }
@@ -502,64 +594,72 @@ public class UploadService extends Service {
      * Delete .enc and .meta files whose 8-char hex prefix doesn't match the
      * current participant hash.  These are leftovers from a previous enrollment
      * and will always 500 on the server -- no point retrying them forever.
+     * Pending files come from the index; a .meta whose .enc is already gone
+     * from the stray sidecars its last reconciliation found.
      */
-    private int purgeStaleParticipantFiles(File encryptDir) {
+    private int purgeStaleParticipantFiles(UploadIndex index, File encryptDir) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         String hashFull = prefs.getString("hash", "");
         if (hashFull.length() < 8) return 0;
         String currentPrefix = hashFull.substring(0, 8);
 
-        File[] files = encryptDir.listFiles();
-        if (files == null) return 0;
-
         int purged = 0;
-        Pattern hexPattern = Pattern.compile("[0-9a-f]{8}");
-        for (File file : files) {
-            String name = file.getName();
-            if (!name.endsWith(".enc") && !name.endsWith(".meta")) continue;
-
-            String[] parts = name.split("_");
-            if (parts.length < 2) continue;
-
-            String prefix = parts[0];
-            if (prefix.length() != 8) continue;
-            if (!hexPattern.matcher(prefix).matches()) continue;
-            if (prefix.equals(currentPrefix)) continue;
+        for (UploadIndex.Entry entry : index.entries()) {
+            String name = entry.name;
+            if (!name.endsWith(".enc")) continue;
+            if (!hasHexPrefix(name) || name.startsWith(currentPrefix)) continue;
 
-            if (file.delete()) {
+            File file = new File(encryptDir, name);
+            File meta = new File(encryptDir, name.substring(0, name.length() - 4) + ".meta");
+            if (file.delete() || !file.exists()) {
                 purged++;
+                if (meta.delete()) purged++;
+                index.removed(name);
                 Log.d("SCREENOMICS_UPLOAD", "Purged stale file: " + name);
             }
         }
+        for (String name : index.strayMeta()) {
+            if (!hasHexPrefix(name) || name.startsWith(currentPrefix)) continue;
+            File meta = new File(encryptDir, name);
+            if (meta.delete() || !meta.exists()) {
+                purged++;
+                index.strayMetaRemoved(name);
+                Log.d("SCREENOMICS_UPLOAD", "Purged stale sidecar: " + name);
+            }
+        }
         return purged;
     }
 
+    /** True for names starting "xxxxxxxx_" with eight lowercase hex digits. */
+    private static boolean hasHexPrefix(String name) {
+        if (name.length() < 9 || name.charAt(8) != '_') return false;
+        for (int i = 0; i < 8; i++) {
+            char c = name.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) return false;
+        }
+        return true;
+    }
+
     /**
      * Delete .enc files older than 7 days that have no matching .meta sidecar.
      * These are unrecoverable (the AES key metadata is missing).
      */
-    private int purgeOrphanedEncFiles(File encryptDir) {
-        File[] files = encryptDir.listFiles();
-        if (files == null) return 0;
+    private int purgeOrphanedEncFiles(UploadIndex index, File encryptDir) {
         long cutoffMs = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(7);
         int purged = 0;
-        for (File file : files) {
-            String name = file.getName();
-            if (!name.endsWith(".enc")) continue;
-            if (file.lastModified() > cutoffMs) continue;
+        for (UploadIndex.Entry entry : index.entries()) {
+            String name = entry.name;
+            // The index knows which had a sidecar; only those without are checked on disk
+            if (entry.hasMeta || !name.endsWith(".enc")) continue;
+            if (entry.writtenMs > cutoffMs) continue;
             String metaName = name.substring(0, name.length() - 4) + ".meta";
             if (new File(encryptDir, metaName).exists()) continue;
-            if (file.delete()) {
+            if (new File(encryptDir, name).delete()) {
                 purged++;
+                index.removed(name);
                 Log.d("SCREENOMICS_UPLOAD", "Purged orphaned .enc (>7d, no .meta): " + name);
             }
         }
         return purged;
     }
-
-    private int countFiles(File dir) {
-        if (dir == null || !dir.exists() || !dir.isDirectory()) return 0;
-        File[] files = dir.listFiles();
-        return files == null ? 0 : files.length;
-    }
 }
@@ -0,0 +1,332 @@
+package com.screenomics;
+
+import android.content.Context;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Per-request timings for everything the shared OkHttp client sends.
+ *
+ * The uploader reported how many files went up and how many failed, and
+ * little else, so "uploads at this site take all night" could only be
+ * diagnosed from logcat -- which means getting hold of the phone. An
+ * EventListener on {@link HttpClientProvider}'s client now times each call's
+ * phases:
+ *
+ *   dns      lookup, when the call needed one
+ *   connect  TCP connect, when no pooled connection was reused
+ *   tls      handshake, within connect
+ *   send     writing the request headers and body
+ *   ttfb     end of the request to the first byte of the response
+ *   total    the whole call, failed ones included
+ *
+ * and counts calls by status class, bytes each way, and calls that were a
+ * retry ({@link Attempt} tag above 1). A drain that is slow because of DNS, a
+ * captive TLS proxy, a thin uplink or a slow receiver shows up as a
+ * different phase.
+ *
+ * Each phase is a {@link Metrics} histogram ("upload_<phase>"), saved and
+ * reported with the rest of the registry. The counts here are monotonic
+ * counters, saved to preferences with the rate controller's, once at the
+ * end of each upload run, and restored on first use, so a killed process
+ * loses at most the run in progress. The heartbeat reports the difference
+ * from the last state the server acknowledged (see {@link #interval}).
+ */
+final class UploadTelemetry {
+
+    private static final String PREF_STATE = "upload_telemetry_state";
+
+    enum Phase {
+        DNS, CONNECT, TLS, SEND, TTFB, TOTAL;
+
+        String key() {
+            return name().toLowerCase(Locale.US);
+        }
+    }
+
+    /** Request tag: which attempt at this upload a call is, counting from 1. */
+    static final class Attempt {
+        final int number;
+
+        Attempt(int number) {
+            this.number = number;
+        }
+    }
+
+    private static volatile UploadTelemetry INSTANCE;
+
+    private final Metrics.Histogram[] phases = new Metrics.Histogram[Phase.values().length];
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong sendMs = new AtomicLong();
+    // 1xx..5xx; out-of-range codes are clamped into the nearest
+    private final AtomicLongArray statusClasses = new AtomicLongArray(5);
+
+    UploadTelemetry() {
+        for (Phase p : Phase.values()) phases[p.ordinal()] = Metrics.histogram("upload_" + p.key());
+    }
+
+    static UploadTelemetry get(Context context) {
+        UploadTelemetry t = INSTANCE;
+        if (t == null) {
+            synchronized (UploadTelemetry.class) {
+                if (INSTANCE == null) {
+                    UploadTelemetry fresh = new UploadTelemetry();
+                    fresh.restore(PreferenceManager.getDefaultSharedPreferences(context)
+                            .getString(PREF_STATE, ""));
+                    INSTANCE = fresh;
+                }
+                t = INSTANCE;
+            }
+        }
+        return t;
+    }
+
+    static synchronized void resetForTest() {
+        INSTANCE = null;
+    }
+
+    /** For OkHttpClient.Builder#eventListenerFactory: one listener per call. */
+    EventListener.Factory factory() {
+        return call -> new Listener();
+    }
+
+    Metrics.Histogram phase(Phase p) {
+        return phases[p.ordinal()];
+    }
+
+    long requests() {
+        return requests.get();
+    }
+
+    long failed() {
+        return failed.get();
+    }
+
+    long retried() {
+        return retried.get();
+    }
+
+    private static long ms(long fromNanos, long toNanos) {
+        return Math.max(0, (toNanos - fromNanos) / 1_000_000L);
+    }
+
+    /**
+     * Times one call. OkHttp calls a listener from the calling thread only,
+     * so the fields need no locking; the totals they feed are atomic.
+     */
+    private final class Listener extends EventListener {
+        private long callStart;
+        private long dnsStart;
+        private long connectStart;
+        private long tlsStart;
+        private long sendStart;
+        private long requestEnd;
+        private long sent;
+        private long received;
+        private int status;
+
+        @Override
+        public void callStart(Call call) {
+            callStart = System.nanoTime();
+            Attempt attempt = call.request().tag(Attempt.class);
+            if (attempt != null && attempt.number > 1) retried.incrementAndGet();
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            phase(Phase.DNS).record(ms(dnsStart, System.nanoTime()));
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            tlsStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            phase(Phase.TLS).record(ms(tlsStart, System.nanoTime()));
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                               Protocol protocol) {
+            phase(Phase.CONNECT).record(ms(connectStart, System.nanoTime()));
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            sendStart = System.nanoTime();
+        }
+
+        @Override
+        public void requestHeadersEnd(Call call, Request request) {
+            requestEnd = System.nanoTime();
+        }
+
+        @Override
+        public void requestBodyEnd(Call call, long byteCount) {
+            requestEnd = System.nanoTime();
+            sent += byteCount;
+            sendMs.addAndGet(ms(sendStart, requestEnd));
+            phase(Phase.SEND).record(ms(sendStart, requestEnd));
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            if (requestEnd != 0) phase(Phase.TTFB).record(ms(requestEnd, System.nanoTime()));
+        }
+
+        @Override
+        public void responseHeadersEnd(Call call, Response response) {
+            status = response.code();
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            received += byteCount;
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            finish(false);
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            finish(true);
+        }
+
+        private void finish(boolean callFailed) {
+            phase(Phase.TOTAL).record(ms(callStart, System.nanoTime()));
+            requests.incrementAndGet();
+            bytesSent.addAndGet(sent);
+            bytesReceived.addAndGet(received);
+            if (callFailed || status == 0) {
+                failed.incrementAndGet();
+            } else {
+                statusClasses.incrementAndGet(Math.max(0, Math.min(4, status / 100 - 1)));
+            }
+        }
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("requests", requests.get());
+        obj.put("failed", failed.get());
+        obj.put("retried", retried.get());
+        obj.put("bytes_sent", bytesSent.get());
+        obj.put("bytes_received", bytesReceived.get());
+        obj.put("send_ms", sendMs.get());
+        JSONObject status = new JSONObject();
+        for (int i = 0; i < statusClasses.length(); i++) {
+            status.put((i + 1) + "xx", statusClasses.get(i));
+        }
+        obj.put("status", status);
+        return obj;
+    }
+
+    /** Persist the counters, so a restarted process and the heartbeat carry on from them. */
+    void save(Context context) {
+        try {
+            String json = toJson().toString();
+            PreferenceManager.getDefaultSharedPreferences(context).edit()
+                    .putString(PREF_STATE, json).apply();
+        } catch (JSONException ignored) {
+            // Nothing useful to save
+        }
+    }
+
+    private void restore(String json) {
+        if (json == null || json.isEmpty()) return;
+        try {
+            JSONObject obj = new JSONObject(json);
+            requests.set(obj.optLong("requests", 0));
+            failed.set(obj.optLong("failed", 0));
+            retried.set(obj.optLong("retried", 0));
+            bytesSent.set(obj.optLong("bytes_sent", 0));
+            bytesReceived.set(obj.optLong("bytes_received", 0));
+            sendMs.set(obj.optLong("send_ms", 0));
+            JSONObject status = obj.optJSONObject("status");
+            if (status != null) {
+                for (int i = 0; i < statusClasses.length(); i++) {
+                    statusClasses.set(i, status.optLong((i + 1) + "xx", 0));
+                }
+            }
+        } catch (JSONException ignored) {
+            // Start from zero
+        }
+    }
+
+    /**
+     * Flat heartbeat fields for the calls between {@code reported} (the state
+     * the server last acknowledged, or null) and {@code current}. As with the
+     * heartbeat's other counters, a state that went backwards means cleared
+     * data, and the current one is taken whole. Phase percentiles come from
+     * {@link Metrics#interval}.
+     */
+    static JSONObject interval(JSONObject current, JSONObject reported) throws JSONException {
+        if (reported == null || current.optLong("requests", 0) < reported.optLong("requests", 0)) {
+            reported = new JSONObject();
+        }
+        JSONObject out = new JSONObject();
+        out.put("upload_requests_since_last_report", delta(current, reported, "requests"));
+        out.put("upload_failed_since_last_report", delta(current, reported, "failed"));
+        out.put("upload_retried_since_last_report", delta(current, reported, "retried"));
+        long sent = delta(current, reported, "bytes_sent");
+        long sendMs = delta(current, reported, "send_ms");
+        out.put("upload_bytes_sent_since_last_report", sent);
+        out.put("upload_bytes_received_since_last_report",
+                delta(current, reported, "bytes_received"));
+        out.put("upload_throughput_bytes_per_s", sendMs > 0 ? sent * 1000L / sendMs : 0);
+
+        JSONObject status = current.optJSONObject("status");
+        JSONObject reportedStatus = reported.optJSONObject("status");
+        if (status != null) {
+            for (int i = 1; i <= 5; i++) {
+                String key = i + "xx";
+                out.put("upload_status_" + key + "_since_last_report",
+                        delta(status, reportedStatus != null ? reportedStatus : new JSONObject(), key));
+            }
+        }
+        return out;
+    }
+
+    private static long delta(JSONObject current, JSONObject reported, String key) {
+        long now = current.optLong(key, 0);
+        long then = reported.optLong(key, 0);
+        return now >= then ? now - then : now;
+    }
+}
@@ -73,6 +73,15 @@ public class BehaviorContext {
      * Called every 5s from the capture service. Fast (~200ms for OCR).
      */
     public synchronized void addFrame(Bitmap bitmap, String foregroundApp, double lat, double lon) {
+        addFrame(bitmap, foregroundApp, lat, lon, true);
+    }
+
+    /**
+     * @param ownsBitmap whether to recycle the bitmap after OCR; false for a
+     *                   pooled frame the caller releases itself
+     */
+    public synchronized void addFrame(Bitmap bitmap, String foregroundApp, double lat, double lon,
+                                      boolean ownsBitmap) {
         Snapshot snap = new Snapshot();
         snap.timestampMs = System.currentTimeMillis();
         snap.timeStr = new SimpleDateFormat("h:mm:ss a", Locale.US).format(new Date(snap.timestampMs));
@@ -116,7 +125,7 @@ public class BehaviorContext {
         }
 
         // Recycle bitmap after OCR
-        if (bitmap != null && !bitmap.isRecycled()) {
+        if (ownsBitmap && bitmap != null && !bitmap.isRecycled()) {
             bitmap.recycle();
         }
 
@@ -48,9 +48,12 @@ public class GlassPhotoAssembler {
             if (jpeg.length == 0) return null; // joined mid-stream; nothing buffered yet
             if (valid(jpeg)) {
                 orientation = imgOrientation; // expose THIS image's orientation to the caller
+                Metrics.counter("ble_photos").inc();
+                Metrics.counter("ble_photo_bytes").add(jpeg.length);
                 return jpeg;
             }
             Log.w(TAG, "end-of-image marker but invalid JPEG (len=" + jpeg.length + "), dropping");
+            Metrics.counter("ble_photos_dropped").inc();
             return null;
         }
 
@@ -71,11 +74,13 @@ public class GlassPhotoAssembler {
             }
             if (idx != expected) {
                 Log.w(TAG, "frame gap idx=" + idx + " expected=" + expected + ", dropping image");
+                Metrics.counter("ble_photos_dropped").inc();
                 reset();
                 return null;
             }
             if (buf.size() + b.length > MAX_IMAGE_BYTES) {
                 Log.w(TAG, "image exceeded " + MAX_IMAGE_BYTES + " bytes without end marker, dropping");
+                Metrics.counter("ble_photos_dropped").inc();
                 reset();
                 return null;
             }
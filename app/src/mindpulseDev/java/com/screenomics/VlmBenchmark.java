@@ -161,6 +161,33 @@ public class VlmBenchmark {
         }
     }
 
+    /**
+     * Pooled-frame variant: the caller hands over one reference, released here
+     * once OCR has read it. No copy of the frame is made.
+     */
+    void submitFrame(FramePool.Frame frame, String foregroundApp, double lat, double lon) {
+        Handler h = workerHandler;
+        if (!running.get() || !modelLoaded.get() || h == null) {
+            frame.release();
+            return;
+        }
+        boolean posted = h.post(() -> {
+            try {
+                BehaviorContext bc = behaviorContext;
+                if (!running.get() || bc == null) return;
+                bc.addFrame(frame.bitmap(), foregroundApp, lat, lon, false);
+                int count = bc.getSnapshotCount();
+                notifyStatus(String.format(Locale.US, "Collecting... %d snapshots in window", count));
+            } finally {
+                frame.release();
+            }
+        });
+        if (!posted) {
+            skippedFrames.incrementAndGet();
+            frame.release();
+        }
+    }
+
     /** Schedule periodic window flush */
     private void scheduleWindowFlush() {
         if (!running.get() || windowHandler == null) return;
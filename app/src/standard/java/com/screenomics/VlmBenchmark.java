@@ -38,6 +38,10 @@ public class VlmBenchmark {
         if (bitmap != null && !bitmap.isRecycled()) bitmap.recycle();
     }
 
+    void submitFrame(FramePool.Frame frame, String foregroundApp, double lat, double lon) {
+        frame.release();
+    }
+
     public File getLogFile() { return null; }
 
     public static void runEmbeddingBenchmark(Context ctx, String modelPath, String mmprojPath,
@@ -0,0 +1,171 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * Multi-file upload mode against a stand-in receiver: packing under the
+ * byte budget, and deleting only what the receiver acknowledged.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BatchMultiUploadTest {
+
+    private Context context;
+    private SharedPreferences prefs;
+    private MockWebServer server;
+    private FakeReceiver receiver;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.getApplication();
+        prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        prefs.edit().clear().commit();
+
+        receiver = new FakeReceiver();
+        server = new MockWebServer();
+        server.setDispatcher(receiver);
+        server.start();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        FakeAndroidKeyStore.install("mindpulse_client_key", generator.generateKeyPair().getPrivate());
+
+        prefs.edit()
+                .putString("ppt_id", "ppt-bulk-0001")
+                .putString("study_id", "7")
+                .putString("base_url", server.url("").toString().replaceAll("/$", ""))
+                .putBoolean(Batch.PREF_MULTI_FILE, true)
+                .commit();
+
+        dir = new File(context.getFilesDir(), "encrypt");
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        File[] left = dir.listFiles();
+        if (left != null) for (File f : left) f.delete();
+    }
+
+    /** An .enc of {@code size} bytes with a sidecar; returns the .enc. */
+    private File pair(String base, int size) throws Exception {
+        File enc = new File(dir, base + ".enc");
+        try (FileOutputStream out = new FileOutputStream(enc)) {
+            out.write(new byte[size]);
+        }
+        try (FileOutputStream out = new FileOutputStream(new File(dir, base + ".meta"))) {
+            out.write("{\"mime\":\"image/jpeg\",\"type\":\"image\"}".getBytes(StandardCharsets.UTF_8));
+        }
+        return enc;
+    }
+
+    private static boolean withSidecar(File enc) {
+        String name = enc.getName();
+        return enc.exists()
+                && new File(enc.getParentFile(), name.substring(0, name.length() - 4) + ".meta").exists();
+    }
+
+    @Test
+    public void pairsWithinTheBudgetGoInOneRequest() throws Exception {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 5; i++) files.add(pair("h_" + i + "_image", 1000));
+
+        String[] result = new Batch(context, files).sendFiles();
+
+        assertEquals("202", result[0]);
+        assertEquals(1, receiver.bulkRequests.get());
+        assertEquals(0, receiver.singleRequests.get());
+        assertEquals(5, receiver.stored.size());
+        for (File f : files) assertFalse(f.getName() + " kept", f.exists());
+    }
+
+    @Test
+    public void theByteBudgetSplitsRequests() throws Exception {
+        prefs.edit().putInt(Batch.PREF_MULTI_MAX_BYTES, 2500).commit();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 5; i++) files.add(pair("h_" + i + "_image", 1000));
+
+        new Batch(context, files).sendFiles();
+
+        assertEquals(3, receiver.bulkRequests.get());
+        assertEquals(5, receiver.stored.size());
+    }
+
+    @Test
+    public void mixedResultsDeleteOnlyAcknowledgedFiles() throws Exception {
+        File accepted = pair("h_1_image", 800);
+        File duplicate = pair("h_2_image", 800);
+        File rejected = pair("h_3_image", 800);
+        receiver.stored.add(duplicate.getName());
+        receiver.rejected.add(rejected.getName());
+
+        String[] result = new Batch(context, List.of(accepted, duplicate, rejected)).sendFiles();
+
+        assertEquals("207", result[0]);
+        assertEquals("OK=2 FAIL=1 SKIP=0", result[1]);
+        assertFalse(accepted.exists());
+        assertFalse("the receiver already had it", duplicate.exists());
+        assertTrue("rejected files stay for the next run", withSidecar(rejected));
+    }
+
+    @Test
+    public void anOlderReceiverGetsSingleUploads() throws Exception {
+        receiver.bulkEnabled = false;
+        List<File> files = List.of(pair("h_1_image", 500), pair("h_2_image", 500));
+
+        String[] result = new Batch(context, files).sendFiles();
+
+        assertEquals("202", result[0]);
+        assertEquals(2, receiver.singleRequests.get());
+        for (File f : files) assertFalse(f.exists());
+    }
+
+    @Test
+    public void singleModeIsTheDefault() throws Exception {
+        prefs.edit().remove(Batch.PREF_MULTI_FILE).commit();
+        List<File> files = List.of(pair("h_1_image", 500), pair("h_2_image", 500));
+
+        new Batch(context, files).sendFiles();
+
+        assertEquals(0, receiver.bulkRequests.get());
+        assertEquals(2, receiver.singleRequests.get());
+    }
+
+    @Test
+    public void anUnreadableResponseAcknowledgesNothing() {
+        assertTrue(Batch.acknowledged("<html>bad gateway</html>").isEmpty());
+        Set<String> ok = Batch.acknowledged("{\"results\":["
+                + "{\"filename\":\"a.enc\",\"status\":202},"
+                + "{\"filename\":\"b.enc\",\"status\":409,\"error\":\"duplicate_screenshot\"},"
+                + "{\"filename\":\"c.enc\",\"status\":409,\"error\":\"conflict\"},"
+                + "{\"status\":202}]}");
+        assertEquals(Set.of("a.enc", "b.enc"), ok);
+    }
+}
@@ -0,0 +1,135 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+
+import androidx.preference.PreferenceManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * The streamed request-body digest: the same hash as buffering the whole
+ * multipart body the way HttpSignatureInterceptor used to, and the Digest
+ * header Batch sets matches what goes on the wire.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BodyDigestTest {
+
+    // Several of the digest's read buffers, plus a remainder
+    private static final int FILE_BYTES = 256 * 1024 + 17;
+    private static final MediaType OCTET = MediaType.parse("application/octet-stream");
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private File dir;
+    private File enc;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("body-digest").toFile();
+        enc = new File(dir, "h_1_logcat.enc");
+        byte[] data = new byte[FILE_BYTES];
+        new Random(1).nextBytes(data);
+        try (FileOutputStream out = new FileOutputStream(enc)) {
+            out.write(data);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        File[] left = dir.listFiles();
+        if (left != null) for (File f : left) f.delete();
+        dir.delete();
+    }
+
+    private RequestBody body() {
+        return new MultipartBody.Builder().setType(MultipartBody.FORM)
+                .addFormDataPart("metadata", null, RequestBody.create(JSON, "{\"type\":\"logcat\"}"))
+                .addFormDataPart("file", enc.getName(), RequestBody.create(OCTET, enc))
+                .build();
+    }
+
+    /** The interceptor's previous digestBody. */
+    private static byte[] buffered(RequestBody body) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        Buffer buf = new Buffer();
+        body.writeTo(buf);
+        byte[] chunk = new byte[8192];
+        while (!buf.exhausted()) {
+            int read = buf.read(chunk);
+            if (read > 0) md.update(chunk, 0, read);
+        }
+        return md.digest();
+    }
+
+    @Test
+    public void bothWaysAgree() throws Exception {
+        RequestBody body = body();
+        assertArrayEquals(buffered(body), BodyDigest.sha256(body));
+        assertEquals("SHA-256=47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=",
+                BodyDigest.header(null));
+    }
+
+    @Test
+    public void theDigestBatchSetsMatchesTheBodySent() throws Exception {
+        Context context = RuntimeEnvironment.getApplication();
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new FakeReceiver());
+        server.start();
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            FakeAndroidKeyStore.install("mindpulse_client_key",
+                    generator.generateKeyPair().getPrivate());
+            PreferenceManager.getDefaultSharedPreferences(context).edit().clear()
+                    .putString("ppt_id", "ppt-digest-0001")
+                    .putString("study_id", "7")
+                    .putString("base_url", server.url("").toString().replaceAll("/$", ""))
+                    .commit();
+            File encDir = new File(context.getFilesDir(), "encrypt");
+            encDir.mkdirs();
+            File small = new File(encDir, "h_2_image.enc");
+            try (FileOutputStream out = new FileOutputStream(small)) {
+                out.write(new byte[4096]);
+            }
+            try (FileOutputStream out = new FileOutputStream(new File(encDir, "h_2_image.meta"))) {
+                out.write("{\"type\":\"image\"}".getBytes(StandardCharsets.UTF_8));
+            }
+
+            new Batch(context, List.of(small)).sendFiles();
+
+            server.takeRequest();   // batch create
+            RecordedRequest upload = server.takeRequest();
+            byte[] sent = upload.getBody().readByteArray();
+            String expected = "SHA-256=" + android.util.Base64.encodeToString(
+                    MessageDigest.getInstance("SHA-256").digest(sent), android.util.Base64.NO_WRAP);
+            assertEquals(expected, upload.getHeader("Digest"));
+        } finally {
+            server.shutdown();
+        }
+    }
+}
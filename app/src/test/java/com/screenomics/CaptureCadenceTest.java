@@ -0,0 +1,108 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+
+import androidx.preference.PreferenceManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/**
+ * Capture cadence: backing off on static screens, speeding up on change, and
+ * a fixed rate when a study pins one.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class CaptureCadenceTest {
+
+    private static final String APP = "com.example.reader";
+
+    private static FrameDedup.Fingerprint screen(long pattern) {
+        return new FrameDedup.Fingerprint(new long[]{pattern, pattern, pattern, pattern}, 128);
+    }
+
+    @Test
+    public void aStaticScreenBacksOffToTheCeiling() {
+        CaptureCadence cadence = new CaptureCadence(new CaptureCadence.AdaptivePolicy());
+        assertEquals(CaptureCadence.BASE_INTERVAL_MS, cadence.observe(screen(0), APP));
+        assertEquals(7_500L, cadence.observe(screen(0), APP));
+        assertEquals(11_250L, cadence.observe(screen(0), APP));
+        assertEquals(CaptureCadence.MAX_INTERVAL_MS, cadence.observe(screen(0), APP));
+        assertEquals(CaptureCadence.MAX_INTERVAL_MS, cadence.observe(screen(0), APP));
+        assertEquals(CaptureCadence.MAX_INTERVAL_MS, cadence.currentIntervalMs());
+    }
+
+    @Test
+    public void oneChangeRestoresTheBaseAndASecondGoesFast() {
+        CaptureCadence cadence = new CaptureCadence(new CaptureCadence.AdaptivePolicy());
+        cadence.observe(screen(0), APP);
+        cadence.observe(screen(0), APP);
+        cadence.observe(screen(0), APP);
+
+        assertEquals(CaptureCadence.BASE_INTERVAL_MS, cadence.observe(screen(-1L), APP));
+        assertEquals(CaptureCadence.FAST_INTERVAL_MS, cadence.observe(screen(0), APP));
+        // Settling again returns to the base before backing off further
+        assertEquals(CaptureCadence.BASE_INTERVAL_MS, cadence.observe(screen(0), APP));
+    }
+
+    @Test
+    public void aForegroundAppSwitchGoesFast() {
+        CaptureCadence cadence = new CaptureCadence(new CaptureCadence.AdaptivePolicy());
+        cadence.observe(screen(0), APP);
+        cadence.observe(screen(0), APP);
+        assertEquals(CaptureCadence.FAST_INTERVAL_MS,
+                cadence.observe(screen(0), "com.example.other"));
+    }
+
+    @Test
+    public void aBrightnessChangeAloneCountsAsChange() {
+        CaptureCadence cadence = new CaptureCadence(new CaptureCadence.AdaptivePolicy());
+        cadence.observe(screen(0), APP);
+        cadence.observe(screen(0), APP);
+        FrameDedup.Fingerprint dark = new FrameDedup.Fingerprint(new long[4], 10);
+        assertEquals(CaptureCadence.BASE_INTERVAL_MS, cadence.observe(dark, APP));
+    }
+
+    @Test
+    public void resetForgetsThePreviousFrame() {
+        CaptureCadence cadence = new CaptureCadence(new CaptureCadence.AdaptivePolicy());
+        cadence.observe(screen(0), APP);
+        cadence.observe(screen(0), APP);
+        cadence.reset();
+        assertEquals(CaptureCadence.BASE_INTERVAL_MS, cadence.currentIntervalMs());
+        // No previous frame, so no app switch either
+        assertEquals(CaptureCadence.BASE_INTERVAL_MS, cadence.observe(screen(0), "com.example.other"));
+    }
+
+    @Test
+    public void fixedPolicyIgnoresContentAndStaysInBounds() {
+        CaptureCadence cadence = new CaptureCadence(new CaptureCadence.FixedPolicy(3_000L));
+        assertEquals(3_000L, cadence.currentIntervalMs());
+        assertEquals(3_000L, cadence.observe(screen(0), APP));
+        assertEquals(3_000L, cadence.observe(screen(-1L), "com.example.other"));
+
+        assertEquals(CaptureCadence.MIN_INTERVAL_MS,
+                new CaptureCadence.FixedPolicy(200L).initialIntervalMs());
+        assertEquals(CaptureCadence.MAX_INTERVAL_MS,
+                new CaptureCadence.FixedPolicy(60_000L).initialIntervalMs());
+    }
+
+    @Test
+    public void policyComesFromPreferences() {
+        Context context = RuntimeEnvironment.getApplication();
+        assertEquals("adaptive", CaptureCadence.policyFromPrefs(context).name());
+
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(CaptureCadence.PREF_POLICY, "fixed")
+                .putInt(CaptureCadence.PREF_FIXED_INTERVAL_MS, 10_000)
+                .commit();
+        CaptureCadence.Policy policy = CaptureCadence.policyFromPrefs(context);
+        assertEquals("fixed", policy.name());
+        assertEquals(10_000L, policy.initialIntervalMs());
+    }
+}
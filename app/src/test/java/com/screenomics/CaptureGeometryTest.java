@@ -0,0 +1,97 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Rect;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/**
+ * Resolution tiers and the system-bar crop, and the sidecar fields the
+ * server rebuilds screen positions from.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class CaptureGeometryTest {
+
+    @Test
+    public void tierScalesTheCroppedRegion() {
+        CaptureGeometry g = CaptureGeometry.of(1440, 3200, 720, 100, 60);
+        assertEquals(new Rect(0, 100, 1440, 3140), g.crop);
+        assertEquals(720, g.scaledWidth);
+        assertEquals(1600, g.scaledHeight);
+        assertEquals(720, g.frameWidth);
+        assertEquals(1520, g.frameHeight);
+        assertTrue(g.isCropped());
+    }
+
+    @Test
+    public void narrowScreensAreNotUpscaled() {
+        CaptureGeometry g = CaptureGeometry.of(720, 1600, 1080, 0, 0);
+        assertEquals(720, g.frameWidth);
+        assertEquals(1600, g.frameHeight);
+        assertFalse(g.isCropped());
+    }
+
+    @Test
+    public void cropFollowsTheCaptureSurface() {
+        CaptureGeometry g = CaptureGeometry.of(1440, 3200, 720, 100, 60);
+        assertEquals(new Rect(0, 50, 720, 1570), g.cropScaledTo(g.scaledWidth, g.scaledHeight));
+    }
+
+    @Test
+    public void aCropLargerThanTheScreenIsIgnored() {
+        CaptureGeometry g = CaptureGeometry.of(1080, 200, 720, 150, 100);
+        assertEquals(new Rect(0, 0, 1080, 200), g.crop);
+    }
+
+    @Test
+    public void tierPrefSnapsToAnOfferedTier() {
+        Context context = RuntimeEnvironment.getApplication();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        assertEquals(720, CaptureGeometry.tier(prefs));
+        prefs.edit().putInt(CaptureGeometry.PREF_TIER, 500).commit();
+        assertEquals(480, CaptureGeometry.tier(prefs));
+        prefs.edit().putInt(CaptureGeometry.PREF_TIER, 4000).commit();
+        assertEquals(1080, CaptureGeometry.tier(prefs));
+    }
+
+    @Test
+    public void cropIsOptIn() {
+        Context context = RuntimeEnvironment.getApplication();
+        assertFalse(CaptureGeometry.fromPrefs(context, 1080, 2400).isCropped());
+
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putBoolean(CaptureGeometry.PREF_CROP_SYSTEM_BARS, true)
+                .commit();
+        CaptureGeometry g = CaptureGeometry.fromPrefs(context, 1080, 2400);
+        assertTrue(g.crop.top > 0);
+        assertTrue(g.crop.bottom < 2400);
+    }
+
+    @Test
+    public void sidecarCarriesTheGeometry() throws Exception {
+        JSONObject meta = new JSONObject();
+        CaptureGeometry.of(1440, 3200, 720, 100, 60).putMeta(meta, 720, 1520);
+        assertEquals(720, meta.getInt("resolution_tier"));
+        assertEquals(1440, meta.getInt("screen_width"));
+        assertEquals(3200, meta.getInt("screen_height"));
+        assertEquals(0, meta.getInt("crop_left"));
+        assertEquals(100, meta.getInt("crop_top"));
+        assertEquals(1440, meta.getInt("crop_right"));
+        assertEquals(3140, meta.getInt("crop_bottom"));
+        assertEquals(720, meta.getInt("frame_width"));
+        assertEquals(1520, meta.getInt("frame_height"));
+    }
+}
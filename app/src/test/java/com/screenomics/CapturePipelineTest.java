@@ -0,0 +1,208 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The staged capture pipeline: ordering, release-exactly-once, and each
+ * backpressure policy with a stalled downstream stage.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class CapturePipelineTest {
+
+    private static final class TestJob implements CapturePipeline.Job {
+        final int id;
+        final AtomicInteger releases = new AtomicInteger();
+        final CountDownLatch released = new CountDownLatch(1);
+
+        TestJob(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void release() {
+            releases.incrementAndGet();
+            released.countDown();
+        }
+
+        void awaitRelease() throws InterruptedException {
+            assertTrue("job " + id + " never released", released.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private CapturePipeline<TestJob> pipeline;
+    private final List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch writeGate = new CountDownLatch(1);
+    private final CountDownLatch writeEntered = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        Metrics.resetForTest();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writeGate.countDown();
+        if (pipeline != null) {
+            pipeline.shutdown();
+            assertTrue(pipeline.awaitTermination(5_000));
+        }
+    }
+
+    /** classify passes everything; write stalls on the first job until the gate opens. */
+    private CapturePipeline<TestJob> start(CapturePipeline.Backpressure policy) {
+        pipeline = CapturePipeline.<TestJob>builder(policy, 1)
+                .stage("classify", job -> true)
+                .stage("write", job -> {
+                    writeEntered.countDown();
+                    writeGate.await();
+                    written.add(job.id);
+                    return true;
+                })
+                .start();
+        return pipeline;
+    }
+
+    /** Submit a job and wait until classify has handled it (forwarded, dropped or blocked). */
+    private TestJob submitThroughClassify(int id) throws Exception {
+        TestJob job = new TestJob(id);
+        long before = pipeline.latency("classify").count();
+        assertTrue(pipeline.submit(job));
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (pipeline.latency("classify").count() == before) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        return job;
+    }
+
+    /** Job 0 stalled in write, job 1 queued for write. */
+    private List<TestJob> fillBehindStalledWrite() throws Exception {
+        List<TestJob> jobs = new ArrayList<>();
+        jobs.add(submitThroughClassify(0));
+        assertTrue(writeEntered.await(5, TimeUnit.SECONDS));
+        jobs.add(submitThroughClassify(1));
+        return jobs;
+    }
+
+    @Test
+    public void jobsFlowInOrderAndAreReleasedOnce() throws Exception {
+        start(CapturePipeline.Backpressure.BLOCK);
+        writeGate.countDown();
+        List<TestJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            TestJob job = new TestJob(i);
+            jobs.add(job);
+            while (!pipeline.submit(job)) {
+                job = new TestJob(i);
+                jobs.set(i, job);
+                Thread.sleep(5);
+            }
+        }
+        for (TestJob job : jobs) job.awaitRelease();
+        assertEquals(List.of(0, 1, 2, 3, 4), written);
+        for (TestJob job : jobs) assertEquals(1, job.releases.get());
+        assertEquals(5, pipeline.latency("write").count());
+    }
+
+    @Test
+    public void aStageCanEndAJobEarly() throws Exception {
+        pipeline = CapturePipeline.<TestJob>builder(CapturePipeline.Backpressure.SKIP_NEXT, 1)
+                .stage("classify", job -> job.id % 2 == 0)
+                .stage("write", job -> {
+                    written.add(job.id);
+                    return true;
+                })
+                .start();
+        TestJob odd = new TestJob(1);
+        assertTrue(pipeline.submit(odd));
+        odd.awaitRelease();
+        TestJob even = new TestJob(2);
+        assertTrue(pipeline.submit(even));
+        even.awaitRelease();
+        assertEquals(List.of(2), written);
+        assertEquals(1, odd.releases.get());
+    }
+
+    @Test
+    public void skipNextStopsAdmittingAndDropsArrivalsAtAFullQueue() throws Exception {
+        start(CapturePipeline.Backpressure.SKIP_NEXT);
+        List<TestJob> jobs = fillBehindStalledWrite();
+        assertFalse(pipeline.admitsNext());
+
+        TestJob late = submitThroughClassify(2);
+        late.awaitRelease();
+        assertEquals(1, pipeline.dropped("write"));
+
+        writeGate.countDown();
+        for (TestJob job : jobs) job.awaitRelease();
+        assertEquals(List.of(0, 1), written);
+        assertTrue(pipeline.admitsNext());
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestFrame() throws Exception {
+        start(CapturePipeline.Backpressure.DROP_OLDEST);
+        List<TestJob> jobs = fillBehindStalledWrite();
+        assertTrue(pipeline.admitsNext());
+
+        TestJob newest = submitThroughClassify(2);
+        jobs.get(1).awaitRelease();   // evicted from the write queue
+        assertEquals(1, pipeline.dropped("write"));
+
+        writeGate.countDown();
+        newest.awaitRelease();
+        assertEquals(List.of(0, 2), written);
+        assertEquals(1, jobs.get(1).releases.get());
+    }
+
+    @Test
+    public void blockHoldsUpstreamInsteadOfDropping() throws Exception {
+        start(CapturePipeline.Backpressure.BLOCK);
+        List<TestJob> jobs = fillBehindStalledWrite();
+
+        // classify is now waiting to hand job 2 to write; one more fits in its queue
+        jobs.add(submitThroughClassify(2));
+        TestJob queued = new TestJob(3);
+        assertTrue(pipeline.submit(queued));
+        TestJob overflow = new TestJob(4);
+        assertFalse("the caller's submit never waits", pipeline.submit(overflow));
+        assertEquals(1, overflow.releases.get());
+
+        writeGate.countDown();
+        queued.awaitRelease();
+        for (TestJob job : jobs) job.awaitRelease();
+        assertEquals(List.of(0, 1, 2, 3), written);
+        assertEquals(0, pipeline.dropped("write"));
+    }
+
+    @Test
+    public void shutdownReleasesQueuedJobs() throws Exception {
+        start(CapturePipeline.Backpressure.SKIP_NEXT);
+        List<TestJob> jobs = fillBehindStalledWrite();
+        pipeline.shutdown();
+        writeGate.countDown();
+        assertTrue(pipeline.awaitTermination(5_000));
+        for (TestJob job : jobs) assertEquals(1, job.releases.get());
+        assertEquals(List.of(0), written);
+        TestJob afterStop = new TestJob(9);
+        assertFalse(pipeline.submit(afterStop));
+        assertEquals(1, afterStop.releases.get());
+    }
+}
@@ -202,6 +202,19 @@ public class CaptureStatsTest {
         assertEquals(1L, totals.blanks);
     }
 
+    @Test
+    public void dedupSkipsAreCountedApartFromCaptures() {
+        CaptureStats.addCapture();
+        CaptureStats.addDedupSkip();
+        CaptureStats.addDedupSkip();
+        CaptureStats.flush(context);
+        CaptureStats.addDedupSkip();
+
+        CaptureStats.Totals totals = CaptureStats.read(context);
+        assertEquals(1L, totals.captures);
+        assertEquals(3L, totals.dedupSkipped);
+    }
+
     @Test
     public void serviceRestartsAreCounted() {
         CaptureStats.onServiceStarted(context);
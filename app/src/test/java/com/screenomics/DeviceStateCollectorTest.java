@@ -0,0 +1,106 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.BatteryManager;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.time.Duration;
+
+/**
+ * The snapshot cache: static sections are collected once, slow ones within
+ * their time-to-live, and the sections the heartbeat's watermarks depend on
+ * every time.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class DeviceStateCollectorTest {
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        PreferenceManager.getDefaultSharedPreferences(context).edit().clear().commit();
+        DeviceStateCollector.resetCacheForTest();
+    }
+
+    @After
+    public void tearDown() {
+        DeviceStateCollector.resetCacheForTest();
+    }
+
+    private void sendBattery(int level) {
+        Intent battery = new Intent(Intent.ACTION_BATTERY_CHANGED);
+        battery.putExtra(BatteryManager.EXTRA_LEVEL, level);
+        battery.putExtra(BatteryManager.EXTRA_SCALE, 100);
+        context.sendStickyBroadcast(battery);
+        ShadowLooper.idleMainLooper();
+    }
+
+    @Test
+    public void everySectionIsPresent() {
+        JSONObject snapshot = DeviceStateCollector.collectSnapshot(context);
+
+        for (String section : new String[]{"battery", "storage", "memory", "network",
+                "permissions", "service_state", "device", "runtime"}) {
+            assertTrue(section, snapshot.has(section));
+        }
+        assertTrue(snapshot.optJSONObject("device").has("supported_abis"));
+    }
+
+    @Test
+    public void staticSectionsAreCollectedOnce() {
+        JSONObject first = DeviceStateCollector.collectSnapshot(context);
+        ShadowSystemClock.advanceBy(Duration.ofHours(1));
+        JSONObject second = DeviceStateCollector.collectSnapshot(context);
+
+        assertSame(first.opt("device"), second.opt("device"));
+        assertNotSame(first.opt("runtime"), second.opt("runtime"));
+        assertNotSame(first.opt("service_state"), second.opt("service_state"));
+    }
+
+    @Test
+    public void slowSectionsExpire() {
+        JSONObject first = DeviceStateCollector.collectSnapshot(context);
+        JSONObject cached = DeviceStateCollector.collectSnapshot(context);
+        assertSame(first.opt("storage"), cached.opt("storage"));
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(DeviceStateCollector.SLOW_TTL_MS));
+        JSONObject expired = DeviceStateCollector.collectSnapshot(context);
+        assertNotSame(first.opt("storage"), expired.opt("storage"));
+    }
+
+    @Test
+    public void batteryFollowsTheBroadcastWithoutAskingAgain() throws Exception {
+        sendBattery(80);
+        assertEquals(80, DeviceStateCollector.collectSnapshot(context)
+                .getJSONObject("battery").getInt("battery_level"));
+
+        sendBattery(79);
+        // Still within the section's time-to-live
+        assertEquals(80, DeviceStateCollector.collectSnapshot(context)
+                .getJSONObject("battery").getInt("battery_level"));
+
+        ShadowSystemClock.advanceBy(Duration.ofMillis(DeviceStateCollector.SLOW_TTL_MS));
+        assertEquals(79, DeviceStateCollector.collectSnapshot(context)
+                .getJSONObject("battery").getInt("battery_level"));
+    }
+}
@@ -2,13 +2,23 @@ package com.screenomics;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
 
+import android.content.Context;
+import android.os.Looper;
+
+import androidx.preference.PreferenceManager;
+
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
 import java.io.File;
@@ -31,6 +41,8 @@ import javax.crypto.spec.SecretKeySpec;
  * Round-trip test of the production file-encryption path: AES-256-GCM with a
  * 12-byte nonce prefix, AES key wrapped with RSA-OAEP(SHA-256). The test plays
  * the server's role: unwrap the key with the RSA private key and decrypt.
+ * Also the rules for the cached public key: keyed by the key itself, not
+ * its PEM wrapping, and dropped when the study's key is rewritten.
  */
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = 34)
@@ -42,6 +54,7 @@ public class EncryptorTest {
 
     @Before
     public void setUp() throws Exception {
+        Encryptor.resetCachesForTest();
         KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
         kpg.initialize(2048);
         rsa = kpg.generateKeyPair();
@@ -51,6 +64,20 @@ public class EncryptorTest {
         tempDir = Files.createTempDirectory("encryptor-test").toFile();
     }
 
+    @After
+    public void tearDown() {
+        Encryptor.resetCachesForTest();
+    }
+
+    private static String toPem(byte[] der, int lineLen) {
+        String b64 = android.util.Base64.encodeToString(der, android.util.Base64.NO_WRAP);
+        StringBuilder sb = new StringBuilder("-----BEGIN PUBLIC KEY-----\n");
+        for (int i = 0; i < b64.length(); i += lineLen) {
+            sb.append(b64, i, Math.min(b64.length(), i + lineLen)).append('\n');
+        }
+        return sb.append("-----END PUBLIC KEY-----").toString();
+    }
+
     @Test
     public void encryptFileToEnc_roundTripsThroughServerSideDecryption() throws Exception {
         byte[] plaintext = new byte[64 * 1024 + 17]; // multiple 8KB buffers + remainder
@@ -96,6 +123,65 @@ public class EncryptorTest {
         assertTrue("per-file nonce must differ", !a.nonceB64.equals(b.nonceB64));
     }
 
+    @Test
+    public void openEncSink_roundTripsThroughServerSideDecryption() throws Exception {
+        byte[] plaintext = new byte[40_000];
+        new SecureRandom().nextBytes(plaintext);
+        File out = new File(tempDir, "streamed.enc");
+
+        Encryptor.Result result;
+        try (Encryptor.Sink sink = Encryptor.openEncSink(out, publicKeyPem)) {
+            // Odd-sized writes, the way Bitmap.compress hands over its buffer
+            for (int off = 0; off < plaintext.length; off += 3000) {
+                sink.write(plaintext, off, Math.min(3000, plaintext.length - off));
+            }
+            sink.close();
+            result = sink.result();
+        }
+
+        assertArrayEquals(plaintext, decrypt(Files.readAllBytes(out.toPath()), result));
+        assertEquals("streamed .enc is nonce + plaintext + tag, nothing else",
+                Encryptor.GCM_NONCE_LEN + plaintext.length + Encryptor.GCM_TAG_BITS / 8,
+                out.length());
+    }
+
+    @Test
+    public void openEncSink_abortedSinkLeavesNoFile() throws Exception {
+        // A frame whose compress failed must not reach the upload queue as a
+        // well-formed .enc of a truncated image.
+        File out = new File(tempDir, "aborted.enc");
+        try (Encryptor.Sink sink = Encryptor.openEncSink(out, publicKeyPem)) {
+            sink.write(new byte[1024]);
+            sink.abort();
+        }
+        assertFalse(out.exists());
+    }
+
+    @Test
+    public void openEncSink_resultIsUnavailableUntilClosed() throws Exception {
+        // The GCM tag is written on close; metadata for an open sink would
+        // describe an undecryptable file.
+        File out = new File(tempDir, "open.enc");
+        Encryptor.Sink sink = Encryptor.openEncSink(out, publicKeyPem);
+        sink.write(1);
+        assertThrows(IllegalStateException.class, sink::result);
+        sink.close();
+        assertEquals(1L, sink.plaintextBytes());
+    }
+
+    /** Server side: unwrap the AES key and decrypt [nonce || ciphertext || tag]. */
+    private byte[] decrypt(byte[] enc, Encryptor.Result result) throws Exception {
+        Cipher unwrap = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        unwrap.init(Cipher.DECRYPT_MODE, rsa.getPrivate(), new OAEPParameterSpec(
+                "SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT));
+        byte[] aesKey = unwrap.doFinal(
+                android.util.Base64.decode(result.aesKeyEncB64, android.util.Base64.NO_WRAP));
+        Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding");
+        gcm.init(Cipher.DECRYPT_MODE, new SecretKeySpec(aesKey, "AES"), new GCMParameterSpec(
+                Encryptor.GCM_TAG_BITS, Arrays.copyOfRange(enc, 0, Encryptor.GCM_NONCE_LEN)));
+        return gcm.doFinal(Arrays.copyOfRange(enc, Encryptor.GCM_NONCE_LEN, enc.length));
+    }
+
     @Test
     public void legacyEncryptFile_throwsInsteadOfSilentlySucceeding() {
         // Callers delete the plaintext source after this returns; a silent no-op
@@ -103,4 +189,47 @@ public class EncryptorTest {
         assertThrows(UnsupportedOperationException.class,
                 () -> Encryptor.encryptFile(new byte[32], "in.mp4", "out.enc", new byte[16]));
     }
+
+    @Test
+    public void fingerprintIgnoresPemLineWrapping() throws Exception {
+        String wrapped = toPem(rsa.getPublic().getEncoded(), 64);
+        assertEquals(Encryptor.keyFingerprint(publicKeyPem), Encryptor.keyFingerprint(wrapped));
+        assertEquals(Encryptor.keyFingerprint(wrapped),
+                Encryptor.keyFingerprint(wrapped.replace("\n", "\r\n")));
+    }
+
+    @Test
+    public void aDifferentPemIsNeverServedTheCachedKey() throws Exception {
+        String first = Encryptor.keyFingerprint(publicKeyPem);
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        String other = toPem(kpg.generateKeyPair().getPublic().getEncoded(), 64);
+
+        assertNotEquals(first, Encryptor.keyFingerprint(other));
+        assertEquals(first, Encryptor.keyFingerprint(publicKeyPem));
+    }
+
+    @Test
+    public void rewritingImagePublicKeyDropsTheCache() throws Exception {
+        Context context = RuntimeEnvironment.getApplication();
+        Encryptor.watchKeyChanges(context);
+        Encryptor.keyFingerprint(publicKeyPem);   // populate
+        assertTrue(Encryptor.hasCachedKeyForTest());
+
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(Encryptor.PREF_IMAGE_PUBLIC_KEY, "re-enrolled").commit();
+        shadowOf(Looper.getMainLooper()).idle();
+        assertFalse(Encryptor.hasCachedKeyForTest());
+
+        // Still correct afterwards: the next call re-parses
+        File in = new File(tempDir, "after.txt");
+        try (FileOutputStream fos = new FileOutputStream(in)) {
+            fos.write("after".getBytes(StandardCharsets.UTF_8));
+        }
+        File out = new File(tempDir, "after.enc");
+        Encryptor.encryptFileToEnc(in, out, publicKeyPem);
+        assertEquals(Encryptor.GCM_NONCE_LEN + in.length() + Encryptor.GCM_TAG_BITS / 8,
+                out.length());
+    }
 }
@@ -35,6 +35,8 @@ public final class FakeAndroidKeyStore {
     /** Make {@code alias} resolvable through KeyStore.getInstance("AndroidKeyStore"). */
     public static void install(String alias, PrivateKey key) {
         KEYS.put(alias, key);
+        // The signer memoizes the key it loaded; make it load this one
+        RequestSigner.get().reset();
         if (Security.getProvider("AndroidKeyStore") == null) {
             Security.addProvider(new FakeProvider());
         }
@@ -0,0 +1,180 @@
+package com.screenomics;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.MultipartReader;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * A stand-in for the receiver's batch and screenshot endpoints, for tests only.
+ *
+ * Enough of the API for Batch to run against: it creates a batch, takes
+ * single uploads, and takes bulk uploads with one result per file. Files can
+ * be marked to be rejected, and the bulk endpoint can be switched off to
+ * look like an older receiver. It also speaks the resumable (tus-style)
+ * upload endpoints, with switches to lose a chunk's acknowledgement or
+ * forget an upload. It checks nothing about signatures or the
+ * metadata; it exists so the client's side of the exchange can be exercised.
+ */
+public final class FakeReceiver extends Dispatcher {
+
+    static final int BATCH_ID = 42;
+
+    final Set<String> stored = Collections.synchronizedSet(new HashSet<>());
+    final Set<String> rejected = Collections.synchronizedSet(new HashSet<>());
+    final AtomicInteger bulkRequests = new AtomicInteger();
+    final AtomicInteger singleRequests = new AtomicInteger();
+    volatile boolean bulkEnabled = true;
+
+    /** Resumable uploads: assembled bytes by upload path. */
+    final Map<String, ByteArrayOutputStream> uploads = new ConcurrentHashMap<>();
+    final Map<String, String> uploadNames = new ConcurrentHashMap<>();
+    final AtomicInteger creates = new AtomicInteger();
+    final AtomicInteger patches = new AtomicInteger();
+    final AtomicLong patchBytes = new AtomicLong();
+    volatile boolean tusEnabled = true;
+    /** Fail PATCHes once this many have succeeded; -1 never. */
+    volatile int failPatchesAfter = -1;
+    /** Keep a failed PATCH's bytes, as if only its response was lost. */
+    volatile boolean keepFailedChunk = false;
+
+    private static final String UPLOAD_PATH = "/api/v1/batches/" + BATCH_ID + "/screenshots";
+
+    @NonNull
+    @Override
+    public MockResponse dispatch(@NonNull RecordedRequest request) {
+        try {
+            String path = request.getPath();
+            if (path.startsWith("/api/v1/uploads")) {
+                return tus(request, path);
+            }
+            if ("/api/v1/batches".equals(path)) {
+                return json(201, new JSONObject().put("batch_id", BATCH_ID));
+            }
+            if (UPLOAD_PATH.equals(path)) {
+                singleRequests.incrementAndGet();
+                for (String name : fileNames(request)) stored.add(name);
+                return json(202, new JSONObject().put("status", "accepted"));
+            }
+            if ((UPLOAD_PATH + "/bulk").equals(path)) {
+                if (!bulkEnabled) return new MockResponse().setResponseCode(404);
+                bulkRequests.incrementAndGet();
+                JSONArray results = new JSONArray();
+                for (String name : fileNames(request)) {
+                    JSONObject r = new JSONObject().put("filename", name);
+                    if (rejected.contains(name)) {
+                        r.put("status", 422).put("error", "invalid_metadata");
+                    } else if (!stored.add(name)) {
+                        r.put("status", 409).put("error", "duplicate_screenshot");
+                    } else {
+                        r.put("status", 202);
+                    }
+                    results.put(r);
+                }
+                return json(207, new JSONObject().put("results", results));
+            }
+            return new MockResponse().setResponseCode(404);
+        } catch (Exception e) {
+            return new MockResponse().setResponseCode(500).setBody(String.valueOf(e));
+        }
+    }
+
+    private MockResponse tus(RecordedRequest request, String path) throws Exception {
+        if (!tusEnabled) return new MockResponse().setResponseCode(404);
+        switch (request.getMethod()) {
+            case "POST": {
+                creates.incrementAndGet();
+                String location = "/api/v1/uploads/" + UUID.randomUUID();
+                uploads.put(location, new ByteArrayOutputStream());
+                uploadNames.put(location, metadata(request, "filename"));
+                return new MockResponse().setResponseCode(201).setHeader("Location", location);
+            }
+            case "HEAD": {
+                ByteArrayOutputStream data = uploads.get(path);
+                if (data == null) return new MockResponse().setResponseCode(404);
+                return new MockResponse().setResponseCode(200)
+                        .setHeader("Upload-Offset", data.size());
+            }
+            case "PATCH": {
+                ByteArrayOutputStream data = uploads.get(path);
+                if (data == null) return new MockResponse().setResponseCode(404);
+                long offset = Long.parseLong(request.getHeader("Upload-Offset"));
+                if (offset != data.size()) return new MockResponse().setResponseCode(409);
+                byte[] chunk = request.getBody().readByteArray();
+                boolean fail = failPatchesAfter >= 0 && patches.get() >= failPatchesAfter;
+                if (!fail || keepFailedChunk) {
+                    data.write(chunk);
+                    patchBytes.addAndGet(chunk.length);
+                }
+                if (fail) return new MockResponse().setResponseCode(500);
+                patches.incrementAndGet();
+                return new MockResponse().setResponseCode(204)
+                        .setHeader("Upload-Offset", data.size());
+            }
+            default:
+                return new MockResponse().setResponseCode(405);
+        }
+    }
+
+    /** Forget every upload in progress, as a server expiring them would. */
+    void expireUploads() {
+        for (ByteArrayOutputStream data : uploads.values()) data.reset();
+        uploads.clear();
+    }
+
+    private static String metadata(RecordedRequest request, String key) {
+        String header = request.getHeader("Upload-Metadata");
+        if (header == null) return "";
+        for (String pair : header.split(",")) {
+            String[] kv = pair.trim().split(" ");
+            if (kv.length == 2 && kv[0].equals(key)) {
+                return new String(Base64.getDecoder().decode(kv[1]), StandardCharsets.UTF_8);
+            }
+        }
+        return "";
+    }
+
+    /** The filenames of the "file" parts, in order. */
+    private static Set<String> fileNames(RecordedRequest request) throws Exception {
+        String contentType = request.getHeader("Content-Type");
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
+        Set<String> names = new LinkedHashSet<>();
+        try (MultipartReader reader = new MultipartReader(request.getBody(), boundary)) {
+            MultipartReader.Part part;
+            while ((part = reader.nextPart()) != null) {
+                String disposition = part.headers().get("Content-Disposition");
+                int at = disposition != null ? disposition.indexOf("filename=\"") : -1;
+                if (at >= 0 && disposition.contains("name=\"file\"")) {
+                    int start = at + 10;
+                    names.add(disposition.substring(start, disposition.indexOf('"', start)));
+                }
+                part.body().readByteString();
+            }
+        }
+        return names;
+    }
+
+    private static MockResponse json(int code, JSONObject body) {
+        return new MockResponse().setResponseCode(code)
+                .setHeader("Content-Type", "application/json")
+                .setBody(body.toString());
+    }
+}
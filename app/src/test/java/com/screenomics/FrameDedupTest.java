@@ -0,0 +1,171 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+/**
+ * Frame deduplication: what counts as unchanged, and what a run of skipped
+ * frames leaves behind for analysis.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class FrameDedupTest {
+
+    private static final String APP = "com.example.reader";
+    private static final int THRESHOLD = FrameDedup.DEFAULT_MAX_DISTANCE;
+    private static final long INTERVAL = CaptureCadence.BASE_INTERVAL_MS;
+
+    /** A text-heavy page; {@code firstRow} shifts the content like a scroll. */
+    private static Bitmap page(int firstRow) {
+        Bitmap b = Bitmap.createBitmap(720, 1600, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(b);
+        canvas.drawColor(Color.WHITE);
+        Paint paint = new Paint();
+        paint.setColor(Color.BLACK);
+        paint.setTextSize(40f);
+        for (int i = 0; i < 30; i++) {
+            int y = 80 + i * 52;
+            canvas.drawText("Paragraph line " + (firstRow + i) + " of the article text",
+                    24f, y, paint);
+            if ((firstRow + i) % 5 == 0) canvas.drawRect(24f, y + 8f, 600f, y + 40f, paint);
+        }
+        return b;
+    }
+
+    private static Bitmap flat(int color) {
+        Bitmap b = Bitmap.createBitmap(720, 1600, Bitmap.Config.ARGB_8888);
+        b.eraseColor(color);
+        return b;
+    }
+
+    @Test
+    public void anIdenticalFrameIsSkipped() {
+        FrameDedup dedup = new FrameDedup();
+        dedup.setReference(FrameDedup.fingerprint(page(0)), APP, 0L);
+        assertTrue(dedup.offer(FrameDedup.fingerprint(page(0)), APP, 5_000L, INTERVAL, THRESHOLD));
+    }
+
+    @Test
+    public void aScrolledPageIsWritten() {
+        FrameDedup dedup = new FrameDedup();
+        dedup.setReference(FrameDedup.fingerprint(page(0)), APP, 0L);
+        assertFalse(dedup.offer(FrameDedup.fingerprint(page(7)), APP, 5_000L, INTERVAL, THRESHOLD));
+    }
+
+    @Test
+    public void flatScreensOfDifferentColoursAreNotConfused() {
+        // Neither has a gradient, so their dHash bits are identical
+        FrameDedup.Fingerprint white = FrameDedup.fingerprint(flat(Color.WHITE));
+        FrameDedup.Fingerprint black = FrameDedup.fingerprint(flat(Color.BLACK));
+        assertEquals(0, FrameDedup.distance(white.bits, black.bits));
+
+        FrameDedup dedup = new FrameDedup();
+        dedup.setReference(white, APP, 0L);
+        assertFalse(dedup.offer(black, APP, 5_000L, INTERVAL, THRESHOLD));
+    }
+
+    @Test
+    public void aForegroundAppChangeIsAlwaysWritten() {
+        FrameDedup dedup = new FrameDedup();
+        dedup.setReference(FrameDedup.fingerprint(page(0)), APP, 0L);
+        assertFalse(dedup.offer(FrameDedup.fingerprint(page(0)), "com.example.other", 5_000L, INTERVAL, THRESHOLD));
+    }
+
+    @Test
+    public void aLongStaticRunStillWritesAnAnchorFrame() {
+        FrameDedup dedup = new FrameDedup();
+        FrameDedup.Fingerprint fp = FrameDedup.fingerprint(page(0));
+        dedup.setReference(fp, APP, 0L);
+        assertTrue(dedup.offer(fp, APP, FrameDedup.MAX_RUN_MS - 1, INTERVAL, THRESHOLD));
+        assertFalse(dedup.offer(fp, APP, FrameDedup.MAX_RUN_MS, INTERVAL, THRESHOLD));
+    }
+
+    @Test
+    public void negativeThresholdDisablesDedup() {
+        FrameDedup dedup = new FrameDedup();
+        FrameDedup.Fingerprint fp = FrameDedup.fingerprint(page(0));
+        dedup.setReference(fp, APP, 0L);
+        assertFalse(dedup.offer(fp, APP, 5_000L, INTERVAL, -1));
+    }
+
+    @Test
+    public void nothingIsSkippedWithoutAWrittenReference() {
+        FrameDedup dedup = new FrameDedup();
+        FrameDedup.Fingerprint fp = FrameDedup.fingerprint(page(0));
+        assertFalse(dedup.offer(fp, APP, 0L, INTERVAL, THRESHOLD));
+
+        dedup.setReference(fp, APP, 0L);
+        dedup.clearReference();   // e.g. the write failed
+        assertFalse(dedup.offer(fp, APP, 5_000L, INTERVAL, THRESHOLD));
+    }
+
+    @Test
+    public void aRunRecordsEverySkippedTickAgainstItsReference() throws Exception {
+        FrameDedup dedup = new FrameDedup();
+        FrameDedup.Fingerprint fp = FrameDedup.fingerprint(page(0));
+        dedup.setReference(fp, APP, 1_000L);
+        for (long t = 6_000L; t <= 21_000L; t += 5_000L) {
+            assertTrue(dedup.offer(fp, APP, t, INTERVAL, THRESHOLD));
+        }
+
+        FrameDedup.Run run = dedup.takeRun();
+        assertNull("taking a run closes it", dedup.takeRun());
+
+        JSONObject record = run.toJson();
+        assertEquals(1_000L, record.getLong("reference_epoch_ms"));
+        assertEquals(21_000L, record.getLong("until_epoch_ms"));
+        assertEquals(4, record.getInt("skipped_count"));
+        assertEquals(4, record.getJSONArray("skipped_epoch_ms").length());
+        assertEquals(INTERVAL, record.getJSONArray("skipped_interval_ms").getLong(3));
+        assertEquals(APP, record.getString("foreground_app"));
+        assertEquals("1970-01-01T00:00:01.000Z", record.getString("unchanged_since"));
+        assertEquals(fp.toHex(), record.getString("phash"));
+    }
+
+    @Test
+    public void aReferenceWhoseWriteFailsTakesItsSkipsWithIt() throws Exception {
+        FrameDedup dedup = new FrameDedup();
+        FrameDedup.Fingerprint fp = FrameDedup.fingerprint(page(0));
+        // A is the reference from classify on; B is skipped while A is still being written
+        dedup.setReference(fp, APP, 1_000L);
+        assertTrue(dedup.offer(fp, APP, 6_000L, INTERVAL, THRESHOLD));
+
+        // A's write fails
+        FrameDedup.Run run = dedup.abandonReference(1_000L);
+
+        JSONObject record = run.toJson();
+        assertTrue(record.getBoolean("reference_missing"));
+        assertEquals(6_000L, record.getJSONArray("skipped_epoch_ms").getLong(0));
+        assertNull("the run was closed", dedup.takeRun());
+        assertFalse(dedup.offer(fp, APP, 11_000L, INTERVAL, THRESHOLD));
+        assertNull(dedup.takeRun());
+    }
+
+    @Test
+    public void abandoningAnOlderReferenceKeepsTheNewerOne() {
+        FrameDedup dedup = new FrameDedup();
+        FrameDedup.Fingerprint fp = FrameDedup.fingerprint(page(0));
+        dedup.setReference(fp, APP, 1_000L);
+        dedup.setReference(fp, APP, 6_000L);
+        assertTrue(dedup.offer(fp, APP, 11_000L, INTERVAL, THRESHOLD));
+
+        assertNull(dedup.abandonReference(1_000L));
+        assertTrue(dedup.offer(fp, APP, 16_000L, INTERVAL, THRESHOLD));
+        assertEquals(2, dedup.takeRun().skippedEpochMs.size());
+    }
+}
@@ -0,0 +1,149 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pooled capture frames: reuse, reference counting across consumers, and the
+ * two ways a frame is filled.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class FramePoolTest {
+
+    @Test
+    public void releasedFrameIsReusedForTheSameSize() {
+        FramePool pool = new FramePool(2);
+        FramePool.Frame first = pool.acquire(72, 160);
+        first.release();
+        FramePool.Frame second = pool.acquire(72, 160);
+        assertSame(first, second);
+        assertEquals(1, pool.hits());
+        assertEquals(1, pool.misses());
+    }
+
+    @Test
+    public void steadyStateCaptureAllocatesOnce() {
+        FramePool pool = new FramePool(2);
+        long hitsBefore = FramePool.totalHits();
+        long missesBefore = FramePool.totalMisses();
+        for (int i = 0; i < 100; i++) {
+            FramePool.Frame frame = pool.acquire(72, 160);
+            FramePool.Frame vlmRef = frame.retain();
+            frame.release();
+            vlmRef.release();
+        }
+        assertEquals(1, pool.misses());
+        assertEquals(99, pool.hits());
+        assertEquals(99, FramePool.totalHits() - hitsBefore);
+        assertEquals(1, FramePool.totalMisses() - missesBefore);
+    }
+
+    @Test
+    public void frameHeldByAConsumerIsNotHandedOutAgain() {
+        FramePool pool = new FramePool(2);
+        FramePool.Frame frame = pool.acquire(72, 160);
+        FramePool.Frame vlmRef = frame.retain();
+
+        frame.release();   // encoder done; VLM still reading
+        FramePool.Frame next = pool.acquire(72, 160);
+        assertNotSame(frame, next);
+        assertTrue(!frame.bitmap().isRecycled());
+
+        vlmRef.release();
+        next.release();
+        assertEquals(2, pool.pooledCount());
+    }
+
+    @Test
+    public void sizeChangeEmptiesThePool() {
+        FramePool pool = new FramePool(2);
+        FramePool.Frame old = pool.acquire(72, 160);
+        FramePool.Frame held = pool.acquire(72, 160);
+        old.release();
+
+        FramePool.Frame rotated = pool.acquire(160, 72);
+        assertEquals(0, pool.pooledCount());
+        assertTrue(old.bitmap().isRecycled());
+
+        // A frame of the old size released later is freed, not pooled
+        held.release();
+        assertTrue(held.bitmap().isRecycled());
+        rotated.release();
+        assertEquals(1, pool.pooledCount());
+    }
+
+    @Test
+    public void doubleReleaseThrows() {
+        FramePool.Frame frame = new FramePool(1).acquire(8, 8);
+        frame.release();
+        assertThrows(IllegalStateException.class, frame::release);
+        assertThrows(IllegalStateException.class, frame::retain);
+    }
+
+    @Test
+    public void copyFromPacksPaddedRows() {
+        int w = 3, h = 2, rowStride = 16;   // 12 bytes of pixels + 4 of padding per row
+        ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * h);
+        int[][] rgba = {{255, 0, 0, 255}, {0, 255, 0, 255}, {0, 0, 255, 255}};
+        for (int y = 0; y < h; y++) {
+            plane.position(y * rowStride);
+            for (int[] px : rgba) for (int c : px) plane.put((byte) c);
+            plane.put(new byte[]{9, 9, 9, 9});
+        }
+
+        FramePool.Frame frame = new FramePool(1).acquire(w, h);
+        frame.copyFrom(plane, rowStride);
+        int[] row = new int[w];
+        frame.bitmap().getPixels(row, 0, w, 0, 1, w, 1);
+        assertArrayEquals(new int[]{Color.RED, Color.GREEN, Color.BLUE}, row);
+    }
+
+    @Test
+    public void copyFromCropsToTheFrame() {
+        int w = 2, h = 4, rowStride = w * 4;
+        ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * h);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) plane.put(new byte[]{(byte) (y * 60), 0, 0, (byte) 255});
+        }
+
+        // Drop the top row and the bottom row, as a system-bar crop would
+        FramePool.Frame frame = new FramePool(1).acquire(w, h - 2);
+        frame.copyFrom(plane, rowStride, 0, 1);
+        assertEquals(Color.rgb(60, 0, 0), frame.getPixel(0, 0));
+        assertEquals(Color.rgb(120, 0, 0), frame.getPixel(1, 1));
+    }
+
+    @Test
+    public void drawFromDownscalesIntoTheFrame() {
+        Bitmap src = Bitmap.createBitmap(1440, 3200, Bitmap.Config.ARGB_8888);
+        src.eraseColor(Color.BLUE);
+        int[] size = FramePool.scaledSize(src.getWidth(), src.getHeight(), 720);
+        assertArrayEquals(new int[]{720, 1600}, size);
+
+        FramePool.Frame frame = new FramePool(1).acquire(size[0], size[1]);
+        frame.drawFrom(src);
+        assertEquals(Color.BLUE, frame.getPixel(360, 800));
+    }
+
+    @Test
+    public void narrowFramesAreNotUpscaled() {
+        assertArrayEquals(new int[]{480, 1000}, FramePool.scaledSize(480, 1000, 720));
+    }
+}
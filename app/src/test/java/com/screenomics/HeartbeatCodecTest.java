@@ -0,0 +1,184 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * The compact heartbeat: every frame decodes, through the reference
+ * receiver, to exactly the payload the JSON heartbeat would have sent, and
+ * a typical delta is a small fraction of that JSON.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class HeartbeatCodecTest {
+
+    private SharedPreferences prefs;
+
+    @Before
+    public void setUp() {
+        prefs = PreferenceManager.getDefaultSharedPreferences(RuntimeEnvironment.getApplication());
+        prefs.edit().clear().commit();
+    }
+
+    /** Shaped like Heartbeat.buildPayload's output, quarter-hour {@code beat}. */
+    private static JSONObject payload(int beat) throws Exception {
+        JSONObject p = new JSONObject();
+        p.put("reported_at", Timestamps.isoMillis(1_760_000_000_000L + beat * 900_000L));
+        p.put("capture_mode", "accessibility");
+        p.put("capture_active", true);
+        p.put("a11y_service_enabled", true);
+        p.put("permissions_ok", true);
+        p.put("consecutive_failures", 0);
+        p.put("a11y_last_error", "");
+        p.put("last_capture_at", Timestamps.isoMillis(1_760_000_000_000L + beat * 900_000L - 4_000L));
+        p.put("active_seconds_since_last_report", 900);
+        p.put("unlocked_seconds_since_last_report", 120 + beat % 3);
+        p.put("captures_written_since_last_report", 24 + beat % 5);
+        p.put("blank_captures_since_last_report", 0);
+        p.put("service_restarts_since_last_report", 0);
+        p.put("dedup_skipped_since_last_report", 3);
+        p.put("battery_level", 80 - beat / 4);
+        p.put("power_save", false);
+        p.put("battery_optimization_exempt", true);
+        p.put("pending_uploads", 12);
+        for (String c : new String[]{"keys", "diagnostics", "telemetry", "screenshots"}) {
+            p.put("pending_uploads_" + c, c.equals("screenshots") ? 8 : 1);
+        }
+        p.put("storage_available_bytes", 21_474_836_480L - beat * 1_048_576L);
+        p.put("network_type", "cellular");
+        p.put("network_metered", true);
+        p.put("screen_interactive", beat % 2 == 0);
+        p.put("doze_idle", false);
+        p.put("app_version", "2.4.1");
+        p.put("upload_window", 4.5);
+        p.put("upload_goodput_bytes_per_s", 180_000);
+        p.put("upload_srtt_ms", 240);
+        p.put("upload_congestion_events", 2);
+        p.put("upload_throttle_events", 0);
+        JSONObject metrics = new JSONObject();
+        metrics.put("upload_files_ok", 24);
+        metrics.put("encrypt_p95_ms", 50);
+        metrics.put("capture_frames_by_hour", new JSONArray("[0,0,0,0,0,0,0,0,0,3,20,1,0,0,0,0,0,0,0,0,0,0,0,0]"));
+        p.put("metrics_since_last_report", metrics);
+        return p;
+    }
+
+    /** Same names, same values; field order is not part of the payload. */
+    private static void assertSameFields(String what, JSONObject expected, JSONObject actual) {
+        assertEquals(what, expected.length(), actual.length());
+        for (Iterator<String> it = expected.keys(); it.hasNext(); ) {
+            String name = it.next();
+            assertEquals(what + " " + name, String.valueOf(expected.opt(name)),
+                    String.valueOf(actual.opt(name)));
+        }
+    }
+
+    @Test
+    public void cborRoundTripsEveryValueKind() throws Exception {
+        JSONObject v = new JSONObject();
+        v.put("small", 23);
+        v.put("byte", 255);
+        v.put("negative", -1_000_000);
+        v.put("big", Long.MAX_VALUE);
+        v.put("min", Long.MIN_VALUE);
+        v.put("float", 0.5);
+        v.put("double", 0.1);
+        v.put("whole_double", 64.0);
+        v.put("text", "héllo");
+        v.put("long_text", new String(new char[300]).replace('\0', 'x'));
+        v.put("yes", true);
+        v.put("no", false);
+        v.put("nothing", JSONObject.NULL);
+        v.put("list", new JSONArray("[1,\"a\",[],{}]"));
+
+        JSONObject back = (JSONObject) HeartbeatCodec.fromCbor(HeartbeatCodec.toCbor(v));
+
+        assertEquals(Long.MAX_VALUE, back.getLong("big"));
+        assertEquals(Long.MIN_VALUE, back.getLong("min"));
+        assertEquals(-1_000_000L, back.getLong("negative"));
+        assertEquals(0.5, back.getDouble("float"), 0);
+        assertEquals(0.1, back.getDouble("double"), 0);
+        assertEquals(64L, back.getLong("whole_double"));
+        assertEquals("héllo", back.getString("text"));
+        assertEquals(300, back.getString("long_text").length());
+        assertTrue(back.getBoolean("yes"));
+        assertFalse(back.getBoolean("no"));
+        assertTrue(back.isNull("nothing"));
+        assertEquals("[1,\"a\",[],{}]", back.getJSONArray("list").toString());
+        // RFC 8949 appendix A: 23 is one byte, 24 two, 1000 three
+        assertEquals(1, HeartbeatCodec.toCbor(23).length);
+        assertEquals(2, HeartbeatCodec.toCbor(24).length);
+        assertEquals(3, HeartbeatCodec.toCbor(1000).length);
+    }
+
+    @Test
+    public void theReceiverRebuildsEveryPayload() throws Exception {
+        HeartbeatCodec.Receiver receiver = new HeartbeatCodec.Receiver();
+        int keyframes = 0;
+        long jsonBytes = 0;
+        long compactBytes = 0;
+        for (int beat = 0; beat < 24; beat++) {
+            JSONObject p = payload(beat);
+            if (beat == 10) p.remove("last_capture_at");
+            HeartbeatCodec.Frame frame = HeartbeatCodec.encode(prefs, p);
+
+            JSONObject rebuilt = receiver.apply(frame.bytes);
+
+            assertSameFields("beat " + beat, p, rebuilt);
+            HeartbeatCodec.acknowledge(prefs, p, frame);
+            if (frame.keyframe) keyframes++;
+            jsonBytes += p.toString().getBytes(StandardCharsets.UTF_8).length;
+            compactBytes += frame.bytes.length;
+        }
+        // First frame, then every DEFAULT_KEYFRAME_EVERY
+        assertEquals(24 / HeartbeatCodec.DEFAULT_KEYFRAME_EVERY, keyframes);
+        assertTrue(compactBytes * 3 < jsonBytes);
+    }
+
+    @Test
+    public void aDeltaOnAnUnknownBaseIsRefused() throws Exception {
+        HeartbeatCodec.Frame key = HeartbeatCodec.encode(prefs, payload(0));
+        HeartbeatCodec.acknowledge(prefs, payload(0), key);
+        HeartbeatCodec.Frame delta = HeartbeatCodec.encode(prefs, payload(1));
+        assertFalse(delta.keyframe);
+
+        // A receiver that never saw the keyframe answers 409
+        assertNull(new HeartbeatCodec.Receiver().apply(delta.bytes));
+
+        HeartbeatCodec.forgetBase(prefs);
+        HeartbeatCodec.Frame again = HeartbeatCodec.encode(prefs, payload(1));
+        assertTrue(again.keyframe);
+        assertSameFields("keyframe", payload(1), new HeartbeatCodec.Receiver().apply(again.bytes));
+    }
+
+    @Test
+    public void compactIsUsedOnlyWhenBothSidesAgree() {
+        assertFalse(HeartbeatCodec.useCompact(prefs));
+        HeartbeatCodec.onAccepted(prefs, HeartbeatCodec.MIME);
+        assertFalse("not opted in", HeartbeatCodec.useCompact(prefs));
+
+        prefs.edit().putBoolean(HeartbeatCodec.PREF_ENABLED, true).commit();
+        assertTrue(HeartbeatCodec.useCompact(prefs));
+
+        HeartbeatCodec.onUnsupported(prefs);
+        assertFalse(HeartbeatCodec.useCompact(prefs));
+    }
+}
@@ -179,4 +179,88 @@ public class HeartbeatPayloadTest {
         assertEquals(120L, payload.getLong("active_seconds_since_last_report"));
         assertFalse(payload.getBoolean("permissions_ok"));
     }
+
+    @Test
+    public void theUploadRateIsReported() throws Exception {
+        JSONObject snap = snapshot(true, 0);
+        JSONObject upload = new JSONObject();
+        upload.put("window", 3.5);
+        upload.put("goodput_bytes_per_s", 250_000L);
+        upload.put("srtt_ms", 420L);
+        upload.put("congestion_events", 2L);
+        upload.put("throttle_events", 1L);
+        snap.getJSONObject("service_state").put("upload_controller", upload);
+
+        JSONObject payload = build(totals(0, 0, 0, 0, 1), snap);
+
+        assertEquals(3.5, payload.getDouble("upload_window"), 0.0);
+        assertEquals(250_000L, payload.getLong("upload_goodput_bytes_per_s"));
+        assertEquals(420L, payload.getLong("upload_srtt_ms"));
+        assertEquals(1L, payload.getLong("upload_throttle_events"));
+    }
+
+    @Test
+    public void queueDepthPerClassIsReported() throws Exception {
+        JSONObject snap = snapshot(true, 0);
+        JSONObject byClass = new JSONObject();
+        byClass.put("keys", 0);
+        byClass.put("telemetry", 3);
+        byClass.put("diagnostics", 1);
+        byClass.put("screenshots", 8);
+        snap.getJSONObject("storage").put("pending_upload_by_class", byClass);
+
+        JSONObject payload = build(totals(0, 0, 0, 0, 1), snap);
+
+        assertEquals(3, payload.getInt("pending_uploads_telemetry"));
+        assertEquals(1, payload.getInt("pending_uploads_diagnostics"));
+        assertEquals(8, payload.getInt("pending_uploads_screenshots"));
+        assertEquals(0, payload.getInt("pending_uploads_keys"));
+    }
+
+    @Test
+    public void requestTimingsAreReportedPerInterval() throws Exception {
+        Metrics.resetForTest();
+        UploadTelemetry telemetry = new UploadTelemetry();
+        for (int i = 0; i < 10; i++) telemetry.phase(UploadTelemetry.Phase.TTFB).record(3000);
+        JSONObject snap = snapshot(true, 0);
+        snap.getJSONObject("service_state").put("upload_telemetry", telemetry.toJson());
+        snap.getJSONObject("service_state").put("metrics", Metrics.snapshot());
+        CaptureStats.Totals t = totals(0, 0, 0, 0, 1);
+        Heartbeat.commitWatermarks(prefs, t, snap.getJSONObject("service_state"),
+                System.currentTimeMillis());
+
+        for (int i = 0; i < 10; i++) telemetry.phase(UploadTelemetry.Phase.TTFB).record(20);
+        snap.getJSONObject("service_state").put("upload_telemetry", telemetry.toJson());
+        snap.getJSONObject("service_state").put("metrics", Metrics.snapshot());
+        JSONObject payload = build(t, snap);
+        JSONObject metrics = payload.getJSONObject("metrics_since_last_report");
+
+        // Only the fast calls since the acknowledged heartbeat
+        assertEquals(10L, metrics.getLong("upload_ttfb_count"));
+        assertTrue(metrics.getLong("upload_ttfb_p95_ms") < 30);
+        assertEquals(0L, payload.getLong("upload_requests_since_last_report"));
+        Metrics.resetForTest();
+    }
+
+    @Test
+    public void metricsAreReportedPerInterval() throws Exception {
+        Metrics.resetForTest();
+        Metrics.counter("upload_files_ok").add(40);
+        Metrics.histogram("encrypt").record(900);
+        JSONObject snap = snapshot(true, 0);
+        snap.getJSONObject("service_state").put("metrics", Metrics.snapshot());
+        CaptureStats.Totals t = totals(0, 0, 0, 0, 1);
+        Heartbeat.commitWatermarks(prefs, t, snap.getJSONObject("service_state"),
+                System.currentTimeMillis());
+
+        Metrics.counter("upload_files_ok").add(2);
+        Metrics.histogram("encrypt").record(30);
+        snap.getJSONObject("service_state").put("metrics", Metrics.snapshot());
+        JSONObject metrics = build(t, snap).getJSONObject("metrics_since_last_report");
+
+        assertEquals(2L, metrics.getLong("upload_files_ok"));
+        assertEquals(1L, metrics.getLong("encrypt_count"));
+        assertEquals(31L, metrics.getLong("encrypt_p95_ms"));
+        Metrics.resetForTest();
+    }
 }
@@ -1,6 +1,7 @@
 package com.screenomics;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -174,4 +175,45 @@ public class HeartbeatRequestTest {
 
         assertEquals(1, server.getRequestCount());
     }
+
+    @Test
+    public void aCompactHeartbeatFollowsTheReceiversOffer() throws Exception {
+        prefs.edit().putBoolean(HeartbeatCodec.PREF_ENABLED, true).commit();
+        server.enqueue(new MockResponse().setResponseCode(200)
+                .setHeader(HeartbeatCodec.HDR_ACCEPT, HeartbeatCodec.MIME)
+                .setBody("{\"status\":\"recorded\"}"));
+        Heartbeat.maybeSend(context, 0);
+        RecordedRequest offer = server.takeRequest();
+        assertEquals(HeartbeatCodec.MIME, offer.getHeader(HeartbeatCodec.HDR_ACCEPT));
+        JSONObject json = new JSONObject(offer.getBody().readUtf8());
+
+        prefs.edit().putLong("hb_last_sent_ms", 0).commit();
+        server.enqueue(new MockResponse().setResponseCode(200)
+                .setHeader(HeartbeatCodec.HDR_ACCEPT, HeartbeatCodec.MIME));
+        Heartbeat.maybeSend(context, 0);
+        RecordedRequest compact = server.takeRequest();
+
+        assertTrue(compact.getHeader("Content-Type").startsWith(HeartbeatCodec.MIME));
+        assertNotNull("still signed", compact.getHeader("Signature"));
+        JSONObject decoded = new HeartbeatCodec.Receiver().apply(compact.getBody().readByteArray());
+        assertEquals(json.getString("capture_mode"), decoded.getString("capture_mode"));
+        assertTrue(decoded.has("unlocked_seconds_since_last_report"));
+    }
+
+    @Test
+    public void aRefusedCompactHeartbeatIsResentAsJson() throws Exception {
+        prefs.edit()
+                .putBoolean(HeartbeatCodec.PREF_ENABLED, true)
+                .putBoolean(HeartbeatCodec.PREF_ACCEPTED, true)
+                .commit();
+        server.enqueue(new MockResponse().setResponseCode(415));
+        server.enqueue(new MockResponse().setResponseCode(200));
+
+        Heartbeat.maybeSend(context, 0);
+
+        assertTrue(server.takeRequest().getHeader("Content-Type").startsWith(HeartbeatCodec.MIME));
+        JSONObject body = new JSONObject(server.takeRequest().getBody().readUtf8());
+        assertEquals("accessibility", body.getString("capture_mode"));
+        assertFalse(HeartbeatCodec.useCompact(prefs));
+    }
 }
@@ -0,0 +1,145 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+
+import androidx.preference.PreferenceManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Every codec and quality rung, on a fixed corpus of screenshot-like frames
+ * at the 720-wide capture size: each rung produces an image that decodes at
+ * the right size, and climbing a ladder never shrinks the output -- a ladder
+ * that does is mis-ordered. Also how the study's settings pick the encoder.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class ImageEncoderTest {
+
+    private static final int W = 720;
+    private static final int H = 1600;
+
+    private final Map<String, Bitmap> corpus = new LinkedHashMap<>();
+
+    @Before
+    public void setUp() {
+        corpus.put("text", textPage(Color.WHITE, Color.BLACK));
+        corpus.put("dark-text", textPage(Color.rgb(18, 18, 18), Color.LTGRAY));
+        corpus.put("feed", feed());
+        corpus.put("flat", flat());
+    }
+
+    private static Bitmap textPage(int background, int ink) {
+        Bitmap b = Bitmap.createBitmap(W, H, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(b);
+        canvas.drawColor(background);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(ink);
+        paint.setTextSize(34f);
+        for (int y = 60; y < H; y += 46) {
+            canvas.drawText("Line " + y + ": the quick brown fox jumps over", 24f, y, paint);
+        }
+        return b;
+    }
+
+    /** Cards with photo-like gradients between them, as in a social feed. */
+    private static Bitmap feed() {
+        Bitmap b = Bitmap.createBitmap(W, H, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(b);
+        canvas.drawColor(Color.WHITE);
+        Paint text = new Paint(Paint.ANTI_ALIAS_FLAG);
+        text.setTextSize(30f);
+        Paint photo = new Paint();
+        for (int top = 0; top < H; top += 520) {
+            canvas.drawText("@someone posted", 24f, top + 50f, text);
+            photo.setShader(new LinearGradient(0, top + 80, W, top + 480,
+                    Color.rgb(30, 90, 160), Color.rgb(220, 160, 60), Shader.TileMode.CLAMP));
+            canvas.drawRect(0, top + 80, W, top + 480, photo);
+        }
+        return b;
+    }
+
+    private static Bitmap flat() {
+        Bitmap b = Bitmap.createBitmap(W, H, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(b);
+        canvas.drawColor(Color.rgb(245, 245, 245));
+        Paint bar = new Paint();
+        bar.setColor(Color.rgb(98, 0, 238));
+        canvas.drawRect(0, 0, W, 160, bar);
+        canvas.drawRect(0, H - 140, W, H, bar);
+        return b;
+    }
+
+    @Test
+    public void everyRungEncodesAndLaddersGrowMonotonically() {
+        for (ImageEncoder.Codec codec : ImageEncoder.Codec.values()) {
+            long previousBytes = 0;
+            for (int level = 0; level < codec.ladder.length; level++) {
+                ImageEncoder.Encoder encoder = new ImageEncoder.BitmapEncoder(codec, codec.quality(level));
+                long bytes = 0;
+                for (Map.Entry<String, Bitmap> e : corpus.entrySet()) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    assertTrue(encoder + " on " + e.getKey(), encoder.encode(e.getValue(), out));
+                    bytes += out.size();
+
+                    byte[] encoded = out.toByteArray();
+                    Bitmap decoded = BitmapFactory.decodeByteArray(encoded, 0, encoded.length);
+                    assertNotNull(encoder + " output must decode", decoded);
+                    assertEquals(W, decoded.getWidth());
+                    assertEquals(H, decoded.getHeight());
+                }
+                assertTrue(encoder + " must not be smaller than the rung below",
+                        bytes >= previousBytes);
+                previousBytes = bytes;
+            }
+        }
+    }
+
+    @Test
+    public void defaultsToTheOldJpegSetting() {
+        Context context = RuntimeEnvironment.getApplication();
+        ImageEncoder.Encoder encoder = ImageEncoder.fromPrefs(context);
+        assertEquals("image/jpeg", encoder.mime());
+        assertEquals(70, encoder.quality());
+    }
+
+    @Test
+    public void studyChoosesCodecAndRung() {
+        Context context = RuntimeEnvironment.getApplication();
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(ImageEncoder.PREF_CODEC, "webp")
+                .putInt(ImageEncoder.PREF_LEVEL, 0)
+                .commit();
+        ImageEncoder.Encoder encoder = ImageEncoder.fromPrefs(context);
+        assertEquals("image/webp", encoder.mime());
+        assertEquals(40, encoder.quality());
+
+        // Out-of-range rungs clamp to the ends of the ladder
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putInt(ImageEncoder.PREF_LEVEL, 9)
+                .commit();
+        assertEquals(80, ImageEncoder.fromPrefs(context).quality());
+    }
+}
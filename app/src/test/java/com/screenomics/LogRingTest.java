@@ -0,0 +1,226 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.preference.PreferenceManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The in-app log ring: under appends from 8 writer threads every slot holds
+ * a whole line and a concurrent reader only sees lines as they were written,
+ * the newest lines survive reopening, clearing keeps what came after the
+ * mark, and Logger's line format is unchanged.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class LogRingTest {
+
+    private static final int WRITERS = 8;
+    private static final int LINES_PER_WRITER = 200;
+    private static final String MESSAGE =
+            "Upload success for 12 files. Server msg: {\"status\":\"accepted\",\"count\":12}";
+
+    private Context context;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.getApplication();
+        PreferenceManager.getDefaultSharedPreferences(context).edit().clear().commit();
+        LogRing.resetForTest();
+        Logger.resetForTest();
+        new File(context.getFilesDir(), LogRing.FILE_NAME).delete();
+        dir = Files.createTempDirectory("log-ring").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        LogRing.resetForTest();
+        File[] left = dir.listFiles();
+        if (left != null) for (File f : left) f.delete();
+        dir.delete();
+    }
+
+    private interface Appender {
+        void append(int writer, int line);
+    }
+
+    /** WRITERS threads append LINES_PER_WRITER lines each, all released at once. */
+    private static void contend(Appender appender) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[WRITERS];
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            threads[w] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < LINES_PER_WRITER; i++) appender.append(writer, i);
+            });
+            threads[w].start();
+        }
+        start.countDown();
+        for (Thread t : threads) t.join();
+    }
+
+    @Test
+    public void concurrentWritersNeverTearALine() throws Exception {
+        LogRing ring = LogRing.open(new File(dir, "contended.ring"));
+
+        contend((w, i) -> ring.append('i', "w" + w + " #" + i + " " + MESSAGE));
+
+        // Every slot holds a whole line, none of them twice
+        List<LogRing.Record> records = ring.records();
+        assertEquals(LogRing.SLOTS, records.size());
+        Set<String> seen = new HashSet<>();
+        for (LogRing.Record r : records) {
+            assertTrue("torn line: " + r.message, r.message.endsWith(" " + MESSAGE));
+            assertTrue("duplicate: " + r.message, seen.add(r.message));
+        }
+        assertEquals((long) WRITERS * LINES_PER_WRITER, ring.next());
+    }
+
+    @Test
+    public void everyLineReadMatchesTheRecordItWasWrittenAs() throws Exception {
+        LogRing ring = LogRing.open(new File(dir, "seq.ring"));
+        Map<Long, String> written = new ConcurrentHashMap<>();
+        AtomicReference<String> mismatch = new AtomicReference<>();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            while (!done.get() && mismatch.get() == null) {
+                for (LogRing.Record r : ring.records()) {
+                    String expected = written.get(r.seq);
+                    // Not yet in the map: the writer is between append and put
+                    if (expected != null && !expected.equals(r.message)) {
+                        mismatch.set("seq " + r.seq + ": " + r.message);
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        // Lines of different lengths and fill, so a mix of two shows
+        contend((w, i) -> {
+            StringBuilder sb = new StringBuilder("w" + w + " #" + i + " ");
+            char fill = (char) ('a' + (w * LINES_PER_WRITER + i) % 26);
+            for (int k = (w * 37 + i) % LogRing.MAX_MESSAGE_BYTES / 2; k > 0; k--) sb.append(fill);
+            long seq = ring.append('i', sb.toString(), i);
+            written.put(seq, sb.toString());
+        });
+        done.set(true);
+        reader.join();
+
+        assertNull(mismatch.get());
+        for (LogRing.Record r : ring.records()) assertEquals(written.get(r.seq), r.message);
+    }
+
+    @Test
+    public void theNewestLinesSurviveReopening() throws Exception {
+        File file = new File(dir, "reopen.ring");
+        LogRing ring = LogRing.open(file);
+        for (int i = 0; i < LogRing.SLOTS + 10; i++) ring.append(i % 7 == 0 ? 'e' : 'i', "line " + i);
+
+        LogRing reopened = LogRing.open(file);
+
+        List<LogRing.Record> records = reopened.records();
+        assertEquals(LogRing.SLOTS, records.size());
+        assertEquals("line 10", records.get(0).message);
+        assertEquals("line " + (LogRing.SLOTS + 9), records.get(records.size() - 1).message);
+        assertEquals(LogRing.SLOTS + 10, reopened.next());
+        assertEquals("line " + (LogRing.SLOTS + 5), reopened.latest('e').message);
+    }
+
+    @Test
+    public void clearingKeepsLinesAppendedSinceTheMark() throws Exception {
+        LogRing ring = LogRing.open(new File(dir, "clear.ring"));
+        ring.append('i', "uploaded");
+        long mark = ring.next();
+        ring.append('i', "after");
+
+        ring.clearBefore(mark);
+
+        List<LogRing.Record> records = ring.records();
+        assertEquals(1, records.size());
+        assertEquals("after", records.get(0).message);
+        ring.clear();
+        assertEquals(0, ring.records().size());
+        assertNull(ring.latest('i'));
+        assertEquals(0, LogRing.open(new File(dir, "clear.ring")).records().size());
+    }
+
+    @Test
+    public void longMessagesAreCutOnACharacterBoundary() throws Exception {
+        LogRing ring = LogRing.open(new File(dir, "long.ring"));
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < LogRing.MAX_MESSAGE_BYTES) sb.append("é");
+
+        ring.append('e', sb.toString());
+
+        String stored = ring.records().get(0).message;
+        assertTrue(stored.getBytes(StandardCharsets.UTF_8).length <= LogRing.MAX_MESSAGE_BYTES);
+        assertTrue(sb.toString().startsWith(stored));
+        assertEquals(LogRing.MAX_MESSAGE_BYTES / 2, stored.length());
+    }
+
+    @Test
+    public void loggerKeepsItsLineFormat() throws Exception {
+        Logger.i(context, "first");
+        Logger.e(context, "Batch upload failed");
+        Logger.i(context, "second");
+
+        String all = Logger.getAll(context);
+        String[] lines = all.split("\n");
+        assertEquals("", lines[0]);
+        assertEquals(4, lines.length);
+        assertTrue(lines[1], lines[1].matches("i\\d{8}_\\d{6}:first"));
+        assertTrue(Logger.getLatestError(context).matches("e\\d{8}_\\d{6}:Batch upload failed"));
+
+        Logger.reset(context);
+        assertEquals("", Logger.getAll(context));
+        assertEquals("", Logger.getLatestError(context));
+    }
+
+    @Test
+    public void theLegacyLogMovesIntoTheRing() throws Exception {
+        String legacy = "\ni20261017_101500:Upload success for 3 files."
+                + "\ne20261017_101502:Batch upload failed: 503"
+                + "\ni20261017_101600:Server msg: {\"status\":\n\"retry\"}";
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString("logs", legacy).commit();
+
+        assertEquals(legacy, Logger.getAll(context));
+        assertEquals("e20261017_101502:Batch upload failed: 503", Logger.getLatestError(context));
+        assertFalse(PreferenceManager.getDefaultSharedPreferences(context).contains("logs"));
+
+        // Moved once: new lines follow, the old ones aren't added again
+        Logger.resetForTest();
+        Logger.i(context, "after upgrade");
+        assertEquals(4, LogRing.get(context).records().size());
+    }
+}
@@ -0,0 +1,188 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Calendar;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The metrics registry: counts that hold under contention, bounded labels,
+ * values that survive a restart, and intervals that follow the heartbeat's
+ * watermark rules.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class MetricsTest {
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        PreferenceManager.getDefaultSharedPreferences(context).edit().clear().commit();
+        Metrics.resetForTest();
+        CaptureStats.resetPendingForTest();
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.resetForTest();
+        CaptureStats.resetPendingForTest();
+    }
+
+    @Test
+    public void countsHoldUnderContention() throws Exception {
+        Metrics.Counter counter = Metrics.counter("test_events");
+        Metrics.Histogram histogram = Metrics.histogram("test_latency");
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 10_000; i++) {
+                    counter.inc();
+                    histogram.record(i % 100);
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread t : threads) t.join();
+
+        assertEquals(80_000L, counter.value());
+        assertEquals(80_000L, histogram.count());
+        JSONObject h = Metrics.snapshot().getJSONObject("histograms").getJSONObject("test_latency");
+        assertEquals(99L, h.getLong("max_ms"));
+        assertEquals(8L * 100 * 4950, h.getLong("sum_ms"));
+    }
+
+    @Test
+    public void bucketsCoverEveryValueWithinAQuarter() {
+        for (long ms = 0; ms < 200_000; ms += ms < 100 ? 1 : 37) {
+            int i = Metrics.Histogram.index(ms);
+            long upper = Metrics.Histogram.upperBound(i);
+            assertTrue(ms + " above its bucket", ms <= upper);
+            assertTrue(ms + " bucket too wide", upper - ms <= Math.max(1, ms / 4));
+            if (i > 0) assertTrue(ms + " below its bucket", ms > Metrics.Histogram.upperBound(i - 1));
+        }
+        assertEquals(Metrics.Histogram.BUCKETS - 1, Metrics.Histogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreCloseToTheTrueValues() {
+        Metrics.Histogram h = Metrics.histogram("test_latency");
+        for (long ms = 1; ms <= 1000; ms++) h.record(ms);
+
+        long p50 = h.percentileMs(0.50);
+        long p95 = h.percentileMs(0.95);
+        assertTrue("p50 " + p50, p50 >= 500 && p50 <= 625);
+        assertTrue("p95 " + p95, p95 >= 950 && p95 <= 1000);
+        assertEquals(1000, h.percentileMs(1.0));
+    }
+
+    @Test
+    public void labelsPastTheLimitCountAsOther() throws Exception {
+        Metrics.Labeled byApp = Metrics.labeled("test_by_app");
+        for (int i = 0; i < Metrics.MAX_LABELS + 10; i++) byApp.inc("com.example.app" + i);
+        byApp.inc(null);
+
+        JSONObject labels = Metrics.snapshot().getJSONObject("labeled").getJSONObject("test_by_app");
+        assertEquals(Metrics.MAX_LABELS + 1, labels.length());
+        assertEquals(11L, byApp.value(Metrics.OTHER_LABEL));
+        assertEquals(1L, byApp.value("com.example.app0"));
+    }
+
+    @Test
+    public void hoursAreLocal() {
+        long ms = 1_760_000_000_000L;
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(ms);
+        assertEquals(cal.get(Calendar.HOUR_OF_DAY), Metrics.Hourly.hourOfDay(ms));
+    }
+
+    @Test
+    public void valuesSurviveARestart() throws Exception {
+        Metrics.counter("test_events").add(5);
+        Metrics.labeled("test_by_app").inc("com.example.a");
+        Metrics.histogram("test_latency").record(700);
+        Metrics.save(context);
+
+        // A new process: the registry starts from zero, then restores
+        Metrics.resetForTest();
+        Metrics.counter("test_events").add(2);
+        JSONObject state = Metrics.snapshot(context);
+        Metrics.labeled("test_by_app").inc("com.example.a");
+
+        assertEquals(7L, state.getJSONObject("counters").getLong("test_events"));
+        assertEquals(2L, Metrics.labeled("test_by_app").value("com.example.a"));
+        assertEquals(1L, Metrics.histogram("test_latency").count());
+        // A second restore in the same process changes nothing
+        Metrics.restore(context);
+        assertEquals(7L, Metrics.counter("test_events").value());
+    }
+
+    @Test
+    public void theIntervalFollowsTheWatermarkRules() throws Exception {
+        Metrics.counter("test_events").add(10);
+        Metrics.hourly("test_by_hour").inc(1_760_000_000_000L);
+        for (int i = 0; i < 50; i++) Metrics.histogram("test_latency").record(4000);
+        JSONObject reported = Metrics.snapshot();
+
+        Metrics.counter("test_events").add(3);
+        for (int i = 0; i < 50; i++) Metrics.histogram("test_latency").record(15);
+        JSONObject interval = Metrics.interval(Metrics.snapshot(), reported);
+
+        assertEquals(3L, interval.getLong("test_events"));
+        assertEquals(50L, interval.getLong("test_latency_count"));
+        assertEquals(15L, interval.getLong("test_latency_p95_ms"));
+        JSONArray hours = interval.getJSONArray("test_by_hour");
+        assertEquals(24, hours.length());
+        for (int h = 0; h < 24; h++) assertEquals(0L, hours.getLong(h));
+
+        // Cleared data: everything current is new
+        Metrics.resetForTest();
+        Metrics.counter("test_events").add(4);
+        JSONObject afterClear = Metrics.interval(Metrics.snapshot(), reported);
+        assertEquals(4L, afterClear.getLong("test_events"));
+        assertEquals(0L, afterClear.getLong("test_latency_count"));
+    }
+
+    @Test
+    public void captureStatsPublishesIntoTheRegistry() throws Exception {
+        CaptureStats.addCapture("com.example.reader");
+        CaptureStats.addCapture("com.example.reader");
+        CaptureStats.addBlankCapture();
+
+        assertEquals(2L, Metrics.labeled(CaptureStats.METRIC_CAPTURES_BY_APP).value("com.example.reader"));
+        assertEquals(2L, CaptureStats.read(context).captures);
+
+        CaptureStats.flush(context);
+        CaptureStats.addCapture();
+
+        assertEquals(3L, CaptureStats.read(context).captures);
+        assertEquals(1L, CaptureStats.read(context).blanks);
+        // flush() also saved the registry
+        assertEquals(2L, new JSONObject(PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(Metrics.PREF_STATE, "{}")).getJSONObject("counters")
+                .getLong(CaptureStats.METRIC_CAPTURES));
+    }
+}
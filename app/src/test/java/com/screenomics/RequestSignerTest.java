@@ -0,0 +1,110 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+
+/**
+ * The memoized signer: one resolution per key, signatures that verify with
+ * the algorithm it reports, and re-resolution when the key changes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class RequestSignerTest {
+
+    private static final byte[] CANONICAL =
+            "(request-target): post /api/v1/batches\ndate: x".getBytes(StandardCharsets.UTF_8);
+
+    private RequestSigner signer;
+
+    @Before
+    public void setUp() {
+        signer = RequestSigner.get();
+    }
+
+    private static KeyPair rsa() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        return kpg.generateKeyPair();
+    }
+
+    private static KeyPair ec() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+        kpg.initialize(new ECGenParameterSpec("secp256r1"));
+        return kpg.generateKeyPair();
+    }
+
+    private static boolean verifies(KeyPair pair, RequestSigner.Signed signed) throws Exception {
+        Signature v = Signature.getInstance(signed.algorithm.jcaName);
+        if (signed.algorithm.pss) {
+            v.setParameter(new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, 1));
+        }
+        v.initVerify(pair.getPublic());
+        v.update(CANONICAL);
+        return v.verify(signed.signature);
+    }
+
+    @Test
+    public void theAlgorithmIsResolvedOncePerKey() throws Exception {
+        KeyPair pair = rsa();
+        FakeAndroidKeyStore.install(RequestSigner.KEY_ALIAS, pair.getPrivate());
+        int before = signer.resolutions();
+
+        for (int i = 0; i < 5; i++) {
+            RequestSigner.Signed signed = signer.sign(CANONICAL);
+            assertEquals("rsa-sha256", signed.algorithm.headerName);
+            assertTrue(verifies(pair, signed));
+        }
+        assertEquals(before + 1, signer.resolutions());
+    }
+
+    @Test
+    public void anEcKeySignsWithEcdsa() throws Exception {
+        KeyPair pair = ec();
+        FakeAndroidKeyStore.install(RequestSigner.KEY_ALIAS, pair.getPrivate());
+
+        RequestSigner.Signed signed = signer.sign(CANONICAL);
+
+        assertEquals(RequestSigner.Algorithm.ECDSA_P256, signed.algorithm);
+        assertEquals("ecdsa-sha256", signed.algorithm.headerName);
+        assertTrue(verifies(pair, signed));
+    }
+
+    @Test
+    public void aReplacedKeyIsPickedUp() throws Exception {
+        FakeAndroidKeyStore.install(RequestSigner.KEY_ALIAS, rsa().getPrivate());
+        signer.sign(CANONICAL);
+
+        KeyPair next = ec();
+        FakeAndroidKeyStore.install(RequestSigner.KEY_ALIAS, next.getPrivate());
+        RequestSigner.Signed signed = signer.sign(CANONICAL);
+
+        assertEquals(RequestSigner.Algorithm.ECDSA_P256, signed.algorithm);
+        assertTrue(verifies(next, signed));
+    }
+
+    @Test
+    public void everySignatureIsTimed() throws Exception {
+        FakeAndroidKeyStore.install(RequestSigner.KEY_ALIAS, ec().getPrivate());
+        long before = signer.latency().count();
+
+        signer.sign(CANONICAL);
+        signer.sign(CANONICAL);
+
+        assertEquals(before + 2, signer.latency().count());
+        assertEquals(before + 2, signer.snapshot().getJSONObject("latency_ms").getLong("count"));
+    }
+}
@@ -0,0 +1,191 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.util.List;
+import java.util.Random;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * Chunked uploads against the stand-in receiver: progress that survives a
+ * failure and a new process, and the server's offset winning over ours.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ResumableUploadTest {
+
+    private static final int CHUNK = 1000;
+    private static final String META = "{\"mime\":\"application/json\",\"type\":\"logcat\"}";
+
+    private Context context;
+    private SharedPreferences prefs;
+    private MockWebServer server;
+    private FakeReceiver receiver;
+    private String baseUrl;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.getApplication();
+        prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        prefs.edit().clear().commit();
+
+        receiver = new FakeReceiver();
+        server = new MockWebServer();
+        server.setDispatcher(receiver);
+        server.start();
+        baseUrl = server.url("").toString().replaceAll("/$", "");
+
+        dir = new File(context.getFilesDir(), "encrypt");
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        File[] left = dir.listFiles();
+        if (left != null) for (File f : left) f.delete();
+    }
+
+    private File enc(String name, int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File f = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(data);
+        }
+        return f;
+    }
+
+    /** A fresh uploader, as a new process would build. */
+    private ResumableUpload uploader() {
+        return new ResumableUpload(context, new OkHttpClient(),
+                url -> new Request.Builder().url(url), CHUNK);
+    }
+
+    private byte[] received() {
+        return receiver.uploads.values().iterator().next().toByteArray();
+    }
+
+    private static byte[] bytes(File f) throws Exception {
+        return java.nio.file.Files.readAllBytes(f.toPath());
+    }
+
+    @Test
+    public void aFileGoesUpInChunks() throws Exception {
+        File f = enc("h_1_logcat.enc", 2500);
+
+        assertEquals(ResumableUpload.Result.DONE, uploader().send(f, META, baseUrl, 42));
+
+        assertEquals(3, receiver.patches.get());
+        assertArrayEquals(bytes(f), received());
+        assertEquals("h_1_logcat.enc", receiver.uploadNames.values().iterator().next());
+        assertEquals("finished uploads leave no progress behind", 0, uploader().savedOffset(f));
+    }
+
+    @Test
+    public void anInterruptedUploadResumesInANewProcess() throws Exception {
+        File f = enc("h_2_logcat.enc", 4500);
+        receiver.failPatchesAfter = 2;
+
+        assertEquals(ResumableUpload.Result.FAILED, uploader().send(f, META, baseUrl, 42));
+        assertEquals(2 * CHUNK, uploader().savedOffset(f));
+
+        receiver.failPatchesAfter = -1;
+        assertEquals(ResumableUpload.Result.DONE, uploader().send(f, META, baseUrl, 42));
+
+        assertEquals(1, receiver.creates.get());
+        assertEquals("no byte was sent twice", 4500, receiver.patchBytes.get());
+        assertArrayEquals(bytes(f), received());
+    }
+
+    @Test
+    public void theServersOffsetWinsOverOurs() throws Exception {
+        // The third chunk reached the server but its acknowledgement did not
+        // reach us; resending it would be a conflict.
+        File f = enc("h_3_logcat.enc", 4500);
+        receiver.failPatchesAfter = 2;
+        receiver.keepFailedChunk = true;
+
+        assertEquals(ResumableUpload.Result.FAILED, uploader().send(f, META, baseUrl, 42));
+        assertEquals(2 * CHUNK, uploader().savedOffset(f));
+
+        receiver.failPatchesAfter = -1;
+        assertEquals(ResumableUpload.Result.DONE, uploader().send(f, META, baseUrl, 42));
+        assertEquals(4500, receiver.patchBytes.get());
+        assertArrayEquals(bytes(f), received());
+    }
+
+    @Test
+    public void anUploadTheServerForgotStartsOver() throws Exception {
+        File f = enc("h_4_logcat.enc", 2500);
+        receiver.failPatchesAfter = 1;
+        uploader().send(f, META, baseUrl, 42);
+
+        receiver.expireUploads();
+        receiver.failPatchesAfter = -1;
+        assertEquals(ResumableUpload.Result.DONE, uploader().send(f, META, baseUrl, 42));
+
+        assertEquals(2, receiver.creates.get());
+        assertArrayEquals(bytes(f), received());
+    }
+
+    @Test
+    public void aReceiverWithoutTheEndpointIsReported() throws Exception {
+        receiver.tusEnabled = false;
+        File f = enc("h_5_logcat.enc", 2500);
+
+        assertEquals(ResumableUpload.Result.UNSUPPORTED, uploader().send(f, META, baseUrl, 42));
+    }
+
+    @Test
+    public void batchSendsLargeFilesResumably() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        FakeAndroidKeyStore.install("mindpulse_client_key", generator.generateKeyPair().getPrivate());
+        prefs.edit()
+                .putString("ppt_id", "ppt-tus-0001")
+                .putString("study_id", "7")
+                .putString("base_url", baseUrl)
+                .putLong(ResumableUpload.PREF_THRESHOLD_BYTES, 2000L)
+                .commit();
+        File large = enc("h_6_logcat.enc", 3000);
+        File small = enc("h_7_image.enc", 500);
+        for (File f : List.of(large, small)) {
+            String meta = f.getName().replace(".enc", ".meta");
+            try (FileOutputStream out = new FileOutputStream(new File(dir, meta))) {
+                out.write(META.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        String[] result = new Batch(context, List.of(large, small)).sendFiles();
+
+        assertEquals("202", result[0]);
+        assertEquals(1, receiver.creates.get());
+        assertEquals(1, receiver.singleRequests.get());
+        assertFalse(large.exists());
+        assertFalse(small.exists());
+    }
+}
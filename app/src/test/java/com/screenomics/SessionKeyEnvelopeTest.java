@@ -0,0 +1,196 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.os.Looper;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.MGF1ParameterSpec;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Session-key envelope (enc_version 2): rotation bounds, nonce uniqueness
+ * across rotations, and a server-side round trip through the key record.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class SessionKeyEnvelopeTest {
+
+    private KeyPair rsa;
+    private String publicKeyPem;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        Encryptor.resetCachesForTest();
+        rsa = newKeyPair();
+        publicKeyPem = toPem(rsa);
+        dir = Files.createTempDirectory("envelope-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        Encryptor.resetCachesForTest();
+    }
+
+    private static KeyPair newKeyPair() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        return kpg.generateKeyPair();
+    }
+
+    private static String toPem(KeyPair kp) {
+        return "-----BEGIN PUBLIC KEY-----\n"
+                + android.util.Base64.encodeToString(kp.getPublic().getEncoded(),
+                        android.util.Base64.NO_WRAP)
+                + "\n-----END PUBLIC KEY-----";
+    }
+
+    private File[] keyRecords(String ext) {
+        File[] found = dir.listFiles((d, name) ->
+                name.contains("_" + SessionKeyEnvelope.KEY_RECORD_DESCRIPTOR) && name.endsWith(ext));
+        return found == null ? new File[0] : found;
+    }
+
+    @Test
+    public void noncesAreUniqueAcrossRotations() throws Exception {
+        SessionKeyEnvelope envelope = new SessionKeyEnvelope(SessionKeyEnvelope.DEFAULT_MAX_AGE_MS, 7);
+        Set<String> nonces = new HashSet<>();
+        Set<String> keyIds = new HashSet<>();
+        int leases = 200;
+        for (int i = 0; i < leases; i++) {
+            SessionKeyEnvelope.Lease lease = envelope.lease(dir, "abcd1234", publicKeyPem);
+            assertEquals(Encryptor.GCM_NONCE_LEN, lease.nonce.length);
+            assertTrue("nonce reused at lease " + i,
+                    nonces.add(Encryptor.toHex(lease.nonce)));
+            keyIds.add(lease.keyId);
+        }
+        // 7 files per session, so 200 leases span ceil(200 / 7) sessions
+        assertEquals(29, envelope.sessionsStarted());
+        assertEquals(29, keyIds.size());
+        assertEquals(29, keyRecords(".meta").length);
+        assertEquals(29, keyRecords(".enc").length);
+
+        // The key records' own nonces (counter 0) collide with no file's
+        for (File enc : keyRecords(".enc")) {
+            byte[] nonce = Arrays.copyOf(Files.readAllBytes(enc.toPath()), Encryptor.GCM_NONCE_LEN);
+            assertTrue(nonces.add(Encryptor.toHex(nonce)));
+        }
+    }
+
+    @Test
+    public void sessionRotatesAfterMaxAge() throws Exception {
+        SessionKeyEnvelope envelope = new SessionKeyEnvelope(60_000L, 1000);
+        String first = envelope.lease(dir, "abcd1234", publicKeyPem).keyId;
+        assertEquals(first, envelope.lease(dir, "abcd1234", publicKeyPem).keyId);
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofSeconds(61));
+        assertNotEquals(first, envelope.lease(dir, "abcd1234", publicKeyPem).keyId);
+        assertEquals(2, envelope.sessionsStarted());
+    }
+
+    @Test
+    public void sessionRotatesWhenServerKeyChanges() throws Exception {
+        SessionKeyEnvelope envelope = new SessionKeyEnvelope(SessionKeyEnvelope.DEFAULT_MAX_AGE_MS, 1000);
+        String first = envelope.lease(dir, "abcd1234", publicKeyPem).keyId;
+        String other = envelope.lease(dir, "abcd1234", toPem(newKeyPair())).keyId;
+        assertNotEquals(first, other);
+        assertEquals(2, envelope.sessionsStarted());
+    }
+
+    @Test
+    public void envelopeFilesDecryptThroughTheirKeyRecord() throws Exception {
+        Context context = RuntimeEnvironment.getApplication();
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putBoolean(SessionKeyEnvelope.PREF_ENABLED, true)
+                .putString("hash", "abcd1234ffff")
+                .commit();
+
+        byte[] plaintext = "{\"lat\":52.1,\"lon\":4.3}".getBytes(StandardCharsets.UTF_8);
+        File in = new File(dir, "gps.json");
+        try (FileOutputStream fos = new FileOutputStream(in)) { fos.write(plaintext); }
+
+        File out = new File(dir, "abcd1234_1_gps.enc");
+        Encryptor.Result result = Encryptor.encryptFileToEnc(context, in, out, publicKeyPem);
+        assertEquals(SessionKeyEnvelope.ENC_VERSION, result.encVersion);
+
+        JSONObject meta = new JSONObject();
+        result.putKeyFields(meta);
+        assertEquals(2, meta.getInt("enc_version"));
+        assertFalse("v2 files carry no wrapped key", meta.has("aes_key_encrypted_b64"));
+
+        // Server side: find the record by key_id, unwrap, confirm, decrypt.
+        File[] records = keyRecords(".meta");
+        assertEquals(1, records.length);
+        assertTrue(records[0].getName().startsWith("abcd1234_"));
+        JSONObject record = new JSONObject(
+                new String(Files.readAllBytes(records[0].toPath()), StandardCharsets.UTF_8));
+        assertEquals(SessionKeyEnvelope.KEY_RECORD_TYPE, record.getString("type"));
+        assertEquals(meta.getString("key_id"), record.getString("key_id"));
+
+        Cipher unwrap = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        unwrap.init(Cipher.DECRYPT_MODE, rsa.getPrivate(), new OAEPParameterSpec(
+                "SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT));
+        byte[] dataKey = unwrap.doFinal(android.util.Base64.decode(
+                record.getString("aes_key_encrypted_b64"), android.util.Base64.NO_WRAP));
+
+        File recordEnc = new File(dir, records[0].getName().replace(".meta", ".enc"));
+        assertArrayEquals(record.getString("key_id").getBytes(StandardCharsets.UTF_8),
+                decrypt(Files.readAllBytes(recordEnc.toPath()), dataKey));
+        assertArrayEquals(plaintext, decrypt(Files.readAllBytes(out.toPath()), dataKey));
+    }
+
+    @Test
+    public void envelopeIsOffByDefault() throws Exception {
+        Context context = RuntimeEnvironment.getApplication();
+        File in = new File(dir, "gps.json");
+        try (FileOutputStream fos = new FileOutputStream(in)) { fos.write(new byte[]{1, 2, 3}); }
+
+        Encryptor.Result result = Encryptor.encryptFileToEnc(
+                context, in, new File(dir, "x.enc"), publicKeyPem);
+        assertEquals(1, result.encVersion);
+        JSONObject meta = new JSONObject();
+        result.putKeyFields(meta);
+        assertTrue(meta.has("aes_key_encrypted_b64"));
+        assertFalse(meta.has("enc_version"));
+        assertEquals(0, keyRecords(".meta").length);
+    }
+
+    private static byte[] decrypt(byte[] enc, byte[] key) throws Exception {
+        Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding");
+        gcm.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(
+                Encryptor.GCM_TAG_BITS, Arrays.copyOfRange(enc, 0, Encryptor.GCM_NONCE_LEN)));
+        return gcm.doFinal(Arrays.copyOfRange(enc, Encryptor.GCM_NONCE_LEN, enc.length));
+    }
+}
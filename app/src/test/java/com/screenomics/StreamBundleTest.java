@@ -0,0 +1,267 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.MGF1ParameterSpec;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A sensor flush bundled into one item, on payloads shaped like
+ * LocationService's (60 fixes at the 10 s location interval, app usage
+ * events, a device-state snapshot and a logcat tail): it decodes back to its
+ * streams, it is smaller than the streams compressed one by one, and a
+ * queued bundle decrypts and decodes the way the receiver would.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class StreamBundleTest {
+
+    private static final String[] PACKAGES = {
+            "com.instagram.android", "com.whatsapp", "com.google.android.youtube",
+            "com.android.chrome", "com.spotify.music", "com.zhiliaoapp.musically",
+            "com.google.android.apps.messaging", "com.sec.android.app.launcher"};
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        PreferenceManager.getDefaultSharedPreferences(context).edit().clear().commit();
+        Encryptor.resetCachesForTest();
+    }
+
+    @After
+    public void tearDown() {
+        Encryptor.resetCachesForTest();
+    }
+
+    private static String gps(Random r) throws Exception {
+        JSONArray arr = new JSONArray();
+        double lat = 43.0731, lon = -89.4012;
+        long t = 1_760_000_000_000L;
+        for (int i = 0; i < 60; i++, t += 10_000) {
+            lat += (r.nextDouble() - 0.5) * 1e-4;
+            lon += (r.nextDouble() - 0.5) * 1e-4;
+            JSONObject fix = new JSONObject();
+            fix.put("latitude", lat);
+            fix.put("longitude", lon);
+            fix.put("timestamp", Timestamps.isoMillis(t));
+            fix.put("epoch_ms", t);
+            fix.put("accuracy_m", 3 + r.nextInt(20) + r.nextFloat());
+            fix.put("altitude_m", 260 + r.nextDouble() * 5);
+            fix.put("speed_mps", r.nextFloat() * 2);
+            fix.put("bearing_deg", r.nextFloat() * 360);
+            fix.put("provider", "fused");
+            fix.put("location_epoch_ms", t - r.nextInt(900));
+            fix.put("timezone", "America/Chicago");
+            fix.put("battery_pct", 80 - i / 10);
+            fix.put("screen_on", r.nextBoolean());
+            fix.put("foreground_app", PACKAGES[r.nextInt(PACKAGES.length)]);
+            arr.put(fix);
+        }
+        return arr.toString();
+    }
+
+    private static String appUsage(Random r) throws Exception {
+        JSONArray arr = new JSONArray();
+        long t = 1_760_000_000_000L;
+        for (int i = 0; i < 40; i++) {
+            t += r.nextInt(30_000);
+            JSONObject e = new JSONObject();
+            e.put("event", i % 2 == 0 ? "FOREGROUND" : "BACKGROUND");
+            e.put("package", PACKAGES[r.nextInt(PACKAGES.length)]);
+            e.put("timestamp", Timestamps.isoMillis(t));
+            e.put("epoch_ms", t);
+            arr.put(e);
+        }
+        return arr.toString();
+    }
+
+    private static String deviceState(Random r) throws Exception {
+        JSONObject battery = new JSONObject();
+        battery.put("battery_level", 78);
+        battery.put("battery_charging", false);
+        battery.put("battery_plugged_type", 0);
+        battery.put("battery_temp_c", 31.2);
+        battery.put("battery_voltage_mv", 3981);
+        battery.put("battery_health", 2);
+        battery.put("battery_current_ua", -412000);
+        battery.put("power_save_mode", false);
+        battery.put("battery_optimization_exempt", true);
+        JSONObject storage = new JSONObject();
+        storage.put("storage_total_bytes", 118_000_000_000L);
+        storage.put("storage_available_bytes", 41_000_000_000L + r.nextInt(1000));
+        storage.put("pending_upload_count", 212);
+        storage.put("pending_upload_bytes", 38_000_000L);
+        JSONObject memory = new JSONObject();
+        memory.put("mem_total_bytes", 7_700_000_000L);
+        memory.put("mem_available_bytes", 2_900_000_000L);
+        memory.put("mem_low_memory", false);
+        memory.put("app_heap_used_bytes", 21_000_000L);
+        memory.put("app_heap_max_bytes", 268_435_456L);
+        JSONObject network = new JSONObject();
+        network.put("network_connected", true);
+        network.put("network_type", "wifi");
+        network.put("network_metered", false);
+        JSONObject service = new JSONObject();
+        service.put("recording_state", true);
+        service.put("capture_mode", "accessibility");
+        service.put("a11y_capture_active", true);
+        service.put("a11y_last_image_ts", 1_760_000_590_000L);
+        service.put("a11y_last_error", "");
+        service.put("a11y_consecutive_failures", 0);
+        service.put("upload_telemetry", new UploadTelemetry().toJson());
+        JSONObject device = new JSONObject();
+        device.put("manufacturer", "samsung");
+        device.put("model", "SM-S911U");
+        device.put("os_version", "14");
+        device.put("api_level", 34);
+        device.put("app_version_name", "2.4.1");
+        JSONObject root = new JSONObject();
+        root.put("battery", battery);
+        root.put("storage", storage);
+        root.put("memory", memory);
+        root.put("network", network);
+        root.put("service_state", service);
+        root.put("device", device);
+        return root.toString();
+    }
+
+    private static String logData(Random r) throws Exception {
+        StringBuilder logcat = new StringBuilder("--------- beginning of main\n");
+        String[] tags = {"SCREENOMICS_UPLOAD", "SCREENOMICS_CAPTURE", "SCREENOMICS_LOGGER", "GPS"};
+        String[] messages = {"Progress: %d/40 uploaded", "Upload response: 202 body={\"status\":\"accepted\"}",
+                "Captured frame %d", "GPS data: 43.07%d,-89.40%d", "Queued encrypted gps snapshot"};
+        for (int i = 0; i < 200; i++) {
+            logcat.append(String.format(Locale.US, "10-18 12:%02d:%02d.%03d  4312  4390 %s %s: ",
+                    i / 20, i % 60, r.nextInt(1000), "DIW".charAt(r.nextInt(3)), tags[r.nextInt(tags.length)]));
+            logcat.append(String.format(Locale.US, messages[r.nextInt(messages.length)],
+                    r.nextInt(100), r.nextInt(100))).append('\n');
+        }
+        JSONObject payload = new JSONObject();
+        payload.put("app_logs", "[2026-10-18 12:00:00] Upload success for 12 files.\n");
+        payload.put("logcat", logcat.toString());
+        return payload.toString();
+    }
+
+    private static StreamBundle flush() throws Exception {
+        Random r = new Random(1);
+        return new StreamBundle()
+                .add("gps", "application/json", gps(r))
+                .add("appusage", "application/json", appUsage(r))
+                .add("devicestate", "application/json", deviceState(r))
+                .add("logdata", "application/json", logData(r));
+    }
+
+    @Test
+    public void aBundleDecodesToItsStreams() throws Exception {
+        StreamBundle bundle = flush();
+
+        List<StreamBundle.Stream> back = StreamBundle.read(new ByteArrayInputStream(bundle.toBytes()));
+
+        assertEquals(bundle.streams().size(), back.size());
+        for (int i = 0; i < back.size(); i++) {
+            assertEquals(bundle.streams().get(i).type, back.get(i).type);
+            assertArrayEquals(bundle.streams().get(i).data, back.get(i).data);
+        }
+    }
+
+    /** Plain zlib, no dictionary: what each stream would cost as its own file. */
+    private static int zlib(byte[] data) {
+        Deflater d = new Deflater(Deflater.BEST_COMPRESSION);
+        d.setInput(data);
+        d.finish();
+        byte[] buf = new byte[64 * 1024];
+        int n = 0;
+        while (!d.finished()) n += d.deflate(buf);
+        d.end();
+        return n;
+    }
+
+    @Test
+    public void aBundleIsSmallerThanItsStreamsCompressedSeparately() throws Exception {
+        StreamBundle bundle = flush();
+        int separate = 0;
+        for (StreamBundle.Stream s : bundle.streams()) separate += zlib(s.data);
+
+        int bundled = bundle.toBytes().length;
+
+        assertTrue("bundle " + bundled + " vs separate zlib " + separate, bundled < separate);
+    }
+
+    @Test
+    public void aQueuedBundleDecryptsAndDecodes() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        KeyPair rsa = kpg.generateKeyPair();
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(Encryptor.PREF_IMAGE_PUBLIC_KEY, "-----BEGIN PUBLIC KEY-----\n"
+                        + android.util.Base64.encodeToString(rsa.getPublic().getEncoded(),
+                                android.util.Base64.NO_WRAP)
+                        + "\n-----END PUBLIC KEY-----")
+                .putString("hash", "abcd1234ef")
+                .commit();
+        File encryptDir = new File(context.getExternalFilesDir(null), "encrypt");
+        StreamBundle bundle = flush();
+
+        assertTrue(bundle.queue(context));
+
+        File[] metas = encryptDir.listFiles((d, name) -> name.endsWith("_bundle.meta"));
+        assertEquals(1, metas.length);
+        assertTrue(metas[0].getName().startsWith("abcd1234_"));
+        JSONObject meta = new JSONObject(
+                new String(Files.readAllBytes(metas[0].toPath()), StandardCharsets.UTF_8));
+        assertEquals(StreamBundle.DESCRIPTOR, meta.getString("type"));
+        assertEquals(StreamBundle.MIME, meta.getString("mime"));
+        assertEquals("gps", meta.getJSONArray("streams").getString(0));
+        assertEquals(UploadQueue.Priority.TELEMETRY, UploadQueue.classify(metas[0].getName()));
+
+        Cipher unwrap = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        unwrap.init(Cipher.DECRYPT_MODE, rsa.getPrivate(), new OAEPParameterSpec(
+                "SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT));
+        byte[] key = unwrap.doFinal(android.util.Base64.decode(
+                meta.getString("aes_key_encrypted_b64"), android.util.Base64.NO_WRAP));
+        byte[] enc = Files.readAllBytes(
+                new File(encryptDir, metas[0].getName().replace(".meta", ".enc")).toPath());
+        Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding");
+        gcm.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+                new GCMParameterSpec(128, enc, 0, Encryptor.GCM_NONCE_LEN));
+        byte[] plain = gcm.doFinal(enc, Encryptor.GCM_NONCE_LEN, enc.length - Encryptor.GCM_NONCE_LEN);
+
+        List<StreamBundle.Stream> back = StreamBundle.read(new ByteArrayInputStream(plain));
+        assertEquals(4, back.size());
+        assertEquals("logdata", back.get(3).type);
+        assertArrayEquals(bundle.streams().get(3).data, back.get(3).data);
+    }
+}
@@ -0,0 +1,78 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Timestamps against the per-call SimpleDateFormat it replaces: the same
+ * strings for every epoch the callers write.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class TimestampsTest {
+
+    private static final long BASE_MS = 1_760_000_000_000L;
+
+    private static DateFormat utc(String pattern) {
+        DateFormat fmt = new SimpleDateFormat(pattern, Locale.US);
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return fmt;
+    }
+
+    @Test
+    public void isoFormsMatchSimpleDateFormat() {
+        DateFormat millis = utc("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        DateFormat seconds = utc("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        long[] edges = {
+                0L, -1L, 999L, 951_782_400_000L /* 2000-02-29 */, 951_868_799_999L,
+                4_107_542_399_999L /* 2100-02-28T23:59:59.999 */, 4_107_542_400_000L,
+                1_798_761_599_999L /* 2026-12-31T23:59:59.999 */, -86_400_000L,
+                253_402_300_799_999L /* 9999-12-31 */,
+        };
+        for (long ms : edges) {
+            assertEquals(millis.format(new Date(ms)), Timestamps.isoMillis(ms));
+            assertEquals(seconds.format(new Date(ms)), Timestamps.isoSeconds(ms));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            long ms = random.nextLong() % 4_000_000_000_000L;
+            assertEquals(millis.format(new Date(ms)), Timestamps.isoMillis(ms));
+        }
+    }
+
+    @Test
+    public void otherFormsMatchWhatTheCallersWrote() {
+        DateFormat http = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        http.setTimeZone(TimeZone.getTimeZone("GMT"));
+        DateFormat log = utc("yyyyMMdd_HHmmss:");
+        for (long ms = BASE_MS; ms < BASE_MS + 40L * 86_400_000L; ms += 3_600_007L) {
+            assertEquals(http.format(new Date(ms)), Timestamps.httpDate(ms));
+            assertEquals(log.format(new Date(ms)), Timestamps.logLine(ms));
+        }
+    }
+
+    @Test
+    public void httpDatesParseBack() {
+        long ms = BASE_MS + 120_000L;
+        assertEquals(ms, Timestamps.parseHttpDate(Timestamps.httpDate(ms)));
+        assertEquals(-1L, Timestamps.parseHttpDate("soon"));
+    }
+
+    @Test
+    public void logLinesParseBack() {
+        long ms = (BASE_MS + 120_000L) / 1000L * 1000L;
+        assertEquals(ms, Timestamps.parseLogLine(Timestamps.logLine(ms)));
+        assertEquals(-1L, Timestamps.parseLogLine("20261301_250000:"));
+    }
+}
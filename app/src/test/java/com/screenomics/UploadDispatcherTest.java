@@ -0,0 +1,158 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The shared upload dispatcher: the in-flight limit holds across callers,
+ * neither lane can starve the other, and a task waiting to retry doesn't
+ * hold its slot.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class UploadDispatcherTest {
+
+    @Test
+    public void neverRunsMoreThanTheLimit() throws Exception {
+        UploadDispatcher dispatcher = new UploadDispatcher(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            UploadDispatcher.Lane lane = i % 2 == 0
+                    ? UploadDispatcher.Lane.FRESH : UploadDispatcher.Lane.BACKLOG;
+            futures.add(dispatcher.submit(lane, () -> {
+                int now = running.incrementAndGet();
+                peak.accumulateAndGet(now, Math::max);
+                Thread.sleep(10);
+                running.decrementAndGet();
+                return now;
+            }));
+        }
+        for (Future<Integer> f : futures) f.get(5, TimeUnit.SECONDS);
+        assertEquals(3, peak.get());
+        assertEquals(10, dispatcher.completed(UploadDispatcher.Lane.FRESH));
+        assertEquals(10, dispatcher.completed(UploadDispatcher.Lane.BACKLOG));
+    }
+
+    @Test
+    public void lanesTakeTurnsWhenBothAreWaiting() throws Exception {
+        UploadDispatcher dispatcher = new UploadDispatcher(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        // Hold the only slot while both lanes fill up
+        Future<?> blocker = dispatcher.submit(UploadDispatcher.Lane.BACKLOG, () -> {
+            started.countDown();
+            gate.await();
+            return null;
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            String name = "b" + i;
+            futures.add(dispatcher.submit(UploadDispatcher.Lane.BACKLOG, () -> order.add(name)));
+        }
+        for (int i = 0; i < 2; i++) {
+            String name = "f" + i;
+            futures.add(dispatcher.submit(UploadDispatcher.Lane.FRESH, () -> order.add(name)));
+        }
+        gate.countDown();
+        blocker.get(5, TimeUnit.SECONDS);
+        for (Future<?> f : futures) f.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("f0", "b0", "f1", "b1", "b2", "b3"), order);
+    }
+
+    @Test
+    public void aTaskWaitingToRetryLendsItsSlot() throws Exception {
+        UploadDispatcher dispatcher = new UploadDispatcher(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        CountDownLatch parked = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Future<?> retrying = dispatcher.submit(UploadDispatcher.Lane.BACKLOG, () -> {
+            peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+            running.decrementAndGet();
+            parked.countDown();
+            UploadDispatcher.sleepOutsideSlot(300);
+            peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+            order.add("retried");
+            running.decrementAndGet();
+            return null;
+        });
+        assertTrue(parked.await(5, TimeUnit.SECONDS));
+        Future<?> other = dispatcher.submit(UploadDispatcher.Lane.FRESH, () -> {
+            peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+            order.add("other");
+            running.decrementAndGet();
+            return null;
+        });
+
+        other.get(5, TimeUnit.SECONDS);
+        retrying.get(5, TimeUnit.SECONDS);
+        // The other file went during the wait, and never two at once
+        assertEquals(List.of("other", "retried"), order);
+        assertEquals(1, peak.get());
+    }
+
+    @Test
+    public void aSlotFreedByParkingGoesToATaskBackFromItsWait() throws Exception {
+        UploadDispatcher dispatcher = new UploadDispatcher(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch parked = new CountDownLatch(1);
+        Future<?> resuming = dispatcher.submit(UploadDispatcher.Lane.BACKLOG, () -> {
+            parked.countDown();
+            UploadDispatcher.sleepOutsideSlot(600);
+            order.add("resumed");
+            return null;
+        });
+        assertTrue(parked.await(5, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        CountDownLatch holderParked = new CountDownLatch(1);
+        Future<?> holder = dispatcher.submit(UploadDispatcher.Lane.FRESH, () -> {
+            holderParked.countDown();
+            UploadDispatcher.sleepOutsideSlot(200);
+            // Hold the slot until the first task is back and waiting for it
+            Thread.sleep(700);
+            UploadDispatcher.sleepOutsideSlot(300);
+            order.add("holder");
+            return null;
+        });
+        assertTrue(holderParked.await(5, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        // Leaves an idle worker waiting on the same condition
+        dispatcher.submit(UploadDispatcher.Lane.FRESH, () -> null).get(5, TimeUnit.SECONDS);
+
+        resuming.get(5, TimeUnit.SECONDS);
+        holder.get(5, TimeUnit.SECONDS);
+        // The holder's second wait handed its slot to the waiting task
+        assertEquals(List.of("resumed", "holder"), order);
+    }
+
+    @Test
+    public void theLimitIsClamped() {
+        assertEquals(1, new UploadDispatcher(0).maxInFlight());
+        assertEquals(UploadDispatcher.MAX_IN_FLIGHT_CAP, new UploadDispatcher(1000).maxInFlight());
+    }
+
+    @Test
+    public void recentFilesAreFresh() {
+        long now = 10 * UploadDispatcher.FRESH_AGE_MS;
+        assertEquals(UploadDispatcher.Lane.FRESH, UploadDispatcher.laneFor(now - 60_000L, now));
+        assertTrue(UploadDispatcher.laneFor(now - 2 * UploadDispatcher.FRESH_AGE_MS, now)
+                == UploadDispatcher.Lane.BACKLOG);
+    }
+}
@@ -0,0 +1,173 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.util.List;
+
+/**
+ * The pending-upload index: what reconciliation finds, what writers and
+ * uploads record, and what survives a new process.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class UploadIndexTest {
+
+    private Context context;
+    private File dir;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        UploadIndex.resetForTest();
+        new File(context.getFilesDir(), "upload_index.journal").delete();
+        dir = new File(context.getFilesDir(), "encrypt-index");
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        UploadIndex.resetForTest();
+        File[] left = dir.listFiles();
+        if (left != null) for (File f : left) f.delete();
+        dir.delete();
+    }
+
+    private File write(String name, int size) throws Exception {
+        File f = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(new byte[size]);
+        }
+        return f;
+    }
+
+    /** An .enc with a sidecar, recorded the way the capture writers do. */
+    private File capture(String base, int size) throws Exception {
+        File enc = write(base + ".enc", size);
+        try (FileWriter w = new FileWriter(new File(dir, base + ".meta"))) {
+            w.write("{}");
+        }
+        UploadIndex.written(enc);
+        return enc;
+    }
+
+    @Test
+    public void openingFindsWhatIsAlreadyThere() throws Exception {
+        write("abcd1234_1700000000000_image.enc", 100);
+        write("abcd1234_1700000000000_image.meta", 20);
+        write("stress_1700000000001_image.jpg", 50);
+
+        UploadIndex index = UploadIndex.get(context, dir);
+
+        assertEquals("sidecars are not units of their own", 2, index.count());
+        assertEquals(170, index.bytes());
+    }
+
+    @Test
+    public void sidecarsWithoutTheirEncAreNoted() throws Exception {
+        write("abcd1234_1700000000000_image.enc", 100);
+        write("abcd1234_1700000000000_image.meta", 20);
+        write("0a1b2c3d_1600000000000_image.meta", 20);
+
+        UploadIndex index = UploadIndex.get(context, dir);
+
+        assertEquals(List.of("0a1b2c3d_1600000000000_image.meta"), index.strayMeta());
+        index.strayMetaRemoved("0a1b2c3d_1600000000000_image.meta");
+        assertEquals(0, index.strayMeta().size());
+    }
+
+    @Test
+    public void writersAndUploadsKeepItCurrent() throws Exception {
+        UploadIndex index = UploadIndex.get(context, dir);
+        File a = capture("abcd1234_1_image", 100);
+        File b = capture("abcd1234_2_image", 100);
+        assertEquals(2, index.count());
+
+        UploadIndex.uploadFailed(b, "http_500");
+        a.delete();
+        UploadIndex.deleted(a);
+
+        List<UploadIndex.Entry> entries = index.entries();
+        assertEquals(1, entries.size());
+        assertEquals(b.getName(), entries.get(0).name);
+        assertEquals(UploadIndex.State.FAILED, entries.get(0).state);
+        assertEquals(1, entries.get(0).attempts);
+        assertEquals("http_500", entries.get(0).lastError);
+    }
+
+    @Test
+    public void theJournalSurvivesANewProcess() throws Exception {
+        UploadIndex.get(context, dir);
+        File a = capture("abcd1234_1_image", 100);
+        capture("abcd1234_2_image", 200);
+        UploadIndex.uploadFailed(a, "http_503");
+        UploadIndex.uploadFailed(a, "timeout");
+
+        UploadIndex.resetForTest();
+        UploadIndex index = UploadIndex.get(context, dir);
+
+        assertEquals(2, index.count());
+        UploadIndex.Entry first = index.entries().get(0);
+        assertEquals(a.getName(), first.name);
+        assertEquals(2, first.attempts);
+        assertEquals("timeout", first.lastError);
+    }
+
+    @Test
+    public void filesFromOutsideWaitForAReconcile() throws Exception {
+        UploadIndex index = UploadIndex.get(context, dir);
+        File pushed = write("stress_1700000000001_image.jpg", 10);
+        assertEquals("no scan after opening", 0, index.count());
+
+        assertEquals(1, index.reconcile());
+        assertEquals(1, index.count());
+
+        pushed.delete();
+        index.reconcile();
+        assertEquals(0, index.count());
+        assertEquals(0, index.bytes());
+    }
+
+    @Test
+    public void pendingIsOldestFirstAndBeforeTheCutoff() throws Exception {
+        UploadIndex index = UploadIndex.get(context, dir);
+        File newer = write("abcd1234_2_image.enc", 10);
+        newer.setLastModified(2_000_000L);
+        UploadIndex.written(newer);
+        File older = write("abcd1234_1_image.enc", 10);
+        older.setLastModified(1_000_000L);
+        UploadIndex.written(older);
+
+        List<File> pending = index.pending(System.currentTimeMillis());
+        assertEquals(older.getName(), pending.get(0).getName());
+        assertEquals(newer.getName(), pending.get(1).getName());
+        assertEquals(1, index.pending(1_500_000L).size());
+    }
+
+    @Test
+    public void aTornLineIsIgnored() throws Exception {
+        UploadIndex.get(context, dir);
+        capture("abcd1234_1_image", 10);
+        UploadIndex.resetForTest();
+        try (FileWriter w = new FileWriter(new File(context.getFilesDir(), "upload_index.journal"), true)) {
+            w.write("+\tabcd1234_9_image.enc\t1");
+        }
+
+        UploadIndex index = UploadIndex.get(context, dir);
+        assertEquals(1, index.count());
+        assertFalse(new File(dir, "abcd1234_9_image.enc").exists());
+    }
+}
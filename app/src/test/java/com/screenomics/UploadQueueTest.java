@@ -0,0 +1,100 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Upload ordering: classes by descriptor, key records first, small records
+ * ahead of a screenshot backlog, and the backlog still draining.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class UploadQueueTest {
+
+    private static File file(String descriptor, int i) {
+        return new File("/enc", "abcd1234_" + (1_700_000_000_000L + i) + "_" + descriptor + ".enc");
+    }
+
+    @Test
+    public void descriptorsPickTheClass() {
+        assertEquals(UploadQueue.Priority.KEYS, UploadQueue.classify("abcd1234_1_sessionkey.enc"));
+        assertEquals(UploadQueue.Priority.TELEMETRY, UploadQueue.classify("abcd1234_1_devicestate.enc"));
+        assertEquals(UploadQueue.Priority.TELEMETRY, UploadQueue.classify("abcd1234_1_gps.enc"));
+        assertEquals(UploadQueue.Priority.DIAGNOSTICS, UploadQueue.classify("abcd1234_1_logcat.enc"));
+        assertEquals(UploadQueue.Priority.SCREENSHOTS, UploadQueue.classify("abcd1234_1_image.enc"));
+        assertEquals(UploadQueue.Priority.SCREENSHOTS, UploadQueue.classify("stress_1_image.jpg"));
+    }
+
+    @Test
+    public void smallRecordsGoAheadOfTheBacklog() {
+        UploadQueue queue = new UploadQueue();
+        for (int i = 0; i < 1000; i++) queue.add(file("image", i), 120_000);
+        queue.add(file("devicestate", 2000), 3_000);
+        queue.add(file("gps", 2001), 2_000);
+        queue.add(file("logcat", 2002), 40_000);
+        queue.add(file("sessionkey", 2003), 300);
+
+        assertEquals("sessionkey", descriptor(queue.poll()));
+        List<String> firstFour = new ArrayList<>();
+        for (int i = 0; i < 4; i++) firstFour.add(descriptor(queue.poll()));
+        assertTrue(firstFour.toString(), firstFour.contains("devicestate"));
+        assertTrue(firstFour.toString(), firstFour.contains("gps"));
+        assertTrue(firstFour.toString(), firstFour.contains("logcat"));
+    }
+
+    @Test
+    public void theBacklogKeepsDrainingUnderSteadyTelemetry() {
+        UploadQueue queue = new UploadQueue();
+        for (int i = 0; i < 100; i++) queue.add(file("image", i), 100_000);
+        for (int i = 0; i < 10_000; i++) queue.add(file("devicestate", 1000 + i), 4_000);
+
+        long imageBytes = 0;
+        long total = 0;
+        for (int i = 0; i < 2000; i++) {
+            File f = queue.poll();
+            long bytes = descriptor(f).equals("image") ? 100_000 : 4_000;
+            if (bytes == 100_000) imageBytes += bytes;
+            total += bytes;
+        }
+        // Weights 4:1 between telemetry and screenshots while both are busy
+        double share = imageBytes / (double) total;
+        assertTrue("screenshot share " + share, share > 0.15 && share < 0.25);
+    }
+
+    @Test
+    public void withinAClassOldestGoesFirst() {
+        UploadQueue queue = new UploadQueue();
+        queue.add(file("image", 1), 10);
+        queue.add(file("image", 2), 10);
+        assertEquals(file("image", 1), queue.poll());
+        assertEquals(file("image", 2), queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void depthsCountEveryClass() throws Exception {
+        JSONObject depths = UploadQueue.depths(List.of(
+                "a_1_image.enc", "a_2_image.enc", "a_3_gps.enc", "a_4_logcat.enc"));
+        assertEquals(2, depths.getInt("screenshots"));
+        assertEquals(1, depths.getInt("telemetry"));
+        assertEquals(1, depths.getInt("diagnostics"));
+        assertEquals(0, depths.getInt("keys"));
+    }
+
+    private static String descriptor(File f) {
+        String name = f.getName();
+        return name.substring(name.lastIndexOf('_') + 1, name.indexOf('.'));
+    }
+}
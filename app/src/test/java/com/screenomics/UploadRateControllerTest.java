@@ -0,0 +1,146 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The upload rate controller: additive increase on acks, multiplicative
+ * decrease on loss, latency inflation and throttling, and Retry-After.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class UploadRateControllerTest {
+
+    private long now = 1_000_000L;
+
+    /** One request of {@code latencyMs}, finishing at the current clock. */
+    private void request(UploadRateController c, long latencyMs, int code, String retryAfter) {
+        request(c, latencyMs, 100_000L, code, retryAfter);
+    }
+
+    private void request(UploadRateController c, long latencyMs, long bytes, int code,
+                         String retryAfter) {
+        c.onRequestStarted(now);
+        now += latencyMs;
+        c.onRequestFinished(now, latencyMs, bytes, code, retryAfter);
+    }
+
+    @Test
+    public void acksGrowTheWindowAboutOnePerWindow() {
+        UploadRateController c = new UploadRateController(8);
+        assertEquals(2, c.window());
+        // +1/2, +1/2.5, +1/2.9: three acks from a window of two
+        for (int i = 0; i < 3; i++) request(c, 200, 202, null);
+        assertEquals(3, c.window());
+        for (int i = 0; i < 3; i++) request(c, 200, 202, null);
+        assertEquals(4, c.window());
+    }
+
+    @Test
+    public void theWindowStopsAtTheCeiling() {
+        UploadRateController c = new UploadRateController(3);
+        for (int i = 0; i < 50; i++) request(c, 200, 202, null);
+        assertEquals(3, c.window());
+    }
+
+    @Test
+    public void aServerErrorHalvesTheWindowOncePerRtt() {
+        UploadRateController c = new UploadRateController(16);
+        for (int i = 0; i < 60; i++) request(c, 200, 202, null);
+        int before = c.window();
+        request(c, 200, 500, null);
+        assertEquals(before / 2, c.window());
+        // A second failure from the same window is the same congestion event
+        c.onRequestStarted(now);
+        c.onRequestFinished(now + 1, 1, 0, -1, null);
+        assertEquals(before / 2, c.window());
+    }
+
+    @Test
+    public void inflatedLatencyBacksOffBeforeAnythingFails() {
+        UploadRateController c = new UploadRateController(16);
+        for (int i = 0; i < 60; i++) request(c, 100, 202, null);
+        int before = c.window();
+        now += 5_000;
+        request(c, 1_000, 202, null);
+        assertTrue(c.window() < before);
+    }
+
+    @Test
+    public void largeBodiesOnASteadyLinkAreNotCongestion() throws Exception {
+        UploadRateController c = new UploadRateController(8);
+        // 100 ms round trip at 1 MB/s: key records and screenshots mixed
+        for (int i = 0; i < 20; i++) {
+            request(c, 102, 2_000L, 202, null);
+            request(c, 1_100, 1_000_000L, 202, null);
+        }
+        assertEquals(8, c.window());
+        assertEquals(0, c.toJson().getLong("congestion_events"));
+    }
+
+    @Test
+    public void retryAfterHoldsNewRequests() {
+        UploadRateController c = new UploadRateController(8);
+        request(c, 100, 429, "30");
+        assertEquals(now + 30_000L, c.holdUntilMs());
+        assertEquals(1, c.window());
+    }
+
+    @Test
+    public void retryAfterAcceptsAnHttpDate() {
+        SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        long base = 1_760_000_000_000L;
+        String header = fmt.format(new Date(base + 120_000L));
+        assertEquals(120_000L, UploadRateController.retryAfterMs(header, base));
+        assertEquals(0L, UploadRateController.retryAfterMs("soon", base));
+        assertEquals(0L, UploadRateController.retryAfterMs(null, base));
+    }
+
+    @Test
+    public void aClientErrorSaysNothingAboutThePath() {
+        UploadRateController c = new UploadRateController(8);
+        for (int i = 0; i < 5; i++) request(c, 100, 202, null);
+        int before = c.window();
+        request(c, 100, 400, null);
+        assertEquals(before, c.window());
+    }
+
+    @Test
+    public void batchesAreSizedFromGoodput() {
+        UploadRateController c = new UploadRateController(8);
+        assertEquals(10, c.suggestBatchSize(10, 100_000L));
+        // 100 kB per second, one request at a time
+        for (int i = 0; i < 5; i++) request(c, 1_000, 202, null);
+        assertEquals(30, c.suggestBatchSize(10, 100_000L));
+        assertEquals(UploadRateController.MIN_BATCH_SIZE, c.suggestBatchSize(10, 10_000_000L));
+    }
+
+    @Test
+    public void stateSurvivesAProcess() throws Exception {
+        Context context = RuntimeEnvironment.getApplication();
+        UploadRateController c = UploadRateController.get(context);
+        for (int i = 0; i < 5; i++) request(c, 1_000, 202, null);
+        c.save(context);
+
+        JSONObject saved = UploadRateController.saved(context);
+        JSONObject live = c.toJson();
+        assertEquals(live.getDouble("window"), saved.getDouble("window"), 0.0);
+        assertEquals(live.getLong("goodput_bytes_per_s"), saved.getLong("goodput_bytes_per_s"));
+        assertTrue(saved.getLong("goodput_bytes_per_s") > 0);
+    }
+}
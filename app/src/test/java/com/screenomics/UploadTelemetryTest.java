@@ -0,0 +1,150 @@
+package com.screenomics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * Request telemetry: what the listener counts, that the counters survive a
+ * process restart, and what an interval reports.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class UploadTelemetryTest {
+
+    private Context context;
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.getApplication();
+        PreferenceManager.getDefaultSharedPreferences(context).edit().clear().commit();
+        UploadTelemetry.resetForTest();
+        Metrics.resetForTest();
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        UploadTelemetry.resetForTest();
+        Metrics.resetForTest();
+    }
+
+    private static int post(OkHttpClient client, String url, int attempt, byte[] body)
+            throws Exception {
+        Request request = new Request.Builder()
+                .url(url)
+                .tag(UploadTelemetry.Attempt.class, new UploadTelemetry.Attempt(attempt))
+                .post(RequestBody.create(body, MediaType.parse("application/octet-stream")))
+                .build();
+        try (Response resp = client.newCall(request).execute()) {
+            resp.body().string();
+            return resp.code();
+        }
+    }
+
+    @Test
+    public void eachCallIsCountedByStatusAndAttempt() throws Exception {
+        UploadTelemetry telemetry = UploadTelemetry.get(context);
+        OkHttpClient client = new OkHttpClient.Builder()
+                .eventListenerFactory(telemetry.factory())
+                .build();
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(202).setBody("{}"));
+        String url = server.url("/api/v1/batches/1/screenshots").toString();
+
+        assertEquals(503, post(client, url, 1, new byte[4096]));
+        assertEquals(202, post(client, url, 2, new byte[4096]));
+
+        JSONObject json = telemetry.toJson();
+        assertEquals(2, json.getLong("requests"));
+        assertEquals(1, json.getLong("retried"));
+        assertEquals(0, json.getLong("failed"));
+        assertEquals(8192, json.getLong("bytes_sent"));
+        assertEquals(1, json.getJSONObject("status").getLong("2xx"));
+        assertEquals(1, json.getJSONObject("status").getLong("5xx"));
+        assertEquals(2, telemetry.phase(UploadTelemetry.Phase.TOTAL).count());
+        assertEquals(2, telemetry.phase(UploadTelemetry.Phase.TTFB).count());
+        // The second call reuses the pooled connection
+        assertEquals(1, telemetry.phase(UploadTelemetry.Phase.CONNECT).count());
+    }
+
+    @Test
+    public void aRefusedConnectionCountsAsFailed() throws Exception {
+        UploadTelemetry telemetry = UploadTelemetry.get(context);
+        OkHttpClient client = new OkHttpClient.Builder()
+                .eventListenerFactory(telemetry.factory())
+                .build();
+        String url = server.url("/").toString();
+        server.shutdown();
+
+        try {
+            post(client, url, 1, new byte[16]);
+        } catch (IOException expected) {
+            // Nothing listening
+        }
+
+        assertEquals(1, telemetry.requests());
+        assertEquals(1, telemetry.failed());
+    }
+
+    @Test
+    public void countersSurviveARestart() throws Exception {
+        UploadTelemetry telemetry = UploadTelemetry.get(context);
+        telemetry.phase(UploadTelemetry.Phase.TOTAL).record(1234);
+        telemetry.phase(UploadTelemetry.Phase.TOTAL).record(80);
+        telemetry.save(context);
+        Metrics.save(context);
+
+        // A new process: both start from zero, then restore
+        UploadTelemetry.resetForTest();
+        Metrics.resetForTest();
+        UploadTelemetry restored = UploadTelemetry.get(context);
+        Metrics.restore(context);
+
+        Metrics.Histogram total = restored.phase(UploadTelemetry.Phase.TOTAL);
+        assertEquals(2, total.count());
+        assertEquals(1234, total.maxMs());
+        assertEquals(telemetry.toJson().toString(), restored.toJson().toString());
+    }
+
+    @Test
+    public void theIntervalCoversOnlyCallsSinceTheLastReport() throws Exception {
+        JSONObject reported = new JSONObject()
+                .put("requests", 10).put("bytes_sent", 1000).put("send_ms", 100);
+        JSONObject current = new JSONObject()
+                .put("requests", 15).put("bytes_sent", 6000).put("send_ms", 600);
+
+        JSONObject interval = UploadTelemetry.interval(current, reported);
+
+        assertEquals(5, interval.getLong("upload_requests_since_last_report"));
+        assertEquals(10_000, interval.getLong("upload_throughput_bytes_per_s"));
+        // Cleared data: the whole current state is the interval
+        JSONObject afterClear = UploadTelemetry.interval(new JSONObject().put("requests", 3), reported);
+        assertEquals(3, afterClear.getLong("upload_requests_since_last_report"));
+    }
+}
@@ -145,7 +145,8 @@ if ($TriggerUpload) {
             "shell", "am", "start-foreground-service",
             "-n", "$PackageName/com.screenomics.UploadService",
             "--es", "dirPath", $encryptDir,
-            "--ez", "continueWithoutWifi", $wifiFlag
+            "--ez", "continueWithoutWifi", $wifiFlag,
+            "--ez", "rescan", "true"
         ) | Out-Null
     } catch {
         Write-Warning "Direct UploadService start is blocked (service not exported). Launching app as fallback."